@@ -0,0 +1,52 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.phenopackets.schema.v1.fhir.interop.benchmarks.corpus.SyntheticCorpus;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirContextProvider;
+
+/**
+ * Seeded, and therefore repeatable, inputs for the benchmarks.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+final class BenchmarkData {
+
+    static final FhirContext fhirContext = FhirContextProvider.r4().getFhirContext();
+
+    static final int CONDITIONS_PER_PATIENT = 5;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * A bundle of patients each with {@link #CONDITIONS_PER_PATIENT} conditions whose subjects are the embedded
+     * Patient, as produced by the HAPI parser.
+     */
+    static Bundle bundle(int numPatients) {
+        return SyntheticCorpus.builder()
+                .patients(numPatients)
+                .conditionsPerPatient(CONDITIONS_PER_PATIENT, CONDITIONS_PER_PATIENT)
+                .specimenRate(0)
+                .build()
+                .bundle();
+    }
+
+    /**
+     * A bundle with about the given number of entries of which only one in ten is a Patient or Condition, the rest
+     * being Observations and Encounters.
+     */
+    static Bundle noisyBundle(int numEntries) {
+        return SyntheticCorpus.builder()
+                .patients(Math.max(1, numEntries / 50))
+                .conditionsPerPatient(4, 4)
+                .specimenRate(0)
+                .noisePerPatient(45)
+                .build()
+                .bundle();
+    }
+
+    static String toJson(Bundle bundle) {
+        return fhirContext.newJsonParser().encodeResourceToString(bundle);
+    }
+}
@@ -0,0 +1,63 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks;
+
+import com.google.common.collect.ImmutableMap;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Condition;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.phenopackets.schema.v1.core.OntologyClass;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConceptMapper;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping of the Condition codings of all the patients in a bundle between OntologyClass and CodeableConcept.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConceptMapperBenchmark {
+
+    @Param({"10", "1000", "20000"})
+    public int patients;
+
+    private ConceptMapper conceptMapper;
+    private List<CodeableConcept> codeableConcepts;
+    private List<OntologyClass> ontologyClasses;
+
+    @Setup
+    public void setUp() {
+        conceptMapper = ConceptMapper.fromMap(ImmutableMap.of("HP", "http://purl.obolibrary.org/obo/HP_"));
+        codeableConcepts = new ArrayList<>();
+        ontologyClasses = new ArrayList<>();
+        BenchmarkData.bundle(patients).getEntry().stream()
+                .filter(entry -> entry.getResource() instanceof Condition)
+                .map(entry -> ((Condition) entry.getResource()).getCode())
+                .forEach(code -> {
+                    codeableConcepts.add(code);
+                    ontologyClasses.add(ConverterUtil.ontologyClass(code.getCodingFirstRep().getCode(), code.getCodingFirstRep().getDisplay()));
+                });
+    }
+
+    @Benchmark
+    public void toCodeableConcept(Blackhole blackhole) {
+        for (OntologyClass ontologyClass : ontologyClasses) {
+            blackhole.consume(conceptMapper.toCodeableConcept(ontologyClass));
+        }
+    }
+
+    @Benchmark
+    public void toOntologyClass(Blackhole blackhole) {
+        for (CodeableConcept codeableConcept : codeableConcepts) {
+            blackhole.consume(conceptMapper.toOntologyClass(codeableConcept));
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConceptTranslations;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Translates a batch of SNOMED CT codings to HPO with {@link ConceptTranslations}, half of them with a code the map
+ * knows about. The time per coding should hardly depend on the size of the map.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx1G")
+public class ConceptTranslationsBenchmark {
+
+    private static final int CODINGS = 100_000;
+    private static final String SNOMED = "http://snomed.info/sct";
+    private static final String HPO = "http://purl.obolibrary.org/obo/hp.owl";
+
+    // codes in the map, translated to one of 20000 HPO terms
+    @Param({"1000", "1000000"})
+    public int codes;
+
+    private ConceptTranslations translations;
+    private Coding[] codings;
+
+    @Setup
+    public void setUp() {
+        ConceptTranslations.Builder builder = ConceptTranslations.builder();
+        for (int code = 0; code < codes; code++) {
+            builder.add(SNOMED, String.valueOf(100_000_000 + code), HPO, String.format("HP:%07d", code % 20_000), "");
+        }
+        translations = builder.build();
+
+        Random random = new Random(42);
+        codings = new Coding[CODINGS];
+        for (int i = 0; i < CODINGS; i++) {
+            // half of the codes are unknown
+            codings[i] = new Coding(SNOMED, String.valueOf(100_000_000 + random.nextInt(codes * 2)), null);
+        }
+    }
+
+    /**
+     * Per coding, as the time is divided by the number of codings.
+     */
+    @Benchmark
+    @OperationsPerInvocation(CODINGS)
+    public void translate(Blackhole blackhole) {
+        for (Coding coding : codings) {
+            blackhole.consume(translations.translate(coding));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks;
+
+import org.hl7.fhir.r4.model.Condition;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Condition to PhenotypicFeature conversion for all the conditions in a bundle.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConverterUtilBenchmark {
+
+    @Param({"10", "1000", "20000"})
+    public int patients;
+
+    private List<Condition> conditions;
+
+    @Setup
+    public void setUp() {
+        conditions = BenchmarkData.bundle(patients).getEntry().stream()
+                .filter(entry -> entry.getResource() instanceof Condition)
+                .map(entry -> (Condition) entry.getResource())
+                .collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public void makePhenotypicFeature(Blackhole blackhole) {
+        for (Condition condition : conditions) {
+            blackhole.consume(ConverterUtil.makePhenotypicFeature(condition));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.*;
+import org.phenopackets.schema.v1.Cohort;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConversionObserver;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FHIR Bundle to Phenopacket conversion, not including parsing. With observed=true the stages are timed and the
+ * patients counted by a {@link ConversionObserver}, which shows the cost of the service metrics.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FhirConverterBenchmark {
+
+    @Param({"10", "1000", "20000"})
+    public int patients;
+
+    @Param({"false", "true"})
+    public boolean observed;
+
+    private Bundle bundle;
+    private FhirConverter fhirConverter;
+
+    @Setup
+    public void setUp() {
+        bundle = BenchmarkData.bundle(patients);
+        ConversionObserver conversionObserver = observed ? new TimingObserver() : ConversionObserver.noop();
+        fhirConverter = new FhirConverter(PhenopacketExtractor.builder().conversionObserver(conversionObserver).build());
+    }
+
+    @Benchmark
+    public Phenopacket toPhenopacket() {
+        return fhirConverter.toPhenopacket(bundle);
+    }
+
+    @Benchmark
+    public Cohort toCohort() {
+        return fhirConverter.toCohort(bundle);
+    }
+
+    /**
+     * Stands in for a metrics registry, accumulating the stage times and counts in LongAdders.
+     */
+    private static class TimingObserver implements ConversionObserver {
+
+        private final LongAdder[] stageNanos = new LongAdder[Stage.values().length];
+        private final LongAdder patients = new LongAdder();
+        private final LongAdder conditions = new LongAdder();
+
+        private TimingObserver() {
+            for (int i = 0; i < stageNanos.length; i++) {
+                stageNanos[i] = new LongAdder();
+            }
+        }
+
+        @Override
+        public long startTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void stageCompleted(Stage stage, long startTime) {
+            stageNanos[stage.ordinal()].add(System.nanoTime() - startTime);
+        }
+
+        @Override
+        public void patientConverted(int conditions, int skippedConditions) {
+            patients.increment();
+            this.conditions.add(conditions);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks;
+
+import org.hl7.fhir.r4.model.Condition;
+import org.openjdk.jmh.annotations.*;
+import org.phenopackets.schema.v1.core.MetaData;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.MetaDataExtractor;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.ResourceRegistry;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * MetaData built from all the conditions in a bundle, with a new {@link ResourceRegistry} as for a single Phenopacket
+ * and with one already shared by the other members of a Cohort.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetaDataExtractorBenchmark {
+
+    @Param({"10", "1000", "20000"})
+    public int patients;
+
+    private List<Condition> conditions;
+    private ResourceRegistry sharedRegistry;
+
+    @Setup
+    public void setUp() {
+        conditions = BenchmarkData.bundle(patients).getEntry().stream()
+                .filter(entry -> entry.getResource() instanceof Condition)
+                .map(entry -> (Condition) entry.getResource())
+                .collect(Collectors.toList());
+        sharedRegistry = new ResourceRegistry();
+    }
+
+    @Benchmark
+    public MetaData buildMetaData() {
+        return MetaDataExtractor.builder()
+                .createdBy("FHIR converter")
+                .fromConditions(conditions)
+                .buildMetaData();
+    }
+
+    @Benchmark
+    public MetaData buildMetaDataSharedRegistry() {
+        return MetaDataExtractor.builder()
+                .createdBy("FHIR converter")
+                .fromConditions(conditions)
+                .resourceRegistry(sharedRegistry)
+                .buildMetaData();
+    }
+}
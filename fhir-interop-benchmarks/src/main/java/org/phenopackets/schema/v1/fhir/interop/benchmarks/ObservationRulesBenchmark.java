@@ -0,0 +1,75 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks;
+
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.phenopackets.schema.v1.core.OntologyClass;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.ObservationRules;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Evaluates {@link ObservationRules} on a batch of lab Observations, half of them with a code the rules know about. The
+ * time per Observation should hardly depend on the number of rules.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ObservationRulesBenchmark {
+
+    private static final int OBSERVATIONS = 100_000;
+    private static final int RANGES_PER_CODE = 5;
+
+    // LOINC codes with rules, each with a range of values split into RANGES_PER_CODE bands
+    @Param({"10", "10000"})
+    public int codes;
+
+    private ObservationRules observationRules;
+    private Observation[] observations;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder rules = new StringBuilder();
+        for (int code = 0; code < codes; code++) {
+            for (int range = 0; range < RANGES_PER_CODE; range++) {
+                rules.append(code).append("-0\tmg/dL\t").append(range * 10).append('\t').append(range * 10 + 10)
+                        .append("\tHP:").append(String.format("%07d", code * RANGES_PER_CODE + range)).append("\tterm\n");
+            }
+        }
+        observationRules = ObservationRules.parse(new StringReader(rules.toString()));
+
+        Random random = new Random(42);
+        observations = new Observation[OBSERVATIONS];
+        for (int i = 0; i < OBSERVATIONS; i++) {
+            Observation observation = new Observation();
+            // half of the codes are unknown
+            observation.setCode(ConverterUtil.codeableConcept(ObservationRules.LOINC_SYSTEM, random.nextInt(codes * 2) + "-0", ""));
+            // one decimal place, as lab values usually have
+            observation.setValue(new Quantity().setValue(random.nextInt(600) / 10.0).setCode("mg/dL"));
+            observations[i] = observation;
+        }
+    }
+
+    /**
+     * Per Observation, as the time is divided by the number of Observations.
+     */
+    @Benchmark
+    @OperationsPerInvocation(OBSERVATIONS)
+    public void evaluate(Blackhole blackhole) {
+        Consumer<OntologyClass> consumer = blackhole::consume;
+        for (Observation observation : observations) {
+            observationRules.evaluate(observation, consumer);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.*;
+import org.phenopackets.schema.v1.Cohort;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter;
+import org.phenopackets.schema.v1.fhir.interop.converters.OntologyClassCache;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap retained by a converted Cohort with and without an {@link OntologyClassCache}, which is logged at the end of
+ * each iteration. Each iteration converts the bundle once with a new cache, so the retained bytes include the cache
+ * itself. The reported time includes the forced garbage collections and should be ignored, see
+ * {@link FhirConverterBenchmark} for throughput.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class OntologyClassCacheBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(OntologyClassCacheBenchmark.class);
+
+    @Param({"1000", "20000"})
+    public int patients;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private Bundle bundle;
+    private OntologyClassCache ontologyClassCache;
+    private FhirConverter fhirConverter;
+    private long retainedBytes;
+
+    @Setup
+    public void setUp() {
+        bundle = BenchmarkData.bundle(patients);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpConverter() {
+        ontologyClassCache = cached ? OntologyClassCache.bounded(10_000) : OntologyClassCache.disabled();
+        fhirConverter = new FhirConverter(PhenopacketExtractor.builder().ontologyClassCache(ontologyClassCache).build());
+    }
+
+    @TearDown(Level.Iteration)
+    public void logRetainedHeap() {
+        logger.info("{} patients, cached={}: retained {} KB, {}", patients, cached, retainedBytes / 1024, ontologyClassCache
+                .ontologyClassStats());
+    }
+
+    @Benchmark
+    public Cohort toCohort() {
+        long before = usedHeap();
+        Cohort cohort = fhirConverter.toCohort(bundle);
+        retainedBytes = usedHeap() - before;
+        return cohort;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,43 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter;
+import org.phenopackets.schema.v1.fhir.interop.converters.PhenoPacketConverter;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phenopacket to FHIR Bundle conversion for all the members of a cohort, not including encoding.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PhenoPacketConverterBenchmark {
+
+    @Param({"10", "1000", "20000"})
+    public int patients;
+
+    private List<Phenopacket> phenopackets;
+
+    @Setup
+    public void setUp() {
+        phenopackets = new FhirConverter().toCohort(BenchmarkData.bundle(patients)).getMembersList();
+    }
+
+    @Benchmark
+    public void toFhirBundle(Blackhole blackhole) {
+        for (Phenopacket phenopacket : phenopackets) {
+            Bundle bundle = PhenoPacketConverter.toFhirBundle(phenopacket);
+            blackhole.consume(bundle);
+        }
+    }
+}
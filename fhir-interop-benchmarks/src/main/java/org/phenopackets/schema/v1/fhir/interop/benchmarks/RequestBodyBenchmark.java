@@ -0,0 +1,79 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks;
+
+import ca.uhn.fhir.parser.IParser;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ways /convert can get from the request body to a parsed Bundle. Run with the GC profiler,
+ * {@code gc.alloc.rate.norm} is the memory allocated per request:
+ * <ul>
+ * <li>string - reads the body into a String, as {@code @RequestBody String} did</li>
+ * <li>growingBuffer - reads the body into a byte array of unknown length, which is grown and then copied</li>
+ * <li>presizedBuffer - reads the body into a byte array of its Content-Length, as /convert does for the cache key</li>
+ * <li>stream - parses straight from the request, as /convert does with the cache disabled</li>
+ * </ul>
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RequestBodyBenchmark {
+
+    @Param({"100", "1000"})
+    public int patients;
+
+    private byte[] body;
+
+    @State(Scope.Thread)
+    public static class ParserState {
+        // one per thread, as in the service
+        private final IParser jsonParser = BenchmarkData.fhirContext.newJsonParser();
+    }
+
+    @Setup
+    public void setUp() {
+        body = BenchmarkData.toJson(BenchmarkData.bundle(patients)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private InputStream request() {
+        return new ByteArrayInputStream(body);
+    }
+
+    @Benchmark
+    public Bundle string(ParserState state) throws IOException {
+        String input = CharStreams.toString(new InputStreamReader(request(), StandardCharsets.UTF_8));
+        return state.jsonParser.parseResource(Bundle.class, input);
+    }
+
+    @Benchmark
+    public Bundle growingBuffer(ParserState state) throws IOException {
+        byte[] input = ByteStreams.toByteArray(request());
+        return state.jsonParser.parseResource(Bundle.class, new InputStreamReader(new ByteArrayInputStream(input), StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public Bundle presizedBuffer(ParserState state) throws IOException {
+        byte[] input = new byte[body.length];
+        ByteStreams.readFully(request(), input);
+        return state.jsonParser.parseResource(Bundle.class, new InputStreamReader(new ByteArrayInputStream(input), StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public Bundle stream(ParserState state) {
+        return state.jsonParser.parseResource(Bundle.class, new InputStreamReader(request(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,52 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks;
+
+import ca.uhn.fhir.parser.IParser;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.*;
+import org.phenopackets.schema.v1.Cohort;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The (de)serialisation done by the service around the conversion: parsing the request Bundle with HAPI and printing
+ * the protobuf result as JSON.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"10", "1000", "20000"})
+    public int patients;
+
+    private IParser jsonParser;
+    private String bundleJson;
+    private Cohort cohort;
+    private JsonFormat.Printer printer;
+
+    @Setup
+    public void setUp() {
+        jsonParser = BenchmarkData.fhirContext.newJsonParser();
+        bundleJson = BenchmarkData.toJson(BenchmarkData.bundle(patients));
+        cohort = new FhirConverter().toCohort(BenchmarkData.bundle(patients));
+        printer = JsonFormat.printer();
+    }
+
+    @Benchmark
+    public IBaseResource hapiParseBundle() {
+        return jsonParser.parseResource(bundleJson);
+    }
+
+    @Benchmark
+    public String protobufPrintJson() throws InvalidProtocolBufferException {
+        return printer.print(cohort);
+    }
+}
@@ -0,0 +1,101 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks;
+
+import ca.uhn.fhir.parser.IParser;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.*;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.fhir.interop.benchmarks.corpus.SyntheticCorpus;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter;
+import org.phenopackets.schema.v1.fhir.interop.converters.PhenoPacketConverter;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One single-patient request through each direction of the service, including the (de)serialisation: the forward
+ * path of /convert (FHIR Bundle JSON to Phenopacket JSON) and the reverse path of /convert/fhir (Phenopacket JSON or
+ * protobuf to FHIR Bundle JSON). Each operation converts the next of a set of different patients.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ServicePathBenchmark {
+
+    private static final int REQUESTS = 1000;
+
+    private String[] bundleJson;
+    private String[] phenopacketJson;
+    private byte[][] phenopacketProtobuf;
+
+    private FhirConverter fhirConverter;
+    private JsonFormat.Printer printer;
+    private JsonFormat.Parser parser;
+
+    @State(Scope.Thread)
+    public static class RequestState {
+        // one per thread, as in the service
+        private final IParser jsonParser = BenchmarkData.fhirContext.newJsonParser();
+        private int next;
+
+        int nextRequest() {
+            next = (next + 1) % REQUESTS;
+            return next;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        SyntheticCorpus corpus = SyntheticCorpus.builder()
+                .patients(REQUESTS)
+                .conditionsPerPatient(BenchmarkData.CONDITIONS_PER_PATIENT, BenchmarkData.CONDITIONS_PER_PATIENT)
+                .specimenRate(0)
+                .build();
+        IParser jsonParser = BenchmarkData.fhirContext.newJsonParser();
+        printer = JsonFormat.printer();
+        parser = JsonFormat.parser();
+        fhirConverter = new FhirConverter();
+        bundleJson = new String[REQUESTS];
+        phenopacketJson = new String[REQUESTS];
+        phenopacketProtobuf = new byte[REQUESTS][];
+        for (int i = 0; i < REQUESTS; i++) {
+            List<Resource> record = corpus.patientRecord(i);
+            Bundle bundle = new Bundle();
+            record.forEach(resource -> bundle.addEntry().setResource(resource));
+            bundleJson[i] = jsonParser.encodeResourceToString(bundle);
+            Phenopacket phenopacket = corpus.phenopacket(record);
+            try {
+                phenopacketJson[i] = printer.print(phenopacket);
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalStateException(e);
+            }
+            phenopacketProtobuf[i] = phenopacket.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public String forwardJson(RequestState state) throws InvalidProtocolBufferException {
+        Bundle bundle = (Bundle) state.jsonParser.parseResource(bundleJson[state.nextRequest()]);
+        return printer.print(fhirConverter.toPhenopacket(bundle));
+    }
+
+    @Benchmark
+    public String reverseJson(RequestState state) throws InvalidProtocolBufferException {
+        Phenopacket.Builder builder = Phenopacket.newBuilder();
+        parser.merge(phenopacketJson[state.nextRequest()], builder);
+        return state.jsonParser.encodeResourceToString(PhenoPacketConverter.toFhirBundle(builder.build()));
+    }
+
+    @Benchmark
+    public String reverseProtobuf(RequestState state) throws InvalidProtocolBufferException {
+        Phenopacket phenopacket = Phenopacket.parseFrom(phenopacketProtobuf[state.nextRequest()]);
+        return state.jsonParser.encodeResourceToString(PhenoPacketConverter.toFhirBundle(phenopacket));
+    }
+}
@@ -0,0 +1,50 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks;
+
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.*;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.StreamingBundleReader;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link StreamingBundleReader} with a full HAPI parse on bundles mostly made up of Observations and
+ * Encounters, of which only the Observations are used by the converters.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StreamingBundleReaderBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int entries;
+
+    private IParser jsonParser;
+    private StreamingBundleReader streamingBundleReader;
+    private String bundleJson;
+
+    @Setup
+    public void setUp() {
+        jsonParser = BenchmarkData.fhirContext.newJsonParser();
+        streamingBundleReader = new StreamingBundleReader(jsonParser);
+        bundleJson = BenchmarkData.toJson(BenchmarkData.noisyBundle(entries));
+    }
+
+    @Benchmark
+    public IBaseResource hapiParseResource() {
+        return jsonParser.parseResource(bundleJson);
+    }
+
+    @Benchmark
+    public Bundle streamingBundleReader() throws IOException {
+        return streamingBundleReader.read(new StringReader(bundleJson));
+    }
+}
@@ -0,0 +1,91 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.protobuf.util.JsonFormat;
+import org.openjdk.jmh.annotations.*;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serialisation CPU and bytes on the wire for the response formats of the service, writing every member of a Cohort
+ * as the ndjson endpoint does. The number of bytes written is deterministic, so it is logged once per trial rather
+ * than measured.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WireFormatBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(WireFormatBenchmark.class);
+
+    @Param({"1000"})
+    public int patients;
+
+    /**
+     * json is the pretty-printed JsonFormat default used by the /convert endpoint, ndjson the compact form used by
+     * /convert/ndjson and protobuf the length-delimited binary format.
+     */
+    @Param({"json", "ndjson", "protobuf"})
+    public String format;
+
+    @Param({"false", "true"})
+    public boolean gzip;
+
+    private List<Phenopacket> phenopackets;
+    private JsonFormat.Printer jsonPrinter;
+    private JsonFormat.Printer ndjsonPrinter;
+
+    @Setup
+    public void setUp() throws IOException {
+        phenopackets = new FhirConverter().toCohort(BenchmarkData.bundle(patients)).getMembersList();
+        jsonPrinter = JsonFormat.printer();
+        ndjsonPrinter = JsonFormat.printer().omittingInsignificantWhitespace();
+        logger.info("{} phenopackets as {}, gzip={}: {} bytes", patients, format, gzip, write());
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        CountingOutputStream countingOutputStream = new CountingOutputStream(ByteStreams.nullOutputStream());
+        try (OutputStream outputStream = gzip ? new GZIPOutputStream(countingOutputStream, 8192) : new BufferedOutputStream(countingOutputStream)) {
+            switch (format) {
+                case "json":
+                    writeJson(jsonPrinter, outputStream);
+                    break;
+                case "ndjson":
+                    writeJson(ndjsonPrinter, outputStream);
+                    break;
+                case "protobuf":
+                    for (Phenopacket phenopacket : phenopackets) {
+                        phenopacket.writeDelimitedTo(outputStream);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown format " + format);
+            }
+        }
+        return countingOutputStream.getCount();
+    }
+
+    private void writeJson(JsonFormat.Printer printer, OutputStream outputStream) throws IOException {
+        Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+        for (Phenopacket phenopacket : phenopackets) {
+            printer.appendTo(phenopacket, writer);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+}
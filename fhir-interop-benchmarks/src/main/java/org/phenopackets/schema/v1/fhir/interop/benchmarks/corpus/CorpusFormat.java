@@ -0,0 +1,29 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks.corpus;
+
+/**
+ * Output formats of the {@link CorpusWriter}.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public enum CorpusFormat {
+    /**
+     * A single FHIR Bundle containing every patient record.
+     */
+    BUNDLE_JSON,
+    /**
+     * One FHIR resource per line, grouped by patient as for a sorted Bulk Data export.
+     */
+    FHIR_NDJSON,
+    /**
+     * One Phenopacket per line in protobuf JSON format.
+     */
+    PHENOPACKET_NDJSON,
+    /**
+     * Length-delimited binary Phenopackets, as written by {@link com.google.protobuf.MessageLite#writeDelimitedTo}.
+     */
+    PHENOPACKET_PROTOBUF;
+
+    public static CorpusFormat parse(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
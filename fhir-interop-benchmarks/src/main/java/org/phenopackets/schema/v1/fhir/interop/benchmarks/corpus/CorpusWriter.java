@@ -0,0 +1,99 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks.corpus;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.google.protobuf.util.JsonFormat;
+import org.hl7.fhir.r4.model.Resource;
+import org.phenopackets.schema.v1.Phenopacket;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a {@link SyntheticCorpus} to disk one patient record at a time, so the size of the output is not limited by
+ * the heap. Output is gzipped if the file name ends with {@code .gz}.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class CorpusWriter {
+
+    private final IParser jsonParser;
+    private final JsonFormat.Printer printer = JsonFormat.printer().omittingInsignificantWhitespace();
+
+    public CorpusWriter(FhirContext fhirContext) {
+        this.jsonParser = fhirContext.newJsonParser();
+    }
+
+    public void write(SyntheticCorpus corpus, CorpusFormat format, Path path) throws IOException {
+        try (OutputStream outputStream = openOutputStream(path)) {
+            write(corpus, format, outputStream);
+        }
+    }
+
+    public void write(SyntheticCorpus corpus, CorpusFormat format, OutputStream outputStream) throws IOException {
+        if (format == CorpusFormat.PHENOPACKET_PROTOBUF) {
+            for (int i = 0; i < corpus.getPatients(); i++) {
+                corpus.phenopacket(corpus.patientRecord(i)).writeDelimitedTo(outputStream);
+            }
+            outputStream.flush();
+            return;
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        switch (format) {
+            case BUNDLE_JSON:
+                writeBundle(corpus, writer);
+                break;
+            case FHIR_NDJSON:
+                for (int i = 0; i < corpus.getPatients(); i++) {
+                    for (Resource resource : corpus.patientRecord(i)) {
+                        jsonParser.encodeResourceToWriter(resource, writer);
+                        writer.write('\n');
+                    }
+                }
+                break;
+            case PHENOPACKET_NDJSON:
+                for (int i = 0; i < corpus.getPatients(); i++) {
+                    Phenopacket phenopacket = corpus.phenopacket(corpus.patientRecord(i));
+                    printer.appendTo(phenopacket, writer);
+                    writer.write('\n');
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported format " + format);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes the Bundle wrapper by hand and the entries one at a time, rather than building the whole Bundle.
+     */
+    private void writeBundle(SyntheticCorpus corpus, Writer writer) throws IOException {
+        writer.write("{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":[");
+        boolean first = true;
+        for (int i = 0; i < corpus.getPatients(); i++) {
+            List<Resource> patientRecord = corpus.patientRecord(i);
+            for (Resource resource : patientRecord) {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writer.write("\n{\"resource\":");
+                jsonParser.encodeResourceToWriter(resource, writer);
+                writer.write('}');
+            }
+        }
+        writer.write("\n]}\n");
+    }
+
+    private static OutputStream openOutputStream(Path path) throws IOException {
+        OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16);
+        if (path.getFileName().toString().endsWith(".gz")) {
+            return new GZIPOutputStream(outputStream, 1 << 16);
+        }
+        return outputStream;
+    }
+}
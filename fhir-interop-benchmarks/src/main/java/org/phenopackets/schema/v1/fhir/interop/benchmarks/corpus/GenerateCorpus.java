@@ -0,0 +1,64 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks.corpus;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line entry point for writing a synthetic corpus to disk, e.g.
+ * <pre>
+ *     java -cp benchmarks.jar org.phenopackets.schema.v1.fhir.interop.benchmarks.corpus.GenerateCorpus \
+ *         --patients 1000000 --format fhir-ndjson --out corpus.ndjson.gz
+ * </pre>
+ * Options: {@code --seed}, {@code --patients}, {@code --min-conditions}, {@code --max-conditions},
+ * {@code --snomed-fraction}, {@code --severity-rate}, {@code --onset-rate}, {@code --specimen-rate},
+ * {@code --noise-per-patient}, {@code --format} (one of bundle-json, fhir-ndjson, phenopacket-ndjson,
+ * phenopacket-protobuf) and {@code --out}.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class GenerateCorpus {
+
+    private static final Logger logger = LoggerFactory.getLogger(GenerateCorpus.class);
+
+    private GenerateCorpus() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+
+        SyntheticCorpus corpus = SyntheticCorpus.builder()
+                .seed(Long.parseLong(options.getOrDefault("seed", "42")))
+                .patients(Integer.parseInt(options.getOrDefault("patients", "100")))
+                .conditionsPerPatient(Integer.parseInt(options.getOrDefault("min-conditions", "1")), Integer.parseInt(options
+                        .getOrDefault("max-conditions", "10")))
+                .snomedFraction(Double.parseDouble(options.getOrDefault("snomed-fraction", "0.2")))
+                .severityRate(Double.parseDouble(options.getOrDefault("severity-rate", "0.5")))
+                .onsetRate(Double.parseDouble(options.getOrDefault("onset-rate", "0.3")))
+                .specimenRate(Double.parseDouble(options.getOrDefault("specimen-rate", "0.3")))
+                .noisePerPatient(Integer.parseInt(options.getOrDefault("noise-per-patient", "0")))
+                .build();
+        CorpusFormat format = CorpusFormat.parse(options.getOrDefault("format", "bundle-json"));
+        Path out = Paths.get(options.getOrDefault("out", "corpus.json"));
+
+        long start = System.nanoTime();
+        new CorpusWriter(FhirContext.forR4()).write(corpus, format, out);
+        logger.info("Wrote {} patients as {} to {} in {} ms", corpus.getPatients(), format, out, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --option value pairs but got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+}
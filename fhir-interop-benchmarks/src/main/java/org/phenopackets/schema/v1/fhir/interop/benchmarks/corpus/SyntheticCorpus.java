@@ -0,0 +1,362 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks.corpus;
+
+import com.google.protobuf.Timestamp;
+import org.hl7.fhir.r4.model.*;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Seeded generator of synthetic patient records. Each patient is generated from its own random stream derived from the
+ * seed and the patient index, so a record is the same however many patients are generated and in whichever order,
+ * and corpora of any size can be streamed without holding more than one patient in memory.
+ * <p>
+ * Term frequencies are skewed so that a few common terms account for most conditions, as they do in real data.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class SyntheticCorpus {
+
+    static final String HPO_SYSTEM = "http://purl.obolibrary.org/obo/hp.owl";
+    static final String SNOMED_CT_SYSTEM = "http://snomed.info/sct";
+    static final String LOINC_SYSTEM = "http://loinc.org";
+    static final String UCUM_SYSTEM = "http://unitsofmeasure.org";
+
+    /**
+     * Used for the MetaData of the generated Phenopackets, which would otherwise get the current time.
+     */
+    static final Timestamp CREATED = Timestamp.newBuilder().setSeconds(Instant.parse("2019-01-01T00:00:00Z").getEpochSecond()).build();
+
+    private static final String[][] HPO_TERMS = {
+            {"HP:0001250", "Seizure"},
+            {"HP:0001263", "Global developmental delay"},
+            {"HP:0001249", "Intellectual disability"},
+            {"HP:0001290", "Generalized hypotonia"},
+            {"HP:0000252", "Microcephaly"},
+            {"HP:0004322", "Short stature"},
+            {"HP:0001508", "Failure to thrive"},
+            {"HP:0000750", "Delayed speech and language development"},
+            {"HP:0000729", "Autistic behavior"},
+            {"HP:0001873", "Thrombocytopenia"},
+            {"HP:0001903", "Anemia"},
+            {"HP:0001875", "Neutropenia"},
+            {"HP:0000365", "Hearing impairment"},
+            {"HP:0000407", "Sensorineural hearing impairment"},
+            {"HP:0000505", "Visual impairment"},
+            {"HP:0000486", "Strabismus"},
+            {"HP:0000316", "Hypertelorism"},
+            {"HP:0000256", "Macrocephaly"},
+            {"HP:0001156", "Brachydactyly"},
+            {"HP:0002650", "Scoliosis"},
+            {"HP:0001631", "Atrial septal defect"},
+            {"HP:0001629", "Ventricular septal defect"},
+            {"HP:0001251", "Ataxia"},
+            {"HP:0001257", "Spasticity"},
+            {"HP:0002315", "Headache"},
+            {"HP:0001744", "Splenomegaly"},
+            {"HP:0002240", "Hepatomegaly"},
+            {"HP:0000083", "Renal insufficiency"},
+            {"HP:0000822", "Hypertension"},
+            {"HP:0000819", "Diabetes mellitus"},
+            {"HP:0002014", "Diarrhea"},
+            {"HP:0002013", "Vomiting"},
+            {"HP:0001945", "Fever"},
+            {"HP:0001254", "Lethargy"},
+            {"HP:0001882", "Leukopenia"},
+            {"HP:0001974", "Leukocytosis"},
+    };
+
+    private static final String[][] SNOMED_TERMS = {
+            {"38341003", "Hypertensive disorder"},
+            {"44054006", "Diabetes mellitus type 2"},
+            {"195967001", "Asthma"},
+            {"49436004", "Atrial fibrillation"},
+            {"84114007", "Heart failure"},
+            {"13645005", "Chronic obstructive lung disease"},
+            {"235595009", "Gastroesophageal reflux disease"},
+            {"22298006", "Myocardial infarction"},
+            {"91175000", "Seizure"},
+            {"271737000", "Anemia"},
+            {"386661006", "Fever"},
+            {"25064002", "Headache"},
+            {"422587007", "Nausea"},
+            {"302866003", "Hypoglycemia"},
+    };
+
+    private static final String[][] SEVERITIES = {
+            {"HP:0012825", "Mild"},
+            {"HP:0012826", "Moderate"},
+            {"HP:0012828", "Severe"},
+            {"HP:0012829", "Profound"},
+    };
+
+    private static final String[] ONSETS = {
+            "Congenital onset",
+            "Neonatal onset",
+            "Infantile onset",
+            "Childhood onset",
+            "Juvenile onset",
+            "Adult onset",
+    };
+
+    private static final String[][] SPECIMEN_TYPES = {
+            {"119297000", "Blood specimen"},
+            {"122555007", "Venous blood specimen"},
+            {"119342007", "Saliva specimen"},
+            {"119376003", "Tissue specimen"},
+            {"122575003", "Urine specimen"},
+    };
+
+    /**
+     * LOINC code, display, UCUM unit, low and high values.
+     */
+    private static final Object[][] LAB_TESTS = {
+            {"777-3", "Platelets [#/volume] in Blood", "10*3/uL", 20, 600},
+            {"718-7", "Hemoglobin [Mass/volume] in Blood", "g/dL", 6, 19},
+            {"6690-2", "Leukocytes [#/volume] in Blood", "10*3/uL", 1, 25},
+            {"2345-7", "Glucose [Mass/volume] in Serum or Plasma", "mg/dL", 40, 400},
+            {"2160-0", "Creatinine [Mass/volume] in Serum or Plasma", "mg/dL", 0, 8},
+            {"8867-4", "Heart rate", "/min", 40, 180},
+    };
+
+    private static final long SECONDS_1940 = Instant.parse("1940-01-01T00:00:00Z").getEpochSecond();
+    private static final long SECONDS_2018 = Instant.parse("2018-01-01T00:00:00Z").getEpochSecond();
+
+    private final long seed;
+    private final int patients;
+    private final int minConditions;
+    private final int maxConditions;
+    private final double snomedFraction;
+    private final double severityRate;
+    private final double onsetRate;
+    private final double specimenRate;
+    private final int noisePerPatient;
+
+    private SyntheticCorpus(Builder builder) {
+        this.seed = builder.seed;
+        this.patients = builder.patients;
+        this.minConditions = builder.minConditions;
+        this.maxConditions = builder.maxConditions;
+        this.snomedFraction = builder.snomedFraction;
+        this.severityRate = builder.severityRate;
+        this.onsetRate = builder.onsetRate;
+        this.specimenRate = builder.specimenRate;
+        this.noisePerPatient = builder.noisePerPatient;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int getPatients() {
+        return patients;
+    }
+
+    /**
+     * The resources for the patient with the given index: the Patient first, then its Conditions, Specimens and noise
+     * resources. References to the Patient are written as {@code Patient/<id>} but also point at the Patient object,
+     * as they would after parsing a Bundle.
+     */
+    public List<Resource> patientRecord(int index) {
+        Random random = new Random(seed * 0x9E3779B97F4A7C15L + index);
+        List<Resource> resources = new ArrayList<>();
+
+        Patient patient = new Patient();
+        patient.setId(new UUID(random.nextLong(), random.nextLong()).toString());
+        patient.setGender(random.nextBoolean() ? Enumerations.AdministrativeGender.FEMALE : Enumerations.AdministrativeGender.MALE);
+        long birthSeconds = SECONDS_1940 + (long) (random.nextDouble() * (SECONDS_2018 - SECONDS_1940));
+        patient.setBirthDate(Date.from(Instant.ofEpochSecond(birthSeconds - birthSeconds % 86400)));
+        resources.add(patient);
+
+        int numConditions = minConditions + random.nextInt(maxConditions - minConditions + 1);
+        for (int i = 0; i < numConditions; i++) {
+            resources.add(condition(patient, random));
+        }
+        if (random.nextDouble() < specimenRate) {
+            resources.add(specimen(patient, random));
+        }
+        for (int i = 0; i < noisePerPatient; i++) {
+            resources.add(random.nextInt(3) == 0 ? encounter(patient) : observation(patient, random));
+        }
+        return resources;
+    }
+
+    /**
+     * The Phenopacket for the patient record, with a fixed creation time so that it is reproducible.
+     */
+    public Phenopacket phenopacket(List<Resource> patientRecord) {
+        Patient patient = (Patient) patientRecord.get(0);
+        List<Condition> conditions = new ArrayList<>();
+        for (Resource resource : patientRecord) {
+            if (resource instanceof Condition) {
+                conditions.add((Condition) resource);
+            }
+        }
+        Phenopacket phenopacket = new PhenopacketExtractor().extractPhenopacket(patient, conditions);
+        return phenopacket.toBuilder()
+                .setId(patient.getId())
+                .setMetaData(phenopacket.getMetaData().toBuilder().setCreated(CREATED))
+                .build();
+    }
+
+    public void forEachPatientRecord(Consumer<List<Resource>> consumer) {
+        for (int i = 0; i < patients; i++) {
+            consumer.accept(patientRecord(i));
+        }
+    }
+
+    /**
+     * The whole corpus as a single Bundle - only sensible for small corpora.
+     */
+    public Bundle bundle() {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        forEachPatientRecord(resources -> resources.forEach(resource -> bundle.addEntry().setResource(resource)));
+        return bundle;
+    }
+
+    private Condition condition(Patient patient, Random random) {
+        Condition condition = new Condition();
+        if (random.nextDouble() < snomedFraction) {
+            String[] term = skewedChoice(SNOMED_TERMS, random);
+            condition.setCode(ConverterUtil.codeableConcept(SNOMED_CT_SYSTEM, term[0], term[1]));
+        } else {
+            String[] term = skewedChoice(HPO_TERMS, random);
+            condition.setCode(ConverterUtil.codeableConcept(HPO_SYSTEM, term[0], term[1]));
+        }
+        if (random.nextDouble() < severityRate) {
+            String[] severity = SEVERITIES[random.nextInt(SEVERITIES.length)];
+            condition.setSeverity(ConverterUtil.codeableConcept(HPO_SYSTEM, severity[0], severity[1]));
+        }
+        if (random.nextDouble() < onsetRate) {
+            condition.setOnset(new StringType(ONSETS[random.nextInt(ONSETS.length)]));
+        }
+        condition.setSubject(subjectReference(patient));
+        return condition;
+    }
+
+    private Specimen specimen(Patient patient, Random random) {
+        String[] type = SPECIMEN_TYPES[random.nextInt(SPECIMEN_TYPES.length)];
+        Specimen specimen = new Specimen();
+        specimen.setId(new UUID(random.nextLong(), random.nextLong()).toString());
+        specimen.setType(ConverterUtil.codeableConcept(SNOMED_CT_SYSTEM, type[0], type[1]));
+        specimen.setSubject(subjectReference(patient));
+        return specimen;
+    }
+
+    private Observation observation(Patient patient, Random random) {
+        Object[] test = LAB_TESTS[random.nextInt(LAB_TESTS.length)];
+        int low = (Integer) test[3];
+        int high = (Integer) test[4];
+        double value = Math.round((low + random.nextDouble() * (high - low)) * 10) / 10.0;
+        Observation observation = new Observation();
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.setCode(ConverterUtil.codeableConcept(LOINC_SYSTEM, (String) test[0], (String) test[1]));
+        observation.setValue(new Quantity()
+                .setValue(value)
+                .setUnit((String) test[2])
+                .setSystem(UCUM_SYSTEM)
+                .setCode((String) test[2]));
+        observation.setSubject(subjectReference(patient));
+        return observation;
+    }
+
+    private Encounter encounter(Patient patient) {
+        Encounter encounter = new Encounter();
+        encounter.setStatus(Encounter.EncounterStatus.FINISHED);
+        encounter.setClass_(new Coding("http://terminology.hl7.org/CodeSystem/v3-ActCode", "AMB", "ambulatory"));
+        encounter.setSubject(subjectReference(patient));
+        return encounter;
+    }
+
+    private static Reference subjectReference(Patient patient) {
+        Reference reference = new Reference("Patient/" + patient.getId());
+        reference.setResource(patient);
+        return reference;
+    }
+
+    /**
+     * Picks from the array with a strong bias towards the first elements.
+     */
+    private static String[] skewedChoice(String[][] terms, Random random) {
+        double u = random.nextDouble();
+        return terms[(int) (terms.length * u * u * u)];
+    }
+
+    public static class Builder {
+        private long seed = 42L;
+        private int patients = 100;
+        private int minConditions = 1;
+        private int maxConditions = 10;
+        private double snomedFraction = 0.2;
+        private double severityRate = 0.5;
+        private double onsetRate = 0.3;
+        private double specimenRate = 0.3;
+        private int noisePerPatient = 0;
+
+        private Builder() {
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder patients(int patients) {
+            this.patients = patients;
+            return this;
+        }
+
+        public Builder conditionsPerPatient(int min, int max) {
+            if (min < 0 || max < min) {
+                throw new IllegalArgumentException("Invalid conditions per patient range " + min + "-" + max);
+            }
+            this.minConditions = min;
+            this.maxConditions = max;
+            return this;
+        }
+
+        /**
+         * Fraction of conditions coded with SNOMED CT rather than HPO.
+         */
+        public Builder snomedFraction(double snomedFraction) {
+            this.snomedFraction = snomedFraction;
+            return this;
+        }
+
+        public Builder severityRate(double severityRate) {
+            this.severityRate = severityRate;
+            return this;
+        }
+
+        public Builder onsetRate(double onsetRate) {
+            this.onsetRate = onsetRate;
+            return this;
+        }
+
+        public Builder specimenRate(double specimenRate) {
+            this.specimenRate = specimenRate;
+            return this;
+        }
+
+        /**
+         * Number of Observations and Encounters per patient, which the converters do not use.
+         */
+        public Builder noisePerPatient(int noisePerPatient) {
+            this.noisePerPatient = noisePerPatient;
+            return this;
+        }
+
+        public SyntheticCorpus build() {
+            return new SyntheticCorpus(this);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks.load;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.common.io.ByteStreams;
+import org.phenopackets.schema.v1.fhir.interop.benchmarks.corpus.SyntheticCorpus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Load test for the conversion service with clients which upload their Bundles slowly, e.g.
+ * <pre>
+ *     java -cp benchmarks.jar org.phenopackets.schema.v1.fhir.interop.benchmarks.load.SlowClientLoadTest \
+ *         --url http://localhost:8080/convert --clients 200 --requests-per-client 5 --upload-ms 2000
+ * </pre>
+ * Each client sends a single patient Bundle in {@code --chunks} pieces spread over {@code --upload-ms}, so that the
+ * server sees many concurrent, mostly idle, uploads. Options: {@code --url}, {@code --clients},
+ * {@code --requests-per-client}, {@code --upload-ms}, {@code --chunks} and {@code --patients}. Reports the throughput,
+ * latency percentiles and the count of each response status.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class SlowClientLoadTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(SlowClientLoadTest.class);
+
+    private SlowClientLoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        URL url = new URL(options.getOrDefault("url", "http://localhost:8080/convert"));
+        int clients = Integer.parseInt(options.getOrDefault("clients", "100"));
+        int requestsPerClient = Integer.parseInt(options.getOrDefault("requests-per-client", "5"));
+        long uploadMillis = Long.parseLong(options.getOrDefault("upload-ms", "1000"));
+        int chunks = Integer.parseInt(options.getOrDefault("chunks", "10"));
+        int patients = Integer.parseInt(options.getOrDefault("patients", "1"));
+
+        byte[] body = FhirContext.forR4().newJsonParser()
+                .encodeResourceToString(SyntheticCorpus.builder().patients(patients).build().bundle())
+                .getBytes(StandardCharsets.UTF_8);
+        logger.info("Sending {} requests of {} bytes from {} clients, each upload taking {} ms", clients * requestsPerClient, body.length, clients, uploadMillis);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(clients);
+        List<Future<List<Result>>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            futures.add(executorService.submit(() -> {
+                List<Result> results = new ArrayList<>(requestsPerClient);
+                for (int j = 0; j < requestsPerClient; j++) {
+                    results.add(send(url, body, chunks, uploadMillis / chunks));
+                }
+                return results;
+            }));
+        }
+        List<Result> results = new ArrayList<>();
+        for (Future<List<Result>> future : futures) {
+            results.addAll(future.get());
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        executorService.shutdown();
+
+        report(results, elapsedNanos);
+    }
+
+    private static Result send(URL url, byte[] body, int chunks, long pauseMillis) {
+        long start = System.nanoTime();
+        // a plain socket rather than HttpURLConnection, which may buffer the body until it is closed
+        try (Socket socket = new Socket(url.getHost(), url.getPort() == -1 ? 80 : url.getPort())) {
+            OutputStream outputStream = socket.getOutputStream();
+            String headers = "POST " + url.getFile() + " HTTP/1.1\r\n" +
+                    "Host: " + url.getHost() + "\r\n" +
+                    "Content-Type: application/json\r\n" +
+                    "Content-Length: " + body.length + "\r\n" +
+                    "Connection: close\r\n\r\n";
+            outputStream.write(headers.getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+            int chunkSize = (body.length + chunks - 1) / chunks;
+            for (int offset = 0; offset < body.length; offset += chunkSize) {
+                Thread.sleep(pauseMillis);
+                outputStream.write(body, offset, Math.min(chunkSize, body.length - offset));
+                outputStream.flush();
+            }
+            InputStream inputStream = socket.getInputStream();
+            int status = readStatus(inputStream);
+            ByteStreams.exhaust(inputStream);
+            return new Result(status, System.nanoTime() - start);
+        } catch (IOException e) {
+            logger.debug("Request failed", e);
+            return new Result(-1, System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result(-1, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Reads the status code from a status line such as {@code HTTP/1.1 200 }.
+     */
+    private static int readStatus(InputStream inputStream) throws IOException {
+        StringBuilder statusLine = new StringBuilder();
+        int b;
+        while ((b = inputStream.read()) != -1 && b != '\n') {
+            statusLine.append((char) b);
+        }
+        String[] parts = statusLine.toString().trim().split(" ");
+        if (parts.length < 2) {
+            throw new IOException("Unexpected status line '" + statusLine + "'");
+        }
+        return Integer.parseInt(parts[1]);
+    }
+
+    private static void report(List<Result> results, long elapsedNanos) {
+        long[] latencies = results.stream().mapToLong(result -> result.nanos).sorted().toArray();
+        Map<Integer, Integer> statusCounts = new TreeMap<>();
+        results.forEach(result -> statusCounts.merge(result.status, 1, Integer::sum));
+
+        double seconds = elapsedNanos / 1e9;
+        logger.info("{} requests in {} s: {} requests/s", results.size(), String.format("%.1f", seconds), String.format("%.1f", results.size() / seconds));
+        logger.info("Latency ms p50={} p95={} p99={} max={}", percentile(latencies, 0.50), percentile(latencies, 0.95), percentile(latencies, 0.99), percentile(latencies, 1.0));
+        // -1 counts connection failures
+        logger.info("Status counts {}", statusCounts);
+    }
+
+    private static long percentile(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sortedNanos[Math.max(0, index)]);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --option value pairs but got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+
+    private static class Result {
+
+        private final int status;
+        private final long nanos;
+
+        private Result(int status, long nanos) {
+            this.status = status;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.phenopackets.schema.v1.fhir.interop.benchmarks.corpus;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v1.Cohort;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirNdjsonConverter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class SyntheticCorpusTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4();
+
+    private static SyntheticCorpus corpus(long seed, int patients) {
+        return SyntheticCorpus.builder()
+                .seed(seed)
+                .patients(patients)
+                .conditionsPerPatient(1, 6)
+                .noisePerPatient(3)
+                .build();
+    }
+
+    private static String write(SyntheticCorpus corpus, CorpusFormat format) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new CorpusWriter(fhirContext).write(corpus, format, outputStream);
+        return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void sameSeedSameOutput() throws IOException {
+        assertThat(write(corpus(1, 20), CorpusFormat.FHIR_NDJSON), equalTo(write(corpus(1, 20), CorpusFormat.FHIR_NDJSON)));
+        assertThat(write(corpus(1, 20), CorpusFormat.PHENOPACKET_NDJSON), equalTo(write(corpus(1, 20), CorpusFormat.PHENOPACKET_NDJSON)));
+        assertThat(write(corpus(1, 20), CorpusFormat.FHIR_NDJSON), not(equalTo(write(corpus(2, 20), CorpusFormat.FHIR_NDJSON))));
+    }
+
+    @Test
+    void patientRecordsDoNotDependOnCorpusSize() {
+        SyntheticCorpus small = corpus(7, 10);
+        SyntheticCorpus large = corpus(7, 1000);
+        assertThat(small.phenopacket(small.patientRecord(9)), equalTo(large.phenopacket(large.patientRecord(9))));
+    }
+
+    @Test
+    void bundleJsonConvertsToTheGeneratedPhenopackets() throws IOException {
+        SyntheticCorpus corpus = corpus(3, 25);
+        Bundle bundle = (Bundle) fhirContext.newJsonParser().parseResource(write(corpus, CorpusFormat.BUNDLE_JSON));
+
+        Cohort cohort = new FhirConverter().toCohort(bundle);
+
+        assertThat(cohort.getMembersCount(), equalTo(25));
+        for (int i = 0; i < 25; i++) {
+            Phenopacket expected = corpus.phenopacket(corpus.patientRecord(i));
+            assertThat(cohort.getMembers(i).getPhenotypicFeaturesList(), equalTo(expected.getPhenotypicFeaturesList()));
+        }
+    }
+
+    @Test
+    void fhirNdjsonConvertsToTheGeneratedPhenopackets() throws IOException {
+        SyntheticCorpus corpus = corpus(5, 25);
+        List<Phenopacket> phenopackets = new ArrayList<>();
+        new FhirNdjsonConverter(fhirContext.newJsonParser()).convert(new StringReader(write(corpus, CorpusFormat.FHIR_NDJSON)), phenopackets::add);
+
+        assertThat(phenopackets.size(), equalTo(25));
+        for (int i = 0; i < 25; i++) {
+            Phenopacket expected = corpus.phenopacket(corpus.patientRecord(i));
+            assertThat(phenopackets.get(i).getPhenotypicFeaturesList(), equalTo(expected.getPhenotypicFeaturesList()));
+        }
+    }
+
+    @Test
+    void phenopacketProtobufIsLengthDelimited() throws IOException {
+        SyntheticCorpus corpus = corpus(11, 5);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new CorpusWriter(fhirContext).write(corpus, CorpusFormat.PHENOPACKET_PROTOBUF, outputStream);
+
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(outputStream.toByteArray());
+        for (int i = 0; i < 5; i++) {
+            assertThat(Phenopacket.parseDelimitedFrom(inputStream), equalTo(corpus.phenopacket(corpus.patientRecord(i))));
+        }
+        assertThat(Phenopacket.parseDelimitedFrom(inputStream), equalTo(null));
+    }
+}
@@ -0,0 +1,84 @@
+package org.phenopackets.schema.v1.fhir.interop.cli;
+
+import org.phenopackets.schema.v1.fhir.interop.converters.ConceptMapper;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConceptTranslations;
+import org.phenopackets.schema.v1.fhir.interop.converters.OntologyClassCache;
+import org.phenopackets.schema.v1.fhir.interop.converters.OntologyIndex;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line entry point for the {@link BatchConverter}, e.g.
+ * <pre>
+ *     java -jar fhir-interop-cli.jar --in bundles.tar.gz --out phenopackets
+ * </pre>
+ * Options: {@code --in} (a directory or a .tar, .tar.gz or .tgz archive), {@code --out} (a directory), {@code --mode}
+ * (one of phenopacket, cohort, family or fhir), {@code --threads}, {@code --checkpoint} ({@code .checkpoint} in the
+ * output directory by default), {@code --slowest}, {@code --ontology-index}, {@code --concept-maps} (a comma
+ * separated list of ConceptMap files) and {@code --ontology-class-cache} (the number of terms whose OntologyClasses are
+ * shared by the converted Phenopackets, 0 by default). The exit status is 0 if every file was converted, 2 if some failed.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class BatchConvert {
+
+    private BatchConvert() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = parseOptions(args);
+        if (!options.containsKey("in") || !options.containsKey("out")) {
+            System.err.println("Usage: BatchConvert --in <directory or tar archive> --out <directory> [--mode phenopacket|cohort|family|fhir]"
+                    + " [--threads n] [--checkpoint file] [--slowest n] [--ontology-index file] [--concept-maps file,...]"
+                    + " [--ontology-class-cache n]");
+            System.exit(1);
+        }
+        Path input = Paths.get(options.get("in"));
+        Path outputDir = Paths.get(options.get("out"));
+        Path checkpoint = options.containsKey("checkpoint") ? Paths.get(options.get("checkpoint")) : outputDir.resolve(".checkpoint");
+
+        BatchConverter batchConverter = BatchConverter.builder()
+                .mode(ConversionMode.parse(options.getOrDefault("mode", "phenopacket")))
+                .phenopacketExtractor(phenopacketExtractor(options))
+                .threads(Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors()))))
+                .slowest(Integer.parseInt(options.getOrDefault("slowest", "10")))
+                .build();
+        BatchReport report = batchConverter.convert(input, outputDir, checkpoint);
+        report.print(System.out);
+        if (report.getFailed() > 0) {
+            System.exit(2);
+        }
+    }
+
+    private static PhenopacketExtractor phenopacketExtractor(Map<String, String> options) throws IOException {
+        OntologyIndex ontologyIndex = options.containsKey("ontology-index") ? OntologyIndex.open(Paths.get(options.get("ontology-index"))) : OntologyIndex.empty();
+        ConceptTranslations.Builder translations = ConceptTranslations.builder();
+        if (options.containsKey("concept-maps")) {
+            for (String conceptMapFile : options.get("concept-maps").split(",")) {
+                translations.load(Paths.get(conceptMapFile.trim()));
+            }
+        }
+        long ontologyClassCacheSize = Long.parseLong(options.getOrDefault("ontology-class-cache", "0"));
+        return PhenopacketExtractor.builder()
+                .ontologyClassCache(ontologyClassCacheSize > 0 ? OntologyClassCache.bounded(ontologyClassCacheSize) : OntologyClassCache.disabled())
+                .ontologyIndex(ontologyIndex)
+                .conceptMapper(ConceptMapper.defaultMapper().withTranslations(translations.build()))
+                .build();
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --option value pairs but got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+}
@@ -0,0 +1,292 @@
+package org.phenopackets.schema.v1.fhir.interop.cli;
+
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonFormat;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirContextProvider;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter;
+import org.phenopackets.schema.v1.fhir.interop.converters.PhenoPacketConverter;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Converts every {@code .json} file in a directory, including its subdirectories, or in a tar archive, optionally
+ * gzipped, to a file of the same relative path in an output directory. The files are converted in parallel by a pool
+ * of threads. The files of a directory are read by the threads converting them, those of an archive are read in turn
+ * from the archive and handed to the threads. Once the queue of files waiting for a thread is full the thread reading
+ * the input converts the next file itself, so that only a few files are held in memory at once.
+ * <p>
+ * Each output is written to a temporary file next to it and moved into place, so that it is either complete or not
+ * there at all. The input is then added to the {@link Checkpoint}, and the inputs already in the checkpoint are skipped,
+ * so that an interrupted run can be resumed by running it again. Files which fail to convert are reported and left out
+ * of the checkpoint, so that they are tried again.
+ * <p>
+ * Instances are immutable and thread-safe.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class BatchConverter {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchConverter.class);
+
+    private static final String JSON = ".json";
+    private static final String TEMP = ".tmp";
+
+    private final ConversionMode mode;
+    private final PhenopacketExtractor phenopacketExtractor;
+    private final FhirConverter fhirConverter;
+    private final int threads;
+    private final int slowest;
+    private final JsonFormat.Printer printer = JsonFormat.printer();
+    private final JsonFormat.Parser parser = JsonFormat.parser().ignoringUnknownFields();
+
+    private BatchConverter(Builder builder) {
+        this.mode = builder.mode;
+        this.phenopacketExtractor = builder.phenopacketExtractor;
+        this.fhirConverter = new FhirConverter(builder.phenopacketExtractor);
+        this.threads = builder.threads;
+        this.slowest = builder.slowest;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private ConversionMode mode = ConversionMode.PHENOPACKET;
+        private PhenopacketExtractor phenopacketExtractor = new PhenopacketExtractor();
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private int slowest = 10;
+
+        private Builder() {
+        }
+
+        public Builder mode(ConversionMode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * The extractor used by the FhirConverter, and whose ConceptMapper is used for {@link ConversionMode#FHIR}.
+         */
+        public Builder phenopacketExtractor(PhenopacketExtractor phenopacketExtractor) {
+            this.phenopacketExtractor = phenopacketExtractor;
+            return this;
+        }
+
+        /**
+         * The number of conversion threads, all the available processors by default.
+         */
+        public Builder threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("threads must be at least 1, not " + threads);
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * The number of slowest inputs reported, 10 by default.
+         */
+        public Builder slowest(int slowest) {
+            this.slowest = slowest;
+            return this;
+        }
+
+        public BatchConverter build() {
+            return new BatchConverter(this);
+        }
+    }
+
+    /**
+     * Converts the files of the input directory or tar archive which are not already in the checkpoint file.
+     *
+     * @throws IOException if the input, the output directory or the checkpoint can't be read or written, but not if a
+     *                     file fails to convert, which is counted in the report
+     */
+    public BatchReport convert(Path input, Path outputDir, Path checkpointFile) throws IOException {
+        Files.createDirectories(outputDir);
+        // or the outputs would be walked as inputs
+        if (Files.isDirectory(input) && outputDir.toRealPath().startsWith(input.toRealPath())) {
+            throw new IllegalArgumentException("The output directory can't be in the input directory " + input);
+        }
+        // created up front, or the first files would look like the slowest
+        FhirContextProvider.r4();
+        BatchReport report = new BatchReport(slowest);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 2),
+                new ThreadFactoryBuilder().setNameFormat("batch-convert-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        try (Checkpoint checkpoint = Checkpoint.open(checkpointFile)) {
+            logger.info("Converting {} to {} with {} threads, {} files already converted", input, outputDir, threads, checkpoint.size());
+            try {
+                if (Files.isDirectory(input)) {
+                    convertDirectory(input, outputDir, checkpoint, report, executor);
+                } else {
+                    convertArchive(input, outputDir, checkpoint, report, executor);
+                }
+            } finally {
+                executor.shutdown();
+                awaitTermination(executor);
+            }
+        }
+        report.finished();
+        return report;
+    }
+
+    private static void awaitTermination(ExecutorService executor) throws InterruptedIOException {
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.debug("Waiting for the conversions to finish");
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the conversions to finish");
+        }
+    }
+
+    private void convertDirectory(Path inputDir, Path outputDir, Checkpoint checkpoint, BatchReport report, Executor executor) throws IOException {
+        try (Stream<Path> paths = Files.walk(inputDir)) {
+            Iterator<Path> iterator = paths.iterator();
+            while (iterator.hasNext()) {
+                Path path = iterator.next();
+                if (!path.getFileName().toString().endsWith(JSON) || !Files.isRegularFile(path)) {
+                    continue;
+                }
+                // with / separators, as for archive entries, so that a checkpoint works on any platform
+                String name = inputDir.relativize(path).toString().replace(File.separatorChar, '/');
+                if (checkpoint.isDone(name)) {
+                    report.resumed();
+                    continue;
+                }
+                executor.execute(() -> convert(name, () -> Files.newInputStream(path), outputDir, checkpoint, report));
+            }
+        }
+    }
+
+    private void convertArchive(Path archive, Path outputDir, Checkpoint checkpoint, BatchReport report, Executor executor) throws IOException {
+        String fileName = archive.getFileName().toString();
+        boolean gzipped = fileName.endsWith(".tar.gz") || fileName.endsWith(".tgz");
+        if (!gzipped && !fileName.endsWith(".tar")) {
+            throw new IllegalArgumentException("Expected a directory or a .tar, .tar.gz or .tgz archive but got " + archive);
+        }
+        InputStream inputStream = new BufferedInputStream(Files.newInputStream(archive), 64 * 1024);
+        if (gzipped) {
+            inputStream = new GZIPInputStream(inputStream, 64 * 1024);
+        }
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(inputStream, StandardCharsets.UTF_8.name())) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                String name = entry.getName().startsWith("./") ? entry.getName().substring(2) : entry.getName();
+                if (!entry.isFile() || !name.endsWith(JSON)) {
+                    continue;
+                }
+                if (checkpoint.isDone(name)) {
+                    report.resumed();
+                    continue;
+                }
+                if (entry.getSize() > Integer.MAX_VALUE - 8) {
+                    report.failed(name, new IOException("Too large to convert: " + entry.getSize() + " bytes"));
+                    continue;
+                }
+                byte[] bytes = new byte[(int) entry.getSize()];
+                IOUtils.readFully(tar, bytes);
+                executor.execute(() -> convert(name, () -> new ByteArrayInputStream(bytes), outputDir, checkpoint, report));
+            }
+        }
+    }
+
+    private interface InputOpener {
+        InputStream open() throws IOException;
+    }
+
+    private interface OutputWriter {
+        void write(Writer writer) throws IOException;
+    }
+
+    private void convert(String name, InputOpener inputOpener, Path outputDir, Checkpoint checkpoint, BatchReport report) {
+        long start = System.nanoTime();
+        Path temp = null;
+        try {
+            Path output = outputDir.resolve(name).normalize();
+            if (!output.startsWith(outputDir.normalize())) {
+                throw new IOException("Not writing outside the output directory");
+            }
+            temp = output.resolveSibling(output.getFileName() + TEMP);
+            long bytes;
+            OutputWriter outputWriter;
+            try (CountingInputStream inputStream = new CountingInputStream(inputOpener.open())) {
+                outputWriter = convert(new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8)));
+                bytes = inputStream.getCount();
+            }
+            Files.createDirectories(output.getParent());
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                outputWriter.write(writer);
+            }
+            Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            checkpoint.markDone(name);
+            report.converted(name, bytes, System.nanoTime() - start);
+        } catch (Exception e) {
+            logger.warn("Failed to convert {}", name, e);
+            report.failed(name, e);
+            deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Parses and converts the input, returning what writes the output, so that nothing is written for an input which
+     * can't be converted.
+     */
+    private OutputWriter convert(Reader reader) throws IOException {
+        if (mode == ConversionMode.FHIR) {
+            Phenopacket.Builder phenopacket = Phenopacket.newBuilder();
+            parser.merge(reader, phenopacket);
+            Bundle bundle = PhenoPacketConverter.toFhirBundle(phenopacket.build(), phenopacketExtractor.getConceptMapper());
+            return writer -> FhirContextProvider.r4().jsonParser().encodeResourceToWriter(bundle, writer);
+        }
+        Bundle bundle = FhirContextProvider.r4().jsonParser().parseResource(Bundle.class, reader);
+        Message message;
+        switch (mode) {
+            case COHORT:
+                message = fhirConverter.toCohort(bundle);
+                break;
+            case FAMILY:
+                message = fhirConverter.toFamily(bundle);
+                break;
+            default:
+                message = fhirConverter.toPhenopacket(bundle);
+                break;
+        }
+        return writer -> printer.appendTo(message, writer);
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.debug("Unable to delete {}", path, e);
+        }
+    }
+}
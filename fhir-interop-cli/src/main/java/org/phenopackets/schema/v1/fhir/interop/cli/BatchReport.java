@@ -0,0 +1,130 @@
+package org.phenopackets.schema.v1.fhir.interop.cli;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * The counts, throughput, errors and slowest inputs of a run of the {@link BatchConverter}. Updated by the conversion
+ * threads, so the counts are atomic and the errors and slowest inputs are guarded by the instance.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class BatchReport {
+
+    // enough to see what is going wrong, without keeping every error of a run over a broken archive
+    private static final int MAX_ERRORS = 20;
+
+    private final int maxSlowest;
+    private final long startTime = System.nanoTime();
+    private long endTime;
+    private final AtomicLong converted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    // the fastest of the slowest inputs first, so that it's the one replaced
+    private final PriorityQueue<Timing> slowest = new PriorityQueue<>(Comparator.comparingLong(Timing::getNanos));
+    private final List<String> errors = new ArrayList<>();
+
+    BatchReport(int maxSlowest) {
+        this.maxSlowest = maxSlowest;
+    }
+
+    private static class Timing {
+        private final String name;
+        private final long nanos;
+
+        private Timing(String name, long nanos) {
+            this.name = name;
+            this.nanos = nanos;
+        }
+
+        private long getNanos() {
+            return nanos;
+        }
+    }
+
+    void converted(String name, long bytes, long nanos) {
+        converted.incrementAndGet();
+        bytesRead.addAndGet(bytes);
+        synchronized (this) {
+            if (slowest.size() < maxSlowest) {
+                slowest.add(new Timing(name, nanos));
+            } else if (maxSlowest > 0 && slowest.peek().nanos < nanos) {
+                slowest.poll();
+                slowest.add(new Timing(name, nanos));
+            }
+        }
+    }
+
+    void failed(String name, Exception e) {
+        failed.incrementAndGet();
+        synchronized (this) {
+            if (errors.size() < MAX_ERRORS) {
+                errors.add(name + ": " + e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    void resumed() {
+        resumed.incrementAndGet();
+    }
+
+    void finished() {
+        endTime = System.nanoTime();
+    }
+
+    public long getConverted() {
+        return converted.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * The inputs skipped as they were converted by an earlier run.
+     */
+    public long getResumed() {
+        return resumed.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * The names of the slowest inputs, slowest first.
+     */
+    public synchronized List<String> getSlowest() {
+        return slowest.stream()
+                .sorted(Comparator.comparingLong(Timing::getNanos).reversed())
+                .map(timing -> timing.name)
+                .collect(Collectors.toList());
+    }
+
+    public synchronized void print(PrintStream out) {
+        double seconds = Math.max(endTime - startTime, 1) / 1e9;
+        long processed = converted.get() + failed.get();
+        out.printf("Converted %d files (%.1f MB) in %.1f s: %.1f files/s, %.1f MB/s%n",
+                converted.get(), bytesRead.get() / 1e6, seconds, processed / seconds, bytesRead.get() / 1e6 / seconds);
+        if (resumed.get() > 0) {
+            out.printf("Skipped %d files converted by an earlier run%n", resumed.get());
+        }
+        if (failed.get() > 0) {
+            out.printf("Failed %d files%s:%n", failed.get(), failed.get() > errors.size() ? ", the first " + errors.size() + " of them" : "");
+            errors.forEach(error -> out.println("  " + error));
+        }
+        if (!slowest.isEmpty()) {
+            out.println("Slowest files:");
+            slowest.stream()
+                    .sorted(Comparator.comparingLong(Timing::getNanos).reversed())
+                    .forEach(timing -> out.printf("  %6d ms  %s%n", TimeUnit.NANOSECONDS.toMillis(timing.nanos), timing.name));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.phenopackets.schema.v1.fhir.interop.cli;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The inputs converted by earlier runs of a {@link BatchConverter}, so that an interrupted run can be resumed without
+ * converting them again. The file is append-only, with the name of an input on a line of its own once its output has
+ * been moved into place, and flushed after each line, so a run killed at any point loses at most the line it was
+ * writing. A partial last line is dropped when the file is opened.
+ * <p>
+ * {@link #markDone(String)} is thread-safe, {@link #isDone(String)} only reads what was there when the file was opened.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class Checkpoint implements Closeable {
+
+    private final Set<String> done;
+    private final Writer writer;
+
+    private Checkpoint(Set<String> done, Writer writer) {
+        this.done = done;
+        this.writer = writer;
+    }
+
+    /**
+     * Reads the names already in the checkpoint file, if it exists, and opens it for appending.
+     */
+    public static Checkpoint open(Path checkpointFile) throws IOException {
+        Set<String> done = new HashSet<>();
+        try (FileChannel channel = FileChannel.open(checkpointFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long complete = readLines(channel, done);
+            // the rest is a line which was being written when the last run stopped
+            channel.truncate(complete);
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(checkpointFile, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+        return new Checkpoint(done, writer);
+    }
+
+    /**
+     * @return the length of the complete lines
+     */
+    private static long readLines(FileChannel channel, Set<String> done) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        long complete = 0;
+        while (channel.read(buffer) > 0) {
+            // through Buffer, as the ByteBuffer overrides added in Java 9 don't exist on the Java 8 runtime
+            ((Buffer) buffer).flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                position++;
+                if (b == '\n') {
+                    done.add(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                    line.reset();
+                    complete = position;
+                } else {
+                    line.write(b);
+                }
+            }
+            ((Buffer) buffer).clear();
+        }
+        return complete;
+    }
+
+    public boolean isDone(String name) {
+        return done.contains(name);
+    }
+
+    /**
+     * The number of inputs converted by earlier runs.
+     */
+    public int size() {
+        return done.size();
+    }
+
+    public synchronized void markDone(String name) throws IOException {
+        writer.write(name);
+        writer.write('\n');
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
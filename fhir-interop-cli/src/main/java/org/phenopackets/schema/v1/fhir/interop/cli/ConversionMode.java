@@ -0,0 +1,29 @@
+package org.phenopackets.schema.v1.fhir.interop.cli;
+
+/**
+ * What the {@link BatchConverter} converts each input file to.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public enum ConversionMode {
+    /**
+     * A FHIR Bundle to the Phenopacket of its first Patient, with {@link org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter#toPhenopacket}.
+     */
+    PHENOPACKET,
+    /**
+     * A FHIR Bundle to a Cohort of all its Patients, with {@link org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter#toCohort}.
+     */
+    COHORT,
+    /**
+     * A FHIR Bundle to a Family and its Pedigree, with {@link org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter#toFamily}.
+     */
+    FAMILY,
+    /**
+     * A Phenopacket in protobuf JSON format to a FHIR Bundle, with {@link org.phenopackets.schema.v1.fhir.interop.converters.PhenoPacketConverter#toFhirBundle}.
+     */
+    FHIR;
+
+    public static ConversionMode parse(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,183 @@
+package org.phenopackets.schema.v1.fhir.interop.cli;
+
+import com.google.protobuf.util.JsonFormat;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v1.Family;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirContextProvider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class BatchConverterTest {
+
+    private Path tempDir;
+
+    @BeforeEach
+    void createTempDir() throws IOException {
+        tempDir = Files.createTempDirectory("batch-convert");
+    }
+
+    @AfterEach
+    void deleteTempDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(tempDir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static String bundleJson(String patientId, String termId) {
+        Bundle bundle = new Bundle();
+        Patient patient = new Patient();
+        patient.setId(patientId);
+        Condition condition = new Condition();
+        condition.setSubject(new Reference(patient));
+        condition.setCode(ConverterUtil.codeableConcept("http://purl.obolibrary.org/obo/hp.owl", termId, "a label"));
+        bundle.addEntry().setFullUrl("urn:uuid:" + patientId).setResource(patient);
+        bundle.addEntry().setResource(condition);
+        return FhirContextProvider.r4().jsonParser().encodeResourceToString(bundle);
+    }
+
+    private static Phenopacket readPhenopacket(Path file) throws IOException {
+        Phenopacket.Builder phenopacket = Phenopacket.newBuilder();
+        JsonFormat.parser().merge(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), phenopacket);
+        return phenopacket.build();
+    }
+
+    @Test
+    void convertsDirectoryAndResumes() throws IOException {
+        Path input = Files.createDirectories(tempDir.resolve("in/a"));
+        Files.write(input.resolve("1.json"), bundleJson("p1", "HP:0001156").getBytes(StandardCharsets.UTF_8));
+        Files.write(input.resolve("2.json"), bundleJson("p2", "HP:0001873").getBytes(StandardCharsets.UTF_8));
+        Files.write(input.resolve("broken.json"), "{\"resourceType\": \"Bundle\", ".getBytes(StandardCharsets.UTF_8));
+        Files.write(input.resolve("README.txt"), "not converted".getBytes(StandardCharsets.UTF_8));
+        Path output = tempDir.resolve("out");
+        Path checkpoint = tempDir.resolve("checkpoint");
+        BatchConverter batchConverter = BatchConverter.builder().threads(2).build();
+
+        BatchReport report = batchConverter.convert(tempDir.resolve("in"), output, checkpoint);
+
+        assertThat(report.getConverted(), equalTo(2L));
+        assertThat(report.getFailed(), equalTo(1L));
+        assertThat(report.getSlowest().size(), equalTo(2));
+        assertThat(readPhenopacket(output.resolve("a/1.json")).getPhenotypicFeatures(0).getType().getId(), equalTo("HP:0001156"));
+        assertThat(readPhenopacket(output.resolve("a/2.json")).getSubject().getId(), equalTo("urn:uuid:p2"));
+        assertThat(Files.exists(output.resolve("a/broken.json")), is(false));
+        assertThat(Files.exists(output.resolve("a/broken.json.tmp")), is(false));
+        List<String> done = Files.readAllLines(checkpoint);
+        done.sort(Comparator.naturalOrder());
+        assertThat(done, equalTo(Arrays.asList("a/1.json", "a/2.json")));
+
+        // only the failed file is tried again
+        BatchReport resumed = batchConverter.convert(tempDir.resolve("in"), output, checkpoint);
+        assertThat(resumed.getResumed(), equalTo(2L));
+        assertThat(resumed.getConverted(), equalTo(0L));
+        assertThat(resumed.getFailed(), equalTo(1L));
+    }
+
+    @Test
+    void convertsTarArchive() throws IOException {
+        Path archive = tempDir.resolve("bundles.tar.gz");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(Files.newOutputStream(archive)))) {
+            addEntry(tar, "./family/1.json", bundleJson("p1", "HP:0001156"));
+            addEntry(tar, "../escaped.json", bundleJson("p2", "HP:0001156"));
+            addEntry(tar, "notes.txt", "not converted");
+        }
+        Path output = tempDir.resolve("out");
+
+        BatchReport report = BatchConverter.builder().mode(ConversionMode.FAMILY).build()
+                .convert(archive, output, tempDir.resolve("checkpoint"));
+
+        assertThat(report.getConverted(), equalTo(1L));
+        // not written outside the output directory
+        assertThat(report.getFailed(), equalTo(1L));
+        assertThat(Files.exists(tempDir.resolve("escaped.json")), is(false));
+        Family.Builder family = Family.newBuilder();
+        JsonFormat.parser().merge(new String(Files.readAllBytes(output.resolve("family/1.json")), StandardCharsets.UTF_8), family);
+        assertThat(family.getProband().getSubject().getId(), equalTo("urn:uuid:p1"));
+        assertThat(family.getPedigree().getPersonsCount(), equalTo(1));
+    }
+
+    private static void addEntry(TarArchiveOutputStream tar, String name, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        TarArchiveEntry entry = new TarArchiveEntry(name, true);
+        entry.setSize(bytes.length);
+        tar.putArchiveEntry(entry);
+        tar.write(bytes);
+        tar.closeArchiveEntry();
+    }
+
+    @Test
+    void convertsPhenopacketsToFhir() throws IOException {
+        Path input = Files.createDirectories(tempDir.resolve("in"));
+        Path output = tempDir.resolve("out");
+        Path phenopacketFile = input.resolve("1.json");
+        try (OutputStream out = Files.newOutputStream(phenopacketFile)) {
+            out.write(JsonFormat.printer().print(readPhenopacketOf(bundleJson("p1", "HP:0001156"))).getBytes(StandardCharsets.UTF_8));
+        }
+
+        BatchReport report = BatchConverter.builder().mode(ConversionMode.FHIR).build()
+                .convert(input, output, tempDir.resolve("checkpoint"));
+
+        assertThat(report.getConverted(), equalTo(1L));
+        Bundle bundle = FhirContextProvider.r4().jsonParser().parseResource(Bundle.class, new String(Files.readAllBytes(output.resolve("1.json")), StandardCharsets.UTF_8));
+        assertThat(bundle.getEntry().size(), equalTo(2));
+    }
+
+    private Phenopacket readPhenopacketOf(String bundleJson) throws IOException {
+        Path input = Files.createDirectories(tempDir.resolve("bundles"));
+        Files.write(input.resolve("bundle.json"), bundleJson.getBytes(StandardCharsets.UTF_8));
+        Path output = tempDir.resolve("phenopackets");
+        BatchConverter.builder().build().convert(input, output, tempDir.resolve("bundles.checkpoint"));
+        return readPhenopacket(output.resolve("bundle.json"));
+    }
+
+    @Test
+    void outputInInputDirectory() throws IOException {
+        Path input = Files.createDirectories(tempDir.resolve("in"));
+
+        assertThrows(IllegalArgumentException.class, () -> BatchConverter.builder().build()
+                .convert(input, input.resolve("out"), tempDir.resolve("checkpoint")));
+    }
+
+    @Test
+    void checkpointDropsPartialLine() throws IOException {
+        Path checkpointFile = tempDir.resolve("checkpoint");
+        Files.write(checkpointFile, "a/1.json\na/2.js".getBytes(StandardCharsets.UTF_8));
+
+        try (Checkpoint checkpoint = Checkpoint.open(checkpointFile)) {
+            assertThat(checkpoint.size(), equalTo(1));
+            assertThat(checkpoint.isDone("a/1.json"), is(true));
+            assertThat(checkpoint.isDone("a/2.js"), is(false));
+            checkpoint.markDone("a/3.json");
+        }
+
+        assertThat(Files.readAllLines(checkpointFile), equalTo(Arrays.asList("a/1.json", "a/3.json")));
+    }
+}
@@ -0,0 +1,370 @@
+package org.phenopackets.phenopacketschema.fhirinteropservice;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admits /convert, /convert/batch and /convert/fhir requests while the heap they are estimated to need fits in a
+ * budget, so that a few concurrent large bodies queue up or are turned away rather than running the service out of
+ * memory.
+ * <p>
+ * A request is estimated to need its body size times the {@code expansion-factor}, as parsing a Bundle takes many
+ * times its size in heap, but never more than the largest body allowed, {@code fhir-interop.max-body-size}, or the
+ * whole budget. The body size of a gzip request is its Content-Length times the {@code gzip-ratio}. A request without a
+ * Content-Length, e.g. a chunked one, is charged for a small provisional body at first, topped up as its body is read
+ * without waiting, so that it may take the budget over its limit for a while rather than fail half way through.
+ * /convert requests over the max-body-size are let through without being charged, as they are rejected straight away.
+ * <p>
+ * A request which doesn't fit in what is left of the budget waits, in arrival order, for up to the
+ * {@code queue-timeout}. If it times out, or {@code queue-capacity} requests are already waiting, it is rejected with
+ * 503 and a Retry-After header. Waiting holds a container thread, which would defeat the point of the
+ * NonBlockingConvertServlet, so with {@code fhir-interop.non-blocking.enabled} requests which don't fit are rejected
+ * straight away. Asynchronous requests, i.e. those of the NonBlockingConvertServlet, hold their share of the budget
+ * until they complete.
+ * <p>
+ * /convert/ndjson is not admission controlled, as it is converted a patient at a time while it streams in, so the heap
+ * it needs doesn't grow with the size of the body.
+ * <p>
+ * Publishes the {@code fhir.admission.in-flight} (estimated bytes) and {@code fhir.admission.waiting} gauges, the
+ * {@code fhir.admission.queued} and {@code fhir.admission.rejected} counters, and the {@code fhir.admission.wait} timer.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class AdmissionControlFilter extends OncePerRequestFilter implements MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControlFilter.class);
+
+    // the endpoint whose larger bodies are rejected with 413
+    private static final String CONVERT_PATH = "/convert";
+    // streamed, so never charged
+    private static final String NDJSON_PATH = "/convert/ndjson";
+
+    // the semaphore counts kilobytes so that budgets over 2GB still fit in an int
+    private static final int PERMIT_SIZE = 1024;
+
+    // charged up front for a body of unknown length
+    static final long PROVISIONAL_BODY_SIZE = 64 * 1024;
+
+    private final int budgetPermits;
+    private final long maxBodySize;
+    private final int expansionFactor;
+    private final int gzipRatio;
+    private final int queueCapacity;
+    private final long queueTimeoutNanos;
+    private final String retryAfterSeconds;
+
+    // fair, so that a large request isn't overtaken by a stream of small ones for ever
+    private final Budget budget;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private Counter queued;
+    private Counter rejected;
+    private Timer waitTimer;
+
+    /**
+     * @param nonBlocking whether the NonBlockingConvertServlet is used, in which case requests don't wait for admission
+     */
+    public AdmissionControlFilter(ConversionProperties.Admission properties, long maxBodySize, boolean nonBlocking) {
+        this.budgetPermits = toPermits(properties.getBudget().toBytes());
+        this.maxBodySize = maxBodySize;
+        this.expansionFactor = properties.getExpansionFactor();
+        this.gzipRatio = properties.getGzipRatio();
+        this.queueCapacity = nonBlocking ? 0 : properties.getQueueCapacity();
+        this.queueTimeoutNanos = properties.getQueueTimeout().toNanos();
+        this.retryAfterSeconds = Long.toString(Math.max(1, properties.getRetryAfter().getSeconds()));
+        this.budget = new Budget(budgetPermits);
+    }
+
+    /**
+     * A fair semaphore whose permits can be taken below zero, for the requests charged as they are read.
+     */
+    private static class Budget extends Semaphore {
+
+        private Budget(int permits) {
+            super(permits, true);
+        }
+
+        private void overdraw(int permits) {
+            reducePermits(permits);
+        }
+    }
+
+    private static int toPermits(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, (bytes + PERMIT_SIZE - 1) / PERMIT_SIZE);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("fhir.admission.in-flight", this, AdmissionControlFilter::inFlightBytes)
+                .description("Estimated heap needed by the admitted /convert requests")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("fhir.admission.waiting", waiting, AtomicInteger::get)
+                .description("Requests waiting for admission")
+                .register(registry);
+        queued = Counter.builder("fhir.admission.queued")
+                .description("Requests which had to wait for admission")
+                .register(registry);
+        rejected = Counter.builder("fhir.admission.rejected")
+                .description("Requests rejected with 503 as the service had no room for them")
+                .register(registry);
+        waitTimer = Timer.builder("fhir.admission.wait")
+                .description("Time requests waited for admission, whether or not they were admitted")
+                .register(registry);
+    }
+
+    long inFlightBytes() {
+        return (long) (budgetPermits - budget.availablePermits()) * PERMIT_SIZE;
+    }
+
+    int waiting() {
+        return waiting.get();
+    }
+
+    /**
+     * The budget, in permits, charged for the request up front. Never more than the whole budget, so that any request
+     * can run on its own.
+     */
+    int permitsFor(HttpServletRequest request) {
+        long contentLength = request.getContentLengthLong();
+        if (contentLength > maxBodySize && CONVERT_PATH.equals(path(request))) {
+            return 0;
+        }
+        return permitsFor(contentLength < 0 ? PROVISIONAL_BODY_SIZE : contentLength, isCompressed(request));
+    }
+
+    /**
+     * The budget, in permits, needed by a request once bytesRead of its body have been read.
+     */
+    private int permitsFor(long bytesRead, boolean compressed) {
+        long bodySize = Math.min(maxBodySize, compressed ? bytesRead * gzipRatio : bytesRead);
+        return Math.min(budgetPermits, toPermits(bodySize * expansionFactor));
+    }
+
+    private static boolean isCompressed(HttpServletRequest request) {
+        String contentEncoding = request.getHeader(HttpHeaders.CONTENT_ENCODING);
+        return contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding.trim());
+    }
+
+    private static String path(HttpServletRequest request) {
+        return request.getRequestURI().substring(request.getContextPath().length());
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return NDJSON_PATH.equals(path(request));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        int permits = permitsFor(request);
+        if (!admit(permits)) {
+            increment(rejected);
+            logger.debug("Rejected request needing {} KB with {} KB in flight and {} waiting", permits, inFlightBytes() / PERMIT_SIZE, waiting.get());
+            response.setHeader(HttpHeaders.RETRY_AFTER, retryAfterSeconds);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The service is too busy to convert this request, try again later");
+            return;
+        }
+        Release release = new Release(permits);
+        HttpServletRequest admitted = request;
+        if (request.getContentLengthLong() < 0) {
+            // the body size is only known once it has been read
+            admitted = new ChargedRequest(request, release, isCompressed(request));
+        }
+        try {
+            filterChain.doFilter(admitted, response);
+        } finally {
+            if (request.isAsyncStarted()) {
+                // a complete() during this dispatch only takes effect once it returns, so onComplete is never missed
+                request.getAsyncContext().addListener(release);
+            } else {
+                release.run();
+            }
+        }
+    }
+
+    private boolean admit(int permits) throws IOException {
+        // the timed tryAcquire, unlike the untimed one, doesn't jump the queue of a fair semaphore
+        try {
+            if (budget.tryAcquire(permits, 0, TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+            if (waiting.incrementAndGet() > queueCapacity) {
+                waiting.decrementAndGet();
+                return false;
+            }
+            increment(queued);
+            long start = System.nanoTime();
+            try {
+                return budget.tryAcquire(permits, queueTimeoutNanos, TimeUnit.NANOSECONDS);
+            } finally {
+                waiting.decrementAndGet();
+                if (waitTimer != null) {
+                    waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for admission", e);
+        }
+    }
+
+    private static void increment(Counter counter) {
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+
+    /**
+     * Returns the permits of a request once, however it ends.
+     */
+    private class Release implements Runnable, AsyncListener {
+
+        private int permits;
+        private boolean released = false;
+
+        private Release(int permits) {
+            this.permits = permits;
+        }
+
+        /**
+         * Raises the charge of the request to the given permits, if it is lower, without waiting.
+         */
+        private synchronized void charge(int needed) {
+            if (!released && needed > permits) {
+                budget.overdraw(needed - permits);
+                permits = needed;
+            }
+        }
+
+        @Override
+        public synchronized void run() {
+            if (!released) {
+                released = true;
+                budget.release(permits);
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            run();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // followed by onComplete once the request has been completed
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            run();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    /**
+     * Charges the request for its body as it is read.
+     */
+    private class ChargedRequest extends HttpServletRequestWrapper {
+
+        private final Release release;
+        private final boolean compressed;
+        private ServletInputStream inputStream;
+
+        private ChargedRequest(HttpServletRequest request, Release release, boolean compressed) {
+            super(request);
+            this.release = release;
+            this.compressed = compressed;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (inputStream == null) {
+                inputStream = new ChargedInputStream(super.getInputStream(), release, compressed);
+            }
+            return inputStream;
+        }
+    }
+
+    private class ChargedInputStream extends ServletInputStream {
+
+        private final ServletInputStream inputStream;
+        private final Release release;
+        private final boolean compressed;
+        private long bytesRead = 0;
+
+        private ChargedInputStream(ServletInputStream inputStream, Release release, boolean compressed) {
+            this.inputStream = inputStream;
+            this.release = release;
+            this.compressed = compressed;
+        }
+
+        private void count(long read) {
+            bytesRead += read;
+            release.charge(permitsFor(bytesRead, compressed));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = inputStream.read();
+            if (read != -1) {
+                count(1);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = inputStream.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return inputStream.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return inputStream.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            inputStream.setReadListener(readListener);
+        }
+
+        @Override
+        public void close() throws IOException {
+            inputStream.close();
+        }
+    }
+}
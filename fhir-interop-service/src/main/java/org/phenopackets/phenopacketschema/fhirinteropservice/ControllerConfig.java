@@ -1,17 +1,114 @@
 package org.phenopackets.phenopacketschema.fhirinteropservice;
 
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConceptMapper;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConceptTranslations;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirContextProvider;
+import org.phenopackets.schema.v1.fhir.interop.converters.OntologyClassCache;
+import org.phenopackets.schema.v1.fhir.interop.converters.OntologyIndex;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
+import org.springframework.boot.autoconfigure.web.servlet.DispatcherServletAutoConfiguration;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
 import org.springframework.http.converter.protobuf.ProtobufJsonFormatHttpMessageConverter;
 
+import java.io.IOException;
+import java.nio.file.Path;
+
 /**
  * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
  */
 @Configuration
+@EnableConfigurationProperties(ConversionProperties.class)
 public class ControllerConfig {
 
+    /**
+     * Reads the Phenopackets posted to /convert/fhir. Those converted from FHIR are printed by the controller, so that
+     * the printed bytes can be cached.
+     */
     @Bean
     public ProtobufJsonFormatHttpMessageConverter protobufJsonFormatHttpMessageConverter() {
         return new ProtobufJsonFormatHttpMessageConverter();
     }
+
+    /**
+     * FhirContext creation is expensive, but the instance is thread-safe, so the whole service shares the one from
+     * the provider. Its model is scanned when the provider is created, i.e. at startup.
+     */
+    @Bean
+    public FhirContextProvider fhirContextProvider() {
+        return FhirContextProvider.r4();
+    }
+
+    @Bean
+    public FhirContext fhirContext(FhirContextProvider fhirContextProvider) {
+        return fhirContextProvider.getFhirContext();
+    }
+
+    @Bean
+    public ConversionMetrics conversionMetrics(ConversionProperties conversionProperties, MeterRegistry meterRegistry) {
+        return conversionProperties.getMetrics().isEnabled() ? new ConversionMetrics(meterRegistry) : ConversionMetrics.disabled();
+    }
+
+    /**
+     * Shared by all the converters, so that they use the same ResourceRegistry, OntologyClassCache, OntologyIndex
+     * mapping and ConceptTranslations and report to the same metrics. A missing or invalid ontology index or ConceptMap fails the
+     * startup rather than silently leaving terms as they are.
+     */
+    @Bean
+    public PhenopacketExtractor phenopacketExtractor(ConversionMetrics conversionMetrics, ConversionProperties conversionProperties) throws IOException {
+        Path ontologyIndexFile = conversionProperties.getOntologyIndex();
+        OntologyIndex ontologyIndex = ontologyIndexFile == null ? OntologyIndex.empty() : OntologyIndex.open(ontologyIndexFile);
+        ConceptTranslations.Builder translations = ConceptTranslations.builder();
+        for (Path conceptMapFile : conversionProperties.getConceptMaps()) {
+            translations.load(conceptMapFile);
+        }
+        long ontologyClassCacheSize = conversionProperties.getOntologyClassCacheSize();
+        return PhenopacketExtractor.builder()
+                .conversionObserver(conversionMetrics)
+                .ontologyClassCache(ontologyClassCacheSize > 0 ? OntologyClassCache.bounded(ontologyClassCacheSize) : OntologyClassCache.disabled())
+                .ontologyIndex(ontologyIndex)
+                .conceptMapper(ConceptMapper.defaultMapper().withTranslations(translations.build()))
+                .build();
+    }
+
+    @Bean
+    public ConversionCache conversionCache(ConversionProperties conversionProperties) {
+        ConversionProperties.Cache cache = conversionProperties.getCache();
+        return cache.isEnabled() ? ConversionCache.bounded(cache.getMaxSize().toBytes()) : ConversionCache.disabled();
+    }
+
+    @Bean
+    public FilterRegistrationBean<GzipRequestFilter> gzipRequestFilter(ConversionProperties conversionProperties) {
+        GzipRequestFilter filter = new GzipRequestFilter(conversionProperties.getMaxBodySize().toBytes(),
+                conversionProperties.getBatch().getMaxBodySize().toBytes());
+        FilterRegistrationBean<GzipRequestFilter> registration = new FilterRegistrationBean<>(filter);
+        registration.addServletNames(DispatcherServletAutoConfiguration.DEFAULT_DISPATCHER_SERVLET_BEAN_NAME);
+        return registration;
+    }
+
+    @Bean
+    public AdmissionControlFilter admissionControlFilter(ConversionProperties conversionProperties) {
+        return new AdmissionControlFilter(conversionProperties.getAdmission(), conversionProperties.getMaxBodySize().toBytes(),
+                conversionProperties.getNonBlocking().isEnabled());
+    }
+
+    /**
+     * Applies to /convert, whichever servlet serves it, and the endpoints under it apart from /convert/ndjson, see
+     * AdmissionControlFilter. Runs before the GzipRequestFilter, which hides the Content-Length, but after the request
+     * metrics filter, so that rejected requests are counted.
+     */
+    @Bean
+    public FilterRegistrationBean<AdmissionControlFilter> admissionControlFilterRegistration(AdmissionControlFilter admissionControlFilter,
+                                                                                            ConversionProperties conversionProperties) {
+        FilterRegistrationBean<AdmissionControlFilter> registration = new FilterRegistrationBean<>(admissionControlFilter);
+        registration.addUrlPatterns("/convert", "/convert/*");
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE + 10);
+        registration.setEnabled(conversionProperties.getAdmission().isEnabled());
+        return registration;
+    }
 }
@@ -0,0 +1,238 @@
+package org.phenopackets.phenopacketschema.fhirinteropservice;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.springframework.http.MediaType;
+
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of converted Phenopackets, keyed by a hash of the request body, so that a Bundle which is sent again
+ * unchanged is not parsed and converted again.
+ * <p>
+ * The key is a 128 bit murmur3 hash of the body ignoring the whitespace between JSON tokens, so the same Bundle pretty
+ * printed or not has the same key. The Phenopackets are held as the response body in each {@link Format} asked for, so
+ * a hit is written out as it is, without parsing or printing the Phenopacket again. The size of a response body is
+ * known, so the cache is bounded by the total size of its entries rather than their number. The key is also used as
+ * the ETag of the response, for either format.
+ * <p>
+ * Hit, miss and eviction counts are published as the {@code cache.*} metrics with the tag
+ * {@code cache=fhir-interop.conversion}.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class ConversionCache implements MeterBinder {
+
+    static final String NAME = "fhir-interop.conversion";
+
+    // rough size of the key, entry and array headers on top of the response body
+    static final int ENTRY_OVERHEAD = 128;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private static final ConversionCache DISABLED = new ConversionCache(null);
+
+    private static final JsonFormat.Printer PRINTER = JsonFormat.printer();
+
+    private final Cache<Key, byte[]> phenopackets;
+
+    private ConversionCache(Cache<Key, byte[]> phenopackets) {
+        this.phenopackets = phenopackets;
+    }
+
+    /**
+     * The response formats of a converted Phenopacket, each cached separately.
+     */
+    public enum Format {
+        JSON(MediaType.APPLICATION_JSON_UTF8_VALUE),
+        PROTOBUF(FhirInteropController.APPLICATION_PROTOBUF_VALUE);
+
+        private final String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
+        }
+
+        /**
+         * Binary protobuf if the Accept header asks for it, otherwise JSON.
+         */
+        public static Format forAccept(String accept) {
+            return accept != null && accept.contains(FhirInteropController.APPLICATION_PROTOBUF_VALUE) ? PROTOBUF : JSON;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public byte[] print(Phenopacket phenopacket) {
+            if (this == PROTOBUF) {
+                return phenopacket.toByteArray();
+            }
+            try {
+                return PRINTER.print(phenopacket).getBytes(StandardCharsets.UTF_8);
+            } catch (InvalidProtocolBufferException e) {
+                // only thrown for an Any of an unknown type, which a Phenopacket doesn't have
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static final class Key {
+        private final HashCode hash;
+        private final Format format;
+
+        private Key(HashCode hash, Format format) {
+            this.hash = hash;
+            this.format = format;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash.equals(key.hash) && format == key.format;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(hash, format);
+        }
+    }
+
+    /**
+     * A cache which converts every time, i.e. the same as not using one.
+     */
+    public static ConversionCache disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * A cache holding up to maximumBytes of response bodies, least recently used first out.
+     */
+    public static ConversionCache bounded(long maximumBytes) {
+        return new ConversionCache(CacheBuilder.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher((Key key, byte[] value) -> value.length + ENTRY_OVERHEAD)
+                .recordStats()
+                .build());
+    }
+
+    /**
+     * The hash of a JSON request body, skipping any whitespace outside of strings.
+     */
+    public static HashCode key(byte[] body) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        boolean inString = false;
+        boolean escaped = false;
+        int start = 0;
+        for (int i = 0; i < body.length; i++) {
+            byte b = body[i];
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                hasher.putBytes(body, start, i - start);
+                start = i + 1;
+            }
+        }
+        hasher.putBytes(body, start, body.length - start);
+        return hasher.hash();
+    }
+
+    /**
+     * A weak ETag, as the JSON and protobuf responses for a key are different representations of the same Phenopacket.
+     */
+    public static String etag(HashCode key) {
+        return "W/\"" + key + "\"";
+    }
+
+    /**
+     * Whether an If-None-Match header, either * or a list of ETags, matches the ETag for the key. ETags are compared
+     * ignoring whether they are weak.
+     */
+    public static boolean matches(String ifNoneMatch, HashCode key) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String tag = "\"" + key + "\"";
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(tag) || candidate.equals("W/" + tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEnabled() {
+        return phenopackets != null;
+    }
+
+    /**
+     * The response body for the key in the format, converted and cached if it isn't already. A Phenopacket cached in
+     * the other format only is converted again, as clients tend to stick to one. Concurrent requests for the same key
+     * and format wait for a single conversion. Exceptions thrown by the conversion are rethrown as they are and nothing
+     * is cached.
+     */
+    public byte[] get(HashCode key, Format format, Supplier<byte[]> conversion) {
+        if (phenopackets == null) {
+            return conversion.get();
+        }
+        try {
+            return phenopackets.get(new Key(key, format), conversion::get);
+        } catch (UncheckedExecutionException | ExecutionError e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        } catch (ExecutionException e) {
+            // the conversion can't throw a checked exception
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public CacheStats stats() {
+        return phenopackets == null ? new CacheStats(0, 0, 0, 0, 0, 0) : phenopackets.stats();
+    }
+
+    public long size() {
+        return phenopackets == null ? 0 : phenopackets.size();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        if (phenopackets != null) {
+            GuavaCacheMetrics.monitor(registry, phenopackets, NAME);
+        }
+    }
+}
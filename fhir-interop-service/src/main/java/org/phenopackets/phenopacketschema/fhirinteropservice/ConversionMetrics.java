@@ -0,0 +1,108 @@
+package org.phenopackets.phenopacketschema.fhirinteropservice;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConversionObserver;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the {@link ConversionObserver} timings and counts as Micrometer metrics:
+ * <ul>
+ *     <li>{@code fhir.conversion.stage} timer with a {@code stage} tag for each {@link ConversionObserver.Stage}</li>
+ *     <li>{@code fhir.conversion.patients}, {@code fhir.conversion.conditions} and
+ *     {@code fhir.conversion.conditions.skipped} counters</li>
+ *     <li>{@code fhir.conversion.request.size} distribution of request body sizes in bytes</li>
+ * </ul>
+ * The timers and the request sizes publish histograms, so that percentiles can be aggregated across instances.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class ConversionMetrics implements ConversionObserver {
+
+    private static final ConversionMetrics DISABLED = new ConversionMetrics();
+
+    private final boolean enabled;
+    private final Map<Stage, Timer> stageTimers;
+    private final Counter patients;
+    private final Counter conditions;
+    private final Counter skippedConditions;
+    private final DistributionSummary requestSize;
+
+    private ConversionMetrics() {
+        this.enabled = false;
+        this.stageTimers = null;
+        this.patients = null;
+        this.conditions = null;
+        this.skippedConditions = null;
+        this.requestSize = null;
+    }
+
+    public ConversionMetrics(MeterRegistry registry) {
+        this.enabled = true;
+        this.stageTimers = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            stageTimers.put(stage, Timer.builder("fhir.conversion.stage")
+                    .description("Time taken by each stage of converting FHIR to Phenopackets")
+                    .tag("stage", stage.name().toLowerCase())
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+        this.patients = Counter.builder("fhir.conversion.patients")
+                .description("Patients converted to Phenopackets")
+                .register(registry);
+        this.conditions = Counter.builder("fhir.conversion.conditions")
+                .description("Conditions converted to PhenotypicFeatures")
+                .register(registry);
+        this.skippedConditions = Counter.builder("fhir.conversion.conditions.skipped")
+                .description("Conditions without a code")
+                .register(registry);
+        this.requestSize = DistributionSummary.builder("fhir.conversion.request.size")
+                .description("Size of the FHIR request bodies")
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    /**
+     * Metrics which aren't recorded, i.e. the same as {@link ConversionObserver#noop()}.
+     */
+    public static ConversionMetrics disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public long startTime() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    @Override
+    public void stageCompleted(Stage stage, long startTime) {
+        if (enabled) {
+            stageTimers.get(stage).record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void patientConverted(int conditions, int skippedConditions) {
+        if (enabled) {
+            this.patients.increment();
+            this.conditions.increment(conditions);
+            this.skippedConditions.increment(skippedConditions);
+        }
+    }
+
+    public void requestRead(long bytes) {
+        if (enabled) {
+            requestSize.record(bytes);
+        }
+    }
+}
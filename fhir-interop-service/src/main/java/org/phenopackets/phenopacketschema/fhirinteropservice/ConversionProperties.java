@@ -0,0 +1,391 @@
+package org.phenopackets.phenopacketschema.fhirinteropservice;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings for the conversion service, bound from the {@code fhir-interop.*} properties.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@ConfigurationProperties("fhir-interop")
+public class ConversionProperties {
+
+    private final Batch batch = new Batch();
+    private final NonBlocking nonBlocking = new NonBlocking();
+    private final Cache cache = new Cache();
+    private final Metrics metrics = new Metrics();
+    private final WarmUp warmUp = new WarmUp();
+    private final Admission admission = new Admission();
+
+    /**
+     * Largest accepted /convert request body, after any gzip decompression. Larger requests are rejected with 413.
+     * Parsing a Bundle takes around 25 times its size in heap, so this defaults to 2% of the maximum heap, e.g. 2MB
+     * with -Xmx100M.
+     */
+    private DataSize maxBodySize = DataSize.ofBytes(Runtime.getRuntime().maxMemory() / 50);
+
+    /**
+     * Index file written by OntologyIndexWriter, e.g. from hp.obo, used to replace obsolete term ids and fill in their
+     * canonical labels. Unset by default, so that terms are converted as they are.
+     */
+    private Path ontologyIndex;
+
+    /**
+     * FHIR JSON ConceptMaps translating codes, e.g. SNOMED CT to HPO, when converting in either direction. None by
+     * default.
+     */
+    private List<Path> conceptMaps = new ArrayList<>();
+
+    /**
+     * Number of distinct terms whose OntologyClasses are shared by all the converted Phenopackets, see
+     * OntologyClassCache. 0, the default, disables the cache.
+     */
+    private long ontologyClassCacheSize = 0;
+
+    public DataSize getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    public void setMaxBodySize(DataSize maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    public Path getOntologyIndex() {
+        return ontologyIndex;
+    }
+
+    public void setOntologyIndex(Path ontologyIndex) {
+        this.ontologyIndex = ontologyIndex;
+    }
+
+    public List<Path> getConceptMaps() {
+        return conceptMaps;
+    }
+
+    public void setConceptMaps(List<Path> conceptMaps) {
+        this.conceptMaps = conceptMaps;
+    }
+
+    public long getOntologyClassCacheSize() {
+        return ontologyClassCacheSize;
+    }
+
+    public void setOntologyClassCacheSize(long ontologyClassCacheSize) {
+        this.ontologyClassCacheSize = ontologyClassCacheSize;
+    }
+
+    public Batch getBatch() {
+        return batch;
+    }
+
+    public NonBlocking getNonBlocking() {
+        return nonBlocking;
+    }
+
+    public Cache getCache() {
+        return cache;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public WarmUp getWarmUp() {
+        return warmUp;
+    }
+
+    public Admission getAdmission() {
+        return admission;
+    }
+
+    public static class Batch {
+
+        /**
+         * Maximum number of Bundles in a single batch request. Larger requests are rejected with 413.
+         */
+        private int maxSize = 1000;
+
+        /**
+         * Maximum size of a JSON batch request body, after decompression. Larger bodies are rejected with 413, as are
+         * batches with a Bundle larger than fhir-interop.max-body-size.
+         */
+        private DataSize maxBodySize = DataSize.ofBytes(Runtime.getRuntime().maxMemory() / 10);
+
+        /**
+         * Number of threads converting batch items, shared by all batch requests.
+         */
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * Number of batch items waiting for a conversion thread before the request thread converts them itself.
+         */
+        private int queueCapacity = 100;
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public DataSize getMaxBodySize() {
+            return maxBodySize;
+        }
+
+        public void setMaxBodySize(DataSize maxBodySize) {
+            this.maxBodySize = maxBodySize;
+        }
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public void setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+    }
+
+    public static class NonBlocking {
+
+        /**
+         * Serve /convert from the NonBlockingConvertServlet rather than the blocking FhirInteropController.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Number of threads converting the request bodies once they have been read.
+         */
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * Number of requests waiting for a conversion thread before new requests are rejected with 503.
+         */
+        private int queueCapacity = 1000;
+
+        /**
+         * Time allowed for reading, converting and writing a request.
+         */
+        private Duration timeout = Duration.ofMinutes(1);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public void setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public Duration getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(Duration timeout) {
+            this.timeout = timeout;
+        }
+    }
+
+    public static class Cache {
+
+        /**
+         * Cache converted Phenopackets by a hash of the request body, see ConversionCache.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Total size of the cached responses, in JSON or protobuf. Defaults to 5% of the maximum heap, so it follows the memory given to
+         * the container.
+         */
+        private DataSize maxSize = DataSize.ofBytes(Runtime.getRuntime().maxMemory() / 20);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public DataSize getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(DataSize maxSize) {
+            this.maxSize = maxSize;
+        }
+    }
+
+    public static class Metrics {
+
+        /**
+         * Record the fhir.conversion.* metrics, see ConversionMetrics.
+         */
+        private boolean enabled = true;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+    }
+
+    public static class WarmUp {
+
+        /**
+         * Run conversions at startup, before the server accepts requests, see ConversionWarmUp.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Number of times the conversion path is run.
+         */
+        private int iterations = 20;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        public void setIterations(int iterations) {
+            this.iterations = iterations;
+        }
+    }
+
+    public static class Admission {
+
+        /**
+         * Admit /convert, /convert/batch and /convert/fhir requests only while their estimated heap fits in the budget,
+         * see AdmissionControlFilter. /convert/ndjson is not admission controlled, as it streams a patient at a time,
+         * so the heap it needs doesn't grow with its body.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Estimated heap shared by the admission controlled requests being served. Defaults to half of the maximum
+         * heap.
+         */
+        private DataSize budget = DataSize.ofBytes(Runtime.getRuntime().maxMemory() / 2);
+
+        /**
+         * Estimated heap needed by a request as a multiple of its body size.
+         */
+        private int expansionFactor = 25;
+
+        /**
+         * Estimated size of a gzip request body as a multiple of its compressed size, FHIR JSON typically compressing
+         * around ten times.
+         */
+        private int gzipRatio = 10;
+
+        /**
+         * Number of requests waiting for admission before new ones are rejected with 503. Requests never wait with
+         * fhir-interop.non-blocking.enabled, as waiting holds a container thread.
+         */
+        private int queueCapacity = 50;
+
+        /**
+         * Time a request waits for admission before it is rejected with 503.
+         */
+        private Duration queueTimeout = Duration.ofSeconds(10);
+
+        /**
+         * Retry-After of a rejected request.
+         */
+        private Duration retryAfter = Duration.ofSeconds(1);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public DataSize getBudget() {
+            return budget;
+        }
+
+        public void setBudget(DataSize budget) {
+            this.budget = budget;
+        }
+
+        public int getExpansionFactor() {
+            return expansionFactor;
+        }
+
+        public void setExpansionFactor(int expansionFactor) {
+            this.expansionFactor = expansionFactor;
+        }
+
+        public int getGzipRatio() {
+            return gzipRatio;
+        }
+
+        public void setGzipRatio(int gzipRatio) {
+            this.gzipRatio = gzipRatio;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public Duration getQueueTimeout() {
+            return queueTimeout;
+        }
+
+        public void setQueueTimeout(Duration queueTimeout) {
+            this.queueTimeout = queueTimeout;
+        }
+
+        public Duration getRetryAfter() {
+            return retryAfter;
+        }
+
+        public void setRetryAfter(Duration retryAfter) {
+            this.retryAfter = retryAfter;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.phenopackets.phenopacketschema.fhirinteropservice;
+
+import ca.uhn.fhir.parser.IParser;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import org.hl7.fhir.r4.model.*;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirContextProvider;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter;
+import org.phenopackets.schema.v1.fhir.interop.converters.PhenoPacketConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a small Bundle through the whole conversion path, both ways, when the application context has been refreshed.
+ * The embedded server only starts accepting requests after that, so the first request after a deploy doesn't pay for
+ * loading and initialising the HAPI, converter and protobuf classes.
+ * <p>
+ * The warm-up uses its own FhirConverter, so it doesn't show up in the conversion metrics or MetaData resources.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@Component
+public class ConversionWarmUp {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConversionWarmUp.class);
+
+    private final FhirContextProvider fhirContextProvider;
+    private final ConversionProperties.WarmUp properties;
+    private final AtomicBoolean done = new AtomicBoolean(false);
+
+    public ConversionWarmUp(FhirContextProvider fhirContextProvider, ConversionProperties conversionProperties) {
+        this.fhirContextProvider = fhirContextProvider;
+        this.properties = conversionProperties.getWarmUp();
+    }
+
+    @EventListener(ContextRefreshedEvent.class)
+    public void warmUp() {
+        // the event is also published for the refresh of any child context, e.g. the actuator's
+        if (!properties.isEnabled() || !done.compareAndSet(false, true)) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            FhirConverter fhirConverter = new FhirConverter();
+            JsonFormat.Printer printer = JsonFormat.printer();
+            IParser jsonParser = fhirContextProvider.jsonParser();
+            String bundleJson = jsonParser.encodeResourceToString(bundle());
+            for (int i = 0; i < properties.getIterations(); i++) {
+                Bundle bundle = jsonParser.parseResource(Bundle.class, bundleJson);
+                Phenopacket phenopacket = fhirConverter.toPhenopacket(bundle);
+                printer.print(phenopacket);
+                Phenopacket.parseFrom(phenopacket.toByteArray());
+                jsonParser.encodeResourceToString(PhenoPacketConverter.toFhirBundle(phenopacket));
+            }
+            logger.info("Warmed up the conversion path with {} iterations in {} ms", properties.getIterations(), TimeUnit.NANOSECONDS
+                    .toMillis(System.nanoTime() - start));
+        } catch (InvalidProtocolBufferException | RuntimeException e) {
+            // a failed warm-up only makes the first requests slower
+            logger.warn("Unable to warm up the conversion path", e);
+        }
+    }
+
+    private static Bundle bundle() {
+        Patient patient = new Patient();
+        patient.setId("warm-up");
+        patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+        patient.setBirthDate(new Date(0));
+
+        Condition condition = new Condition();
+        condition.setCode(ConverterUtil.codeableConcept("http://purl.obolibrary.org/obo/hp.owl", "HP:0001250", "Seizure"));
+        condition.setSeverity(ConverterUtil.codeableConcept("http://purl.obolibrary.org/obo/hp.owl", "HP:0012828", "Severe"));
+        condition.setOnset(new StringType("Infantile onset"));
+        condition.setSubject(new Reference(patient));
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        bundle.addEntry().setFullUrl("Patient/warm-up").setResource(patient);
+        bundle.addEntry().setResource(condition);
+        return bundle;
+    }
+}
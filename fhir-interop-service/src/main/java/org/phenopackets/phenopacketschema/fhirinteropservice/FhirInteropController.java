@@ -1,17 +1,44 @@
 package org.phenopackets.phenopacketschema.fhirinteropservice;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.DataFormatException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.util.JsonFormat;
 import org.hl7.fhir.r4.model.Bundle;
 import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConversionObserver;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirContextProvider;
 import org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirNdjsonConverter;
+import org.phenopackets.schema.v1.fhir.interop.converters.PhenoPacketConverter;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.web.bind.annotation.CrossOrigin;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 /**
  *
@@ -21,21 +48,386 @@ import org.springframework.web.bind.annotation.RestController;
 public class FhirInteropController {
 
     private static final Logger logger = LoggerFactory.getLogger(FhirInteropController.class);
-    private final IParser jsonParser;
 
-    public FhirInteropController() {
-        this.jsonParser = FhirContext.forR4().newJsonParser();
+    static final String APPLICATION_FHIR_JSON_VALUE = "application/fhir+json";
+    static final String APPLICATION_FHIR_NDJSON_VALUE = "application/fhir+ndjson";
+    static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+    static final String APPLICATION_PROTOBUF_VALUE = "application/x-protobuf";
+    // a stream of varint length-prefixed messages, as written by MessageLite.writeDelimitedTo
+    static final String APPLICATION_PROTOBUF_DELIMITED_VALUE = "application/x-protobuf;delimited=true";
+
+    // hands out a JSON parser per thread, as HAPI parsers are not thread-safe
+    private final FhirContextProvider fhirContextProvider;
+    private final PhenopacketExtractor phenopacketExtractor;
+    private final FhirConverter fhirConverter;
+    private final JsonFormat.Printer ndjsonPrinter = JsonFormat.printer().omittingInsignificantWhitespace();
+    private final JsonFactory jsonFactory;
+    private final int maxBatchSize;
+    private final long maxBatchBodySize;
+    private final long maxBodySize;
+    private final ExecutorService batchExecutor;
+    private final ConversionCache conversionCache;
+    private final ConversionMetrics conversionMetrics;
+
+    public FhirInteropController(FhirContextProvider fhirContextProvider, ObjectMapper objectMapper, ConversionProperties conversionProperties,
+                                 ConversionCache conversionCache, PhenopacketExtractor phenopacketExtractor, ConversionMetrics conversionMetrics) {
+        this.fhirContextProvider = fhirContextProvider;
+        this.phenopacketExtractor = phenopacketExtractor;
+        this.fhirConverter = new FhirConverter(phenopacketExtractor);
+        this.jsonFactory = objectMapper.getFactory();
+        this.maxBodySize = conversionProperties.getMaxBodySize().toBytes();
+        ConversionProperties.Batch batch = conversionProperties.getBatch();
+        this.maxBatchSize = batch.getMaxSize();
+        this.maxBatchBodySize = batch.getMaxBodySize().toBytes();
+        // shared by all batch requests. Once the queue is full the request thread converts the item itself, which
+        // limits the work in flight without failing the request.
+        this.batchExecutor = new ThreadPoolExecutor(batch.getParallelism(), batch.getParallelism(),
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(batch.getQueueCapacity()),
+                new ThreadFactoryBuilder().setNameFormat("batch-convert-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.conversionCache = conversionCache;
+        this.conversionMetrics = conversionMetrics;
     }
 
+    @PreDestroy
+    public void shutdown() {
+        batchExecutor.shutdown();
+    }
+
+    /**
+     * Converts a FHIR Bundle to a Phenopacket, as JSON or, if the Accept header asks for it, binary protobuf. Results
+     * are cached by a hash of the request body, which is also returned as the ETag, in the format they were sent in. The
+     * conversion has no side effects, so a request whose If-None-Match header matches it gets a 304 response without a
+     * body, as it would for a GET.
+     * <p>
+     * Bodies larger than {@code fhir-interop.max-body-size} are rejected with 413. The body is only held in memory, once,
+     * as it is needed for the cache key. With the cache disabled it is parsed straight from the request.
+     */
     @CrossOrigin
     @PostMapping(value = "convert",
             consumes = MediaType.APPLICATION_JSON_UTF8_VALUE,
+            produces = {MediaType.APPLICATION_JSON_UTF8_VALUE, APPLICATION_PROTOBUF_VALUE}
+    )
+    public ResponseEntity<byte[]> convertToPhenoPacket(HttpServletRequest request,
+                                                       @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                                       @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) throws IOException {
+        long contentLength = request.getContentLengthLong();
+        if (contentLength > maxBodySize) {
+            throw bodyTooLarge();
+        }
+        ConversionCache.Format format = ConversionCache.Format.forAccept(accept);
+        MediaType contentType = MediaType.parseMediaType(format.getContentType());
+        if (!conversionCache.isEnabled()) {
+            return ResponseEntity.ok().contentType(contentType).body(print(convertStream(request.getInputStream()), format));
+        }
+        long start = conversionMetrics.startTime();
+        byte[] input = readBody(request.getInputStream(), contentLength);
+        conversionMetrics.stageCompleted(ConversionObserver.Stage.READ, start);
+        conversionMetrics.requestRead(input.length);
+        logger.debug("Received {} bytes", input.length);
+        HashCode key = ConversionCache.key(input);
+        String etag = ConversionCache.etag(key);
+        if (ConversionCache.matches(ifNoneMatch, key)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+        byte[] phenopacket = conversionCache.get(key, format, () -> print(convert(new ByteArrayInputStream(input)), format));
+        return ResponseEntity.ok().eTag(etag).contentType(contentType).body(phenopacket);
+    }
+
+    private byte[] print(Phenopacket phenopacket, ConversionCache.Format format) {
+        long start = conversionMetrics.startTime();
+        byte[] output = format.print(phenopacket);
+        conversionMetrics.stageCompleted(ConversionObserver.Stage.PRINT, start);
+        return output;
+    }
+
+    /**
+     * Reads the body into an array of exactly its length if that is known, rather than growing and then copying a
+     * buffer, which would briefly take several times the size of the body.
+     */
+    private byte[] readBody(InputStream inputStream, long contentLength) throws IOException {
+        if (contentLength >= 0) {
+            byte[] body = new byte[(int) contentLength];
+            try {
+                ByteStreams.readFully(inputStream, body);
+            } catch (EOFException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Request body is shorter than its Content-Length", e);
+            }
+            return body;
+        }
+        // e.g. chunked or gzip, read one more byte than allowed to tell whether the body is too large
+        byte[] body = ByteStreams.toByteArray(ByteStreams.limit(inputStream, maxBodySize + 1));
+        if (body.length > maxBodySize) {
+            throw bodyTooLarge();
+        }
+        return body;
+    }
+
+    /**
+     * Parses the body as it is read, so reading and parsing are timed together as the PARSE stage.
+     */
+    private Phenopacket convertStream(InputStream inputStream) {
+        CountingInputStream body = new CountingInputStream(ByteStreams.limit(inputStream, maxBodySize + 1));
+        try {
+            Phenopacket phenopacket = convert(body);
+            conversionMetrics.requestRead(body.getCount());
+            logger.debug("Received {} bytes", body.getCount());
+            return phenopacket;
+        } catch (ResponseStatusException e) {
+            // the parser only saw the body up to the limit, so failed to parse it
+            if (body.getCount() > maxBodySize) {
+                throw bodyTooLarge();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Throws a 413 if the exception was caused by the GzipRequestFilter stopping a body which decompresses to more than
+     * is allowed, rather than the 400 a parse error would get.
+     */
+    private static void checkBodyTooLarge(Exception e) {
+        for (Throwable cause : Throwables.getCausalChain(e)) {
+            if (cause instanceof GzipRequestFilter.BodyTooLargeException) {
+                throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, cause.getMessage(), cause);
+            }
+        }
+    }
+
+    private ResponseStatusException bodyTooLarge() {
+        return new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Request bodies are limited to " + maxBodySize + " bytes");
+    }
+
+    private Phenopacket convert(InputStream input) {
+        long start = conversionMetrics.startTime();
+        Bundle bundle;
+        try {
+            Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8);
+            bundle = fhirContextProvider.jsonParser().parseResource(Bundle.class, reader);
+        } catch (DataFormatException e) {
+            checkBodyTooLarge(e);
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unable to parse the FHIR Bundle", e);
+        }
+        conversionMetrics.stageCompleted(ConversionObserver.Stage.PARSE, start);
+        return fhirConverter.toPhenopacket(bundle);
+    }
+
+    /**
+     * Converts a JSON array of FHIR Bundles to Phenopackets, in parallel. The response is a JSON array with an object
+     * for each Bundle, in the same order, containing its index and either the Phenopacket or the error which stopped
+     * it being converted.
+     * <p>
+     * Bodies larger than {@code fhir-interop.batch.max-body-size}, or with a Bundle larger than
+     * {@code fhir-interop.max-body-size}, are rejected with 413.
+     */
+    @CrossOrigin
+    @PostMapping(value = "convert/batch",
+            consumes = MediaType.APPLICATION_JSON_VALUE,
             produces = MediaType.APPLICATION_JSON_UTF8_VALUE
     )
-    public Phenopacket convertToPhenoPacket(@RequestBody String input) {
-        logger.debug("Received input {}", input);
-        Bundle bundle = (Bundle) jsonParser.parseResource(input);
-        return new FhirConverter().toPhenopacket(bundle);
+    public void convertBatchToPhenoPackets(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (request.getContentLengthLong() > maxBatchBodySize) {
+            throw batchBodyTooLarge();
+        }
+        List<CompletableFuture<Phenopacket>> results = new ArrayList<>();
+        // read one more byte than allowed to tell whether the body is too large
+        CountingInputStream body = new CountingInputStream(ByteStreams.limit(request.getInputStream(), maxBatchBodySize + 1));
+        try (JsonParser parser = jsonFactory.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Expected a JSON array of Bundles");
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unexpected end of the JSON array");
+                }
+                checkBatchSize(results);
+                results.add(convertAsync(copyBundle(parser)));
+            }
+        } catch (IOException | RuntimeException e) {
+            results.forEach(result -> result.cancel(false));
+            // the parser only saw the body up to the limit, so failed to parse it
+            if (body.getCount() > maxBatchBodySize) {
+                throw batchBodyTooLarge();
+            }
+            checkBodyTooLarge(e);
+            if (e instanceof ResponseStatusException) {
+                throw e;
+            }
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unable to read the JSON array of Bundles", e);
+        }
+        writeBatchResults(results, response);
     }
 
+    /**
+     * Copies the batch item at the parser's current token a token at a time, so that a Bundle over the
+     * {@code fhir-interop.max-body-size} is rejected before it has all been copied.
+     */
+    private String copyBundle(JsonParser parser) throws IOException {
+        long start = parser.getTokenLocation().getByteOffset();
+        StringWriter bundleJson = new StringWriter();
+        try (JsonGenerator generator = jsonFactory.createGenerator(bundleJson)) {
+            int depth = 0;
+            JsonToken token = parser.currentToken();
+            while (true) {
+                if (token.isStructStart()) {
+                    depth++;
+                } else if (token.isStructEnd()) {
+                    depth--;
+                }
+                generator.copyCurrentEvent(parser);
+                if (depth == 0) {
+                    break;
+                }
+                token = parser.nextToken();
+                if (token == null) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unexpected end of the JSON array");
+                }
+                if (parser.getCurrentLocation().getByteOffset() - start > maxBodySize) {
+                    throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Bundles are limited to " + maxBodySize + " bytes");
+                }
+            }
+        }
+        return bundleJson.toString();
+    }
+
+    private ResponseStatusException batchBodyTooLarge() {
+        return new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Batch request bodies are limited to " + maxBatchBodySize + " bytes");
+    }
+
+    /**
+     * As {@link #convertBatchToPhenoPackets(HttpServletRequest, HttpServletResponse)}, but with each Bundle uploaded as
+     * a 'bundle' part of a multipart form.
+     */
+    @CrossOrigin
+    @PostMapping(value = "convert/batch",
+            consumes = MediaType.MULTIPART_FORM_DATA_VALUE,
+            produces = MediaType.APPLICATION_JSON_UTF8_VALUE
+    )
+    public void convertMultipartBatchToPhenoPackets(@RequestParam("bundle") List<MultipartFile> bundles, HttpServletResponse response) throws IOException {
+        List<CompletableFuture<Phenopacket>> results = new ArrayList<>();
+        for (MultipartFile bundle : bundles) {
+            checkBatchSize(results);
+            results.add(convertAsync(new String(bundle.getBytes(), StandardCharsets.UTF_8)));
+        }
+        writeBatchResults(results, response);
+    }
+
+    private void checkBatchSize(List<CompletableFuture<Phenopacket>> results) {
+        if (results.size() == maxBatchSize) {
+            results.forEach(result -> result.cancel(false));
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Batches are limited to " + maxBatchSize + " Bundles");
+        }
+    }
+
+    private CompletableFuture<Phenopacket> convertAsync(String bundleJson) {
+        return CompletableFuture.supplyAsync(() -> {
+            long start = conversionMetrics.startTime();
+            Bundle bundle = fhirContextProvider.jsonParser().parseResource(Bundle.class, bundleJson);
+            conversionMetrics.stageCompleted(ConversionObserver.Stage.PARSE, start);
+            return fhirConverter.toPhenopacket(bundle);
+        }, batchExecutor);
+    }
+
+    private void writeBatchResults(List<CompletableFuture<Phenopacket>> results, HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        int failed = 0;
+        try (JsonGenerator generator = jsonFactory.createGenerator(response.getOutputStream())) {
+            generator.writeStartArray();
+            for (int i = 0; i < results.size(); i++) {
+                generator.writeStartObject();
+                generator.writeNumberField("index", i);
+                try {
+                    Phenopacket phenopacket = results.get(i).join();
+                    generator.writeFieldName("phenopacket");
+                    generator.writeRawValue(ndjsonPrinter.print(phenopacket));
+                } catch (CompletionException e) {
+                    failed++;
+                    Throwable cause = e.getCause() == null ? e : e.getCause();
+                    generator.writeStringField("error", cause.getClass().getSimpleName() + ": " + cause.getMessage());
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+        logger.debug("Converted batch of {} bundles with {} errors", results.size(), failed);
+    }
+
+    /**
+     * Converts a Phenopacket, as JSON or binary protobuf, to a FHIR Bundle.
+     */
+    @CrossOrigin
+    @PostMapping(value = "convert/fhir",
+            consumes = {MediaType.APPLICATION_JSON_VALUE, APPLICATION_PROTOBUF_VALUE},
+            produces = {APPLICATION_FHIR_JSON_VALUE, MediaType.APPLICATION_JSON_UTF8_VALUE}
+    )
+    public String convertToFhir(@RequestBody Phenopacket phenopacket) {
+        Bundle bundle = PhenoPacketConverter.toFhirBundle(phenopacket, phenopacketExtractor.getConceptMapper());
+        return fhirContextProvider.jsonParser().encodeResourceToString(bundle);
+    }
+
+    /**
+     * Converts newline-delimited FHIR resources, e.g. the output of a Bulk Data $export, to newline-delimited
+     * Phenopackets. Both the request and the response are streamed, so the input must be grouped by patient: each
+     * Patient on consecutive lines with the Conditions and Observations referring to it, in any order, see
+     * {@link FhirNdjsonConverter}. Input in which a patient turns up again after another one, e.g. all the Patients
+     * followed by all the Conditions, is rejected with 400, or the response cut short if it has already been committed.
+     */
+    @CrossOrigin
+    @PostMapping(value = "convert/ndjson",
+            consumes = {APPLICATION_FHIR_NDJSON_VALUE, APPLICATION_NDJSON_VALUE},
+            produces = APPLICATION_NDJSON_VALUE
+    )
+    public void convertNdjsonToPhenoPackets(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType(APPLICATION_NDJSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        Writer writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        long converted = convertNdjson(request, phenopacket -> writeLine(phenopacket, writer));
+        writer.flush();
+        logger.debug("Converted {} phenopackets from NDJSON", converted);
+    }
+
+    /**
+     * As {@link #convertNdjsonToPhenoPackets(HttpServletRequest, HttpServletResponse)}, but writes the Phenopackets as
+     * length-delimited protobuf, which can be read back with {@link Phenopacket#parseDelimitedFrom(InputStream)}.
+     */
+    @CrossOrigin
+    @PostMapping(value = "convert/ndjson",
+            consumes = {APPLICATION_FHIR_NDJSON_VALUE, APPLICATION_NDJSON_VALUE},
+            produces = APPLICATION_PROTOBUF_DELIMITED_VALUE
+    )
+    public void convertNdjsonToDelimitedPhenoPackets(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType(APPLICATION_PROTOBUF_DELIMITED_VALUE);
+        OutputStream outputStream = new BufferedOutputStream(response.getOutputStream());
+        long converted = convertNdjson(request, phenopacket -> writeDelimited(phenopacket, outputStream));
+        outputStream.flush();
+        logger.debug("Converted {} phenopackets from NDJSON", converted);
+    }
+
+    private long convertNdjson(HttpServletRequest request, Consumer<Phenopacket> consumer) throws IOException {
+        Reader reader = new BufferedReader(new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8));
+        try {
+            return new FhirNdjsonConverter(fhirContextProvider.jsonParser(), phenopacketExtractor).convert(reader, consumer);
+        } catch (DataFormatException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+    }
+
+    private void writeDelimited(Phenopacket phenopacket, OutputStream outputStream) {
+        try {
+            phenopacket.writeDelimitedTo(outputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeLine(Phenopacket phenopacket, Writer writer) {
+        try {
+            ndjsonPrinter.appendTo(phenopacket, writer);
+            writer.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 }
@@ -0,0 +1,189 @@
+package org.phenopackets.phenopacketschema.fhirinteropservice;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decompresses request bodies sent with {@code Content-Encoding: gzip} on the fly, so that large bundles can be
+ * uploaded compressed. Response compression is handled by the server, see {@code server.compression.*} in the
+ * application.properties.
+ * <p>
+ * The filter only applies to the DispatcherServlet, see {@link ControllerConfig}. The wrapped input stream does not
+ * support non-blocking reads, so the NonBlockingConvertServlet decompresses the request body itself.
+ * <p>
+ * A small body can decompress to a very large one, so reading more than the largest body allowed for the endpoint,
+ * {@code fhir-interop.batch.max-body-size} for /convert/batch and {@code fhir-interop.max-body-size} otherwise, fails
+ * with 413. /convert/ndjson is converted a patient at a time while it streams in, so its bodies are not limited.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class GzipRequestFilter extends OncePerRequestFilter {
+
+    private static final String GZIP = "gzip";
+    private static final String BATCH_PATH = "/convert/batch";
+    private static final String NDJSON_PATH = "/convert/ndjson";
+
+    private final long maxBodySize;
+    private final long maxBatchBodySize;
+
+    public GzipRequestFilter(long maxBodySize, long maxBatchBodySize) {
+        this.maxBodySize = maxBodySize;
+        this.maxBatchBodySize = maxBatchBodySize;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        String contentEncoding = request.getHeader(HttpHeaders.CONTENT_ENCODING);
+        if (contentEncoding != null && GZIP.equalsIgnoreCase(contentEncoding.trim())) {
+            filterChain.doFilter(new GzipRequestWrapper(request, maxBodySizeFor(request)), response);
+        } else {
+            filterChain.doFilter(request, response);
+        }
+    }
+
+    private long maxBodySizeFor(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        if (NDJSON_PATH.equals(path)) {
+            return Long.MAX_VALUE;
+        }
+        return BATCH_PATH.equals(path) ? maxBatchBodySize : maxBodySize;
+    }
+
+    /**
+     * Thrown on reading more than the largest body allowed. Parsers and message converters pass on, or wrap, the
+     * IOExceptions of their input, and Spring finds the status in the causes of an exception.
+     */
+    @ResponseStatus(HttpStatus.PAYLOAD_TOO_LARGE)
+    public static class BodyTooLargeException extends IOException {
+
+        private BodyTooLargeException(long maxBodySize) {
+            super("Request bodies are limited to " + maxBodySize + " bytes");
+        }
+    }
+
+    private static class GzipRequestWrapper extends HttpServletRequestWrapper {
+
+        private final long maxBodySize;
+        private ServletInputStream inputStream;
+        private BufferedReader reader;
+
+        private GzipRequestWrapper(HttpServletRequest request, long maxBodySize) {
+            super(request);
+            this.maxBodySize = maxBodySize;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (reader != null) {
+                throw new IllegalStateException("getReader() has already been called for this request");
+            }
+            if (inputStream == null) {
+                inputStream = new GzipServletInputStream(new GZIPInputStream(getRequest().getInputStream()), maxBodySize);
+            }
+            return inputStream;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            if (reader == null) {
+                String encoding = getCharacterEncoding();
+                Charset charset = (encoding == null) ? StandardCharsets.UTF_8 : Charset.forName(encoding);
+                reader = new BufferedReader(new InputStreamReader(getInputStream(), charset));
+            }
+            return reader;
+        }
+
+        // the decompressed length is unknown
+        @Override
+        public int getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return -1;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            if (HttpHeaders.CONTENT_ENCODING.equalsIgnoreCase(name) || HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+                return null;
+            }
+            return super.getHeader(name);
+        }
+    }
+
+    private static class GzipServletInputStream extends ServletInputStream {
+
+        private final InputStream gzipInputStream;
+        private final long maxBodySize;
+        private long bytesRead = 0;
+        private boolean finished = false;
+
+        private GzipServletInputStream(InputStream gzipInputStream, long maxBodySize) {
+            this.gzipInputStream = gzipInputStream;
+            this.maxBodySize = maxBodySize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = gzipInputStream.read();
+            finished = read == -1;
+            if (!finished) {
+                count(1);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = gzipInputStream.read(b, off, len);
+            finished = read == -1;
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        private void count(int read) throws BodyTooLargeException {
+            bytesRead += read;
+            if (bytesRead > maxBodySize) {
+                throw new BodyTooLargeException(maxBodySize);
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            throw new UnsupportedOperationException("Non-blocking reads of gzip request bodies are not supported");
+        }
+
+        @Override
+        public void close() throws IOException {
+            gzipInputStream.close();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.phenopackets.phenopacketschema.fhirinteropservice;
+
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirContextProvider;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.ServletRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Registers the {@link NonBlockingConvertServlet} for /convert when {@code fhir-interop.non-blocking.enabled=true}.
+ * An exact servlet mapping takes precedence over the DispatcherServlet, so the blocking endpoint is no longer used.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "fhir-interop.non-blocking", name = "enabled", havingValue = "true")
+public class NonBlockingConfig {
+
+    @Bean
+    public ServletRegistrationBean<NonBlockingConvertServlet> nonBlockingConvertServlet(FhirContextProvider fhirContextProvider, ConversionProperties conversionProperties,
+                                                                                    ConversionCache conversionCache, PhenopacketExtractor phenopacketExtractor,
+                                                                                    ConversionMetrics conversionMetrics) {
+        NonBlockingConvertServlet servlet = new NonBlockingConvertServlet(fhirContextProvider, conversionProperties.getNonBlocking(),
+                conversionProperties.getMaxBodySize(), conversionCache, phenopacketExtractor, conversionMetrics);
+        ServletRegistrationBean<NonBlockingConvertServlet> registration = new ServletRegistrationBean<>(servlet, "/convert");
+        registration.setAsyncSupported(true);
+        registration.setLoadOnStartup(1);
+        return registration;
+    }
+}
@@ -0,0 +1,269 @@
+package org.phenopackets.phenopacketschema.fhirinteropservice;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.hl7.fhir.r4.model.Bundle;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConversionObserver;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirContextProvider;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.util.unit.DataSize;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Non-blocking alternative to the /convert endpoint of the {@link FhirInteropController}, enabled with
+ * {@code fhir-interop.non-blocking.enabled=true}.
+ * <p>
+ * The blocking endpoint holds a request thread for the whole of the upload, parse, conversion and response, so a
+ * few hundred slow clients uploading large Bundles can use up the request thread pool. Here the request body is read
+ * and the response written with Servlet 3.1 non-blocking I/O, which only uses a container thread while there are bytes
+ * ready to read or room to write. The parse and conversion, which need the whole body, run on a fixed size pool once
+ * the body has been read. Requests beyond the capacity of its queue are rejected with 503, rather than queueing up
+ * in the container.
+ * <p>
+ * The request and response formats are the same as the blocking endpoint's, including gzip request bodies, and the
+ * results are cached in the same {@link ConversionCache}. Spring MVC is bypassed entirely, so the GzipRequestFilter and
+ * CORS handling do not apply.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class NonBlockingConvertServlet extends HttpServlet {
+
+    private static final Logger logger = LoggerFactory.getLogger(NonBlockingConvertServlet.class);
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final FhirContextProvider fhirContextProvider;
+    private final FhirConverter fhirConverter;
+    private final ExecutorService conversionExecutor;
+    private final long maxBodySize;
+    private final long timeoutMillis;
+    private final ConversionCache conversionCache;
+    private final ConversionMetrics conversionMetrics;
+
+    public NonBlockingConvertServlet(FhirContextProvider fhirContextProvider, ConversionProperties.NonBlocking properties, DataSize maxBodySize,
+                                     ConversionCache conversionCache, PhenopacketExtractor phenopacketExtractor, ConversionMetrics conversionMetrics) {
+        this.fhirContextProvider = fhirContextProvider;
+        this.fhirConverter = new FhirConverter(phenopacketExtractor);
+        this.conversionExecutor = new ThreadPoolExecutor(properties.getParallelism(), properties.getParallelism(),
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(properties.getQueueCapacity()),
+                new ThreadFactoryBuilder().setNameFormat("non-blocking-convert-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.maxBodySize = maxBodySize.toBytes();
+        this.timeoutMillis = properties.getTimeout().toMillis();
+        this.conversionCache = conversionCache;
+        this.conversionMetrics = conversionMetrics;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!isJson(request.getContentType())) {
+            response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "Expected a FHIR Bundle as application/json");
+            return;
+        }
+        if (request.getContentLengthLong() > maxBodySize) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Request bodies are limited to " + maxBodySize + " bytes");
+            return;
+        }
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(timeoutMillis);
+        ServletInputStream inputStream = request.getInputStream();
+        inputStream.setReadListener(new BodyReader(asyncContext, inputStream));
+    }
+
+    @Override
+    public void destroy() {
+        conversionExecutor.shutdown();
+        super.destroy();
+    }
+
+    private static boolean isJson(String contentType) {
+        try {
+            return contentType != null && MediaType.APPLICATION_JSON.isCompatibleWith(MediaType.parseMediaType(contentType));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void convert(AsyncContext asyncContext, byte[] body) {
+        HttpServletRequest request = (HttpServletRequest) asyncContext.getRequest();
+        HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+        try {
+            byte[] json = body;
+            if ("gzip".equalsIgnoreCase(request.getHeader(HttpHeaders.CONTENT_ENCODING))) {
+                json = ByteStreams.toByteArray(ByteStreams.limit(new GZIPInputStream(new ByteArrayInputStream(body)), maxBodySize + 1));
+                if (json.length > maxBodySize) {
+                    write(asyncContext, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, MediaType.TEXT_PLAIN_VALUE,
+                            ("Request bodies are limited to " + maxBodySize + " bytes").getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+            }
+            conversionMetrics.requestRead(json.length);
+            HashCode key = ConversionCache.key(json);
+            response.setHeader(HttpHeaders.ETAG, ConversionCache.etag(key));
+            if (ConversionCache.matches(request.getHeader(HttpHeaders.IF_NONE_MATCH), key)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                complete(asyncContext);
+                return;
+            }
+            byte[] input = json;
+            ConversionCache.Format format = ConversionCache.Format.forAccept(request.getHeader(HttpHeaders.ACCEPT));
+            byte[] phenopacket = conversionCache.get(key, format, () -> print(toPhenopacket(input), format));
+            write(asyncContext, HttpServletResponse.SC_OK, format.getContentType(), phenopacket);
+        } catch (DataFormatException | IOException e) {
+            logger.debug("Unable to convert request", e);
+            write(asyncContext, HttpServletResponse.SC_BAD_REQUEST, MediaType.TEXT_PLAIN_VALUE, message(e));
+        } catch (RuntimeException e) {
+            logger.error("Unable to convert request", e);
+            write(asyncContext, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, MediaType.TEXT_PLAIN_VALUE, message(e));
+        }
+    }
+
+    private Phenopacket toPhenopacket(byte[] json) {
+        long start = conversionMetrics.startTime();
+        Reader reader = new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8);
+        Bundle bundle = fhirContextProvider.jsonParser().parseResource(Bundle.class, reader);
+        conversionMetrics.stageCompleted(ConversionObserver.Stage.PARSE, start);
+        return fhirConverter.toPhenopacket(bundle);
+    }
+
+    private byte[] print(Phenopacket phenopacket, ConversionCache.Format format) {
+        long start = conversionMetrics.startTime();
+        byte[] output = format.print(phenopacket);
+        conversionMetrics.stageCompleted(ConversionObserver.Stage.PRINT, start);
+        return output;
+    }
+
+    private static byte[] message(Exception e) {
+        return String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void write(AsyncContext asyncContext, int status, String contentType, byte[] body) {
+        HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+        response.setStatus(status);
+        response.setContentType(contentType);
+        response.setContentLength(body.length);
+        try {
+            ServletOutputStream outputStream = response.getOutputStream();
+            outputStream.setWriteListener(new BodyWriter(asyncContext, outputStream, body));
+        } catch (IOException | IllegalStateException e) {
+            // e.g. the request has already timed out
+            logger.debug("Unable to write response", e);
+            complete(asyncContext);
+        }
+    }
+
+    private static void complete(AsyncContext asyncContext) {
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException e) {
+            logger.debug("Request already completed", e);
+        }
+    }
+
+    /**
+     * Accumulates the request body as it arrives, then hands it over for conversion.
+     */
+    private class BodyReader implements ReadListener {
+
+        private final AsyncContext asyncContext;
+        private final ServletInputStream inputStream;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final long start = conversionMetrics.startTime();
+        private boolean failed = false;
+
+        private BodyReader(AsyncContext asyncContext, ServletInputStream inputStream) {
+            this.asyncContext = asyncContext;
+            this.inputStream = inputStream;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            int read;
+            while (!failed && inputStream.isReady() && (read = inputStream.read(buffer)) != -1) {
+                if (body.size() + read > maxBodySize) {
+                    failed = true;
+                    write(asyncContext, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, MediaType.TEXT_PLAIN_VALUE,
+                            ("Request bodies are limited to " + maxBodySize + " bytes").getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                body.write(buffer, 0, read);
+            }
+        }
+
+        @Override
+        public void onAllDataRead() {
+            if (failed) {
+                return;
+            }
+            conversionMetrics.stageCompleted(ConversionObserver.Stage.READ, start);
+            try {
+                conversionExecutor.execute(() -> convert(asyncContext, body.toByteArray()));
+            } catch (RejectedExecutionException e) {
+                HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+                response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+                write(asyncContext, HttpServletResponse.SC_SERVICE_UNAVAILABLE, MediaType.TEXT_PLAIN_VALUE,
+                        "Too many requests waiting for conversion".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            logger.debug("Unable to read request", throwable);
+            complete(asyncContext);
+        }
+    }
+
+    /**
+     * Writes the response as fast as the client reads it.
+     */
+    private static class BodyWriter implements WriteListener {
+
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream outputStream;
+        private final byte[] body;
+        private int written = 0;
+
+        private BodyWriter(AsyncContext asyncContext, ServletOutputStream outputStream, byte[] body) {
+            this.asyncContext = asyncContext;
+            this.outputStream = outputStream;
+            this.body = body;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            while (outputStream.isReady()) {
+                if (written == body.length) {
+                    asyncContext.complete();
+                    return;
+                }
+                int length = Math.min(BUFFER_SIZE, body.length - written);
+                outputStream.write(body, written, length);
+                written += length;
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            logger.debug("Unable to write response", throwable);
+            complete(asyncContext);
+        }
+    }
+}
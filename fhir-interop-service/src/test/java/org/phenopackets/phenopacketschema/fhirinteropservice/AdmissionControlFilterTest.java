@@ -0,0 +1,265 @@
+package org.phenopackets.phenopacketschema.fhirinteropservice;
+
+import com.google.common.io.ByteStreams;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.unit.DataSize;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class AdmissionControlFilterTest {
+
+    private static final long MAX_BODY_SIZE = 4 * 1024;
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private ConversionProperties.Admission properties;
+
+    @BeforeEach
+    void setUp() {
+        properties = new ConversionProperties.Admission();
+        // room for a single request of the largest body
+        properties.setBudget(DataSize.ofKilobytes(100));
+        properties.setExpansionFactor(25);
+        properties.setQueueCapacity(1);
+        properties.setQueueTimeout(Duration.ofMillis(100));
+        properties.setRetryAfter(Duration.ofSeconds(2));
+    }
+
+    private AdmissionControlFilter filter() {
+        return filter(properties, MAX_BODY_SIZE, false);
+    }
+
+    private AdmissionControlFilter filter(ConversionProperties.Admission properties, long maxBodySize, boolean nonBlocking) {
+        AdmissionControlFilter filter = new AdmissionControlFilter(properties, maxBodySize, nonBlocking);
+        filter.bindTo(registry);
+        return filter;
+    }
+
+    private static MockHttpServletRequest request(int contentLength) {
+        return request("/convert", contentLength);
+    }
+
+    private static MockHttpServletRequest request(String uri, int contentLength) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", uri);
+        request.setContent(new byte[contentLength]);
+        return request;
+    }
+
+    private static MockHttpServletRequest gzipRequest(int contentLength) {
+        MockHttpServletRequest request = request(contentLength);
+        request.addHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        return request;
+    }
+
+    private static MockHttpServletRequest chunkedRequest(int bodySize) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/convert") {
+            @Override
+            public long getContentLengthLong() {
+                return -1;
+            }
+        };
+        request.setContent(new byte[bodySize]);
+        return request;
+    }
+
+    @Test
+    void permitsFromContentLength() {
+        AdmissionControlFilter filter = filter();
+
+        assertThat(filter.permitsFor(request(1024)), equalTo(25));
+        // compressed bodies are charged for gzip-ratio times their length, up to the largest body
+        assertThat(filter.permitsFor(gzipRequest(100)), equalTo(25));
+        assertThat(filter.permitsFor(gzipRequest(1024)), equalTo(100));
+        // unknown lengths are charged for the provisional body, up to the largest body
+        assertThat(filter.permitsFor(chunkedRequest(0)), equalTo(100));
+        // rejected later on for its size, so not charged
+        assertThat(filter.permitsFor(request(8 * 1024)), equalTo(0));
+    }
+
+    @Test
+    void coversTheEndpointsReadingWholeBodies() throws Exception {
+        AdmissionControlFilter filter = filter();
+
+        // no size limit of their own, so charged up to the whole budget
+        assertThat(filter.permitsFor(request("/convert/batch", 2 * 1024)), equalTo(50));
+        assertThat(filter.permitsFor(request("/convert/batch", 8 * 1024)), equalTo(100));
+        assertThat(filter.permitsFor(request("/convert/fhir", 1024)), equalTo(25));
+
+        long[] inFlight = new long[1];
+        FilterChain chain = (request, response) -> inFlight[0] = filter.inFlightBytes();
+        filter.doFilter(request("/convert/ndjson", 8 * 1024), new MockHttpServletResponse(), chain);
+        assertThat(inFlight[0], equalTo(0L));
+    }
+
+    @Test
+    void chargesUnknownLengthsAsTheyAreRead() throws Exception {
+        properties.setBudget(DataSize.ofMegabytes(10));
+        AdmissionControlFilter filter = filter(properties, 1024 * 1024, false);
+        long[] inFlight = new long[2];
+        FilterChain chain = (request, response) -> {
+            inFlight[0] = filter.inFlightBytes();
+            ByteStreams.exhaust(request.getInputStream());
+            inFlight[1] = filter.inFlightBytes();
+        };
+
+        filter.doFilter(chunkedRequest(128 * 1024), new MockHttpServletResponse(), chain);
+
+        assertThat(inFlight[0], equalTo(25 * AdmissionControlFilter.PROVISIONAL_BODY_SIZE));
+        assertThat(inFlight[1], equalTo(25L * 128 * 1024));
+        assertThat(filter.inFlightBytes(), equalTo(0L));
+    }
+
+    @Test
+    void admitsConcurrentGzipRequestsByDefault() throws Exception {
+        ConversionProperties defaults = new ConversionProperties();
+        AdmissionControlFilter filter = filter(defaults.getAdmission(), defaults.getMaxBodySize().toBytes(), false);
+        MockFilterChain secondChain = new MockFilterChain();
+        MockHttpServletResponse secondResponse = new MockHttpServletResponse();
+        FilterChain firstChain = (request, response) -> filter.doFilter(gzipRequest(1024), secondResponse, secondChain);
+
+        filter.doFilter(gzipRequest(1024), new MockHttpServletResponse(), firstChain);
+
+        assertThat(secondChain.getRequest() != null, equalTo(true));
+        assertThat(secondResponse.getStatus(), equalTo(HttpServletResponse.SC_OK));
+        assertThat(registry.get("fhir.admission.queued").counter().count(), equalTo(0.0));
+    }
+
+    @Test
+    void nonBlockingRejectsWithoutWaiting() throws Exception {
+        properties.setQueueTimeout(Duration.ofSeconds(5));
+        AdmissionControlFilter filter = filter(properties, MAX_BODY_SIZE, true);
+        MockHttpServletResponse rejected = new MockHttpServletResponse();
+        FilterChain chain = (request, response) -> filter.doFilter(request(1024), rejected, new MockFilterChain());
+
+        filter.doFilter(request((int) MAX_BODY_SIZE), new MockHttpServletResponse(), chain);
+
+        assertThat(rejected.getStatus(), equalTo(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+        assertThat(registry.get("fhir.admission.queued").counter().count(), equalTo(0.0));
+        assertThat(filter.inFlightBytes(), equalTo(0L));
+    }
+
+    @Test
+    void releasesAfterRequest() throws Exception {
+        AdmissionControlFilter filter = filter();
+        long[] inFlight = new long[1];
+        FilterChain chain = (request, response) -> inFlight[0] = filter.inFlightBytes();
+
+        filter.doFilter(request(1024), new MockHttpServletResponse(), chain);
+
+        assertThat(inFlight[0], equalTo(25L * 1024));
+        assertThat(filter.inFlightBytes(), equalTo(0L));
+    }
+
+    @Test
+    void rejectsAfterQueueTimeout() throws Exception {
+        AdmissionControlFilter filter = filter();
+        CountDownLatch admitted = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> {
+            try {
+                filter.doFilter(request((int) MAX_BODY_SIZE), new MockHttpServletResponse(), (request, response) -> {
+                    admitted.countDown();
+                    await(finish);
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        admitted.await(5, TimeUnit.SECONDS);
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request(1024), response, chain);
+        finish.countDown();
+        first.get(5, TimeUnit.SECONDS);
+
+        assertThat(response.getStatus(), equalTo(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+        assertThat(response.getHeader(HttpHeaders.RETRY_AFTER), equalTo("2"));
+        assertThat(chain.getRequest() == null, equalTo(true));
+        assertThat(registry.get("fhir.admission.queued").counter().count(), equalTo(1.0));
+        assertThat(registry.get("fhir.admission.rejected").counter().count(), equalTo(1.0));
+        assertThat(filter.inFlightBytes(), equalTo(0L));
+    }
+
+    @Test
+    void admitsQueuedRequestOnRelease() throws Exception {
+        properties.setQueueTimeout(Duration.ofSeconds(5));
+        AdmissionControlFilter filter = filter();
+        CountDownLatch admitted = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> {
+            try {
+                filter.doFilter(request((int) MAX_BODY_SIZE), new MockHttpServletResponse(), (request, response) -> {
+                    admitted.countDown();
+                    await(finish);
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        admitted.await(5, TimeUnit.SECONDS);
+
+        MockHttpServletResponse queued = new MockHttpServletResponse();
+        MockFilterChain queuedChain = new MockFilterChain();
+        CompletableFuture<Void> second = CompletableFuture.runAsync(() -> {
+            try {
+                filter.doFilter(request(1024), queued, queuedChain);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (filter.waiting() == 0) {
+            Thread.sleep(1);
+        }
+        // the queue is full
+        MockHttpServletResponse rejected = new MockHttpServletResponse();
+        filter.doFilter(request(1024), rejected, new MockFilterChain());
+        assertThat(rejected.getStatus(), equalTo(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+
+        finish.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+
+        assertThat(queued.getStatus(), equalTo(HttpServletResponse.SC_OK));
+        assertThat(queuedChain.getRequest() != null, equalTo(true));
+        assertThat(filter.inFlightBytes(), equalTo(0L));
+    }
+
+    @Test
+    void asyncRequestHoldsBudgetUntilComplete() throws Exception {
+        AdmissionControlFilter filter = filter();
+        MockHttpServletRequest request = request(1024);
+        request.setAsyncSupported(true);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.doFilter(request, response, (req, res) -> req.startAsync());
+        assertThat(filter.inFlightBytes(), equalTo(25L * 1024));
+
+        request.getAsyncContext().complete();
+        assertThat(filter.inFlightBytes(), equalTo(0L));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
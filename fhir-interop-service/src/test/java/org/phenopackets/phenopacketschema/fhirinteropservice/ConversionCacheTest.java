@@ -0,0 +1,117 @@
+package org.phenopackets.phenopacketschema.fhirinteropservice;
+
+import com.google.common.hash.HashCode;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class ConversionCacheTest {
+
+    private static HashCode key(String json) {
+        return ConversionCache.key(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void keyIgnoresWhitespaceBetweenTokens() {
+        HashCode compact = key("{\"resourceType\":\"Bundle\",\"entry\":[]}");
+        HashCode pretty = key("{\n  \"resourceType\" : \"Bundle\",\r\n\t\"entry\": [ ]\n}\n");
+
+        assertThat(pretty, equalTo(compact));
+    }
+
+    @Test
+    void keyKeepsWhitespaceInStrings() {
+        assertThat(key("{\"display\":\"Ménière disease\"}"), not(equalTo(key("{\"display\":\"Ménièredisease\"}"))));
+        // an escaped quote doesn't end the string
+        assertThat(key("{\"display\":\"a\\\" b\"}"), not(equalTo(key("{\"display\":\"a\\\"b\"}"))));
+    }
+
+    @Test
+    void matchesIfNoneMatch() {
+        HashCode key = key("{}");
+        String etag = ConversionCache.etag(key);
+
+        assertThat(ConversionCache.matches(etag, key), equalTo(true));
+        assertThat(ConversionCache.matches("\"other\", " + etag.substring(2), key), equalTo(true));
+        assertThat(ConversionCache.matches("*", key), equalTo(true));
+        assertThat(ConversionCache.matches("W/\"other\"", key), equalTo(false));
+        assertThat(ConversionCache.matches(null, key), equalTo(false));
+    }
+
+    @Test
+    void convertsOncePerKey() {
+        ConversionCache cache = ConversionCache.bounded(1024);
+        AtomicInteger conversions = new AtomicInteger();
+        HashCode key = key("{}");
+
+        cache.get(key, ConversionCache.Format.JSON, () -> new byte[conversions.incrementAndGet()]);
+        byte[] cached = cache.get(key, ConversionCache.Format.JSON, () -> new byte[conversions.incrementAndGet()]);
+
+        assertThat(cached.length, equalTo(1));
+        assertThat(cache.stats().hitCount(), equalTo(1L));
+        assertThat(cache.stats().missCount(), equalTo(1L));
+    }
+
+    @Test
+    void cachesEachFormat() {
+        // well above the weight of a segment, so nothing is evicted
+        ConversionCache cache = ConversionCache.bounded(1024 * 1024);
+        HashCode key = key("{}");
+
+        cache.get(key, ConversionCache.Format.JSON, () -> new byte[1]);
+        byte[] protobuf = cache.get(key, ConversionCache.Format.PROTOBUF, () -> new byte[2]);
+
+        assertThat(protobuf.length, equalTo(2));
+        assertThat(cache.get(key, ConversionCache.Format.JSON, () -> new byte[3]).length, equalTo(1));
+        assertThat(cache.size(), equalTo(2L));
+    }
+
+    @Test
+    void formatForAccept() {
+        assertThat(ConversionCache.Format.forAccept(FhirInteropController.APPLICATION_PROTOBUF_VALUE), equalTo(ConversionCache.Format.PROTOBUF));
+        assertThat(ConversionCache.Format.forAccept("application/json, */*"), equalTo(ConversionCache.Format.JSON));
+        assertThat(ConversionCache.Format.forAccept(null), equalTo(ConversionCache.Format.JSON));
+    }
+
+    @Test
+    void evictsBeyondMaximumSize() {
+        ConversionCache cache = ConversionCache.bounded(2 * (100 + ConversionCache.ENTRY_OVERHEAD));
+        for (int i = 0; i < 10; i++) {
+            cache.get(key("[" + i + "]"), ConversionCache.Format.JSON, () -> new byte[100]);
+        }
+
+        assertThat(cache.size() <= 2, equalTo(true));
+        assertThat(cache.stats().evictionCount() >= 8, equalTo(true));
+    }
+
+    @Test
+    void conversionErrorsAreRethrownAndNotCached() {
+        ConversionCache cache = ConversionCache.bounded(1024);
+        HashCode key = key("{}");
+
+        assertThrows(IllegalArgumentException.class, () -> cache.get(key, ConversionCache.Format.JSON, () -> {
+            throw new IllegalArgumentException("Not a Bundle");
+        }));
+        assertThat(cache.size(), equalTo(0L));
+    }
+
+    @Test
+    void disabledAlwaysConverts() {
+        ConversionCache cache = ConversionCache.disabled();
+        AtomicInteger conversions = new AtomicInteger();
+        cache.get(key("{}"), ConversionCache.Format.JSON, () -> new byte[conversions.incrementAndGet()]);
+        cache.get(key("{}"), ConversionCache.Format.JSON, () -> new byte[conversions.incrementAndGet()]);
+
+        assertThat(conversions.get(), equalTo(2));
+        assertThat(cache.isEnabled(), equalTo(false));
+    }
+}
@@ -0,0 +1,371 @@
+package org.phenopackets.phenopacketschema.fhirinteropservice;
+
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import com.google.protobuf.util.JsonFormat;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.core.Individual;
+import org.phenopackets.schema.v1.core.PhenotypicFeature;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirContextProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(properties = {"fhir-interop.batch.max-size=3", "fhir-interop.batch.max-body-size=128KB", "fhir-interop.max-body-size=64KB"})
+@AutoConfigureMockMvc
+class FhirInteropControllerTest {
+
+    private static final IParser jsonParser = FhirContextProvider.r4().getFhirContext().newJsonParser();
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ConversionCache conversionCache;
+
+    private static Patient patient(String id) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+        return patient;
+    }
+
+    private static Condition condition(String subjectId, String hpoId, String label) {
+        Condition condition = new Condition();
+        condition.setCode(ConverterUtil.codeableConcept("http://purl.obolibrary.org/obo/hp.owl", hpoId, label));
+        condition.setSubject(new Reference("Patient/" + subjectId));
+        return condition;
+    }
+
+    private static byte[] bundleJson() {
+        return bundleJson("1").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String bundleJson(String patientId) {
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setFullUrl("Patient/" + patientId).setResource(patient(patientId));
+        bundle.addEntry().setResource(condition(patientId, "HP:0001156", "Brachydactyly"));
+        return jsonParser.encodeResourceToString(bundle);
+    }
+
+    private static byte[] ndjson() {
+        String ndjson = String.join("\n",
+                jsonParser.encodeResourceToString(patient("1")),
+                jsonParser.encodeResourceToString(condition("1", "HP:0001156", "Brachydactyly")),
+                jsonParser.encodeResourceToString(patient("2")));
+        return ndjson.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+            gzipOutputStream.write(bytes);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static Phenopacket phenopacket() {
+        return Phenopacket.newBuilder()
+                .setSubject(Individual.newBuilder().setId("1"))
+                .addPhenotypicFeatures(PhenotypicFeature.newBuilder()
+                        .setType(ConverterUtil.ontologyClass("HP:0000009", "Ménière's disease")))
+                .build();
+    }
+
+    @Test
+    void convertToProtobuf() throws Exception {
+        MvcResult result = mockMvc.perform(post("/convert")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .accept(FhirInteropController.APPLICATION_PROTOBUF_VALUE)
+                .content(bundleJson()))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(FhirInteropController.APPLICATION_PROTOBUF_VALUE))
+                .andReturn();
+
+        Phenopacket phenopacket = Phenopacket.parseFrom(result.getResponse().getContentAsByteArray());
+        assertThat(phenopacket.getPhenotypicFeatures(0).getType().getId(), equalTo("HP:0001156"));
+    }
+
+    @Test
+    void convertGzipRequestToJson() throws Exception {
+        mockMvc.perform(post("/convert")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .content(gzip(bundleJson())))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(content().string(containsString("HP:0001156")));
+    }
+
+    @Test
+    void convertInvalidBundleIsBadRequest() throws Exception {
+        mockMvc.perform(post("/convert")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content("{\"resourceType\": \"Patient\"}"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void convertBodyTooLarge() throws Exception {
+        byte[] body = new byte[65 * 1024];
+        Arrays.fill(body, (byte) ' ');
+        mockMvc.perform(post("/convert")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(body))
+                .andExpect(status().isPayloadTooLarge());
+        // the decompressed length is unknown until it has been read
+        mockMvc.perform(post("/convert")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .content(gzip(body)))
+                .andExpect(status().isPayloadTooLarge());
+    }
+
+    @Test
+    void convertReturnsCachedResultAndETag() throws Exception {
+        byte[] bundle = bundleJson("etag").getBytes(StandardCharsets.UTF_8);
+        long hits = conversionCache.stats().hitCount();
+        MvcResult result = mockMvc.perform(post("/convert")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(bundle))
+                .andExpect(status().isOk())
+                .andExpect(header().exists(HttpHeaders.ETAG))
+                .andReturn();
+        String etag = result.getResponse().getHeader(HttpHeaders.ETAG);
+
+        // the same bundle with whitespace between the tokens
+        byte[] prettyBundle = bundleJson("etag").replace(",\"", ",\n  \"").replace("[", "[ ").getBytes(StandardCharsets.UTF_8);
+        mockMvc.perform(post("/convert")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(prettyBundle))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, etag))
+                .andExpect(content().string(result.getResponse().getContentAsString()));
+        assertThat(conversionCache.stats().hitCount(), equalTo(hits + 1));
+
+        // cached separately, with the same ETag
+        for (int i = 0; i < 2; i++) {
+            MvcResult protobuf = mockMvc.perform(post("/convert")
+                    .contentType(MediaType.APPLICATION_JSON_UTF8)
+                    .accept(FhirInteropController.APPLICATION_PROTOBUF_VALUE)
+                    .content(bundle))
+                    .andExpect(status().isOk())
+                    .andExpect(header().string(HttpHeaders.ETAG, etag))
+                    .andExpect(content().contentTypeCompatibleWith(FhirInteropController.APPLICATION_PROTOBUF_VALUE))
+                    .andReturn();
+            assertThat(Phenopacket.parseFrom(protobuf.getResponse().getContentAsByteArray()).getSubject().getId(), equalTo("Patient/etag"));
+        }
+        assertThat(conversionCache.stats().hitCount(), equalTo(hits + 2));
+
+        mockMvc.perform(post("/convert")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .header(HttpHeaders.IF_NONE_MATCH, etag)
+                .content(bundle))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, etag))
+                .andExpect(content().string(""));
+    }
+
+    @Test
+    void conversionMetricsArePublished() throws Exception {
+        mockMvc.perform(post("/convert")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(bundleJson("metrics").getBytes(StandardCharsets.UTF_8)))
+                .andExpect(status().isOk());
+
+        mockMvc.perform(get("/actuator/prometheus"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("fhir_conversion_stage_seconds_count{stage=\"parse\",}")))
+                .andExpect(content().string(containsString("fhir_conversion_stage_seconds_count{stage=\"print\",}")))
+                .andExpect(content().string(containsString("fhir_conversion_patients_total")))
+                .andExpect(content().string(containsString("fhir_conversion_request_size_bytes_bucket")))
+                .andExpect(content().string(containsString("cache_gets_total{cache=\"fhir-interop.conversion\"")));
+    }
+
+    @Test
+    void convertNdjsonToDelimitedProtobuf() throws Exception {
+        MvcResult result = mockMvc.perform(post("/convert/ndjson")
+                .contentType(FhirInteropController.APPLICATION_FHIR_NDJSON_VALUE)
+                .accept(FhirInteropController.APPLICATION_PROTOBUF_DELIMITED_VALUE)
+                .content(ndjson()))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(result.getResponse().getContentAsByteArray());
+        assertThat(Phenopacket.parseDelimitedFrom(inputStream).getPhenotypicFeaturesCount(), equalTo(1));
+        assertThat(Phenopacket.parseDelimitedFrom(inputStream).getSubject().getId(), equalTo("Patient/2"));
+        assertThat(Phenopacket.parseDelimitedFrom(inputStream), nullValue());
+    }
+
+    @Test
+    void convertNdjsonDefaultsToNdjson() throws Exception {
+        MvcResult result = mockMvc.perform(post("/convert/ndjson")
+                .contentType(FhirInteropController.APPLICATION_FHIR_NDJSON_VALUE)
+                .content(ndjson()))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(FhirInteropController.APPLICATION_NDJSON_VALUE))
+                .andReturn();
+
+        String[] lines = result.getResponse().getContentAsString().split("\n");
+        assertThat(lines.length, equalTo(2));
+    }
+
+    @Test
+    void convertNdjsonNotGroupedByPatient() throws Exception {
+        String ndjson = String.join("\n",
+                jsonParser.encodeResourceToString(patient("1")),
+                jsonParser.encodeResourceToString(patient("2")),
+                jsonParser.encodeResourceToString(condition("1", "HP:0001156", "Brachydactyly")));
+        mockMvc.perform(post("/convert/ndjson")
+                .contentType(FhirInteropController.APPLICATION_FHIR_NDJSON_VALUE)
+                .content(ndjson))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void convertPhenopacketJsonToFhir() throws Exception {
+        MvcResult result = mockMvc.perform(post("/convert/fhir")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .accept(FhirInteropController.APPLICATION_FHIR_JSON_VALUE)
+                .content(JsonFormat.printer().print(phenopacket()).getBytes(StandardCharsets.UTF_8)))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(FhirInteropController.APPLICATION_FHIR_JSON_VALUE))
+                .andReturn();
+
+        Bundle bundle = (Bundle) jsonParser.parseResource(new String(result.getResponse().getContentAsByteArray(), StandardCharsets.UTF_8));
+        assertThat(bundle.getEntry().size(), equalTo(2));
+        Condition condition = (Condition) bundle.getEntry().get(1).getResource();
+        assertThat(condition.getCode().getCodingFirstRep().getDisplay(), equalTo("Ménière's disease"));
+    }
+
+    @Test
+    void convertPhenopacketToFhirDecompressedTooLarge() throws Exception {
+        char[] padding = new char[65 * 1024];
+        Arrays.fill(padding, ' ');
+        String phenopacket = JsonFormat.printer().print(phenopacket());
+        String json = phenopacket.substring(0, 1) + new String(padding) + phenopacket.substring(1);
+        // compresses to a few KB, but is limited after decompression
+        mockMvc.perform(post("/convert/fhir")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .accept(FhirInteropController.APPLICATION_FHIR_JSON_VALUE)
+                .content(gzip(json.getBytes(StandardCharsets.UTF_8))))
+                .andExpect(status().isPayloadTooLarge());
+    }
+
+    @Test
+    void convertPhenopacketProtobufToFhir() throws Exception {
+        mockMvc.perform(post("/convert/fhir")
+                .contentType(FhirInteropController.APPLICATION_PROTOBUF_VALUE)
+                .accept(MediaType.APPLICATION_JSON)
+                .content(phenopacket().toByteArray()))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(content().string(containsString("HP:0000009")));
+    }
+
+    @Test
+    void convertBatchKeepsInputOrderAndItemErrors() throws Exception {
+        String batch = "[" + bundleJson("1") + ", {\"resourceType\": \"Patient\"}, " + bundleJson("3") + "]";
+        mockMvc.perform(post("/convert/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(batch))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(3))
+                .andExpect(jsonPath("$[0].index").value(0))
+                .andExpect(jsonPath("$[0].phenopacket.subject.id").value("Patient/1"))
+                .andExpect(jsonPath("$[1].error").exists())
+                .andExpect(jsonPath("$[1].phenopacket").doesNotExist())
+                .andExpect(jsonPath("$[2].phenopacket.subject.id").value("Patient/3"));
+    }
+
+    @Test
+    void convertBatchTooLarge() throws Exception {
+        String batch = "[" + String.join(",", bundleJson("1"), bundleJson("2"), bundleJson("3"), bundleJson("4")) + "]";
+        mockMvc.perform(post("/convert/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(batch))
+                .andExpect(status().isPayloadTooLarge());
+    }
+
+    @Test
+    void convertBatchBodyTooLarge() throws Exception {
+        char[] padding = new char[60 * 1024];
+        Arrays.fill(padding, ' ');
+        String bundle = bundleJson("1") + new String(padding);
+        String batch = "[" + String.join(",", bundle, bundle, bundle) + "]";
+        mockMvc.perform(post("/convert/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(batch))
+                .andExpect(status().isPayloadTooLarge());
+        // the decompressed length is unknown until it has been read
+        mockMvc.perform(post("/convert/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .content(gzip(batch.getBytes(StandardCharsets.UTF_8))))
+                .andExpect(status().isPayloadTooLarge());
+    }
+
+    @Test
+    void convertBatchBundleTooLarge() throws Exception {
+        String bundle = bundleJson("1");
+        char[] padding = new char[65 * 1024];
+        Arrays.fill(padding, ' ');
+        // whitespace within the Bundle counts towards its size
+        String largeBundle = bundle.substring(0, 1) + new String(padding) + bundle.substring(1);
+        mockMvc.perform(post("/convert/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("[" + bundle + "," + largeBundle + "]"))
+                .andExpect(status().isPayloadTooLarge());
+    }
+
+    @Test
+    void convertBatchNotAnArray() throws Exception {
+        mockMvc.perform(post("/convert/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(bundleJson()))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void convertMultipartBatch() throws Exception {
+        mockMvc.perform(multipart("/convert/batch")
+                .file(new MockMultipartFile("bundle", "1.json", MediaType.APPLICATION_JSON_VALUE, bundleJson("1").getBytes(StandardCharsets.UTF_8)))
+                .file(new MockMultipartFile("bundle", "2.json", MediaType.APPLICATION_JSON_VALUE, bundleJson("2").getBytes(StandardCharsets.UTF_8))))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].phenopacket.subject.id").value("Patient/1"))
+                .andExpect(jsonPath("$[1].phenopacket.subject.id").value("Patient/2"));
+    }
+}
@@ -0,0 +1,103 @@
+package org.phenopackets.phenopacketschema.fhirinteropservice;
+
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirContextProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.*;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "fhir-interop.non-blocking.enabled=true",
+        "fhir-interop.max-body-size=64KB"
+})
+class NonBlockingConvertServletTest {
+
+    private static final IParser jsonParser = FhirContextProvider.r4().getFhirContext().newJsonParser();
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    private static byte[] bundleJson() {
+        Patient patient = new Patient();
+        patient.setId("1");
+        Condition condition = new Condition();
+        condition.setCode(ConverterUtil.codeableConcept("http://purl.obolibrary.org/obo/hp.owl", "HP:0001156", "Brachydactyly"));
+        condition.setSubject(new Reference("Patient/1"));
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setFullUrl("Patient/1").setResource(patient);
+        bundle.addEntry().setResource(condition);
+        return jsonParser.encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private ResponseEntity<byte[]> post(byte[] body, HttpHeaders headers) {
+        return restTemplate.exchange("/convert", HttpMethod.POST, new HttpEntity<>(body, headers), byte[].class);
+    }
+
+    private static HttpHeaders jsonHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON_UTF8);
+        return headers;
+    }
+
+    @Test
+    void convertToJson() {
+        ResponseEntity<byte[]> response = post(bundleJson(), jsonHeaders());
+
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        assertThat(response.getHeaders().getContentType().isCompatibleWith(MediaType.APPLICATION_JSON), equalTo(true));
+        assertThat(new String(response.getBody(), StandardCharsets.UTF_8), containsString("HP:0001156"));
+    }
+
+    @Test
+    void convertGzipToProtobuf() throws IOException {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(gzipped)) {
+            gzipOutputStream.write(bundleJson());
+        }
+        HttpHeaders headers = jsonHeaders();
+        headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+        headers.setAccept(Collections.singletonList(MediaType.parseMediaType(FhirInteropController.APPLICATION_PROTOBUF_VALUE)));
+
+        ResponseEntity<byte[]> response = post(gzipped.toByteArray(), headers);
+
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        Phenopacket phenopacket = Phenopacket.parseFrom(response.getBody());
+        assertThat(phenopacket.getPhenotypicFeatures(0).getType().getId(), equalTo("HP:0001156"));
+    }
+
+    @Test
+    void invalidBundleIsBadRequest() {
+        ResponseEntity<byte[]> response = post("{\"resourceType\": \"Patient\"}".getBytes(StandardCharsets.UTF_8), jsonHeaders());
+
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.BAD_REQUEST));
+    }
+
+    @Test
+    void bodyTooLarge() {
+        byte[] body = new byte[65 * 1024];
+        ResponseEntity<byte[]> response = post(body, jsonHeaders());
+
+        assertThat(response.getStatusCode(), equalTo(HttpStatus.PAYLOAD_TOO_LARGE));
+    }
+}
@@ -0,0 +1,82 @@
+package org.phenopackets.phenopacketschema.fhirinteropservice;
+
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirContextProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * The /convert endpoint with the cache disabled, which parses the request body as it is read.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(properties = {"fhir-interop.cache.enabled=false", "fhir-interop.max-body-size=64KB", "fhir-interop.warm-up.enabled=false"})
+@AutoConfigureMockMvc
+class StreamingConvertTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    private static String bundleJson(int conditions) {
+        Patient patient = new Patient();
+        patient.setId("1");
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setFullUrl("Patient/1").setResource(patient);
+        for (int i = 0; i < conditions; i++) {
+            Condition condition = new Condition();
+            condition.setCode(ConverterUtil.codeableConcept("http://purl.obolibrary.org/obo/hp.owl", "HP:0001156", "Brachydactyly"));
+            condition.setSubject(new Reference("Patient/1"));
+            bundle.addEntry().setResource(condition);
+        }
+        return FhirContextProvider.r4().getFhirContext().newJsonParser().encodeResourceToString(bundle);
+    }
+
+    private static byte[] gzip(String json) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+            gzipOutputStream.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+        return outputStream.toByteArray();
+    }
+
+    @Test
+    void convertWithoutETag() throws Exception {
+        mockMvc.perform(post("/convert")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(bundleJson(1)))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(HttpHeaders.ETAG))
+                .andExpect(content().string(containsString("HP:0001156")));
+    }
+
+    @Test
+    void validBundleTooLarge() throws Exception {
+        // a valid Bundle, so it is only rejected for its size, which is only known once it has been decompressed
+        String json = bundleJson(1000);
+        mockMvc.perform(post("/convert")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .content(gzip(json)))
+                .andExpect(status().isPayloadTooLarge());
+    }
+}
@@ -5,74 +5,178 @@ import org.hl7.fhir.r4.model.Coding;
 import org.phenopackets.schema.v1.core.MetaData;
 import org.phenopackets.schema.v1.core.OntologyClass;
 import org.phenopackets.schema.v1.core.Resource;
-import org.prefixcommons.CurieUtil;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 /**
- * This is *not* suitably robust for proper production work
+ * Maps between Phenopacket {@link OntologyClass} ids, which are CURIEs, and FHIR codings, which are a code in a code
+ * system. For example {@code HP:0001156} maps to the code {@code HP:0001156} in {@code http://purl.obolibrary.org/obo/hp.owl}
+ * and {@code SNOMEDCT:195967001} to the code {@code 195967001} in {@code http://snomed.info/sct}.
+ * <p>
+ * Codes can also be translated to another code system, e.g. SNOMED CT to HPO, with {@link ConceptTranslations}
+ * {@link #withTranslations(ConceptTranslations) added} to the mapper. A FHIR coding is then translated before it is
+ * mapped to an OntologyClass. An OntologyClass is mapped to a CodeableConcept with its own coding followed by the
+ * translated one, as the FHIR codings of a concept all mean the same thing.
+ * <p>
+ * Instances are immutable and thread-safe. Use {@link #defaultMapper()} unless the namespaces need to be customised,
+ * rather than creating a new instance per conversion.
  *
  * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
  */
 public class ConceptMapper {
 
-    private final CurieUtil curieUtil;
-    private final Map<String, String> resourcePrefixMappings;
+    private static final ConceptMapper DEFAULT_MAPPER = new ConceptMapper(CurieIndex.defaultIndex(), ConceptTranslations.empty());
 
-    private ConceptMapper(Map<String, String> resourcePrefixMappings) {
-        this.resourcePrefixMappings = resourcePrefixMappings;
-        curieUtil = new CurieUtil(resourcePrefixMappings);
+    private final CurieIndex curieIndex;
+    private final ConceptTranslations translations;
+
+    private ConceptMapper(CurieIndex curieIndex, ConceptTranslations translations) {
+        this.curieIndex = curieIndex;
+        this.translations = translations;
     }
 
-    public static ConceptMapper fromMetaData(MetaData metaData) {
-        Map<String, String> resourcePrefixMappings = metaData.getResourcesList()
-                .stream()
-                .collect(Collectors.toMap(Resource::getNamespacePrefix, Resource::getUrl, (a, b) -> b));
+    /**
+     * The shared mapper for the namespaces in {@link CurieIndex#defaultIndex()}.
+     */
+    public static ConceptMapper defaultMapper() {
+        return DEFAULT_MAPPER;
+    }
 
-        return new ConceptMapper(resourcePrefixMappings);
+    /**
+     * Uses the namespace prefixes and urls (i.e. code systems) of the MetaData resources, in addition to the defaults.
+     */
+    public static ConceptMapper fromMetaData(MetaData metaData) {
+        List<CurieIndex.Namespace> namespaces = new ArrayList<>();
+        for (Resource resource : metaData.getResourcesList()) {
+            if (resource.getNamespacePrefix().isEmpty() || resource.getUrl().isEmpty()) {
+                continue;
+            }
+            String prefix = resource.getNamespacePrefix();
+            CurieIndex.Namespace defaultNamespace = CurieIndex.defaultIndex().namespaceForPrefix(prefix);
+            String iriBase = (resource.getIriPrefix().isEmpty() && defaultNamespace != null) ? defaultNamespace.getIriBase() : resource
+                    .getIriPrefix();
+            // the FhirConverter takes unknown prefixes from the codes themselves, so they must be CURIEs
+            boolean curieCodes = defaultNamespace == null || defaultNamespace.hasCurieCodes();
+            namespaces.add(new CurieIndex.Namespace(prefix, iriBase, resource.getUrl(), curieCodes));
+        }
+        return new ConceptMapper(CurieIndex.withDefaults(namespaces), ConceptTranslations.empty());
     }
 
     /**
-     * Key = URL, value = prefix. For example the HPO = Map.of("http://purl.obolibrary.org/obo/HP_", "HP")
+     * Key = prefix, value = IRI base. For example the HPO = Map.of("HP", "http://purl.obolibrary.org/obo/HP_")
      *
      * @param resourceCurieMappings
      * @return
      */
     public static ConceptMapper fromMap(Map<String, String> resourceCurieMappings) {
-        // Requires a CURIE map?  https://github.com/monarch-initiative/dipper/blob/master/dipper/curie_map.yaml
-        // and a system map e.g. "http://purl.obolibrary.org/obo/hp.owl" : "HP"
-        // then can map a CodeableConcept or an OntologyClass to an expanded URI if they are using CURIEs as their id,
-        // which is the recommendation in Phenopackets.
-        return new ConceptMapper(resourceCurieMappings);
+        // a CURIE map such as https://github.com/monarch-initiative/dipper/blob/master/dipper/curie_map.yaml
+        List<CurieIndex.Namespace> namespaces = new ArrayList<>();
+        resourceCurieMappings.forEach((prefix, iriBase) -> namespaces.add(CurieIndex.namespace(prefix, iriBase)));
+        return new ConceptMapper(CurieIndex.withDefaults(namespaces), ConceptTranslations.empty());
+    }
+
+    /**
+     * A mapper with the same namespaces, translating codes with the translations rather than any of this mapper.
+     */
+    public ConceptMapper withTranslations(ConceptTranslations translations) {
+        return new ConceptMapper(curieIndex, translations);
     }
 
+    public CurieIndex getCurieIndex() {
+        return curieIndex;
+    }
+
+    public ConceptTranslations getTranslations() {
+        return translations;
+    }
+
+    /**
+     * The coding of the OntologyClass and, if it is translated, the translated coding.
+     */
     public CodeableConcept toCodeableConcept(OntologyClass ontologyClass) {
+        return toCodeableConcept(ontologyClass, null);
+    }
+
+    /**
+     * As {@link #toCodeableConcept(OntologyClass)}, with the defaultSystem as the system of an id with an unknown
+     * prefix.
+     */
+    public CodeableConcept toCodeableConcept(OntologyClass ontologyClass, String defaultSystem) {
+        Coding coding = toCoding(ontologyClass);
+        if (!coding.hasSystem() && defaultSystem != null) {
+            coding.setSystem(defaultSystem);
+        }
+        CodeableConcept codeableConcept = new CodeableConcept().addCoding(coding);
+        ConceptTranslations.Target target = translations.translate(coding);
+        if (target != null) {
+            codeableConcept.addCoding(target.toCoding());
+        }
+        return codeableConcept;
+    }
+
+    /**
+     * Ids with an unknown prefix are used as the code of a coding without a system.
+     */
+    public Coding toCoding(OntologyClass ontologyClass) {
         String ontologyClassId = ontologyClass.getId();
-        Optional<String> iri = curieUtil.getIri(ontologyClassId);
-        Optional<String> curie = curieUtil.getCurie(iri.get());
-        String expansion = curieUtil.getExpansion(ontologyClassId.split(":")[0]);
-
-//        String system = resourcePrefixMappings.get();
-//        if (system == null) {
-//
-//        }
-        // TODO... need to map the prefix 'HP' to the system 'http://purl.obolibrary.org/obo/hp.owl' and the id 'HP:0001156'
+        CurieIndex.Namespace namespace = curieIndex.namespaceForCurie(ontologyClassId);
+        if (namespace == null) {
+            return new Coding(null, ontologyClassId, ontologyClass.getLabel());
+        }
         // things like LOINC and SNOMED do not use CURIEs in FHIR, but the phenopacket recommends using a CURIE
         // see http://www.hl7.org/fhiR/terminologies-systems.html
-        return ConverterUtil.codeableConcept("http://purl.obolibrary.org/obo/hp.owl", ontologyClass.getId(), ontologyClass.getLabel());
+        return new Coding(namespace.getSystem(), namespace.toCode(ontologyClassId), ontologyClass.getLabel());
     }
 
+    /**
+     * The IRI of the OntologyClass, if its prefix is known.
+     */
+    public Optional<String> toIri(OntologyClass ontologyClass) {
+        return curieIndex.expand(ontologyClass.getId());
+    }
+
+    /**
+     * The OntologyClass of the first coding which is translated or, if none are, of the first coding.
+     */
     public OntologyClass toOntologyClass(CodeableConcept codeableConcept) {
-        Coding coding = codeableConcept.getCodingFirstRep();
-        String system = coding.getSystem();
-        return toOntologyClass(coding);
+        Optional<OntologyClass> translated = translate(codeableConcept);
+        return translated.orElseGet(() -> toUntranslatedOntologyClass(codeableConcept.getCodingFirstRep()));
+    }
 
+    /**
+     * The OntologyClass of the coding, or of its translation if it is translated.
+     */
+    public OntologyClass toOntologyClass(Coding coding) {
+        ConceptTranslations.Target target = translations.translate(coding);
+        return target == null ? toUntranslatedOntologyClass(coding) : toOntologyClass(target);
+    }
+
+    /**
+     * The OntologyClass of the translation of the first translated coding, if any is.
+     */
+    public Optional<OntologyClass> translate(CodeableConcept codeableConcept) {
+        if (translations.isEmpty()) {
+            return Optional.empty();
+        }
+        for (Coding coding : codeableConcept.getCoding()) {
+            ConceptTranslations.Target target = translations.translate(coding);
+            if (target != null) {
+                return Optional.of(toOntologyClass(target));
+            }
+        }
+        return Optional.empty();
+    }
+
+    // not translated again, so a map which translates codes back doesn't go round in circles
+    private OntologyClass toOntologyClass(ConceptTranslations.Target target) {
+        return ConverterUtil.ontologyClass(toCurie(target.getSystem(), target.getCode()), target.getDisplay());
     }
 
-    private OntologyClass toOntologyClass(Coding coding) {
-        Optional<String> id = Optional.ofNullable(coding.getCode());
+    private OntologyClass toUntranslatedOntologyClass(Coding coding) {
+        Optional<String> id = Optional.ofNullable(coding.getCode()).map(code -> toCurie(coding.getSystem(), code));
         Optional<String> text = Optional.ofNullable(coding.getDisplay());
 
         if (id.isPresent() || text.isPresent()) {
@@ -81,4 +185,12 @@ public class ConceptMapper {
 
         return OntologyClass.getDefaultInstance();
     }
+
+    private String toCurie(String system, String code) {
+        CurieIndex.Namespace namespace = curieIndex.namespaceForSystem(system);
+        if (namespace == null || code.isEmpty()) {
+            return code;
+        }
+        return namespace.toCurie(code);
+    }
 }
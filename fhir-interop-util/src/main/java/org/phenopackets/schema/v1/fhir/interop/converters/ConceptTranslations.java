@@ -0,0 +1,414 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.r4.model.ConceptMap;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Enumerations;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Translations of codes from one code system to another, e.g. SNOMED CT or ICD-10-CM to HPO, taken from FHIR
+ * {@link ConceptMap}s. A source code is translated to the first of its targets which is {@code equal},
+ * {@code equivalent}, {@code wider} or {@code subsumes}. The other equivalences would claim more than the source says,
+ * or nothing at all, so they are ignored.
+ * <p>
+ * The source codes are not kept: each is reduced to a 64-bit hash of its system and code, in an open-addressing table
+ * of longs, next to the index of its target so that a lookup usually touches a single cache line of the table. The
+ * targets are shared by all the codes translated to them. So a map of a million codes takes around 32 MB in a handful
+ * of objects and looking a code up doesn't allocate. Two different codes would only be mixed up if their hashes
+ * collide, which is about a one in thirty million chance for a map of a million codes.
+ * <p>
+ * ConceptMap files are read with {@link #load(Path)} from a token stream, without building the HAPI ConceptMap, as the
+ * HAPI model of a large map takes many times its size in heap.
+ * <p>
+ * Instances are immutable and thread-safe.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public final class ConceptTranslations {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final Set<String> TRANSLATED_EQUIVALENCES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            Enumerations.ConceptMapEquivalence.EQUAL.toCode(),
+            Enumerations.ConceptMapEquivalence.EQUIVALENT.toCode(),
+            Enumerations.ConceptMapEquivalence.WIDER.toCode(),
+            Enumerations.ConceptMapEquivalence.SUBSUMES.toCode())));
+
+    private static final ConceptTranslations EMPTY = new ConceptTranslations(new long[4], new Target[0], 0);
+
+    // pairs of the hash of a source code, 0 for an empty slot, and the index of its target
+    private final long[] table;
+    private final Target[] targets;
+    private final int size;
+    private final int mask;
+
+    private ConceptTranslations(long[] table, Target[] targets, int size) {
+        this.table = table;
+        this.targets = targets;
+        this.size = size;
+        this.mask = table.length / 2 - 1;
+    }
+
+    /**
+     * No translations, so codes are used as they are.
+     */
+    public static ConceptTranslations empty() {
+        return EMPTY;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * The translations of a ConceptMap in FHIR JSON.
+     */
+    public static ConceptTranslations load(Path conceptMapFile) throws IOException {
+        return builder().load(conceptMapFile).build();
+    }
+
+    public static class Builder {
+
+        private final Map<Target, Integer> targetIndexes = new HashMap<>();
+        private final List<Target> targets = new ArrayList<>();
+        // the systems are repeated in every row, so they are shared
+        private final Map<String, String> systems = new HashMap<>();
+        private long[] table = new long[2048];
+        private int size;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a translation, unless there already is one for the source code.
+         */
+        public Builder add(String sourceSystem, String sourceCode, String targetSystem, String targetCode, String targetDisplay) {
+            Objects.requireNonNull(sourceCode);
+            Objects.requireNonNull(targetCode);
+            // at most half full
+            if (size * 4 >= table.length) {
+                table = rehash(table, table.length * 2);
+            }
+            long key = hash(sourceSystem, sourceCode);
+            int mask = table.length / 2 - 1;
+            int slot = (int) key & mask;
+            while (table[slot * 2] != 0) {
+                if (table[slot * 2] == key) {
+                    return this;
+                }
+                slot = (slot + 1) & mask;
+            }
+            table[slot * 2] = key;
+            table[slot * 2 + 1] = targetIndex(new Target(share(targetSystem), targetCode, targetDisplay == null ? "" : targetDisplay));
+            size++;
+            return this;
+        }
+
+        /**
+         * Adds the translations of a HAPI ConceptMap.
+         */
+        public Builder add(ConceptMap conceptMap) {
+            for (ConceptMap.ConceptMapGroupComponent group : conceptMap.getGroup()) {
+                for (ConceptMap.SourceElementComponent element : group.getElement()) {
+                    for (ConceptMap.TargetElementComponent target : element.getTarget()) {
+                        if (element.hasCode() && target.hasCode() && isTranslated(target.hasEquivalence() ? target.getEquivalence().toCode() : null)) {
+                            add(group.getSource(), element.getCode(), group.getTarget(), target.getCode(), target.getDisplay());
+                            break;
+                        }
+                    }
+                }
+            }
+            return this;
+        }
+
+        public Builder load(Path conceptMapFile) throws IOException {
+            try (Reader reader = Files.newBufferedReader(conceptMapFile, StandardCharsets.UTF_8)) {
+                return read(reader);
+            }
+        }
+
+        /**
+         * Adds the translations of a ConceptMap in FHIR JSON.
+         *
+         * @throws IOException if it can't be read or is not a ConceptMap
+         */
+        public Builder read(Reader conceptMapJson) throws IOException {
+            try (JsonParser parser = jsonFactory.createParser(conceptMapJson)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Expected a JSON object at " + parser.getCurrentLocation());
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if ("resourceType".equals(field) && !"ConceptMap".equals(parser.getText())) {
+                        throw new IOException("Expected a ConceptMap but found " + parser.getText());
+                    } else if ("group".equals(field) && value == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            readGroup(parser);
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            return this;
+        }
+
+        private void readGroup(JsonParser parser) throws IOException {
+            String sourceSystem = null;
+            String targetSystem = null;
+            // the elements before the source and target systems, if they're not first
+            List<String[]> pending = new ArrayList<>(0);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("source".equals(field)) {
+                    sourceSystem = parser.getText();
+                } else if ("target".equals(field)) {
+                    targetSystem = parser.getText();
+                } else if ("element".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        String[] translation = readElement(parser);
+                        if (translation == null) {
+                            continue;
+                        }
+                        if (sourceSystem != null && targetSystem != null) {
+                            add(sourceSystem, translation[0], targetSystem, translation[1], translation[2]);
+                        } else {
+                            pending.add(translation);
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            for (String[] translation : pending) {
+                add(sourceSystem, translation[0], targetSystem, translation[1], translation[2]);
+            }
+        }
+
+        /**
+         * @return the source code, target code and target display of the first translated target, or null
+         */
+        private String[] readElement(JsonParser parser) throws IOException {
+            String code = null;
+            String[] translation = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("code".equals(field)) {
+                    code = parser.getText();
+                } else if ("target".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        String[] target = readTarget(parser);
+                        if (translation == null && target != null) {
+                            translation = target;
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (code == null || translation == null) {
+                return null;
+            }
+            translation[0] = code;
+            return translation;
+        }
+
+        private String[] readTarget(JsonParser parser) throws IOException {
+            String code = null;
+            String display = null;
+            String equivalence = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "code":
+                        code = parser.getText();
+                        break;
+                    case "display":
+                        display = parser.getText();
+                        break;
+                    case "equivalence":
+                        equivalence = parser.getText();
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            return code != null && isTranslated(equivalence) ? new String[]{null, code, display} : null;
+        }
+
+        private String share(String system) {
+            if (system == null) {
+                return null;
+            }
+            String shared = systems.putIfAbsent(system, system);
+            return shared == null ? system : shared;
+        }
+
+        private int targetIndex(Target target) {
+            Integer index = targetIndexes.get(target);
+            if (index == null) {
+                index = targets.size();
+                targets.add(target);
+                targetIndexes.put(target, index);
+            }
+            return index;
+        }
+
+        private static long[] rehash(long[] table, int length) {
+            long[] newTable = new long[length];
+            int mask = length / 2 - 1;
+            for (int i = 0; i < table.length; i += 2) {
+                if (table[i] != 0) {
+                    int slot = (int) table[i] & mask;
+                    while (newTable[slot * 2] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    newTable[slot * 2] = table[i];
+                    newTable[slot * 2 + 1] = table[i + 1];
+                }
+            }
+            return newTable;
+        }
+
+        public ConceptTranslations build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            return new ConceptTranslations(table.clone(), targets.toArray(new Target[0]), size);
+        }
+    }
+
+    // a missing equivalence is taken as equivalent, the default in FHIR
+    private static boolean isTranslated(String equivalence) {
+        return equivalence == null || TRANSLATED_EQUIVALENCES.contains(equivalence);
+    }
+
+    /**
+     * FNV-1a over the chars of the system and code, then the MurmurHash3 finalizer so that the low bits used for the
+     * slot are well mixed. Never 0, which marks an empty slot.
+     */
+    static long hash(String system, String code) {
+        long hash = 0xcbf29ce484222325L;
+        if (system != null) {
+            for (int i = 0; i < system.length(); i++) {
+                hash = (hash ^ system.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        // separates the system from the code, as "ab" + "c" must not hash as "a" + "bc"
+        hash = (hash ^ 0xFFFF) * 0x100000001b3L;
+        for (int i = 0; i < code.length(); i++) {
+            hash = (hash ^ code.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * The number of source codes with a translation.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The target of the code, or null if it isn't translated.
+     */
+    public Target translate(String system, String code) {
+        if (size == 0 || code == null) {
+            return null;
+        }
+        long key = hash(system, code);
+        int slot = (int) key & mask;
+        long slotKey;
+        while ((slotKey = table[slot * 2]) != 0) {
+            if (slotKey == key) {
+                return targets[(int) table[slot * 2 + 1]];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    public Target translate(Coding coding) {
+        return translate(coding.getSystem(), coding.getCode());
+    }
+
+    /**
+     * A code that codes are translated to.
+     */
+    public static final class Target {
+        private final String system;
+        private final String code;
+        private final String display;
+
+        private Target(String system, String code, String display) {
+            this.system = system;
+            this.code = code;
+            this.display = display;
+        }
+
+        public String getSystem() {
+            return system;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        /**
+         * Empty if the ConceptMap has no display for the target.
+         */
+        public String getDisplay() {
+            return display;
+        }
+
+        public Coding toCoding() {
+            return new Coding(system, code, display.isEmpty() ? null : display);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Target target = (Target) o;
+            return Objects.equals(system, target.system) &&
+                    code.equals(target.code) &&
+                    display.equals(target.display);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(system, code, display);
+        }
+
+        @Override
+        public String toString() {
+            return "Target{" +
+                    "system='" + system + '\'' +
+                    ", code='" + code + '\'' +
+                    ", display='" + display + '\'' +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+/**
+ * Receives the timings of the stages of a conversion and the counts of what was converted, e.g. to publish them as
+ * metrics. The converters only depend on this interface, so the util module does not need a metrics library.
+ * <p>
+ * A stage is timed by getting a {@link #startTime()} before it and passing it to
+ * {@link #stageCompleted(Stage, long)} after it. The {@link #noop()} observer doesn't read the clock at all, so an
+ * unobserved conversion costs no more than a couple of calls to empty methods.
+ * <p>
+ * Implementations must be thread-safe, as converters are shared between threads.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public interface ConversionObserver {
+
+    /**
+     * The stages of converting a FHIR Bundle to a Phenopacket. GROUP, EXTRACT and METADATA are timed by the converters,
+     * the others by their callers as only they read, parse and print.
+     */
+    enum Stage {
+        /**
+         * Reading the request body.
+         */
+        READ,
+        /**
+         * Parsing the FHIR JSON with HAPI.
+         */
+        PARSE,
+        /**
+         * Collecting the Bundle resources by type and the Conditions by subject, in a single pass, see
+         * {@link org.phenopackets.schema.v1.fhir.interop.converters.fhir.BundleResources}.
+         */
+        GROUP,
+        /**
+         * Building the Individual and PhenotypicFeatures for a patient.
+         */
+        EXTRACT,
+        /**
+         * Building the MetaData for a patient.
+         */
+        METADATA,
+        /**
+         * Printing the Phenopacket as JSON or protobuf.
+         */
+        PRINT
+    }
+
+    /**
+     * An observer which ignores everything.
+     */
+    static ConversionObserver noop() {
+        return NoopConversionObserver.INSTANCE;
+    }
+
+    /**
+     * The time to pass to {@link #stageCompleted(Stage, long)}, e.g. {@link System#nanoTime()}.
+     */
+    long startTime();
+
+    void stageCompleted(Stage stage, long startTime);
+
+    /**
+     * Called once for each converted patient.
+     *
+     * @param conditions        number of Conditions converted to PhenotypicFeatures
+     * @param skippedConditions number of those Conditions without a code, whose PhenotypicFeature has no type
+     */
+    void patientConverted(int conditions, int skippedConditions);
+}
@@ -35,20 +35,28 @@ public class ConverterUtil {
     }
 
     public static PhenotypicFeature makePhenotypicFeature(Condition condition) {
+        return makePhenotypicFeature(condition, OntologyClassCache.disabled());
+    }
+
+    /**
+     * As {@link #makePhenotypicFeature(Condition)} but taking the OntologyClasses from the cache, so that all the
+     * PhenotypicFeatures for the same term share a single instance.
+     */
+    public static PhenotypicFeature makePhenotypicFeature(Condition condition, OntologyClassCache ontologyClassCache) {
         if (!condition.hasCode()) {
             logger.warn("Condition has no code - skipping");
             return PhenotypicFeature.getDefaultInstance();
         }
         Coding coding = condition.getCode().getCodingFirstRep();
         PhenotypicFeature.Builder phenotypeBuilder = PhenotypicFeature.newBuilder();
-        phenotypeBuilder.setType(ConverterUtil.ontologyClass(coding.getCode(), coding.getDisplay()));
+        phenotypeBuilder.setType(ontologyClassCache.ontologyClass(coding));
         if (condition.hasSeverity()) {
             CodeableConcept severity = condition.getSeverity();
-            phenotypeBuilder.setSeverity(ConverterUtil.ontologyClass(severity.getCodingFirstRep().getCode(), severity.getCodingFirstRep().getDisplay()));
+            phenotypeBuilder.setSeverity(ontologyClassCache.ontologyClass(severity.getCodingFirstRep()));
         }
         if (condition.hasOnsetStringType()){
             try {
-                phenotypeBuilder.setClassOfOnset(ConverterUtil.ontologyClass("", condition.getOnsetStringType().getValue()));
+                phenotypeBuilder.setClassOfOnset(ontologyClassCache.ontologyClass("", condition.getOnsetStringType().getValue()));
             } catch (FHIRException e) {
                 logger.error("Unable to get Condition::onsetStringType {}", e);
             }
@@ -60,9 +68,7 @@ public class ConverterUtil {
     }
 
     public static Resource makePhenopacketResource(Coding coding) {
-        // just give it a punt - ':' and '_' are common identifier separators
-        String[] tokens = coding.getCode().split("[:_]");
-        String prefix = (tokens.length == 0) ? "" : tokens[0];
+        String prefix = curiePrefix(coding.getCode());
 
         return org.phenopackets.schema.v1.core.Resource.newBuilder()
                 .setNamespacePrefix(prefix)
@@ -71,4 +77,19 @@ public class ConverterUtil {
                 .setVersion(coding.getVersion() == null ? "" : coding.getVersion())
                 .build();
     }
+
+    /**
+     * The namespace prefix of an identifier such as {@code HP:0001156} or {@code HP_0001156}, which is everything
+     * before the first ':' or '_', or the whole identifier if it has neither.
+     */
+    public static String curiePrefix(String id) {
+        // just give it a punt - ':' and '_' are common identifier separators
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c == ':' || c == '_') {
+                return id.substring(0, i);
+            }
+        }
+        return id;
+    }
 }
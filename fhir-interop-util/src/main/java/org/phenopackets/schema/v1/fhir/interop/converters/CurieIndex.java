@@ -0,0 +1,326 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import java.util.*;
+
+/**
+ * Immutable, thread-safe index of the namespaces used to map between CURIEs, IRIs and FHIR code systems.
+ * <p>
+ * CURIE prefixes are looked up in an open-addressing hash table directly from the characters of the CURIE, IRIs are
+ * contracted using a prefix trie over the IRI bases and code systems are looked up by their (cached) String hash, so
+ * none of the lookups allocate. Only building the resulting CURIE or IRI string does.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public final class CurieIndex {
+
+    private static final String OBO_PURL = "http://purl.obolibrary.org/obo/";
+
+    private static final CurieIndex DEFAULT_INDEX = new CurieIndex(defaultNamespaces());
+
+    // CURIE prefix -> namespace
+    private final Namespace[] prefixTable;
+    private final int prefixMask;
+    // code system -> namespace
+    private final Map<String, Namespace> namespacesBySystem;
+    // IRI base trie, stored as first-child/next-sibling arrays. Node 0 is the root.
+    private final char[] nodeChars;
+    private final int[] firstChild;
+    private final int[] nextSibling;
+    private final Namespace[] nodeNamespaces;
+
+    private CurieIndex(Collection<Namespace> namespaces) {
+        int tableSize = Integer.highestOneBit(Math.max(2, namespaces.size() * 2) - 1) << 1;
+        prefixTable = new Namespace[tableSize];
+        prefixMask = tableSize - 1;
+        Map<String, Namespace> bySystem = new HashMap<>();
+        TrieBuilder trieBuilder = new TrieBuilder();
+        for (Namespace namespace : namespaces) {
+            int slot = spread(hash(namespace.prefix, 0, namespace.prefix.length())) & prefixMask;
+            while (prefixTable[slot] != null) {
+                slot = (slot + 1) & prefixMask;
+            }
+            prefixTable[slot] = namespace;
+            bySystem.put(namespace.system, namespace);
+            if (!namespace.iriBase.isEmpty()) {
+                trieBuilder.add(namespace);
+            }
+        }
+        namespacesBySystem = Collections.unmodifiableMap(bySystem);
+        nodeChars = new char[trieBuilder.size];
+        firstChild = new int[trieBuilder.size];
+        nextSibling = new int[trieBuilder.size];
+        nodeNamespaces = new Namespace[trieBuilder.size];
+        trieBuilder.compile(this);
+    }
+
+    /**
+     * An index of the namespaces commonly found in Phenopackets - HPO and the other OBO ontologies, SNOMED CT, LOINC
+     * and ICD-10-CM.
+     */
+    public static CurieIndex defaultIndex() {
+        return DEFAULT_INDEX;
+    }
+
+    /**
+     * Builds an index of the given namespaces together with the default namespaces whose prefixes are not among them.
+     */
+    public static CurieIndex withDefaults(Collection<Namespace> namespaces) {
+        Map<String, Namespace> byPrefix = new LinkedHashMap<>();
+        for (Namespace namespace : DEFAULT_INDEX.namespaces()) {
+            byPrefix.put(namespace.prefix, namespace);
+        }
+        for (Namespace namespace : namespaces) {
+            byPrefix.put(namespace.prefix, namespace);
+        }
+        return new CurieIndex(byPrefix.values());
+    }
+
+    /**
+     * Returns the default namespace for the prefix if there is one, otherwise works one out from the IRI base. OBO
+     * ontologies get their usual {@code http://purl.obolibrary.org/obo/<prefix>.owl} system and use CURIEs as codes.
+     */
+    public static Namespace namespace(String prefix, String iriBase) {
+        Namespace defaultNamespace = DEFAULT_INDEX.namespaceForPrefix(prefix);
+        if (defaultNamespace != null) {
+            return new Namespace(prefix, iriBase, defaultNamespace.system, defaultNamespace.curieCodes);
+        }
+        if (iriBase.startsWith(OBO_PURL)) {
+            return oboNamespace(prefix);
+        }
+        return new Namespace(prefix, iriBase, iriBase, false);
+    }
+
+    public List<Namespace> namespaces() {
+        List<Namespace> namespaces = new ArrayList<>();
+        for (Namespace namespace : prefixTable) {
+            if (namespace != null) {
+                namespaces.add(namespace);
+            }
+        }
+        return namespaces;
+    }
+
+    public Namespace namespaceForPrefix(String prefix) {
+        return lookupPrefix(prefix, prefix.length());
+    }
+
+    /**
+     * The namespace of a CURIE such as {@code HP:0001156}, or null if the prefix is unknown or the id is not a CURIE.
+     */
+    public Namespace namespaceForCurie(String curie) {
+        int colon = curie.indexOf(':');
+        return colon < 0 ? null : lookupPrefix(curie, colon);
+    }
+
+    public Namespace namespaceForSystem(String system) {
+        return system == null ? null : namespacesBySystem.get(system);
+    }
+
+    /**
+     * The namespace with the longest IRI base which is a prefix of the IRI, or null if there is none.
+     */
+    public Namespace namespaceForIri(String iri) {
+        Namespace longest = null;
+        int node = 0;
+        for (int i = 0; i < iri.length(); i++) {
+            char c = iri.charAt(i);
+            int child = firstChild[node];
+            while (child != -1 && nodeChars[child] != c) {
+                child = nextSibling[child];
+            }
+            if (child == -1) {
+                break;
+            }
+            node = child;
+            if (nodeNamespaces[node] != null) {
+                longest = nodeNamespaces[node];
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Expands a CURIE to an IRI, e.g. {@code HP:0001156} to {@code http://purl.obolibrary.org/obo/HP_0001156}.
+     */
+    public Optional<String> expand(String curie) {
+        Namespace namespace = namespaceForCurie(curie);
+        if (namespace == null || namespace.iriBase.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(namespace.iriBase + curie.substring(namespace.prefix.length() + 1));
+    }
+
+    /**
+     * Contracts an IRI to a CURIE, e.g. {@code http://purl.obolibrary.org/obo/HP_0001156} to {@code HP:0001156}.
+     */
+    public Optional<String> contract(String iri) {
+        Namespace namespace = namespaceForIri(iri);
+        if (namespace == null) {
+            return Optional.empty();
+        }
+        return Optional.of(namespace.prefix + ':' + iri.substring(namespace.iriBase.length()));
+    }
+
+    private Namespace lookupPrefix(String chars, int length) {
+        int slot = spread(hash(chars, 0, length)) & prefixMask;
+        Namespace candidate;
+        while ((candidate = prefixTable[slot]) != null) {
+            if (candidate.prefix.length() == length && candidate.prefix.regionMatches(0, chars, 0, length)) {
+                return candidate;
+            }
+            slot = (slot + 1) & prefixMask;
+        }
+        return null;
+    }
+
+    /**
+     * Same as {@link String#hashCode()} but over a region, so the prefix of a CURIE can be hashed in place.
+     */
+    private static int hash(String chars, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + chars.charAt(i);
+        }
+        return h;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static Namespace oboNamespace(String prefix) {
+        return new Namespace(prefix, OBO_PURL + prefix + '_', OBO_PURL + prefix.toLowerCase() + ".owl", true);
+    }
+
+    private static List<Namespace> defaultNamespaces() {
+        List<Namespace> namespaces = new ArrayList<>();
+        for (String prefix : Arrays.asList("HP", "PATO", "MONDO", "UBERON", "NCBITaxon", "ECO", "GENO", "UO", "CL", "DOID", "MP")) {
+            namespaces.add(oboNamespace(prefix));
+        }
+        namespaces.add(new Namespace("SNOMEDCT", "http://snomed.info/id/", "http://snomed.info/sct", false));
+        namespaces.add(new Namespace("LOINC", "https://loinc.org/", "http://loinc.org", false));
+        namespaces.add(new Namespace("ICD10CM", "http://purl.bioontology.org/ontology/ICD10CM/", "http://hl7.org/fhir/sid/icd-10-cm", false));
+        return namespaces;
+    }
+
+    /**
+     * A CURIE prefix with its IRI base and FHIR code system. Some systems (e.g. HPO in this project) use the whole
+     * CURIE as the FHIR code, others (e.g. SNOMED CT, LOINC) only the local part.
+     */
+    public static final class Namespace {
+
+        private final String prefix;
+        private final String iriBase;
+        private final String system;
+        private final boolean curieCodes;
+
+        public Namespace(String prefix, String iriBase, String system, boolean curieCodes) {
+            this.prefix = Objects.requireNonNull(prefix);
+            this.iriBase = iriBase == null ? "" : iriBase;
+            this.system = Objects.requireNonNull(system);
+            this.curieCodes = curieCodes;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public String getIriBase() {
+            return iriBase;
+        }
+
+        public String getSystem() {
+            return system;
+        }
+
+        public boolean hasCurieCodes() {
+            return curieCodes;
+        }
+
+        /**
+         * The FHIR code for a CURIE in this namespace.
+         */
+        public String toCode(String curie) {
+            return curieCodes ? curie : curie.substring(prefix.length() + 1);
+        }
+
+        /**
+         * The CURIE for a FHIR code in this namespace.
+         */
+        public String toCurie(String code) {
+            if (code.startsWith(prefix) && code.length() > prefix.length() && code.charAt(prefix.length()) == ':') {
+                return code;
+            }
+            return prefix + ':' + code;
+        }
+
+        @Override
+        public String toString() {
+            return "Namespace{" +
+                    "prefix='" + prefix + '\'' +
+                    ", iriBase='" + iriBase + '\'' +
+                    ", system='" + system + '\'' +
+                    ", curieCodes=" + curieCodes +
+                    '}';
+        }
+    }
+
+    /**
+     * Mutable trie used while building the index.
+     */
+    private static final class TrieBuilder {
+
+        private final TrieNode root = new TrieNode();
+        private int size = 1;
+
+        private void add(Namespace namespace) {
+            TrieNode node = root;
+            for (int i = 0; i < namespace.iriBase.length(); i++) {
+                char c = namespace.iriBase.charAt(i);
+                TrieNode child = node.children.get(c);
+                if (child == null) {
+                    child = new TrieNode();
+                    node.children.put(c, child);
+                    size++;
+                }
+                node = child;
+            }
+            if (node.namespace == null) {
+                node.namespace = namespace;
+            }
+        }
+
+        private void compile(CurieIndex index) {
+            Arrays.fill(index.firstChild, -1);
+            Arrays.fill(index.nextSibling, -1);
+            Deque<TrieNode> queue = new ArrayDeque<>();
+            Deque<Integer> positions = new ArrayDeque<>();
+            queue.add(root);
+            positions.add(0);
+            int next = 1;
+            while (!queue.isEmpty()) {
+                TrieNode node = queue.poll();
+                int position = positions.poll();
+                index.nodeNamespaces[position] = node.namespace;
+                int previous = -1;
+                for (Map.Entry<Character, TrieNode> child : node.children.entrySet()) {
+                    int childPosition = next++;
+                    index.nodeChars[childPosition] = child.getKey();
+                    if (previous == -1) {
+                        index.firstChild[position] = childPosition;
+                    } else {
+                        index.nextSibling[previous] = childPosition;
+                    }
+                    previous = childPosition;
+                    queue.add(child.getValue());
+                    positions.add(childPosition);
+                }
+            }
+        }
+    }
+
+    private static final class TrieNode {
+        private final Map<Character, TrieNode> children = new TreeMap<>();
+        private Namespace namespace;
+    }
+}
@@ -0,0 +1,88 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.PerformanceOptionsEnum;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holder for the R4 {@link FhirContext} shared by everything which parses or encodes FHIR.
+ * <p>
+ * A FhirContext is expensive to create and, left to itself, scans the whole R4 model the first time a resource is
+ * parsed, which can take a couple of seconds. The shared context defers scanning each type until it is needed and
+ * scans the {@link #CONVERTED_RESOURCE_TYPES} up front, so that the first conversion costs the same as the others.
+ * <p>
+ * The context is thread-safe. Its parsers are not, so {@link #jsonParser()} hands out one per thread. Callers must not
+ * change the settings of that parser, e.g. pretty printing, as it is shared with everything else on the thread.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class FhirContextProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(FhirContextProvider.class);
+
+    /**
+     * The resource types read or written by the converters.
+     */
+    public static final List<Class<? extends IBaseResource>> CONVERTED_RESOURCE_TYPES = Collections.unmodifiableList(Arrays.asList(
+            Bundle.class, Patient.class, Condition.class, Specimen.class, Observation.class, FamilyMemberHistory.class,
+            RelatedPerson.class));
+
+    private final FhirContext fhirContext;
+    private final ThreadLocal<IParser> jsonParsers;
+
+    private FhirContextProvider(FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+        this.jsonParsers = ThreadLocal.withInitial(fhirContext::newJsonParser);
+    }
+
+    private static class R4Holder {
+        private static final FhirContextProvider INSTANCE = create();
+
+        private static FhirContextProvider create() {
+            long start = System.nanoTime();
+            FhirContext fhirContext = FhirContext.forR4();
+            fhirContext.setPerformanceOptions(PerformanceOptionsEnum.DEFERRED_MODEL_SCANNING);
+            scan(fhirContext, CONVERTED_RESOURCE_TYPES);
+            logger.info("Created FhirContext for R4 in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return new FhirContextProvider(fhirContext);
+        }
+    }
+
+    /**
+     * The shared R4 provider, created and scanned on first use.
+     */
+    public static FhirContextProvider r4() {
+        return R4Holder.INSTANCE;
+    }
+
+    /**
+     * Scans the model of the given resource types, and the types of their elements, if they haven't been already.
+     */
+    public static void scan(FhirContext fhirContext, Collection<Class<? extends IBaseResource>> resourceTypes) {
+        for (Class<? extends IBaseResource> resourceType : resourceTypes) {
+            // the children are only scanned once the definition is sealed, which getChildren does
+            fhirContext.getResourceDefinition(resourceType).getChildren();
+        }
+    }
+
+    public FhirContext getFhirContext() {
+        return fhirContext;
+    }
+
+    /**
+     * The JSON parser for the current thread.
+     */
+    public IParser jsonParser() {
+        return jsonParsers.get();
+    }
+}
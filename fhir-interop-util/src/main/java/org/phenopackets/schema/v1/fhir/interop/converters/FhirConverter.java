@@ -1,20 +1,26 @@
 package org.phenopackets.schema.v1.fhir.interop.converters;
 
+import com.google.common.collect.Lists;
 import org.hl7.fhir.r4.model.*;
 import org.phenopackets.schema.v1.Cohort;
 import org.phenopackets.schema.v1.Family;
 import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.core.MetaData;
+import org.phenopackets.schema.v1.core.PhenotypicFeature;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.BundleResources;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.MetaDataExtractor;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PedigreeGraph;
 import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.ResourceRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
-import static java.util.stream.Collectors.groupingBy;
-
 /**
  * Converter for converting a FHIR bundle to a Phenopacket.
  *
@@ -24,68 +30,280 @@ public class FhirConverter {
 
     private static final Logger logger = LoggerFactory.getLogger(FhirConverter.class);
 
+    private final PhenopacketExtractor phenopacketExtractor;
+
     // Requires a CURIE map?  https://github.com/monarch-initiative/dipper/blob/master/dipper/curie_map.yaml
     // or OntologyClassConverter?
     public FhirConverter() {
+        this(new PhenopacketExtractor());
     }
 
-    public Phenopacket toPhenopacket(Bundle bundle) {
-
-        Map<ResourceType, List<Resource>> resourcesByType = bundle.getEntry()
-                .stream()
-                .map(Bundle.BundleEntryComponent::getResource)
-                .collect(groupingBy(Resource::getResourceType));
+    /**
+     * Uses the given PhenopacketExtractor, e.g. one with an {@link OntologyClassCache}, for every patient. Its
+     * {@link ConversionObserver} also times the grouping of the Bundle resources.
+     */
+    public FhirConverter(PhenopacketExtractor phenopacketExtractor) {
+        this.phenopacketExtractor = phenopacketExtractor;
+    }
 
-        List<Patient> patients = getPatientsFromResources(resourcesByType);
-        //extract patient conditions
-        List<Condition> patientConditions = getPatientConditionsFromResources(resourcesByType);
+    public Phenopacket toPhenopacket(Bundle bundle) {
+        ConversionObserver conversionObserver = phenopacketExtractor.getConversionObserver();
+        long start = conversionObserver.startTime();
+        BundleResources bundleResources = BundleResources.of(bundle);
+        conversionObserver.stageCompleted(ConversionObserver.Stage.GROUP, start);
 
+        List<Patient> patients = bundleResources.getPatients();
         if (patients.size() > 1) {
             logger.warn("Found {} patients in this bundle - not sure who the main subject is so returning first", patients
                     .size());
         }
 
-        PhenopacketExtractor phenopacketExtractor = new PhenopacketExtractor();
-
         return patients.stream()
-                .map(patient -> phenopacketExtractor.extractPhenopacket(patient, patientConditions))
+                .map(patient -> phenopacketExtractor.extractPhenopacket(patient, bundleResources.getConditions(patient), bundleResources.getObservations(patient)))
                 .findFirst()
                 .orElse(Phenopacket.getDefaultInstance());
     }
 
+    /**
+     * As {@link #toPhenopacket(Bundle)} but keeping the ids of the Conditions, so that later changes to them can be
+     * applied with {@link #applyChanges(IncrementalPhenopacket, Bundle)}. Conditions without an id, or with the same id as
+     * an earlier one, can't be changed. Observations are not converted, as they can't be changed either.
+     */
+    public IncrementalPhenopacket toIncrementalPhenopacket(Bundle bundle) {
+        ConversionObserver conversionObserver = phenopacketExtractor.getConversionObserver();
+        long start = conversionObserver.startTime();
+        BundleResources bundleResources = BundleResources.of(bundle);
+        conversionObserver.stageCompleted(ConversionObserver.Stage.GROUP, start);
+
+        List<Patient> patients = bundleResources.getPatients();
+        if (patients.isEmpty()) {
+            return new IncrementalPhenopacket(Phenopacket.getDefaultInstance());
+        }
+        if (patients.size() > 1) {
+            logger.warn("Found {} patients in this bundle - not sure who the main subject is so using first", patients
+                    .size());
+        }
+        Patient patient = patients.get(0);
+        List<Condition> patientConditions = bundleResources.getConditions(patient);
+        IncrementalPhenopacket incrementalPhenopacket = new IncrementalPhenopacket(phenopacketExtractor.extractPhenopacket(patient, patientConditions));
+        boolean translating = !phenopacketExtractor.getConceptMapper().getTranslations().isEmpty();
+        // the extracted PhenotypicFeatures are in the same order as the Conditions
+        for (int i = 0; i < patientConditions.size(); i++) {
+            Condition condition = patientConditions.get(i);
+            String conditionId = condition.getIdElement().getIdPart();
+            if (conditionId == null || incrementalPhenopacket.contains(conditionId)) {
+                // FHIR ids can't contain '#', so this can't clash with a real id
+                conditionId = "#" + i;
+            }
+            PhenotypicFeature feature = incrementalPhenopacket.getPhenopacket().getPhenotypicFeatures(i);
+            List<Coding> translatedCodings = new ArrayList<>(2);
+            if (translating) {
+                // extracted again for the translated codings, so that their Resources go with the Condition
+                feature = phenopacketExtractor.extractPhenotypicFeature(condition, translatedCodings);
+            }
+            incrementalPhenopacket.add(conditionId, feature,
+                    MetaDataExtractor.resourcesFor(condition, translatedCodings, phenopacketExtractor.getResourceRegistry()));
+        }
+        return incrementalPhenopacket;
+    }
+
+    /**
+     * Applies the created, updated and deleted Conditions in a history, transaction, batch or collection Bundle to the
+     * PhenotypicFeatures and MetaData Resources of the Phenopacket, keyed by Condition id. Only the changed Conditions
+     * are converted, so the cost depends on the size of the changes rather than that of the patient record.
+     * <p>
+     * An entry is a deletion if its request method is DELETE, with the Condition given by the request URL, e.g.
+     * {@code Condition/123}. Any other entry with a Condition is a create or update. The entries of a history Bundle
+     * are applied oldest first, so the newest version of a Condition wins, and those of other Bundles in order.
+     * Conditions about another subject and resources other than Conditions are ignored. If anything changed, the time
+     * is added to the MetaData {@code updated} list.
+     *
+     * @return the updated Phenopacket, also available from {@link IncrementalPhenopacket#getPhenopacket()}
+     */
+    public Phenopacket applyChanges(IncrementalPhenopacket incrementalPhenopacket, Bundle changes) {
+        ConversionObserver conversionObserver = phenopacketExtractor.getConversionObserver();
+        long start = conversionObserver.startTime();
+        List<Bundle.BundleEntryComponent> entries = changes.getEntry();
+        if (changes.getType() == Bundle.BundleType.HISTORY) {
+            // history is sorted newest first
+            entries = Lists.reverse(entries);
+        }
+        int applied = 0;
+        for (Bundle.BundleEntryComponent entry : entries) {
+            if (applyChange(incrementalPhenopacket, entry)) {
+                applied++;
+            }
+        }
+        conversionObserver.stageCompleted(ConversionObserver.Stage.EXTRACT, start);
+
+        start = conversionObserver.startTime();
+        Phenopacket phenopacket = incrementalPhenopacket.getPhenopacket();
+        conversionObserver.stageCompleted(ConversionObserver.Stage.METADATA, start);
+        logger.debug("Applied {} of {} changes to {}", applied, entries.size(), phenopacket.getSubject().getId());
+        return phenopacket;
+    }
+
+    private boolean applyChange(IncrementalPhenopacket incrementalPhenopacket, Bundle.BundleEntryComponent entry) {
+        if (entry.hasRequest() && entry.getRequest().getMethod() == Bundle.HTTPVerb.DELETE) {
+            IdType deleted = new IdType(entry.getRequest().getUrl());
+            if (!"Condition".equals(deleted.getResourceType()) || deleted.getIdPart() == null) {
+                logger.debug("Ignoring deletion of {}", entry.getRequest().getUrl());
+                return false;
+            }
+            return incrementalPhenopacket.remove(deleted.getIdPart());
+        }
+        if (!(entry.getResource() instanceof Condition)) {
+            return false;
+        }
+        Condition condition = (Condition) entry.getResource();
+        String conditionId = condition.getIdElement().getIdPart();
+        if (conditionId == null) {
+            logger.warn("Ignoring Condition without an id - it can't be matched to a PhenotypicFeature");
+            return false;
+        }
+        if (!incrementalPhenopacket.isSubject(condition.getSubject())) {
+            logger.warn("Ignoring Condition {} about {} rather than the subject", conditionId, condition.getSubject().getReference());
+            return false;
+        }
+        List<Coding> translatedCodings = new ArrayList<>(2);
+        PhenotypicFeature feature = phenopacketExtractor.extractPhenotypicFeature(condition, translatedCodings);
+        return incrementalPhenopacket.put(conditionId, feature,
+                MetaDataExtractor.resourcesFor(condition, translatedCodings, phenopacketExtractor.getResourceRegistry()));
+    }
+
 //    Bundle-> Phenopacket:
 //    Takes first patient and creates phenopacket. Explodes/warns if more than one patient is present.
 //    Bundle -> Cohort:
 //    Extracts all patients, converts to phenopackets, adds to Cohort.
 //            Bundle -> Family
-//    Extracts patients…. Needs pedigree checking/conversion logic.
+//    Extracts patients and their relationships to a Pedigree, see PedigreeGraph.
 
+    /**
+     * Converts every patient in the bundle to a Phenopacket and adds them to a Cohort, in the order the patients appear
+     * in the bundle. The Phenopackets are built in parallel on the common fork-join pool. Each member's MetaData only
+     * describes the resources used by that patient's Conditions, the Cohort MetaData describes all of them.
+     */
     public Cohort toCohort(Bundle bundle) {
-        return null;
+        ConversionObserver conversionObserver = phenopacketExtractor.getConversionObserver();
+        long start = conversionObserver.startTime();
+        BundleResources bundleResources = BundleResources.of(bundle);
+        conversionObserver.stageCompleted(ConversionObserver.Stage.GROUP, start);
+
+        // Each Patient and its Conditions are only ever touched by one task. This matters as HAPI getters lazily
+        // initialise missing elements, so even reading a resource is not safe from several threads at once.
+        List<Phenopacket> members = bundleResources.getPatients().parallelStream()
+                .map(patient -> phenopacketExtractor.extractPhenopacket(patient, bundleResources.getConditions(patient), bundleResources.getObservations(patient)))
+                .collect(Collectors.toList());
+
+        MetaData metaData = buildMetaData(bundleResources, members);
+
+        return Cohort.newBuilder()
+                .setId(bundle.getIdElement().getIdPart() == null ? "" : bundle.getIdElement().getIdPart())
+                .addAllMembers(members)
+                .setMetaData(metaData)
+                .build();
     }
 
-    public Family toFamily(Bundle bundle) {
-        // TODO Does FHIR have a means of indicating a proband? If not this won't work.
-        // although could do it with a bundle containing a single Patient and a FamilyMemberHistoryGenetic
-        // however we still don't know who tha proband is unless we use some heuristic to pick the patient with the
-        // largest number of Conditions, which is pure guesswork.
-        return null;
+    /**
+     * The MetaData of a Cohort or Family, describing the resources used by the Conditions of all the members and, if
+     * any terms are derived from Observations or translated, those which are only in the member MetaData.
+     */
+    private MetaData buildMetaData(BundleResources bundleResources, List<Phenopacket> members) {
+        ConversionObserver conversionObserver = phenopacketExtractor.getConversionObserver();
+        long start = conversionObserver.startTime();
+        MetaData metaData = MetaDataExtractor.builder()
+                .createdBy("FHIR converter")
+                .fromConditions(bundleResources.getPatientConditions())
+                .resourceRegistry(phenopacketExtractor.getResourceRegistry())
+                .buildMetaData();
+        if (!phenopacketExtractor.getObservationRules().isEmpty() || !phenopacketExtractor.getConceptMapper().getTranslations().isEmpty()) {
+            metaData = withMemberResources(metaData, members);
+        }
+        conversionObserver.stageCompleted(ConversionObserver.Stage.METADATA, start);
+        return metaData;
     }
 
-    private List<Patient> getPatientsFromResources(Map<ResourceType, List<Resource>> resourcesByType) {
-        return resourcesByType
-                .getOrDefault(ResourceType.Patient, Collections.emptyList())
-                .stream()
-                .map(resource -> (Patient) resource)
-                .collect(Collectors.toList());
+    /**
+     * Adds the member Resources which aren't already in the MetaData, keyed by id and version as in the
+     * {@link ResourceRegistry}, which is much cheaper than hashing the whole messages.
+     */
+    private static MetaData withMemberResources(MetaData metaData, List<Phenopacket> members) {
+        Map<String, org.phenopackets.schema.v1.core.Resource> resources = new LinkedHashMap<>();
+        for (org.phenopackets.schema.v1.core.Resource resource : metaData.getResourcesList()) {
+            resources.putIfAbsent(resourceKey(resource), resource);
+        }
+        int count = resources.size();
+        for (Phenopacket member : members) {
+            for (org.phenopackets.schema.v1.core.Resource resource : member.getMetaData().getResourcesList()) {
+                resources.putIfAbsent(resourceKey(resource), resource);
+            }
+        }
+        if (resources.size() == count) {
+            return metaData;
+        }
+        return metaData.toBuilder()
+                .clearResources()
+                .addAllResources(resources.values())
+                .build();
     }
 
-    private List<Condition> getPatientConditionsFromResources(Map<ResourceType, List<Resource>> resourcesByType) {
-        return resourcesByType
-                .getOrDefault(ResourceType.Condition, Collections.emptyList())
-                .stream()
-                .map(resource -> (Condition) resource)
-                .filter(condition -> condition.getSubject().getResource() instanceof Patient)
+    private static String resourceKey(org.phenopackets.schema.v1.core.Resource resource) {
+        return resource.getId() + '|' + resource.getVersion();
+    }
+
+    /**
+     * As {@link #toFamily(Bundle, String)}, guessing the proband with {@link PedigreeGraph#guessProband()}, as FHIR has
+     * no way of saying who it is.
+     */
+    public Family toFamily(Bundle bundle) {
+        return toFamily(bundle, null);
+    }
+
+    /**
+     * Converts the patients in the bundle to a Family, with the given proband and the other patients as relatives in
+     * Bundle order, and a Pedigree of everyone described by a Patient, RelatedPerson or FamilyMemberHistory - see
+     * {@link PedigreeGraph}. The Phenopackets are built in parallel, as for {@link #toCohort(Bundle)}, and the Family
+     * MetaData describes all of them. The family id is that of the Bundle, or else of the proband.
+     *
+     * @param probandId the id of the proband Patient, e.g. {@code Patient/123} or {@code 123}, or null to guess it
+     * @return the default instance if there are no patients
+     * @throws IllegalArgumentException if there is no Patient with the proband id
+     */
+    public Family toFamily(Bundle bundle, String probandId) {
+        ConversionObserver conversionObserver = phenopacketExtractor.getConversionObserver();
+        long start = conversionObserver.startTime();
+        BundleResources bundleResources = BundleResources.of(bundle);
+        PedigreeGraph pedigreeGraph = PedigreeGraph.of(bundleResources);
+        conversionObserver.stageCompleted(ConversionObserver.Stage.GROUP, start);
+
+        Patient proband = probandId == null ? pedigreeGraph.guessProband() : pedigreeGraph.getPatient(probandId);
+        if (proband == null) {
+            if (probandId != null) {
+                throw new IllegalArgumentException("No Patient " + probandId + " in the bundle");
+            }
+            return Family.getDefaultInstance();
+        }
+
+        List<Patient> patients = bundleResources.getPatients();
+        List<Phenopacket> members = patients.parallelStream()
+                .map(patient -> phenopacketExtractor.extractPhenopacket(patient, bundleResources.getConditions(patient), bundleResources.getObservations(patient)))
                 .collect(Collectors.toList());
+        Family.Builder familyBuilder = Family.newBuilder();
+        for (int i = 0; i < patients.size(); i++) {
+            if (patients.get(i) == proband) {
+                familyBuilder.setProband(members.get(i));
+            } else {
+                familyBuilder.addRelatives(members.get(i));
+            }
+        }
+
+        MetaData metaData = buildMetaData(bundleResources, members);
+
+        String familyId = bundle.getIdElement().getIdPart() == null ? proband.getId() : bundle.getIdElement().getIdPart();
+        return familyBuilder
+                .setId(familyId)
+                .setPedigree(pedigreeGraph.toPedigree(familyId))
+                .setMetaData(metaData)
+                .build();
     }
 }
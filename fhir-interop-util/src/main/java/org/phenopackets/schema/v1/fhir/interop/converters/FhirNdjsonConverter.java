@@ -0,0 +1,166 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Converter for streams of newline-delimited FHIR resources (NDJSON), as produced by the FHIR Bulk Data $export
+ * operation, to a stream of Phenopackets.
+ * <p>
+ * Resources are read one line at a time and only the resources belonging to the current subject are held in memory,
+ * so memory use does not depend on the size of the input. This requires the input to be grouped by patient, i.e. a
+ * Patient and the Conditions referring to it must be on consecutive lines, in any order. A Phenopacket is emitted
+ * every time the subject changes and once more at the end of the input, and input in which a subject turns up again
+ * after another one, e.g. all the Patients followed by all the Conditions, is rejected rather than split. Observations are only kept, with those
+ * Conditions, if the PhenopacketExtractor has {@link org.phenopackets.schema.v1.fhir.interop.converters.fhir.ObservationRules}.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class FhirNdjsonConverter {
+
+    private static final Logger logger = LoggerFactory.getLogger(FhirNdjsonConverter.class);
+
+    private final IParser jsonParser;
+    private final PhenopacketExtractor phenopacketExtractor;
+
+    public FhirNdjsonConverter(IParser jsonParser) {
+        this(jsonParser, new PhenopacketExtractor());
+    }
+
+    public FhirNdjsonConverter(IParser jsonParser, PhenopacketExtractor phenopacketExtractor) {
+        this.jsonParser = jsonParser;
+        this.phenopacketExtractor = phenopacketExtractor;
+    }
+
+    /**
+     * Reads the NDJSON input to the end, passing each converted Phenopacket to the consumer as soon as its subject is
+     * complete.
+     *
+     * @param ndjson   newline-delimited FHIR R4 resources
+     * @param consumer receiver for the converted Phenopackets
+     * @return the number of Phenopackets passed to the consumer
+     * @throws IOException         if the input could not be read
+     * @throws DataFormatException if the input is not grouped by patient
+     */
+    public long convert(Reader ndjson, Consumer<Phenopacket> consumer) throws IOException {
+        BufferedReader reader = (ndjson instanceof BufferedReader) ? (BufferedReader) ndjson : new BufferedReader(ndjson);
+        SubjectGroup group = new SubjectGroup();
+        long converted = 0;
+        long lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            IBaseResource resource = parseLine(line, lineNumber);
+            if (resource instanceof Patient) {
+                Patient patient = (Patient) resource;
+                converted += group.startSubject(patient.getIdElement().getIdPart(), lineNumber, consumer);
+                group.patient = patient;
+            } else if (resource instanceof Condition) {
+                Condition condition = (Condition) resource;
+                String subjectId = condition.getSubject().getReferenceElement().getIdPart();
+                if (subjectId == null) {
+                    logger.warn("Condition on line {} has no subject reference - skipping", lineNumber);
+                    continue;
+                }
+                converted += group.startSubject(subjectId, lineNumber, consumer);
+                group.conditions.add(condition);
+            } else if (resource instanceof Observation && !phenopacketExtractor.getObservationRules().isEmpty()) {
+                Observation observation = (Observation) resource;
+                String subjectId = observation.getSubject().getReferenceElement().getIdPart();
+                if (subjectId == null) {
+                    logger.warn("Observation on line {} has no subject reference - skipping", lineNumber);
+                    continue;
+                }
+                converted += group.startSubject(subjectId, lineNumber, consumer);
+                group.observations.add(observation);
+            }
+        }
+        converted += group.flush(consumer);
+        return converted;
+    }
+
+    private IBaseResource parseLine(String line, long lineNumber) {
+        try {
+            return jsonParser.parseResource(line);
+        } catch (DataFormatException e) {
+            logger.warn("Unable to parse resource on line {} - skipping: {}", lineNumber, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The Patient, Conditions and Observations read so far for the current subject.
+     */
+    private class SubjectGroup {
+        private String subjectId;
+        private Patient patient;
+        private final List<Condition> conditions = new ArrayList<>();
+        private final List<Observation> observations = new ArrayList<>();
+        // only the ids of the subjects already converted are kept, to tell whether the input is grouped by patient
+        private final Set<String> startedSubjectIds = new HashSet<>();
+
+        private boolean isFor(String otherSubjectId) {
+            return subjectId != null && subjectId.equals(otherSubjectId);
+        }
+
+        /**
+         * Moves on to the subject of the resource on the line, if it isn't the current one, flushing the current one.
+         *
+         * @return the number of Phenopackets flushed
+         */
+        private int startSubject(String newSubjectId, long lineNumber, Consumer<Phenopacket> consumer) {
+            if (isFor(newSubjectId)) {
+                return 0;
+            }
+            if (!startedSubjectIds.add(newSubjectId)) {
+                throw new DataFormatException("Subject " + newSubjectId + " on line " + lineNumber + " was already converted - the input must be grouped by patient");
+            }
+            int flushed = flush(consumer);
+            reset(newSubjectId);
+            return flushed;
+        }
+
+        private void reset(String newSubjectId) {
+            subjectId = newSubjectId;
+            patient = null;
+            conditions.clear();
+            observations.clear();
+        }
+
+        private int flush(Consumer<Phenopacket> consumer) {
+            if (subjectId == null) {
+                return 0;
+            }
+            if (patient == null) {
+                logger.warn("Found {} conditions for subject {} without a Patient - skipping. Is the input grouped by patient?", conditions
+                        .size(), subjectId);
+                return 0;
+            }
+            // the subject is only a reference in NDJSON so point it at the Patient for the PhenopacketExtractor
+            conditions.forEach(condition -> condition.getSubject().setResource(patient));
+            observations.forEach(observation -> observation.getSubject().setResource(patient));
+            consumer.accept(phenopacketExtractor.extractPhenopacket(patient, conditions, observations));
+            return 1;
+        }
+    }
+}
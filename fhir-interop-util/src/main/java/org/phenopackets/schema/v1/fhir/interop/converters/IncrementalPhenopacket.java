@@ -0,0 +1,180 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import com.google.common.collect.LinkedHashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.protobuf.Timestamp;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.core.MetaData;
+import org.phenopackets.schema.v1.core.PhenotypicFeature;
+import org.phenopackets.schema.v1.core.Resource;
+
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * A Phenopacket together with the ids of the FHIR Conditions its PhenotypicFeatures were converted from, so that it can
+ * be kept up to date by {@link FhirConverter#applyChanges(IncrementalPhenopacket, org.hl7.fhir.r4.model.Bundle)}
+ * without converting the whole patient record again.
+ * <p>
+ * The PhenotypicFeatures are held by Condition id and each MetaData Resource is counted by the number of Conditions
+ * using it, so a change only converts the changed Conditions and a Resource is dropped along with the last Condition
+ * using it. Rebuilding the Phenopacket itself still copies the references to the unchanged PhenotypicFeatures, as
+ * Phenopackets are immutable.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class IncrementalPhenopacket {
+
+    private Phenopacket phenopacket;
+    private final String subjectIdPart;
+    // in the order of the PhenotypicFeatures - an updated Condition keeps its place, a new one goes last
+    private final Map<String, PhenotypicFeature> features = new LinkedHashMap<>();
+    private final Map<String, List<Resource>> resourcesByConditionId = new HashMap<>();
+    private final Multiset<Resource> resourceCounts = LinkedHashMultiset.create();
+    private boolean changed = false;
+
+    IncrementalPhenopacket(Phenopacket phenopacket) {
+        this.phenopacket = phenopacket;
+        this.subjectIdPart = new IdType(phenopacket.getSubject().getId()).getIdPart();
+    }
+
+    /**
+     * Wraps a previously converted Phenopacket, e.g. one read back from storage, given the ids of the Conditions of its
+     * PhenotypicFeatures in the same order, as returned by {@link #getConditionIds()}. The MetaData Resources used by
+     * each PhenotypicFeature are matched by the namespace prefix of its type and severity. Resources which match none
+     * of them are kept as they are.
+     *
+     * @throws IllegalArgumentException if there isn't exactly one distinct Condition id for each PhenotypicFeature
+     */
+    public static IncrementalPhenopacket of(Phenopacket phenopacket, List<String> conditionIds) {
+        if (conditionIds.size() != phenopacket.getPhenotypicFeaturesCount()) {
+            throw new IllegalArgumentException("Expected " + phenopacket.getPhenotypicFeaturesCount() + " Condition ids but got " + conditionIds.size());
+        }
+        Map<String, Resource> resourcesByPrefix = new HashMap<>();
+        for (Resource resource : phenopacket.getMetaData().getResourcesList()) {
+            resourcesByPrefix.putIfAbsent(resource.getNamespacePrefix(), resource);
+        }
+        IncrementalPhenopacket incrementalPhenopacket = new IncrementalPhenopacket(phenopacket);
+        for (int i = 0; i < conditionIds.size(); i++) {
+            PhenotypicFeature feature = phenopacket.getPhenotypicFeatures(i);
+            List<Resource> resources = new ArrayList<>(2);
+            addResource(resources, resourcesByPrefix, feature.hasType() ? feature.getType().getId() : null);
+            addResource(resources, resourcesByPrefix, feature.hasSeverity() ? feature.getSeverity().getId() : null);
+            incrementalPhenopacket.add(conditionIds.get(i), feature, resources);
+        }
+        for (Resource resource : phenopacket.getMetaData().getResourcesList()) {
+            if (!incrementalPhenopacket.resourceCounts.contains(resource)) {
+                // not owned by any Condition, so never removed
+                incrementalPhenopacket.resourceCounts.add(resource);
+            }
+        }
+        return incrementalPhenopacket;
+    }
+
+    private static void addResource(List<Resource> resources, Map<String, Resource> resourcesByPrefix, String id) {
+        if (id == null) {
+            return;
+        }
+        Resource resource = resourcesByPrefix.get(ConverterUtil.curiePrefix(id));
+        if (resource != null) {
+            resources.add(resource);
+        }
+    }
+
+    /**
+     * The current Phenopacket, including any changes applied so far.
+     */
+    public Phenopacket getPhenopacket() {
+        if (changed) {
+            phenopacket = rebuild();
+            changed = false;
+        }
+        return phenopacket;
+    }
+
+    /**
+     * The ids of the Conditions of the PhenotypicFeatures, in the same order.
+     */
+    public List<String> getConditionIds() {
+        return new ArrayList<>(features.keySet());
+    }
+
+    public int size() {
+        return features.size();
+    }
+
+    public boolean contains(String conditionId) {
+        return features.containsKey(conditionId);
+    }
+
+    /**
+     * Whether the reference is to the subject of the Phenopacket, comparing only the id parts.
+     */
+    boolean isSubject(Reference subject) {
+        if (subject.getResource() != null) {
+            return Objects.equals(subject.getResource().getIdElement().getIdPart(), subjectIdPart);
+        }
+        return Objects.equals(subject.getReferenceElement().getIdPart(), subjectIdPart);
+    }
+
+    /**
+     * Used while building the initial state, so the Phenopacket isn't marked as changed.
+     */
+    void add(String conditionId, PhenotypicFeature feature, List<Resource> resources) {
+        if (features.putIfAbsent(conditionId, feature) != null) {
+            throw new IllegalArgumentException("Duplicate Condition id " + conditionId);
+        }
+        resourcesByConditionId.put(conditionId, resources);
+        resourceCounts.addAll(resources);
+    }
+
+    /**
+     * Adds or replaces the PhenotypicFeature for the Condition.
+     *
+     * @return false if the Condition was already converted to the same PhenotypicFeature and Resources
+     */
+    boolean put(String conditionId, PhenotypicFeature feature, List<Resource> resources) {
+        PhenotypicFeature previousFeature = features.put(conditionId, feature);
+        List<Resource> previousResources = resourcesByConditionId.put(conditionId, resources);
+        if (feature.equals(previousFeature) && resources.equals(previousResources)) {
+            return false;
+        }
+        if (previousResources != null) {
+            previousResources.forEach(resourceCounts::remove);
+        }
+        resourceCounts.addAll(resources);
+        changed = true;
+        return true;
+    }
+
+    /**
+     * Removes the PhenotypicFeature for the Condition.
+     *
+     * @return false if there was none
+     */
+    boolean remove(String conditionId) {
+        if (features.remove(conditionId) == null) {
+            return false;
+        }
+        resourcesByConditionId.remove(conditionId).forEach(resourceCounts::remove);
+        changed = true;
+        return true;
+    }
+
+    private Phenopacket rebuild() {
+        MetaData metaData = phenopacket.getMetaData().toBuilder()
+                .clearResources()
+                .addAllResources(resourceCounts.elementSet())
+                .addUpdated(Timestamp.newBuilder().setSeconds(Instant.now().getEpochSecond()).build())
+                .build();
+        return phenopacket.toBuilder()
+                .clearPhenotypicFeatures()
+                .addAllPhenotypicFeatures(features.values())
+                .setMetaData(metaData)
+                .build();
+    }
+}
@@ -0,0 +1,27 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+final class NoopConversionObserver implements ConversionObserver {
+
+    static final NoopConversionObserver INSTANCE = new NoopConversionObserver();
+
+    private NoopConversionObserver() {
+    }
+
+    @Override
+    public long startTime() {
+        return 0;
+    }
+
+    @Override
+    public void stageCompleted(Stage stage, long startTime) {
+        // ignored
+    }
+
+    @Override
+    public void patientConverted(int conditions, int skippedConditions) {
+        // ignored
+    }
+}
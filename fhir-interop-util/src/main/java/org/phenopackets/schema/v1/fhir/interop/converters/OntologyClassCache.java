@@ -0,0 +1,116 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.hl7.fhir.r4.model.Coding;
+import org.phenopackets.schema.v1.core.OntologyClass;
+
+import java.util.Objects;
+
+/**
+ * Optional bounded interning cache for the {@link OntologyClass} messages created by the converters. A few thousand
+ * terms usually account for almost all of the codings in a dataset, so interning them means a large cohort holds one
+ * instance of each term rather than millions of identical copies. OntologyClass messages are immutable, so they are
+ * shared as they are.
+ * <p>
+ * Instances are thread-safe and can be shared by all converters, see
+ * {@link org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor.Builder#ontologyClassCache}.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class OntologyClassCache {
+
+    private static final OntologyClassCache DISABLED = new OntologyClassCache(null);
+
+    private final Cache<Key, OntologyClass> ontologyClasses;
+
+    private OntologyClassCache(Cache<Key, OntologyClass> ontologyClasses) {
+        this.ontologyClasses = ontologyClasses;
+    }
+
+    /**
+     * A cache which creates a new instance every time, i.e. the same as not using one.
+     */
+    public static OntologyClassCache disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * A cache holding up to maximumSize OntologyClasses, least recently used first out.
+     */
+    public static OntologyClassCache bounded(long maximumSize) {
+        return new OntologyClassCache(CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build());
+    }
+
+    public boolean isEnabled() {
+        return ontologyClasses != null;
+    }
+
+    public OntologyClass ontologyClass(String id, String label) {
+        return ontologyClass(null, id, label);
+    }
+
+    public OntologyClass ontologyClass(Coding coding) {
+        return ontologyClass(coding.getSystem(), coding.getCode(), coding.getDisplay());
+    }
+
+    /**
+     * The system is part of the key as the same code can have a different meaning in another system, but is not part
+     * of the OntologyClass.
+     */
+    public OntologyClass ontologyClass(String system, String id, String label) {
+        if (ontologyClasses == null) {
+            return ConverterUtil.ontologyClass(id, label);
+        }
+        Key key = new Key(system, id, label);
+        OntologyClass ontologyClass = ontologyClasses.getIfPresent(key);
+        if (ontologyClass == null) {
+            // racing threads may both create one, which is harmless as they're equal
+            ontologyClass = ConverterUtil.ontologyClass(id, label);
+            ontologyClasses.put(key, ontologyClass);
+        }
+        return ontologyClass;
+    }
+
+    /**
+     * Hit, miss and eviction counts for the OntologyClasses.
+     */
+    public CacheStats ontologyClassStats() {
+        return ontologyClasses == null ? new CacheStats(0, 0, 0, 0, 0, 0) : ontologyClasses.stats();
+    }
+
+    public long size() {
+        return ontologyClasses == null ? 0 : ontologyClasses.size();
+    }
+
+    private static final class Key {
+        private final String system;
+        private final String code;
+        private final String display;
+        private final int hash;
+
+        private Key(String system, String code, String display) {
+            this.system = system;
+            this.code = code;
+            this.display = display;
+            this.hash = Objects.hash(system, code, display);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return hash == key.hash &&
+                    Objects.equals(system, key.system) &&
+                    Objects.equals(code, key.code) &&
+                    Objects.equals(display, key.display);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import org.phenopackets.schema.v1.core.OntologyClass;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The canonical label of each id of an ontology, and the id replacing it if it is obsolete, read from a file written by
+ * {@link OntologyIndexWriter}. The file is memory-mapped rather than loaded, so opening it takes a few milliseconds
+ * whatever the size of the ontology, the operating system pages in the parts which are used and all the instances
+ * opened on the same file share them.
+ * <p>
+ * The file is an open-addressing hash table of fixed size slots followed by the strings they point to:
+ * <pre>
+ * header   MAGIC, VERSION, entry count, slot count, prefix count, slots offset, strings offset
+ * prefixes the id prefixes, e.g. HP, as modified UTF-8
+ * slots    hash, id offset + 1 (0 for an empty slot), label offset, replacement offset or CURRENT or NONE
+ * strings  unsigned short length and UTF-8 bytes
+ * </pre>
+ * So looking up an id is a hash and usually a single slot, and doesn't allocate unless it returns a new String.
+ * <p>
+ * Instances are immutable and thread-safe.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class OntologyIndex {
+
+    static final int MAGIC = 0x504F4931;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 7 * Integer.BYTES;
+    static final int SLOT_INTS = 4;
+    // the replacement offset of a current term
+    static final int CURRENT = -1;
+    // the label or replacement offset of an id without one
+    static final int NONE = -2;
+
+    private static final int SLOT_SIZE = SLOT_INTS * Integer.BYTES;
+    private static final OntologyIndex EMPTY = new OntologyIndex(null, 0, 0, Collections.emptySet(), 0, 0);
+
+    // only ever read with absolute gets, which are safe from any number of threads
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int mask;
+    private final Set<String> prefixes;
+    private final int slotsOffset;
+    private final int stringsOffset;
+
+    private OntologyIndex(ByteBuffer buffer, int size, int slotCount, Set<String> prefixes, int slotsOffset, int stringsOffset) {
+        this.buffer = buffer;
+        this.size = size;
+        this.mask = slotCount - 1;
+        this.prefixes = prefixes;
+        this.slotsOffset = slotsOffset;
+        this.stringsOffset = stringsOffset;
+    }
+
+    /**
+     * An index without any ids, so that terms are left as they are.
+     */
+    public static OntologyIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Maps the index file, which stays mapped until the instance is garbage collected.
+     *
+     * @throws IOException if the file can't be read or is not an index written by {@link OntologyIndexWriter}
+     */
+    public static OntologyIndex open(Path indexFile) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not an ontology index: " + indexFile);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an ontology index: " + indexFile);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported ontology index version " + buffer.getInt(4) + " in " + indexFile + " - rebuild it with OntologyIndexWriter");
+        }
+        int size = buffer.getInt(8);
+        int slotCount = buffer.getInt(12);
+        int prefixCount = buffer.getInt(16);
+        int slotsOffset = buffer.getInt(20);
+        int stringsOffset = buffer.getInt(24);
+        if (Integer.bitCount(slotCount) != 1 || stringsOffset != slotsOffset + slotCount * SLOT_SIZE || stringsOffset > buffer.capacity()) {
+            throw new IOException("Corrupt ontology index: " + indexFile);
+        }
+        Set<String> prefixes = new HashSet<>();
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < prefixCount; i++) {
+            int length = buffer.getShort(offset) & 0xFFFF;
+            prefixes.add(readUtf8(buffer, offset + 2, length));
+            offset += 2 + length;
+        }
+        return new OntologyIndex(buffer, size, slotCount, Collections.unmodifiableSet(prefixes), slotsOffset, stringsOffset);
+    }
+
+    static int hash(String id) {
+        int hash = id.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * The number of ids, including the obsolete ones.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Whether the index is for the ontology of the id, e.g. {@code HP:0000118} is covered by an index of hp.obo but
+     * {@code MONDO:0007915} is not. An id which is covered but not {@link #contains(String) contained} is invalid.
+     */
+    public boolean covers(String id) {
+        int colon = id.indexOf(':');
+        return colon > 0 && prefixes.contains(id.substring(0, colon));
+    }
+
+    public boolean contains(String id) {
+        return findSlot(id) >= 0;
+    }
+
+    /**
+     * The label of a current id, or of the term replacing an obsolete id. Null for an unknown id.
+     */
+    public String label(String id) {
+        int slot = findSlot(id);
+        return slot < 0 ? null : string(buffer.getInt(slot + 8));
+    }
+
+    public boolean isObsolete(String id) {
+        int slot = findSlot(id);
+        return slot >= 0 && buffer.getInt(slot + 12) != CURRENT;
+    }
+
+    /**
+     * The current id replacing an obsolete id. Null for a current, unknown or obsolete id without a replacement.
+     */
+    public String replacement(String id) {
+        int slot = findSlot(id);
+        return slot < 0 ? null : string(buffer.getInt(slot + 12));
+    }
+
+    /**
+     * The term with its current id and canonical label. That is the same instance if they already are, or if the index
+     * doesn't know the id, or it is obsolete without a replacement.
+     */
+    public OntologyClass canonical(OntologyClass term) {
+        int slot = findSlot(term.getId());
+        if (slot < 0) {
+            return term;
+        }
+        int labelOffset = buffer.getInt(slot + 8);
+        int replacedBy = buffer.getInt(slot + 12);
+        if (replacedBy == NONE) {
+            return term;
+        }
+        if (replacedBy == CURRENT) {
+            if (labelOffset == NONE || stringEquals(labelOffset, term.getLabel())) {
+                return term;
+            }
+            return ConverterUtil.ontologyClass(term.getId(), string(labelOffset));
+        }
+        return ConverterUtil.ontologyClass(string(replacedBy), labelOffset == NONE ? "" : string(labelOffset));
+    }
+
+    /**
+     * @return the buffer offset of the slot for the id, or -1 if there isn't one
+     */
+    private int findSlot(String id) {
+        if (buffer == null || id == null) {
+            return -1;
+        }
+        int hash = hash(id);
+        int slot = hash & mask;
+        while (true) {
+            int offset = slotsOffset + slot * SLOT_SIZE;
+            int idOffset = buffer.getInt(offset + 4);
+            if (idOffset == 0) {
+                return -1;
+            }
+            if (buffer.getInt(offset) == hash && stringEquals(idOffset - 1, id)) {
+                return offset;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private String string(int offset) {
+        if (offset < 0) {
+            return null;
+        }
+        int position = stringsOffset + offset;
+        return readUtf8(buffer, position + 2, buffer.getShort(position) & 0xFFFF);
+    }
+
+    /**
+     * Compares the string at the offset without decoding it, unless the value is not ASCII.
+     */
+    private boolean stringEquals(int offset, String value) {
+        int position = stringsOffset + offset;
+        int length = buffer.getShort(position) & 0xFFFF;
+        if (length != value.length()) {
+            // the UTF-8 of a non-ASCII string is longer than its chars, so it may still be equal
+            return length > value.length() && value.equals(string(offset));
+        }
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                return value.equals(string(offset));
+            }
+            if (buffer.get(position + 2 + i) != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readUtf8(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,252 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Builds the binary file read by {@link OntologyIndex} from an ontology in the OBO format, e.g. {@code hp.obo}. Run it
+ * offline, whenever the ontology is updated:
+ * <pre>
+ * java -cp fhir-interop-util.jar org.phenopackets.schema.v1.fhir.interop.converters.OntologyIndexWriter hp.obo hp.idx
+ * </pre>
+ * Every {@code [Term]} stanza is indexed by its {@code id} with its {@code name}, whether it {@code is_obsolete} and its
+ * {@code replaced_by} term, following chains of replacements to a current term. Each {@code alt_id} is indexed as an
+ * obsolete id replaced by its term. Other stanzas and tags are ignored.
+ * <p>
+ * Only depends on the JDK, so it runs with nothing but this module's jar on the classpath.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public final class OntologyIndexWriter {
+
+    // more than enough for the chains of replaced terms in the OBO ontologies
+    private static final int MAX_REPLACEMENTS = 16;
+
+    private OntologyIndexWriter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: OntologyIndexWriter <ontology.obo> <index file>");
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        int entries;
+        try (Reader obo = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            entries = write(obo, Paths.get(args[1]));
+        }
+        System.out.printf("Indexed %d ids in %d ms%n", entries, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Writes the index of the OBO ontology to the file, replacing it once the index is complete.
+     *
+     * @return the number of ids indexed, including the alt_ids
+     */
+    public static int write(Reader obo, Path indexFile) throws IOException {
+        Map<String, Term> terms = parse(obo);
+        List<Entry> entries = toEntries(terms);
+        // next to the index file, so that it can be moved in place atomically
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                write(entries, out);
+            }
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        return entries.size();
+    }
+
+    private static class Term {
+        private String id;
+        private String name;
+        private boolean obsolete;
+        private String replacedBy;
+        private final List<String> altIds = new ArrayList<>(0);
+    }
+
+    private static class Entry {
+        private final String id;
+        private final String label;
+        // null unless obsolete
+        private final String replacedBy;
+        private final boolean obsolete;
+
+        private Entry(String id, String label, boolean obsolete, String replacedBy) {
+            this.id = id;
+            this.label = label;
+            this.obsolete = obsolete;
+            this.replacedBy = replacedBy;
+        }
+    }
+
+    private static Map<String, Term> parse(Reader obo) throws IOException {
+        BufferedReader reader = (obo instanceof BufferedReader) ? (BufferedReader) obo : new BufferedReader(obo);
+        Map<String, Term> terms = new LinkedHashMap<>();
+        Term term = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.startsWith("[")) {
+                term = line.equals("[Term]") ? new Term() : null;
+                continue;
+            }
+            int separator = line.indexOf(':');
+            if (term == null || separator < 0) {
+                continue;
+            }
+            String tag = line.substring(0, separator);
+            String value = line.substring(separator + 1).trim();
+            switch (tag) {
+                case "id":
+                    term.id = firstToken(value);
+                    terms.put(term.id, term);
+                    break;
+                case "name":
+                    term.name = value;
+                    break;
+                case "is_obsolete":
+                    term.obsolete = "true".equals(firstToken(value));
+                    break;
+                case "replaced_by":
+                    term.replacedBy = firstToken(value);
+                    break;
+                case "alt_id":
+                    term.altIds.add(firstToken(value));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return terms;
+    }
+
+    // drops the trailing modifiers and comments, e.g. "HP:0000001 {source=...} ! All"
+    private static String firstToken(String value) {
+        int end = 0;
+        while (end < value.length() && !Character.isWhitespace(value.charAt(end))) {
+            end++;
+        }
+        return value.substring(0, end);
+    }
+
+    private static List<Entry> toEntries(Map<String, Term> terms) {
+        List<Entry> entries = new ArrayList<>(terms.size() * 2);
+        for (Term term : terms.values()) {
+            if (term.obsolete) {
+                Term replacement = currentTerm(terms, term);
+                boolean replaced = replacement != term;
+                entries.add(new Entry(term.id, replacement.name, true, replaced ? replacement.id : null));
+            } else {
+                entries.add(new Entry(term.id, term.name, false, null));
+            }
+        }
+        for (Term term : terms.values()) {
+            Term replacement = currentTerm(terms, term);
+            for (String altId : term.altIds) {
+                // an alt_id is sometimes also the id of an obsolete term, whose own stanza wins
+                if (!terms.containsKey(altId)) {
+                    entries.add(new Entry(altId, replacement.name, true, replacement.id));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * The term replacing an obsolete term, via any number of obsolete terms, or the term itself if it is current or
+     * has no replacement.
+     */
+    private static Term currentTerm(Map<String, Term> terms, Term term) {
+        Term current = term;
+        for (int i = 0; i < MAX_REPLACEMENTS && current.obsolete && current.replacedBy != null; i++) {
+            Term replacement = terms.get(current.replacedBy);
+            if (replacement == null) {
+                break;
+            }
+            current = replacement;
+        }
+        return current;
+    }
+
+    private static void write(List<Entry> entries, DataOutputStream out) throws IOException {
+        Strings strings = new Strings();
+        Set<String> prefixes = new TreeSet<>();
+        int slotCount = Integer.highestOneBit(Math.max(2, entries.size()) * 2 - 1) * 2;
+        int[] slots = new int[slotCount * OntologyIndex.SLOT_INTS];
+        int mask = slotCount - 1;
+        for (Entry entry : entries) {
+            int colon = entry.id.indexOf(':');
+            if (colon > 0) {
+                prefixes.add(entry.id.substring(0, colon));
+            }
+            int hash = OntologyIndex.hash(entry.id);
+            int slot = hash & mask;
+            while (slots[slot * OntologyIndex.SLOT_INTS + 1] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            int i = slot * OntologyIndex.SLOT_INTS;
+            slots[i] = hash;
+            slots[i + 1] = strings.offsetOf(entry.id) + 1;
+            slots[i + 2] = entry.label == null ? OntologyIndex.NONE : strings.offsetOf(entry.label);
+            if (!entry.obsolete) {
+                slots[i + 3] = OntologyIndex.CURRENT;
+            } else {
+                slots[i + 3] = entry.replacedBy == null ? OntologyIndex.NONE : strings.offsetOf(entry.replacedBy);
+            }
+        }
+
+        ByteArrayOutputStream prefixBytes = new ByteArrayOutputStream();
+        DataOutputStream prefixOut = new DataOutputStream(prefixBytes);
+        for (String prefix : prefixes) {
+            prefixOut.writeUTF(prefix);
+        }
+        int slotsOffset = OntologyIndex.HEADER_SIZE + prefixBytes.size();
+        int stringsOffset = slotsOffset + slots.length * Integer.BYTES;
+
+        out.writeInt(OntologyIndex.MAGIC);
+        out.writeInt(OntologyIndex.VERSION);
+        out.writeInt(entries.size());
+        out.writeInt(slotCount);
+        out.writeInt(prefixes.size());
+        out.writeInt(slotsOffset);
+        out.writeInt(stringsOffset);
+        prefixBytes.writeTo(out);
+        for (int value : slots) {
+            out.writeInt(value);
+        }
+        strings.bytes.writeTo(out);
+    }
+
+    /**
+     * Each distinct string once, as its UTF-8 length in an unsigned short followed by its UTF-8 bytes.
+     */
+    private static class Strings {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final Map<String, Integer> offsets = new HashMap<>();
+
+        private int offsetOf(String value) {
+            Integer offset = offsets.get(value);
+            if (offset != null) {
+                return offset;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            if (utf8.length > 0xFFFF) {
+                throw new IllegalArgumentException("String too long for the index: " + value.substring(0, 100) + "...");
+            }
+            offset = bytes.size();
+            bytes.write(utf8.length >>> 8);
+            bytes.write(utf8.length);
+            bytes.write(utf8, 0, utf8.length);
+            offsets.put(value, offset);
+            return offset;
+        }
+    }
+}
@@ -17,7 +17,7 @@ import static org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil.c
  */
 public class PhenoPacketConverter {
 
-    //needs to be a CurieUtil
+    // used for ids with a prefix unknown to the ConceptMapper
     static final String SNOMED_CT_SYSTEM = "http://snomed.info/sct";
     static final String HPO_SYSTEM = "http://purl.obolibrary.org/obo/hp.owl";
 
@@ -25,47 +25,51 @@ public class PhenoPacketConverter {
     }
 
     public static Bundle toFhirBundle(Phenopacket phenoPacket) {
+        return toFhirBundle(phenoPacket, ConceptMapper.defaultMapper());
+    }
+
+    /**
+     * Maps the OntologyClasses to FHIR codings, and any translations of them, with the ConceptMapper.
+     */
+    public static Bundle toFhirBundle(Phenopacket phenoPacket, ConceptMapper conceptMapper) {
         if (Phenopacket.getDefaultInstance().equals(phenoPacket)) {
             return new Bundle();
         }
         Bundle bundle = new Bundle();
         bundle.setType(Bundle.BundleType.COLLECTION);
 
-        List<Resource> resources = extractResourcesFromPhenoPacket(phenoPacket);
-        resources.forEach(bundle.addEntry()::setResource);
+        List<Resource> resources = extractResourcesFromPhenoPacket(phenoPacket, conceptMapper);
+        resources.forEach(resource -> bundle.addEntry().setResource(resource));
 
         return bundle;
     }
 
-    private static List<Resource> extractResourcesFromPhenoPacket(Phenopacket phenoPacket) {
+    private static List<Resource> extractResourcesFromPhenoPacket(Phenopacket phenoPacket, ConceptMapper conceptMapper) {
         List<Resource> resources = new ArrayList<>();
         if (phenoPacket.hasSubject()) {
             Individual individual = phenoPacket.getSubject();
             Patient patient = createPatient(individual);
             resources.add(patient);
             for (PhenotypicFeature phenotype : phenoPacket.getPhenotypicFeaturesList()) {
-                resources.add(createPatientCondition(phenotype, patient));
+                resources.add(createPatientCondition(phenotype, patient, conceptMapper));
             }
         }
 
         for (Biosample biosample : phenoPacket.getBiosamplesList()) {
-            resources.add(createSpecimen(biosample));
+            resources.add(createSpecimen(biosample, conceptMapper));
         }
 
         return resources;
     }
 
-    private static Resource createSpecimen(Biosample biosample) {
+    private static Resource createSpecimen(Biosample biosample, ConceptMapper conceptMapper) {
         Specimen specimen = new Specimen();
         specimen.setId(biosample.getId());
         biosample.getTaxonomy();
         biosample.getPhenotypicFeaturesList();// What to do with these? Specimen only has one type...
         OntologyClass sampleType = biosample.getSampledTissue();
-        // TODO:
-        // look-up against MetaData object and use the CureUtil to create long and short-form identifiers
-        // this can then convert any OntologyClass into a CodeableConcept.
-        // reversing this should also be possible.
-        specimen.setType(codeableConcept(SNOMED_CT_SYSTEM, sampleType.getId(), sampleType.getLabel()));
+        // TODO: look-up against the MetaData resources using ConceptMapper.fromMetaData
+        specimen.setType(conceptMapper.toCodeableConcept(sampleType, SNOMED_CT_SYSTEM));
         specimen.setSubject(new Reference(biosample.getIndividualId()));
         return specimen;
     }
@@ -87,10 +91,13 @@ public class PhenoPacketConverter {
      * @return
      */
     public static Condition createPatientCondition(PhenotypicFeature phenotype, Patient patient) {
+        return createPatientCondition(phenotype, patient, ConceptMapper.defaultMapper());
+    }
+
+    public static Condition createPatientCondition(PhenotypicFeature phenotype, Patient patient, ConceptMapper conceptMapper) {
         Condition condition = new Condition();
-        //TODO: Use CurieUtil to convert the CURIE to a full system
-        condition.setCode(codeableConcept(HPO_SYSTEM, phenotype.getType().getId(), phenotype.getType().getLabel()));
-        condition.setSeverity(codeableConcept(HPO_SYSTEM, phenotype.getSeverity().getId(), phenotype.getSeverity().getLabel()));
+        condition.setCode(conceptMapper.toCodeableConcept(phenotype.getType(), HPO_SYSTEM));
+        condition.setSeverity(conceptMapper.toCodeableConcept(phenotype.getSeverity(), HPO_SYSTEM));
         // Fhir has oneof datetime, Age, Period, String - For this example we're going to use a string
         condition.setOnset(new StringType(phenotype.getClassOfOnset().getLabel()));
         condition.setSubject(new Reference(patient));
@@ -0,0 +1,138 @@
+package org.phenopackets.schema.v1.fhir.interop.converters.fhir;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resolves references between the resources of a Bundle in constant time. The HAPI parser links the references of the
+ * Bundles it parses, but those built in code, e.g. from the results of a FHIR client, only have the reference strings.
+ * <p>
+ * Each entry is indexed by its fullUrl, e.g. {@code urn:uuid:...} or {@code http://server/fhir/Patient/123}, and by the
+ * {@code Type/id} and, if it has a version, the {@code Type/id/_history/version} of its fullUrl, of its resource id and
+ * of the {@link #ORIGINAL_ID} the resource id replaced, if any.
+ * A reference is resolved by a lookup of its string, and otherwise of its versionless form, so that
+ * {@code Patient/123/_history/2} resolves to a Patient/123 without a version or with version 2, but not to one with
+ * another version. Where two entries have the same key the first one wins.
+ * <p>
+ * Built for one Bundle, with a few keys per entry, and not thread-safe.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class BundleReferenceIndex {
+
+    /**
+     * The user data key of the resource id in the JSON, for a reader which overrides it with the fullUrl before the
+     * references are linked, as the HAPI parser does after linking them.
+     */
+    public static final String ORIGINAL_ID = BundleReferenceIndex.class.getName() + ".originalId";
+
+    private static final String HISTORY = "/_history/";
+
+    private final Map<String, Resource> resourcesByReference;
+
+    private BundleReferenceIndex(Map<String, Resource> resourcesByReference) {
+        this.resourcesByReference = resourcesByReference;
+    }
+
+    public static BundleReferenceIndex of(Bundle bundle) {
+        Map<String, Resource> resourcesByReference = new HashMap<>(bundle.getEntry().size() * 4);
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Resource resource = entry.getResource();
+            if (resource == null) {
+                continue;
+            }
+            if (entry.hasFullUrl()) {
+                String fullUrl = entry.getFullUrl();
+                resourcesByReference.putIfAbsent(fullUrl, resource);
+                indexId(resourcesByReference, resource, new IdType(fullUrl));
+            }
+            if (resource.hasIdElement()) {
+                IdType id = resource.getIdElement();
+                if (id.isAbsolute() || id.isUrn()) {
+                    // the fullUrl, if the resource has been through the HAPI parser
+                    resourcesByReference.putIfAbsent(id.toVersionless().getValue(), resource);
+                }
+                indexId(resourcesByReference, resource, id);
+            }
+            Object originalId = resource.getUserData(ORIGINAL_ID);
+            if (originalId instanceof IdType) {
+                indexId(resourcesByReference, resource, (IdType) originalId);
+            }
+        }
+        return new BundleReferenceIndex(resourcesByReference);
+    }
+
+    private static void indexId(Map<String, Resource> resourcesByReference, Resource resource, IdType id) {
+        String idPart = id.getIdPart();
+        // urn:uuid: and urn:oid: ids have no Type/id form
+        if (idPart == null || id.isUrn()) {
+            return;
+        }
+        String typeAndId = resource.getResourceType().name() + "/" + idPart;
+        resourcesByReference.putIfAbsent(typeAndId, resource);
+        if (id.hasVersionIdPart()) {
+            resourcesByReference.putIfAbsent(typeAndId + HISTORY + id.getVersionIdPart(), resource);
+        }
+    }
+
+    public int size() {
+        return resourcesByReference.size();
+    }
+
+    /**
+     * The resource of the reference, as already linked by the parser or else from the index, or null if it isn't in
+     * the Bundle.
+     */
+    public Resource resolve(Reference reference) {
+        IBaseResource resource = reference.getResource();
+        if (resource instanceof Resource) {
+            return (Resource) resource;
+        }
+        return reference.hasReference() ? resolve(reference.getReference()) : null;
+    }
+
+    public Resource resolve(String reference) {
+        Resource resource = resourcesByReference.get(reference);
+        if (resource != null) {
+            return resource;
+        }
+        int history = reference.indexOf(HISTORY);
+        if (history < 0) {
+            return null;
+        }
+        resource = resourcesByReference.get(reference.substring(0, history));
+        String version = reference.substring(history + HISTORY.length());
+        return resource != null && isVersion(resource, version) ? resource : null;
+    }
+
+    private static boolean isVersion(Resource resource, String version) {
+        String resourceVersion = resource.getIdElement().getVersionIdPart();
+        if (resourceVersion == null && resource.hasMeta()) {
+            resourceVersion = resource.getMeta().getVersionId();
+        }
+        return resourceVersion == null || resourceVersion.equals(version);
+    }
+
+    /**
+     * Points the reference at its resource in the Bundle, as the HAPI parser does, unless it already points at one.
+     *
+     * @return whether the reference now points at a resource
+     */
+    public boolean link(Reference reference) {
+        if (reference.getResource() != null) {
+            return true;
+        }
+        Resource resource = resolve(reference);
+        if (resource == null) {
+            return false;
+        }
+        reference.setResource(resource);
+        return true;
+    }
+}
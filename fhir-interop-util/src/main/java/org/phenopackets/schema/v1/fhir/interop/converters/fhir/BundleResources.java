@@ -0,0 +1,173 @@
+package org.phenopackets.schema.v1.fhir.interop.converters.fhir;
+
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimaps;
+import org.hl7.fhir.r4.model.*;
+
+import java.util.*;
+
+/**
+ * The resources of a Bundle used by the converters, collected by a {@link ResourceDispatcher} in a single pass over
+ * its entries: the Patients, their Conditions and Observations grouped by subject, and the Specimens,
+ * FamilyMemberHistories and RelatedPersons. Conditions whose subject is not a Patient of the Bundle are dropped.
+ * <p>
+ * The subject references of the collected resources, and the references a {@link PedigreeGraph} follows, are linked to their resources, as the HAPI parser does, if they
+ * aren't already, e.g. in a Bundle built in code. The {@link BundleReferenceIndex} for that is only built if there are
+ * such references, so it costs nothing for a parsed Bundle.
+ * <p>
+ * Instances are built for one Bundle and are not thread-safe.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class BundleResources {
+
+    private static final ResourceDispatcher<BundleResources> DISPATCHER = ResourceDispatcher.<BundleResources>builder()
+            .on(Patient.class, BundleResources::addPatient)
+            .on(Condition.class, BundleResources::addCondition)
+            .on(Specimen.class, BundleResources::addSpecimen)
+            .on(Observation.class, BundleResources::addObservation)
+            .on(FamilyMemberHistory.class, BundleResources::addFamilyMemberHistory)
+            .on(RelatedPerson.class, BundleResources::addRelatedPerson)
+            .build();
+
+    private final List<Patient> patients = new ArrayList<>();
+    private final List<Condition> conditions = new ArrayList<>();
+    private final List<Condition> patientConditions = new ArrayList<>();
+    // HAPI resources do not override equals/hashCode, so the patients are keyed by identity
+    private final ListMultimap<Patient, Condition> conditionsBySubject = Multimaps.newListMultimap(new IdentityHashMap<>(), ArrayList::new);
+    private final List<Specimen> specimens = new ArrayList<>();
+    private final List<Observation> observations = new ArrayList<>();
+    private final ListMultimap<Patient, Observation> observationsBySubject = Multimaps.newListMultimap(new IdentityHashMap<>(), ArrayList::new);
+    private final List<FamilyMemberHistory> familyMemberHistories = new ArrayList<>();
+    private final List<RelatedPerson> relatedPersons = new ArrayList<>();
+    private final List<Reference> unlinkedReferences = new ArrayList<>();
+
+    private BundleResources() {
+    }
+
+    public static BundleResources of(Bundle bundle) {
+        BundleResources bundleResources = DISPATCHER.dispatch(bundle, new BundleResources());
+        bundleResources.linkReferences(bundle);
+        bundleResources.groupBySubject();
+        return bundleResources;
+    }
+
+    /**
+     * The resource types collected, e.g. for a {@link StreamingBundleReader} to skip the others.
+     */
+    public static Set<ResourceType> resourceTypes() {
+        return DISPATCHER.getResourceTypes();
+    }
+
+    private void addPatient(Patient patient) {
+        patients.add(patient);
+        for (Patient.PatientLinkComponent link : patient.getLink()) {
+            addReference(link.getOther());
+        }
+    }
+
+    private void addCondition(Condition condition) {
+        conditions.add(condition);
+        addReference(condition.getSubject());
+    }
+
+    private void addSpecimen(Specimen specimen) {
+        specimens.add(specimen);
+        addReference(specimen.getSubject());
+    }
+
+    private void addObservation(Observation observation) {
+        observations.add(observation);
+        addReference(observation.getSubject());
+    }
+
+    private void addFamilyMemberHistory(FamilyMemberHistory familyMemberHistory) {
+        familyMemberHistories.add(familyMemberHistory);
+        addReference(familyMemberHistory.getPatient());
+        Extension patientRecord = familyMemberHistory.getExtensionByUrl(PedigreeGraph.PATIENT_RECORD);
+        if (patientRecord != null && patientRecord.getValue() instanceof Reference) {
+            addReference((Reference) patientRecord.getValue());
+        }
+    }
+
+    private void addRelatedPerson(RelatedPerson relatedPerson) {
+        relatedPersons.add(relatedPerson);
+        addReference(relatedPerson.getPatient());
+    }
+
+    private void addReference(Reference reference) {
+        if (reference.getResource() == null && reference.hasReference()) {
+            unlinkedReferences.add(reference);
+        }
+    }
+
+    private void linkReferences(Bundle bundle) {
+        if (unlinkedReferences.isEmpty()) {
+            return;
+        }
+        BundleReferenceIndex bundleReferenceIndex = BundleReferenceIndex.of(bundle);
+        for (Reference reference : unlinkedReferences) {
+            bundleReferenceIndex.link(reference);
+        }
+        unlinkedReferences.clear();
+    }
+
+    // once the references are linked, as a Condition may come before its subject
+    private void groupBySubject() {
+        for (Condition condition : conditions) {
+            if (condition.getSubject().getResource() instanceof Patient) {
+                patientConditions.add(condition);
+                conditionsBySubject.put((Patient) condition.getSubject().getResource(), condition);
+            }
+        }
+        for (Observation observation : observations) {
+            if (observation.getSubject().getResource() instanceof Patient) {
+                observationsBySubject.put((Patient) observation.getSubject().getResource(), observation);
+            }
+        }
+    }
+
+    /**
+     * The Patients, in Bundle order.
+     */
+    public List<Patient> getPatients() {
+        return patients;
+    }
+
+    /**
+     * The Conditions of all the Patients, in Bundle order.
+     */
+    public List<Condition> getPatientConditions() {
+        return patientConditions;
+    }
+
+    /**
+     * The Conditions whose subject is the Patient, in Bundle order.
+     */
+    public List<Condition> getConditions(Patient patient) {
+        return conditionsBySubject.get(patient);
+    }
+
+    public List<Specimen> getSpecimens() {
+        return specimens;
+    }
+
+    public List<Observation> getObservations() {
+        return observations;
+    }
+
+    /**
+     * The Observations whose subject is the Patient, in Bundle order.
+     */
+    public List<Observation> getObservations(Patient patient) {
+        return observationsBySubject.get(patient);
+    }
+
+    public List<FamilyMemberHistory> getFamilyMemberHistories() {
+        return familyMemberHistories;
+    }
+
+    public List<RelatedPerson> getRelatedPersons() {
+        return relatedPersons;
+    }
+}
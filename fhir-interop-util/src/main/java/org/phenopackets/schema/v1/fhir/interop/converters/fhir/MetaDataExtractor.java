@@ -7,13 +7,11 @@ import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.Patient;
 import org.phenopackets.schema.v1.core.MetaData;
 import org.phenopackets.schema.v1.core.Resource;
-import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
@@ -29,9 +27,37 @@ public class MetaDataExtractor {
         return new Builder();
     }
 
+    /**
+     * The Resources for the codings of a single Condition, in the order they would be added to its MetaData. A
+     * Resource is listed once for each coding, so it may appear twice.
+     */
+    public static List<Resource> resourcesFor(Condition condition, ResourceRegistry resourceRegistry) {
+        return resourcesFor(condition, Collections.emptyList(), resourceRegistry);
+    }
+
+    /**
+     * As {@link #resourcesFor(Condition, ResourceRegistry)}, followed by the Resources for the codings of the terms the
+     * Condition codings were translated to, see {@link PhenopacketExtractor#extractPhenotypicFeature(Condition, List)}.
+     */
+    public static List<Resource> resourcesFor(Condition condition, List<Coding> translatedCodings, ResourceRegistry resourceRegistry) {
+        List<Resource> resources = new ArrayList<>(2 + translatedCodings.size());
+        if (condition.hasCode()) {
+            resources.add(resourceRegistry.resourceFor(condition.getCode().getCodingFirstRep()));
+        }
+        if (condition.hasSeverity()) {
+            resources.add(resourceRegistry.resourceFor(condition.getSeverity().getCodingFirstRep()));
+        }
+        for (Coding coding : translatedCodings) {
+            resources.add(resourceRegistry.resourceFor(coding));
+        }
+        return resources;
+    }
+
     public static class Builder {
         private String createdBy = "Unspecified";
         private List<Condition> conditions = ImmutableList.of();
+        private List<Coding> codings = ImmutableList.of();
+        private ResourceRegistry resourceRegistry;
 
         private Builder() {
         }
@@ -46,8 +72,25 @@ public class MetaDataExtractor {
             return this;
         }
 
+        /**
+         * Codings used other than those of the Conditions, e.g. the terms of PhenotypicFeatures from Observations.
+         */
+        public Builder fromCodings(Iterable<Coding> codings) {
+            this.codings = ImmutableList.copyOf(codings);
+            return this;
+        }
+
+        /**
+         * Takes the Resources from a registry shared with other MetaData, e.g. for all the members of a Cohort, rather
+         * than creating new ones.
+         */
+        public Builder resourceRegistry(ResourceRegistry resourceRegistry) {
+            this.resourceRegistry = resourceRegistry;
+            return this;
+        }
+
         public MetaData buildMetaData() {
-            Set<Resource> metaDataResources = populateResources();
+            Collection<Resource> metaDataResources = populateResources();
 
             return MetaData.newBuilder()
                     .addAllResources(metaDataResources)
@@ -56,26 +99,31 @@ public class MetaDataExtractor {
                     .build();
         }
 
-        private Set<Resource> populateResources() {
-            List<Coding> codings = new ArrayList<>();
+        private Collection<Resource> populateResources() {
+            ResourceRegistry registry = (resourceRegistry == null) ? new ResourceRegistry() : resourceRegistry;
+            // the registry keys are cheap to hash, unlike the Resources
+            Map<ResourceRegistry.Key, Resource> resources = new LinkedHashMap<>();
 
             for (Condition condition : conditions) {
                 if (condition.hasCode()) {
-                    Coding coding = condition.getCode().getCodingFirstRep();
-                    codings.add(coding);
+                    addResource(registry, resources, condition.getCode().getCodingFirstRep());
                 }
                 if (condition.hasSeverity()) {
-                    Coding coding = condition.getSeverity().getCodingFirstRep();
-                    codings.add(coding);
+                    addResource(registry, resources, condition.getSeverity().getCodingFirstRep());
                 }
 //            if (condition.hasEvidence()) {
 //                Coding coding = condition.getEvidence().getCodingFirstRep();
 //                codings.add(coding);
 //            }
             }
-            return codings.stream()
-                    .map(ConverterUtil::makePhenopacketResource)
-                    .collect(Collectors.toCollection(LinkedHashSet::new));
+            for (Coding coding : codings) {
+                addResource(registry, resources, coding);
+            }
+            return resources.values();
+        }
+
+        private void addResource(ResourceRegistry registry, Map<ResourceRegistry.Key, Resource> resources, Coding coding) {
+            resources.computeIfAbsent(registry.keyFor(coding), registry::resourceFor);
         }
     }
 }
@@ -0,0 +1,307 @@
+package org.phenopackets.schema.v1.fhir.interop.converters.fhir;
+
+import org.hl7.fhir.r4.model.*;
+import org.phenopackets.schema.v1.core.OntologyClass;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
+import org.phenopackets.schema.v1.fhir.interop.converters.CurieIndex;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Rules turning quantitative lab Observations into phenotypes, e.g. a platelet count under 150 10*3/uL into
+ * HP:0001873 Thrombocytopenia. The rules are read from a tab-separated file with a rule per line:
+ * <pre>
+ * # loinc  unit     low  high  term        label
+ * 777-3    10*3/uL       150   HP:0001873  Thrombocytopenia
+ * 777-3    10*3/uL  450        HP:0001894  Thrombocytosis
+ * </pre>
+ * A rule matches an Observation, or one of its components, with a coding of the LOINC code in {@code http://loinc.org}
+ * and a Quantity value in the unit whose value is at least {@code low} and under {@code high}. An empty bound is
+ * unbounded and an empty unit matches any unit. The unit is compared with the UCUM code of the Quantity and otherwise
+ * its human readable unit. A Quantity with a comparator, e.g. {@code <50}, matches the rules whose range holds every
+ * value the comparator allows, so {@code <50 10*3/uL} is Thrombocytopenia but {@code <200 10*3/uL} is nothing. Blank
+ * lines and those starting with {@code #} are ignored.
+ * <p>
+ * The rules for each code and unit are compiled into an interval index: the sorted bounds of all their ranges and,
+ * for each interval between two bounds, the terms of the rules covering it. So an Observation is evaluated with a
+ * couple of map lookups and a binary search however many rules there are, and overlapping ranges are fine. Observations
+ * which are entered-in-error or cancelled are ignored.
+ * <p>
+ * Instances are immutable and thread-safe.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class ObservationRules {
+
+    public static final String LOINC_SYSTEM = "http://loinc.org";
+
+    private static final ObservationRules EMPTY = new ObservationRules(Collections.emptyMap());
+
+    // code -> unit -> index, with the rules for any unit under ""
+    private final Map<String, Map<String, IntervalIndex>> indexesByCode;
+
+    private ObservationRules(Map<String, Map<String, IntervalIndex>> indexesByCode) {
+        this.indexesByCode = indexesByCode;
+    }
+
+    /**
+     * No rules, so Observations are not even looked at.
+     */
+    public static ObservationRules empty() {
+        return EMPTY;
+    }
+
+    public static ObservationRules load(Path rulesFile) throws IOException {
+        try (Reader reader = Files.newBufferedReader(rulesFile, StandardCharsets.UTF_8)) {
+            return parse(reader);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if a line is not a valid rule
+     */
+    public static ObservationRules parse(Reader rules) throws IOException {
+        BufferedReader reader = (rules instanceof BufferedReader) ? (BufferedReader) rules : new BufferedReader(rules);
+        Map<String, Map<String, List<Rule>>> rulesByCode = new HashMap<>();
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            Rule rule = parseRule(line, lineNumber);
+            rulesByCode.computeIfAbsent(rule.code, code -> new HashMap<>())
+                    .computeIfAbsent(rule.unit, unit -> new ArrayList<>())
+                    .add(rule);
+        }
+        return compile(rulesByCode);
+    }
+
+    private static Rule parseRule(String line, int lineNumber) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 6) {
+            throw new IllegalArgumentException("Expected 6 tab-separated fields but found " + fields.length + " on line " + lineNumber);
+        }
+        String code = fields[0].trim();
+        String termId = fields[4].trim();
+        if (code.isEmpty() || termId.isEmpty()) {
+            throw new IllegalArgumentException("Missing code or term on line " + lineNumber);
+        }
+        double low = parseBound(fields[2], Double.NEGATIVE_INFINITY, lineNumber);
+        double high = parseBound(fields[3], Double.POSITIVE_INFINITY, lineNumber);
+        if (!(low < high)) {
+            throw new IllegalArgumentException("Empty range [" + fields[2] + ", " + fields[3] + ") on line " + lineNumber);
+        }
+        return new Rule(code, fields[1].trim(), low, high, ConverterUtil.ontologyClass(termId, fields[5].trim()));
+    }
+
+    private static double parseBound(String field, double unbounded, int lineNumber) {
+        String bound = field.trim();
+        if (bound.isEmpty()) {
+            return unbounded;
+        }
+        try {
+            return Double.parseDouble(bound);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid bound " + bound + " on line " + lineNumber, e);
+        }
+    }
+
+    private static ObservationRules compile(Map<String, Map<String, List<Rule>>> rulesByCode) {
+        Map<String, Map<String, IntervalIndex>> indexesByCode = new HashMap<>(rulesByCode.size() * 2);
+        rulesByCode.forEach((code, rulesByUnit) -> {
+            Map<String, IntervalIndex> indexesByUnit = new HashMap<>(rulesByUnit.size() * 2);
+            rulesByUnit.forEach((unit, rules) -> indexesByUnit.put(unit, IntervalIndex.of(rules)));
+            indexesByCode.put(code, indexesByUnit);
+        });
+        return new ObservationRules(indexesByCode);
+    }
+
+    public boolean isEmpty() {
+        return indexesByCode.isEmpty();
+    }
+
+    /**
+     * Passes the term of every rule matching the Observation or its components to the consumer. A term may be passed
+     * more than once.
+     */
+    public void evaluate(Observation observation, Consumer<OntologyClass> consumer) {
+        if (indexesByCode.isEmpty() || observation.getStatus() == Observation.ObservationStatus.ENTEREDINERROR
+                || observation.getStatus() == Observation.ObservationStatus.CANCELLED) {
+            return;
+        }
+        if (observation.hasCode()) {
+            evaluate(observation.getCode(), observation.getValue(), consumer);
+        }
+        if (observation.hasComponent()) {
+            for (Observation.ObservationComponentComponent component : observation.getComponent()) {
+                evaluate(component.getCode(), component.getValue(), consumer);
+            }
+        }
+    }
+
+    private void evaluate(CodeableConcept code, Type value, Consumer<OntologyClass> consumer) {
+        if (!(value instanceof Quantity) || !((Quantity) value).hasValue()) {
+            return;
+        }
+        Quantity quantity = (Quantity) value;
+        for (Coding coding : code.getCoding()) {
+            if (!LOINC_SYSTEM.equals(coding.getSystem())) {
+                continue;
+            }
+            Map<String, IntervalIndex> indexesByUnit = indexesByCode.get(coding.getCode());
+            if (indexesByUnit == null) {
+                continue;
+            }
+            double amount = quantity.getValue().doubleValue();
+            Quantity.QuantityComparator comparator = quantity.hasComparator() ? quantity.getComparator() : null;
+            IntervalIndex index = indexForUnit(indexesByUnit, quantity);
+            if (index != null) {
+                index.evaluate(amount, comparator, consumer);
+            }
+            IntervalIndex anyUnit = indexesByUnit.get("");
+            if (anyUnit != null && anyUnit != index) {
+                anyUnit.evaluate(amount, comparator, consumer);
+            }
+        }
+    }
+
+    private static IntervalIndex indexForUnit(Map<String, IntervalIndex> indexesByUnit, Quantity quantity) {
+        IntervalIndex index = quantity.hasCode() ? indexesByUnit.get(quantity.getCode()) : null;
+        if (index == null && quantity.hasUnit()) {
+            index = indexesByUnit.get(quantity.getUnit());
+        }
+        return index;
+    }
+
+    /**
+     * The Coding of a term, for the MetaData Resources of the Phenopackets it is added to.
+     */
+    static Coding toCoding(OntologyClass term) {
+        CurieIndex.Namespace namespace = CurieIndex.defaultIndex().namespaceForCurie(term.getId());
+        String system = namespace == null ? null : namespace.getSystem();
+        return new Coding(system, term.getId(), term.getLabel());
+    }
+
+    private static class Rule {
+        private final String code;
+        private final String unit;
+        private final double low;
+        private final double high;
+        private final OntologyClass term;
+
+        private Rule(String code, String unit, double low, double high, OntologyClass term) {
+            this.code = code;
+            this.unit = unit;
+            this.low = low;
+            this.high = high;
+            this.term = term;
+        }
+    }
+
+    /**
+     * The rules for a code and unit. The value range is split at every bound, so {@code terms[i]} are the terms of the
+     * rules covering {@code [bounds[i], bounds[i + 1])}, where {@code bounds[0]} is minus infinity.
+     */
+    private static class IntervalIndex {
+
+        private static final OntologyClass[] NONE = new OntologyClass[0];
+
+        private final double[] bounds;
+        private final OntologyClass[][] terms;
+
+        private IntervalIndex(double[] bounds, OntologyClass[][] terms) {
+            this.bounds = bounds;
+            this.terms = terms;
+        }
+
+        private static IntervalIndex of(List<Rule> rules) {
+            TreeSet<Double> sortedBounds = new TreeSet<>();
+            sortedBounds.add(Double.NEGATIVE_INFINITY);
+            for (Rule rule : rules) {
+                sortedBounds.add(rule.low);
+                if (rule.high != Double.POSITIVE_INFINITY) {
+                    sortedBounds.add(rule.high);
+                }
+            }
+            double[] bounds = new double[sortedBounds.size()];
+            int i = 0;
+            for (double bound : sortedBounds) {
+                bounds[i++] = bound;
+            }
+
+            List<List<OntologyClass>> termLists = new ArrayList<>(bounds.length);
+            for (int interval = 0; interval < bounds.length; interval++) {
+                termLists.add(new ArrayList<>(1));
+            }
+            for (Rule rule : rules) {
+                int first = Arrays.binarySearch(bounds, rule.low);
+                int end = rule.high == Double.POSITIVE_INFINITY ? bounds.length : Arrays.binarySearch(bounds, rule.high);
+                for (int interval = first; interval < end; interval++) {
+                    termLists.get(interval).add(rule.term);
+                }
+            }
+            OntologyClass[][] terms = new OntologyClass[bounds.length][];
+            for (int interval = 0; interval < bounds.length; interval++) {
+                List<OntologyClass> intervalTerms = termLists.get(interval);
+                terms[interval] = intervalTerms.isEmpty() ? NONE : intervalTerms.toArray(new OntologyClass[0]);
+            }
+            return new IntervalIndex(bounds, terms);
+        }
+
+        /**
+         * Passes on the terms of the rules covering the value or, with a comparator, every value it allows. The rules
+         * are ranges, so those covering both the interval of the value and the first or last interval cover all those
+         * in between.
+         */
+        private void evaluate(double value, Quantity.QuantityComparator comparator, Consumer<OntologyClass> consumer) {
+            if (Double.isNaN(value)) {
+                return;
+            }
+            int found = Arrays.binarySearch(bounds, value);
+            // the interval starting at the bound, or else the one before the insertion point
+            int interval = found >= 0 ? found : -found - 2;
+            if (comparator == null) {
+                for (OntologyClass term : terms[interval]) {
+                    consumer.accept(term);
+                }
+                return;
+            }
+            int end;
+            switch (comparator) {
+                case LESS_THAN:
+                    if (found >= 0) {
+                        // the values under a bound are all in the interval before it
+                        if (interval == 0) {
+                            return;
+                        }
+                        interval--;
+                    }
+                    end = 0;
+                    break;
+                case LESS_OR_EQUAL:
+                    end = 0;
+                    break;
+                case GREATER_THAN:
+                case GREATER_OR_EQUAL:
+                    end = bounds.length - 1;
+                    break;
+                default:
+                    return;
+            }
+            for (OntologyClass term : terms[interval]) {
+                if (Arrays.asList(terms[end]).contains(term)) {
+                    consumer.accept(term);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package org.phenopackets.schema.v1.fhir.interop.converters.fhir;
+
+import com.google.common.collect.ImmutableMap;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.*;
+import org.phenopackets.schema.v1.core.Pedigree;
+import org.phenopackets.schema.v1.core.Sex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * The family relationships between the people described by a Bundle, as the parents of each of them, for converting
+ * the Bundle to a Family and its {@link Pedigree}.
+ * <p>
+ * Each Patient, each RelatedPerson and each FamilyMemberHistory is a person of the pedigree, unless it is the record
+ * of a Patient. That is a RelatedPerson which is the {@code other} of a Patient {@code link}, or a FamilyMemberHistory
+ * whose {@value #PATIENT_RECORD} extension references a Patient or RelatedPerson. The people are numbered in that
+ * order, and a RelatedPerson or FamilyMemberHistory says who they are to its {@code patient} with a v3 RoleCode
+ * {@code relationship}, e.g. MTH for the mother. Parents, children, siblings and grandparents are linked, other
+ * relatives, e.g. aunts and cousins, are in the pedigree without parents. Where the Bundle gives someone two different
+ * mothers or fathers the first one wins.
+ * <p>
+ * The relationships are read in a single pass into arrays indexed by person, and resolved by a pass over them for
+ * parents and children, one for siblings, using a union-find over the arrays so that a parent given for one of them is
+ * shared by all, and one for grandparents, who need the parents. So the cost is linear in the number of people and
+ * relationships, whatever the shape of the pedigree.
+ * <p>
+ * Instances are built for one Bundle and are not thread-safe.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class PedigreeGraph {
+
+    private static final Logger logger = LoggerFactory.getLogger(PedigreeGraph.class);
+
+    /**
+     * The extension of a FamilyMemberHistory referencing the Patient or RelatedPerson it is about.
+     */
+    public static final String PATIENT_RECORD = "http://hl7.org/fhir/StructureDefinition/familymemberhistory-patient-record";
+
+    private static final Set<String> ROLE_CODE_SYSTEMS = new HashSet<>(Arrays.asList(
+            "http://terminology.hl7.org/CodeSystem/v3-RoleCode",
+            // R3
+            "http://hl7.org/fhir/v3/RoleCode"));
+    // the PED id of a parent who isn't in the pedigree
+    private static final String NO_PARENT = "0";
+    private static final int NONE = -1;
+
+    /**
+     * Who a relative is to a patient, and so their sex if it isn't otherwise known.
+     */
+    private enum Relationship {
+        MOTHER(Sex.FEMALE), FATHER(Sex.MALE), PARENT(Sex.UNKNOWN_SEX),
+        DAUGHTER(Sex.FEMALE), SON(Sex.MALE), CHILD(Sex.UNKNOWN_SEX),
+        SISTER(Sex.FEMALE), BROTHER(Sex.MALE), SIBLING(Sex.UNKNOWN_SEX),
+        MATERNAL_GRANDMOTHER(Sex.FEMALE), MATERNAL_GRANDFATHER(Sex.MALE),
+        PATERNAL_GRANDMOTHER(Sex.FEMALE), PATERNAL_GRANDFATHER(Sex.MALE);
+
+        private static final Relationship[] VALUES = values();
+
+        private final Sex sex;
+
+        Relationship(Sex sex) {
+            this.sex = sex;
+        }
+    }
+
+    private static final Map<String, Relationship> ROLE_CODES = ImmutableMap.<String, Relationship>builder()
+            .put("MTH", Relationship.MOTHER).put("NMTH", Relationship.MOTHER)
+            .put("FTH", Relationship.FATHER).put("NFTH", Relationship.FATHER)
+            .put("PRN", Relationship.PARENT).put("NPRN", Relationship.PARENT)
+            .put("DAU", Relationship.DAUGHTER).put("DAUC", Relationship.DAUGHTER)
+            .put("SON", Relationship.SON).put("SONC", Relationship.SON)
+            .put("CHILD", Relationship.CHILD).put("NCHILD", Relationship.CHILD)
+            .put("SIS", Relationship.SISTER).put("NSIS", Relationship.SISTER)
+            .put("TWINSIS", Relationship.SISTER).put("FTWINSIS", Relationship.SISTER).put("ITWINSIS", Relationship.SISTER)
+            .put("BRO", Relationship.BROTHER).put("NBRO", Relationship.BROTHER)
+            .put("TWINBRO", Relationship.BROTHER).put("FTWINBRO", Relationship.BROTHER).put("ITWINBRO", Relationship.BROTHER)
+            .put("SIB", Relationship.SIBLING).put("NSIB", Relationship.SIBLING)
+            .put("TWIN", Relationship.SIBLING).put("FTWIN", Relationship.SIBLING).put("ITWIN", Relationship.SIBLING)
+            .put("MGRMTH", Relationship.MATERNAL_GRANDMOTHER).put("MGRFTH", Relationship.MATERNAL_GRANDFATHER)
+            .put("PGRMTH", Relationship.PATERNAL_GRANDMOTHER).put("PGRFTH", Relationship.PATERNAL_GRANDFATHER)
+            .build();
+
+    private final List<Patient> patients;
+    // the person of each Patient, RelatedPerson and FamilyMemberHistory, keyed by identity as HAPI resources do not
+    // override equals/hashCode
+    private final Map<Resource, Integer> people;
+    private int size;
+    private final String[] ids;
+    private final Sex[] sexes;
+    private final Pedigree.Person.AffectedStatus[] affectedStatuses;
+    private final int[] mothers;
+    private final int[] fathers;
+    // the number of RelatedPersons and FamilyMemberHistories about each person, and of their Conditions
+    private final int[] relativeCounts;
+    private final int[] conditionCounts;
+
+    // the relationships, as the patient, the relative and the ordinal of the Relationship
+    private int relationshipCount;
+    private int[] relationshipPatients = new int[16];
+    private int[] relationshipRelatives = new int[16];
+    private byte[] relationshipTypes = new byte[16];
+
+    private PedigreeGraph(BundleResources bundleResources) {
+        this.patients = bundleResources.getPatients();
+        int capacity = patients.size() + bundleResources.getRelatedPersons().size() + bundleResources.getFamilyMemberHistories().size();
+        this.people = new IdentityHashMap<>(capacity);
+        this.ids = new String[capacity];
+        this.sexes = new Sex[capacity];
+        this.affectedStatuses = new Pedigree.Person.AffectedStatus[capacity];
+        this.mothers = new int[capacity];
+        this.fathers = new int[capacity];
+        this.relativeCounts = new int[capacity];
+        this.conditionCounts = new int[capacity];
+        Arrays.fill(mothers, NONE);
+        Arrays.fill(fathers, NONE);
+    }
+
+    public static PedigreeGraph of(BundleResources bundleResources) {
+        PedigreeGraph pedigreeGraph = new PedigreeGraph(bundleResources);
+        pedigreeGraph.addPeople(bundleResources);
+        pedigreeGraph.linkParents();
+        pedigreeGraph.linkSiblings();
+        pedigreeGraph.linkGrandparents();
+        return pedigreeGraph;
+    }
+
+    private void addPeople(BundleResources bundleResources) {
+        for (Patient patient : patients) {
+            int conditionCount = bundleResources.getConditions(patient).size();
+            int person = addPerson(patient, toSex(patient.getGender()),
+                    conditionCount > 0 ? Pedigree.Person.AffectedStatus.AFFECTED : Pedigree.Person.AffectedStatus.UNAFFECTED);
+            conditionCounts[person] = conditionCount;
+        }
+        for (Patient patient : patients) {
+            for (Patient.PatientLinkComponent link : patient.getLink()) {
+                if (link.getOther().getResource() instanceof RelatedPerson) {
+                    people.putIfAbsent((RelatedPerson) link.getOther().getResource(), people.get(patient));
+                }
+            }
+        }
+        for (RelatedPerson relatedPerson : bundleResources.getRelatedPersons()) {
+            int relative = people.containsKey(relatedPerson) ? people.get(relatedPerson)
+                    : addPerson(relatedPerson, toSex(relatedPerson.getGender()), Pedigree.Person.AffectedStatus.MISSING);
+            for (CodeableConcept relationship : relatedPerson.getRelationship()) {
+                addRelationship(relatedPerson.getPatient(), relative, relationship);
+            }
+        }
+        for (FamilyMemberHistory familyMemberHistory : bundleResources.getFamilyMemberHistories()) {
+            Integer record = patientRecord(familyMemberHistory);
+            int relative = record != null ? record : addPerson(familyMemberHistory, toSex(familyMemberHistory.getSex()),
+                    familyMemberHistory.hasCondition() ? Pedigree.Person.AffectedStatus.AFFECTED : Pedigree.Person.AffectedStatus.MISSING);
+            addRelationship(familyMemberHistory.getPatient(), relative, familyMemberHistory.getRelationship());
+        }
+    }
+
+    private int addPerson(Resource resource, Sex sex, Pedigree.Person.AffectedStatus affectedStatus) {
+        int person = size++;
+        people.put(resource, person);
+        String id = resource.getId();
+        // FHIR ids can't contain '#', so this can't clash with a real id
+        ids[person] = id == null || id.isEmpty() ? "#" + person : id;
+        sexes[person] = sex;
+        affectedStatuses[person] = affectedStatus;
+        return person;
+    }
+
+    private Integer patientRecord(FamilyMemberHistory familyMemberHistory) {
+        Extension extension = familyMemberHistory.getExtensionByUrl(PATIENT_RECORD);
+        if (extension == null || !(extension.getValue() instanceof Reference)) {
+            return null;
+        }
+        IBaseResource record = ((Reference) extension.getValue()).getResource();
+        return record == null ? null : people.get(record);
+    }
+
+    private void addRelationship(Reference patientReference, int relative, CodeableConcept codeableConcept) {
+        Integer patient = patientReference.getResource() instanceof Resource ? people.get(patientReference.getResource()) : null;
+        if (patient == null) {
+            logger.debug("Ignoring relationship of {} to {}, which is not in the Bundle", ids[relative], patientReference.getReference());
+            return;
+        }
+        relativeCounts[patient]++;
+        Relationship relationship = toRelationship(codeableConcept);
+        if (relationship == null || patient == relative) {
+            return;
+        }
+        if (sexes[relative] == Sex.UNKNOWN_SEX) {
+            sexes[relative] = relationship.sex;
+        }
+        if (relationshipCount == relationshipTypes.length) {
+            relationshipPatients = Arrays.copyOf(relationshipPatients, relationshipCount * 2);
+            relationshipRelatives = Arrays.copyOf(relationshipRelatives, relationshipCount * 2);
+            relationshipTypes = Arrays.copyOf(relationshipTypes, relationshipCount * 2);
+        }
+        relationshipPatients[relationshipCount] = patient;
+        relationshipRelatives[relationshipCount] = relative;
+        relationshipTypes[relationshipCount] = (byte) relationship.ordinal();
+        relationshipCount++;
+    }
+
+    private static Relationship toRelationship(CodeableConcept codeableConcept) {
+        for (Coding coding : codeableConcept.getCoding()) {
+            if (!coding.hasSystem() || ROLE_CODE_SYSTEMS.contains(coding.getSystem())) {
+                Relationship relationship = ROLE_CODES.get(coding.getCode());
+                if (relationship != null) {
+                    return relationship;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void linkParents() {
+        for (int i = 0; i < relationshipCount; i++) {
+            int patient = relationshipPatients[i];
+            int relative = relationshipRelatives[i];
+            switch (Relationship.VALUES[relationshipTypes[i]]) {
+                case MOTHER:
+                    setParent(mothers, patient, relative);
+                    break;
+                case FATHER:
+                    setParent(fathers, patient, relative);
+                    break;
+                case PARENT:
+                    linkParent(patient, relative);
+                    break;
+                case DAUGHTER:
+                case SON:
+                case CHILD:
+                    linkParent(relative, patient);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void linkParent(int child, int parent) {
+        if (sexes[parent] == Sex.FEMALE) {
+            setParent(mothers, child, parent);
+        } else if (sexes[parent] == Sex.MALE) {
+            setParent(fathers, child, parent);
+        } else {
+            logger.debug("Not linking {} to parent {} of unknown sex", ids[child], ids[parent]);
+        }
+    }
+
+    private void setParent(int[] parents, int child, int parent) {
+        if (parents[child] == NONE) {
+            parents[child] = parent;
+        } else if (parents[child] != parent) {
+            logger.debug("Ignoring parent {} of {}, who already has parent {}", ids[parent], ids[child], ids[parents[child]]);
+        }
+    }
+
+    private void linkSiblings() {
+        int[] siblingSets = null;
+        for (int i = 0; i < relationshipCount; i++) {
+            Relationship relationship = Relationship.VALUES[relationshipTypes[i]];
+            if (relationship == Relationship.SISTER || relationship == Relationship.BROTHER || relationship == Relationship.SIBLING) {
+                if (siblingSets == null) {
+                    siblingSets = new int[size];
+                    for (int person = 0; person < size; person++) {
+                        siblingSets[person] = person;
+                    }
+                }
+                siblingSets[find(siblingSets, relationshipPatients[i])] = find(siblingSets, relationshipRelatives[i]);
+            }
+        }
+        if (siblingSets == null) {
+            return;
+        }
+        // the first parents known of each set of siblings, kept by the root of the set
+        int[] setMothers = new int[size];
+        int[] setFathers = new int[size];
+        Arrays.fill(setMothers, NONE);
+        Arrays.fill(setFathers, NONE);
+        for (int person = 0; person < size; person++) {
+            int root = find(siblingSets, person);
+            if (setMothers[root] == NONE) {
+                setMothers[root] = mothers[person];
+            }
+            if (setFathers[root] == NONE) {
+                setFathers[root] = fathers[person];
+            }
+        }
+        for (int person = 0; person < size; person++) {
+            int root = find(siblingSets, person);
+            if (mothers[person] == NONE && setMothers[root] != person) {
+                mothers[person] = setMothers[root];
+            }
+            if (fathers[person] == NONE && setFathers[root] != person) {
+                fathers[person] = setFathers[root];
+            }
+        }
+    }
+
+    /**
+     * The root of the set of the person, halving the path to it on the way.
+     */
+    private static int find(int[] sets, int person) {
+        while (sets[person] != person) {
+            sets[person] = sets[sets[person]];
+            person = sets[person];
+        }
+        return person;
+    }
+
+    private void linkGrandparents() {
+        for (int i = 0; i < relationshipCount; i++) {
+            int patient = relationshipPatients[i];
+            int relative = relationshipRelatives[i];
+            switch (Relationship.VALUES[relationshipTypes[i]]) {
+                case MATERNAL_GRANDMOTHER:
+                    linkGrandparent(mothers, patient, mothers, relative);
+                    break;
+                case MATERNAL_GRANDFATHER:
+                    linkGrandparent(mothers, patient, fathers, relative);
+                    break;
+                case PATERNAL_GRANDMOTHER:
+                    linkGrandparent(fathers, patient, mothers, relative);
+                    break;
+                case PATERNAL_GRANDFATHER:
+                    linkGrandparent(fathers, patient, fathers, relative);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void linkGrandparent(int[] parents, int patient, int[] grandparents, int grandparent) {
+        int parent = parents[patient];
+        if (parent == NONE) {
+            logger.debug("Not linking grandparent {} of {}, whose parent is not in the Bundle", ids[grandparent], ids[patient]);
+            return;
+        }
+        setParent(grandparents, parent, grandparent);
+    }
+
+    private static Sex toSex(Enumerations.AdministrativeGender administrativeGender) {
+        if (administrativeGender == null) {
+            return Sex.UNKNOWN_SEX;
+        }
+        switch (administrativeGender) {
+            case MALE:
+                return Sex.MALE;
+            case FEMALE:
+                return Sex.FEMALE;
+            case OTHER:
+                return Sex.OTHER_SEX;
+            default:
+                return Sex.UNKNOWN_SEX;
+        }
+    }
+
+    private static Sex toSex(CodeableConcept administrativeGender) {
+        for (Coding coding : administrativeGender.getCoding()) {
+            try {
+                return toSex(Enumerations.AdministrativeGender.fromCode(coding.getCode()));
+            } catch (org.hl7.fhir.exceptions.FHIRException e) {
+                // not an AdministrativeGender code
+            }
+        }
+        return Sex.UNKNOWN_SEX;
+    }
+
+    /**
+     * The number of people in the pedigree.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The Patient with the id, either as returned by {@link Resource#getId()}, e.g. {@code Patient/123} or a
+     * {@code urn:uuid:}, or just its id part, e.g. {@code 123}. Null if there is no such Patient in the Bundle.
+     */
+    public Patient getPatient(String id) {
+        for (Patient patient : patients) {
+            if (id.equals(patient.getId()) || id.equals(patient.getIdElement().getIdPart())) {
+                return patient;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Guesses the proband, as FHIR has no way of saying who it is. That is the Patient the most RelatedPersons and
+     * FamilyMemberHistories are about, as those are usually recorded for the proband, then the one with the most
+     * Conditions, then the first in the Bundle. Null if there are no Patients.
+     */
+    public Patient guessProband() {
+        Patient proband = null;
+        int probandPerson = NONE;
+        for (Patient patient : patients) {
+            int person = people.get(patient);
+            if (probandPerson == NONE
+                    || relativeCounts[person] > relativeCounts[probandPerson]
+                    || relativeCounts[person] == relativeCounts[probandPerson] && conditionCounts[person] > conditionCounts[probandPerson]) {
+                proband = patient;
+                probandPerson = person;
+            }
+        }
+        if (proband != null) {
+            logger.debug("Guessed proband {} with {} relatives and {} conditions", ids[probandPerson], relativeCounts[probandPerson], conditionCounts[probandPerson]);
+        }
+        return proband;
+    }
+
+    /**
+     * A Person for everyone, Patients first in Bundle order, with the PED id {@code 0} for a parent who is not in the
+     * Bundle. Patients are affected if they have any Conditions, and unaffected otherwise, the people described by a
+     * FamilyMemberHistory are affected if it has any conditions, and it is not known for the others.
+     */
+    public Pedigree toPedigree(String familyId) {
+        Pedigree.Builder pedigreeBuilder = Pedigree.newBuilder();
+        for (int person = 0; person < size; person++) {
+            pedigreeBuilder.addPersons(Pedigree.Person.newBuilder()
+                    .setFamilyId(familyId)
+                    .setIndividualId(ids[person])
+                    .setPaternalId(fathers[person] == NONE ? NO_PARENT : ids[fathers[person]])
+                    .setMaternalId(mothers[person] == NONE ? NO_PARENT : ids[mothers[person]])
+                    .setSex(sexes[person])
+                    .setAffectedStatus(affectedStatuses[person]));
+        }
+        return pedigreeBuilder.build();
+    }
+}
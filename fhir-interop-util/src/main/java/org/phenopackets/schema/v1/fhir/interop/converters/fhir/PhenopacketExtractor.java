@@ -1,26 +1,30 @@
 package org.phenopackets.schema.v1.fhir.interop.converters.fhir;
 
-import com.google.common.collect.LinkedListMultimap;
-import com.google.common.collect.ListMultimap;
 import com.google.protobuf.Timestamp;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.phenopackets.schema.v1.Phenopacket;
 import org.phenopackets.schema.v1.core.Individual;
 import org.phenopackets.schema.v1.core.MetaData;
+import org.phenopackets.schema.v1.core.OntologyClass;
 import org.phenopackets.schema.v1.core.PhenotypicFeature;
 import org.phenopackets.schema.v1.core.Sex;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConceptMapper;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConversionObserver;
 import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
+import org.phenopackets.schema.v1.fhir.interop.converters.OntologyClassCache;
+import org.phenopackets.schema.v1.fhir.interop.converters.OntologyIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
 import java.util.*;
 
-import static java.util.stream.Collectors.toList;
-
 /**
  * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
  */
@@ -29,49 +33,288 @@ public class PhenopacketExtractor {
 
     private static final Logger logger = LoggerFactory.getLogger(PhenopacketExtractor.class);
 
+    private final OntologyClassCache ontologyClassCache;
+    private final ResourceRegistry resourceRegistry;
+    private final ConversionObserver conversionObserver;
+    private final ObservationRules observationRules;
+    private final OntologyIndex ontologyIndex;
+    private final ConceptMapper conceptMapper;
+
+    public PhenopacketExtractor() {
+        this(builder());
+    }
+
+    private PhenopacketExtractor(Builder builder) {
+        this.ontologyClassCache = builder.ontologyClassCache;
+        this.resourceRegistry = builder.resourceRegistry == null ? new ResourceRegistry(builder.conceptMapper.getCurieIndex()) : builder.resourceRegistry;
+        this.conversionObserver = builder.conversionObserver;
+        this.observationRules = builder.observationRules;
+        this.ontologyIndex = builder.ontologyIndex;
+        this.conceptMapper = builder.conceptMapper;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private OntologyClassCache ontologyClassCache = OntologyClassCache.disabled();
+        private ResourceRegistry resourceRegistry;
+        private ConversionObserver conversionObserver = ConversionObserver.noop();
+        private ObservationRules observationRules = ObservationRules.empty();
+        private OntologyIndex ontologyIndex = OntologyIndex.empty();
+        private ConceptMapper conceptMapper = ConceptMapper.defaultMapper();
+
+        private Builder() {
+        }
+
+        /**
+         * Shares the OntologyClasses of the extracted PhenotypicFeatures between Phenopackets. Disabled by default.
+         */
+        public Builder ontologyClassCache(OntologyClassCache ontologyClassCache) {
+            this.ontologyClassCache = ontologyClassCache;
+            return this;
+        }
+
+        /**
+         * The registry for the MetaData Resources of all the extracted Phenopackets. Defaults to a new registry for
+         * each PhenopacketExtractor, with the namespaces of its ConceptMapper.
+         */
+        public Builder resourceRegistry(ResourceRegistry resourceRegistry) {
+            this.resourceRegistry = resourceRegistry;
+            return this;
+        }
+
+        /**
+         * Receives the timings and counts of the extracted Phenopackets. Defaults to {@link ConversionObserver#noop()}.
+         */
+        public Builder conversionObserver(ConversionObserver conversionObserver) {
+            this.conversionObserver = conversionObserver;
+            return this;
+        }
+
+        /**
+         * Derives PhenotypicFeatures from the lab Observations of a patient. Defaults to {@link ObservationRules#empty()},
+         * so that Observations are ignored.
+         */
+        public Builder observationRules(ObservationRules observationRules) {
+            this.observationRules = observationRules;
+            return this;
+        }
+
+        /**
+         * Replaces the labels of the PhenotypicFeature terms with their canonical labels and obsolete ids with the
+         * current ones. Defaults to {@link OntologyIndex#empty()}, so that terms are copied from the Conditions as they
+         * are.
+         */
+        public Builder ontologyIndex(OntologyIndex ontologyIndex) {
+            this.ontologyIndex = ontologyIndex;
+            return this;
+        }
+
+        /**
+         * Translates the codes of the Conditions, e.g. SNOMED CT to HPO, with the
+         * {@link ConceptMapper#getTranslations() translations} of the mapper. Defaults to
+         * {@link ConceptMapper#defaultMapper()}, which has none, so that codes are used as they are.
+         */
+        public Builder conceptMapper(ConceptMapper conceptMapper) {
+            this.conceptMapper = conceptMapper;
+            return this;
+        }
+
+        public PhenopacketExtractor build() {
+            return new PhenopacketExtractor(this);
+        }
+    }
+
+    public ResourceRegistry getResourceRegistry() {
+        return resourceRegistry;
+    }
+
+    public ConversionObserver getConversionObserver() {
+        return conversionObserver;
+    }
+
+    public ObservationRules getObservationRules() {
+        return observationRules;
+    }
+
+    public OntologyIndex getOntologyIndex() {
+        return ontologyIndex;
+    }
+
+    public ConceptMapper getConceptMapper() {
+        return conceptMapper;
+    }
+
+    /**
+     * Builds a Phenopacket for the patient from its conditions. Conditions with a subject other than the patient are
+     * ignored, so callers converting several patients should group the conditions by subject first rather than pass
+     * the same list for every patient.
+     */
     public Phenopacket extractPhenopacket(Patient patient, List<Condition> patientConditions) {
-        //do we need Observations?
-        //convert conditions to patient phenotypes
-        Map<String, Collection<PhenotypicFeature>> patientPhenotypes = extractPatientPhenotypes(patientConditions);
+        return extractPhenopacket(patient, patientConditions, Collections.emptyList());
+    }
+
+    /**
+     * As {@link #extractPhenopacket(Patient, List)}, adding a PhenotypicFeature for each term the
+     * {@link ObservationRules} derive from the patient's Observations, after those of the Conditions. A term is only
+     * added once, and not at all if a Condition has the same code.
+     */
+    public Phenopacket extractPhenopacket(Patient patient, List<Condition> patientConditions, List<Observation> patientObservations) {
+        long start = conversionObserver.startTime();
+        List<Condition> subjectConditions = new ArrayList<>(patientConditions.size());
+        List<PhenotypicFeature> patientPhenotypes = new ArrayList<>(patientConditions.size());
+        int withoutCode = 0;
+        List<Coding> translatedCodings = conceptMapper.getTranslations().isEmpty() ? null : new ArrayList<>();
+        // filter, convert and count the conditions in one pass
+        for (Condition condition : patientConditions) {
+            if (isSubject(patient, condition)) {
+                subjectConditions.add(condition);
+                patientPhenotypes.add(extractPhenotypicFeature(condition, translatedCodings));
+                if (!condition.hasCode()) {
+                    withoutCode++;
+                }
+            }
+        }
+        List<Coding> observationCodings = Collections.emptyList();
+        if (!observationRules.isEmpty() && !patientObservations.isEmpty()) {
+            observationCodings = addObservationPhenotypes(patient, patientObservations, patientPhenotypes);
+        }
+        if (translatedCodings != null && !translatedCodings.isEmpty()) {
+            translatedCodings.addAll(observationCodings);
+            observationCodings = translatedCodings;
+        }
         logger.debug("patientPhenotypes: {}", patientPhenotypes);
+        Individual subject = buildIndividual(patient);
+        conversionObserver.stageCompleted(ConversionObserver.Stage.EXTRACT, start);
 
+        start = conversionObserver.startTime();
         //convert patient condition coding to metadata
         MetaData metaData = MetaDataExtractor.builder()
                 .createdBy("FHIR converter")
-                .fromConditions(patientConditions)
+                .fromConditions(subjectConditions)
+                .fromCodings(observationCodings)
+                .resourceRegistry(resourceRegistry)
                 // TODO: sort out Condition -> Resource or PhenotypicFeature ->  Resource
                 .buildMetaData();
+        conversionObserver.stageCompleted(ConversionObserver.Stage.METADATA, start);
+
+        conversionObserver.patientConverted(subjectConditions.size(), withoutCode);
+        return buildPhenopacket(subject, patientPhenotypes, metaData);
+    }
 
-        return buildPhenopacket(patient, patientPhenotypes, metaData);
+    private boolean isSubject(Patient patient, Condition condition) {
+        return isSubject(patient, condition.getSubject().getResource());
     }
 
-    private Map<String, Collection<PhenotypicFeature>> extractPatientPhenotypes(Collection<Condition> patientConditions){
-        ListMultimap<String, PhenotypicFeature> phenotypes = LinkedListMultimap.create();
+    private boolean isSubject(Patient patient, IBaseResource subjectResource) {
+        //should't need to do this, but just in case...
+        if (subjectResource instanceof Patient) {
+            return subjectResource == patient || Objects.equals(((Patient) subjectResource).getId(), patient.getId());
+        }
+        return false;
+    }
 
-        for (Condition condition : patientConditions) {
-            IBaseResource subjectResource = condition.getSubject().getResource();
-            //should't need to do this, but just in case...
-            if (subjectResource instanceof Patient) {
-                Patient patient = (Patient) subjectResource;
-                PhenotypicFeature phenotype = ConverterUtil.makePhenotypicFeature(condition);
-                phenotypes.put(patient.getId(), phenotype);
+    /**
+     * @return the codings of the added terms, for the MetaData
+     */
+    private List<Coding> addObservationPhenotypes(Patient patient, List<Observation> patientObservations, List<PhenotypicFeature> patientPhenotypes) {
+        Map<String, OntologyClass> terms = new LinkedHashMap<>();
+        for (Observation observation : patientObservations) {
+            if (isSubject(patient, observation.getSubject().getResource())) {
+                observationRules.evaluate(observation, term -> terms.putIfAbsent(term.getId(), term));
             }
         }
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+        for (PhenotypicFeature phenotype : patientPhenotypes) {
+            terms.remove(phenotype.getType().getId());
+        }
+        List<Coding> codings = new ArrayList<>(terms.size());
+        for (OntologyClass term : terms.values()) {
+            patientPhenotypes.add(PhenotypicFeature.newBuilder().setType(term).build());
+            codings.add(ObservationRules.toCoding(term));
+        }
+        return codings;
+    }
 
-        return phenotypes.asMap();
+    /**
+     * The PhenotypicFeature for a single Condition, as it would be in the Phenopacket of its subject.
+     */
+    public PhenotypicFeature extractPhenotypicFeature(Condition condition) {
+        return extractPhenotypicFeature(condition, null);
     }
 
-    private Phenopacket buildPhenopacket(Patient patient, Map<String, Collection<PhenotypicFeature>> patientPhenotypes, MetaData metaData) {
+    /**
+     * As {@link #extractPhenotypicFeature(Condition)}, also returning the codings of the terms translated by the
+     * {@link ConceptMapper}, whose Resources aren't those of the Condition codings. Canonical terms need none, as they
+     * are in the same ontology as the terms they replace.
+     *
+     * @param translatedCodings receives the codings of the translated terms, for the MetaData, unless it is null
+     */
+    public PhenotypicFeature extractPhenotypicFeature(Condition condition, List<Coding> translatedCodings) {
+        PhenotypicFeature phenotypicFeature = ConverterUtil.makePhenotypicFeature(condition, ontologyClassCache);
+        if ((ontologyIndex.isEmpty() && conceptMapper.getTranslations().isEmpty()) || !phenotypicFeature.hasType()) {
+            return phenotypicFeature;
+        }
+        OntologyClass type = canonical(translate(condition.getCode(), phenotypicFeature.getType(), translatedCodings));
+        OntologyClass severity = phenotypicFeature.hasSeverity()
+                ? canonical(translate(condition.getSeverity(), phenotypicFeature.getSeverity(), translatedCodings))
+                : phenotypicFeature.getSeverity();
+        if (type == phenotypicFeature.getType() && severity == phenotypicFeature.getSeverity()) {
+            return phenotypicFeature;
+        }
+        PhenotypicFeature.Builder builder = phenotypicFeature.toBuilder().setType(type);
+        if (phenotypicFeature.hasSeverity()) {
+            builder.setSeverity(severity);
+        }
+        return builder.build();
+    }
+
+    private OntologyClass translate(CodeableConcept codeableConcept, OntologyClass term, List<Coding> translatedCodings) {
+        if (conceptMapper.getTranslations().isEmpty()) {
+            return term;
+        }
+        Optional<OntologyClass> translated = conceptMapper.translate(codeableConcept);
+        if (!translated.isPresent()) {
+            return term;
+        }
+        OntologyClass translatedTerm = ontologyClassCache.ontologyClass(translated.get().getId(), translated.get().getLabel());
+        if (translatedCodings != null) {
+            Coding coding = conceptMapper.toCoding(translatedTerm);
+            // a Resource needs the url of the code system
+            if (coding.hasSystem()) {
+                translatedCodings.add(coding);
+            }
+        }
+        return translatedTerm;
+    }
+
+    private OntologyClass canonical(OntologyClass term) {
+        if (ontologyIndex.isEmpty()) {
+            return term;
+        }
+        OntologyClass canonical = ontologyIndex.canonical(term);
+        if (canonical != term) {
+            logger.debug("Replaced {} {} with {} {}", term.getId(), term.getLabel(), canonical.getId(), canonical.getLabel());
+            return ontologyClassCache.ontologyClass(canonical.getId(), canonical.getLabel());
+        }
+        if (logger.isDebugEnabled() && ontologyIndex.covers(term.getId()) && !ontologyIndex.contains(term.getId())) {
+            logger.debug("Unknown term {} {}", term.getId(), term.getLabel());
+        }
+        return term;
+    }
+
+    private Phenopacket buildPhenopacket(Individual subject, List<PhenotypicFeature> patientPhenotypes, MetaData metaData) {
         Phenopacket.Builder phenopacketBuilder = Phenopacket.newBuilder();
 
-        Individual subject = buildIndividual(patient);
         phenopacketBuilder.setSubject(subject);
 
-        String patientId = patient.getId();
-        if (patientPhenotypes.containsKey(patientId)) {
-            Collection<PhenotypicFeature> phenotypicFeatures = patientPhenotypes.get(patientId);
-            logger.debug("Adding patient phenotypes {} {}", patientId, phenotypicFeatures);
-            phenopacketBuilder.addAllPhenotypicFeatures(phenotypicFeatures);
+        if (!patientPhenotypes.isEmpty()) {
+            logger.debug("Adding patient phenotypes {} {}", subject.getId(), patientPhenotypes);
+            phenopacketBuilder.addAllPhenotypicFeatures(patientPhenotypes);
         }
 
         phenopacketBuilder.setMetaData(metaData);
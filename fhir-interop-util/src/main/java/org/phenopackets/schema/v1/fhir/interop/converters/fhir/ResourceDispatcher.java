@@ -0,0 +1,91 @@
+package org.phenopackets.schema.v1.fhir.interop.converters.fhir;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Passes each resource of a Bundle to the handlers registered for its type, in a single pass over the entries. The
+ * handlers collect what they need into an accumulator, e.g. the builders of a conversion, so that adding an extractor
+ * for another resource type adds a handler rather than another pass over a large Bundle.
+ * <p>
+ * The handlers are looked up by {@link ResourceType}, so resources of types without a handler only cost a map lookup.
+ * Instances are immutable and thread-safe, as long as the handlers only touch the accumulator they are given, and are
+ * meant to be built once and shared.
+ *
+ * @param <A> the type accumulating the handled resources
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class ResourceDispatcher<A> {
+
+    private final Map<ResourceType, BiConsumer<A, Resource>> handlers;
+
+    private ResourceDispatcher(Builder<A> builder) {
+        this.handlers = new EnumMap<>(builder.handlers);
+    }
+
+    public static <A> Builder<A> builder() {
+        return new Builder<>();
+    }
+
+    public static class Builder<A> {
+        private final Map<ResourceType, BiConsumer<A, Resource>> handlers = new EnumMap<>(ResourceType.class);
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a handler for the resources of the given type. Several handlers for the same type are called in the
+         * order they were added.
+         */
+        @SuppressWarnings("unchecked")
+        public <T extends Resource> Builder<A> on(Class<T> resourceClass, BiConsumer<A, ? super T> handler) {
+            // the R4 model classes are named after their resource types
+            ResourceType resourceType = ResourceType.valueOf(resourceClass.getSimpleName());
+            BiConsumer<A, Resource> resourceHandler = (accumulator, resource) -> handler.accept(accumulator, (T) resource);
+            handlers.merge(resourceType, resourceHandler, BiConsumer::andThen);
+            return this;
+        }
+
+        public ResourceDispatcher<A> build() {
+            return new ResourceDispatcher<>(this);
+        }
+    }
+
+    /**
+     * The types with a handler, e.g. for a {@link StreamingBundleReader} to skip the others.
+     */
+    public Set<ResourceType> getResourceTypes() {
+        return Collections.unmodifiableSet(handlers.keySet());
+    }
+
+    /**
+     * Passes the resource of every entry of the Bundle to its handlers, in Bundle order. Entries without a resource,
+     * e.g. the deletions of a transaction, are skipped.
+     *
+     * @return the accumulator
+     */
+    public A dispatch(Bundle bundle, A accumulator) {
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            // not hasResource(), which is false for a resource without any elements
+            Resource resource = entry.getResource();
+            if (resource != null) {
+                dispatch(resource, accumulator);
+            }
+        }
+        return accumulator;
+    }
+
+    public void dispatch(Resource resource, A accumulator) {
+        BiConsumer<A, Resource> handler = handlers.get(resource.getResourceType());
+        if (handler != null) {
+            handler.accept(accumulator, resource);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.phenopackets.schema.v1.fhir.interop.converters.fhir;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.phenopackets.schema.v1.core.Resource;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
+import org.phenopackets.schema.v1.fhir.interop.converters.CurieIndex;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the MetaData {@link Resource}s for the codings seen so far. Each distinct (system, version, prefix)
+ * resolves to a single canonical Resource the first time it is seen, so the MetaData for many patients can be built
+ * without creating a new Resource per coding.
+ * <p>
+ * The prefix is that of the {@link CurieIndex} namespace of the coding's system, so that systems with local codes, e.g.
+ * SNOMED CT, get a single Resource. It is only guessed from the code for systems the index doesn't know. Instances are
+ * thread-safe and are meant to be shared by all the patients in a batch or cohort.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class ResourceRegistry {
+
+    private final ConcurrentMap<Key, Resource> resources = new ConcurrentHashMap<>();
+    private final CurieIndex curieIndex;
+
+    public ResourceRegistry() {
+        this(CurieIndex.defaultIndex());
+    }
+
+    public ResourceRegistry(CurieIndex curieIndex) {
+        this.curieIndex = curieIndex;
+    }
+
+    public Resource resourceFor(Coding coding) {
+        return resourceFor(keyFor(coding));
+    }
+
+    public int size() {
+        return resources.size();
+    }
+
+    Key keyFor(Coding coding) {
+        CurieIndex.Namespace namespace = curieIndex.namespaceForSystem(coding.getSystem());
+        if (namespace != null) {
+            return new Key(coding.getSystem(), coding.getVersion(), namespace.getPrefix());
+        }
+        String code = coding.getCode() == null ? "" : coding.getCode();
+        return new Key(coding.getSystem(), coding.getVersion(), ConverterUtil.curiePrefix(code));
+    }
+
+    Resource resourceFor(Key key) {
+        Resource resource = resources.get(key);
+        if (resource != null) {
+            return resource;
+        }
+        return resources.computeIfAbsent(key, Key::toResource);
+    }
+
+    static final class Key {
+        private final String system;
+        private final String version;
+        private final String prefix;
+        private final int hash;
+
+        private Key(String system, String version, String prefix) {
+            this.system = system;
+            this.version = version;
+            this.prefix = prefix;
+            this.hash = Objects.hash(system, version, prefix);
+        }
+
+        private Resource toResource() {
+            return Resource.newBuilder()
+                    .setNamespacePrefix(prefix)
+                    .setId(prefix.toLowerCase())
+                    .setUrl(system)
+                    .setVersion(version == null ? "" : version)
+                    .build();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return hash == key.hash &&
+                    Objects.equals(system, key.system) &&
+                    Objects.equals(version, key.version) &&
+                    Objects.equals(prefix, key.prefix);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package org.phenopackets.schema.v1.fhir.interop.converters.fhir;
+
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.r4.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Reads a FHIR R4 JSON Bundle from a token stream without building the complete HAPI object graph. The reader walks
+ * {@code entry[].resource} and skips every resource whose type is not of interest, so only the entries of the
+ * {@link BundleResources#resourceTypes()} (by default) are ever turned into HAPI objects.
+ * <p>
+ * The returned Bundle contains only the requested entries. Their references are left unresolved, as {@link BundleResources}
+ * links them when the Bundle is passed to the {@link org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter}.
+ * Instances are thread-safe as long as the supplied {@link IParser} is not shared with other threads.
+ *
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+public class StreamingBundleReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamingBundleReader.class);
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final IParser jsonParser;
+    private final Set<String> resourceTypeNames;
+
+    public StreamingBundleReader(IParser jsonParser) {
+        this(jsonParser, BundleResources.resourceTypes());
+    }
+
+    public StreamingBundleReader(IParser jsonParser, Set<ResourceType> resourceTypes) {
+        this.jsonParser = jsonParser;
+        Set<String> names = new HashSet<>();
+        resourceTypes.forEach(resourceType -> names.add(resourceType.name()));
+        this.resourceTypeNames = names;
+    }
+
+    /**
+     * Reads the Bundle, keeping only the entries with one of the requested resource types.
+     */
+    public Bundle read(Reader reader) throws IOException {
+        Bundle bundle = new Bundle();
+        read(reader, bundle, bundle::addEntry);
+        bundle.getEntry().forEach(StreamingBundleReader::overrideIdWithFullUrl);
+        return bundle;
+    }
+
+    /**
+     * Passes each entry with one of the requested resource types to the consumer as soon as it has been read.
+     */
+    public void read(Reader reader, Consumer<Bundle.BundleEntryComponent> entryConsumer) throws IOException {
+        read(reader, new Bundle(), entry -> {
+            overrideIdWithFullUrl(entry);
+            entryConsumer.accept(entry);
+        });
+    }
+
+    private void read(Reader reader, Bundle bundle, Consumer<Bundle.BundleEntryComponent> entryConsumer) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(reader)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object at " + parser.getCurrentLocation());
+            }
+            while (nextField(parser)) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                switch (fieldName) {
+                    case "resourceType":
+                        if (!"Bundle".equals(parser.getText())) {
+                            throw new IOException("Expected a Bundle but got a " + parser.getText());
+                        }
+                        break;
+                    case "id":
+                        bundle.setId(parser.getText());
+                        break;
+                    case "type":
+                        bundle.setType(Bundle.BundleType.fromCode(parser.getText()));
+                        break;
+                    case "entry":
+                        readEntries(parser, entryConsumer);
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void readEntries(JsonParser parser, Consumer<Bundle.BundleEntryComponent> entryConsumer) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new IOException("Expected an array of entries but got " + parser.currentToken() + " at " + parser.getTokenLocation());
+        }
+        while (next(parser, JsonToken.START_OBJECT, JsonToken.END_ARRAY)) {
+            String fullUrl = null;
+            Resource resource = null;
+            while (nextField(parser)) {
+                String fieldName = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("fullUrl".equals(fieldName)) {
+                    fullUrl = parser.getText();
+                } else if ("resource".equals(fieldName)) {
+                    if (token != JsonToken.START_OBJECT) {
+                        throw new IOException("Expected a resource object but got " + token + " at " + parser.getTokenLocation());
+                    }
+                    resource = readResource(parser);
+                } else {
+                    // request, response, search etc.
+                    parser.skipChildren();
+                }
+            }
+            if (resource != null) {
+                Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+                entry.setFullUrl(fullUrl);
+                entry.setResource(resource);
+                entryConsumer.accept(entry);
+            }
+        }
+    }
+
+    /**
+     * Reads the resource object the parser is positioned at. Fields are only copied to a buffer for HAPI once the
+     * resourceType is known to be wanted, which is immediately for the usual case of resourceType being the first field.
+     */
+    private Resource readResource(JsonParser parser) throws IOException {
+        String resourceType = null;
+        StringWriter buffer = null;
+        JsonGenerator generator = null;
+        while (nextField(parser)) {
+            if (resourceType == null && "resourceType".equals(parser.getCurrentName())) {
+                parser.nextToken();
+                resourceType = parser.getText();
+                if (!resourceTypeNames.contains(resourceType)) {
+                    skipToEndOfObject(parser);
+                    return null;
+                }
+                if (generator == null) {
+                    buffer = new StringWriter();
+                    generator = startObject(buffer);
+                }
+                generator.writeStringField("resourceType", resourceType);
+            } else {
+                if (generator == null) {
+                    buffer = new StringWriter();
+                    generator = startObject(buffer);
+                }
+                generator.copyCurrentStructure(parser);
+            }
+        }
+        if (generator == null) {
+            return null;
+        }
+        generator.writeEndObject();
+        generator.close();
+        if (resourceType == null) {
+            logger.warn("Skipping entry resource without a resourceType");
+            return null;
+        }
+        return (Resource) jsonParser.parseResource(buffer.toString());
+    }
+
+    private static JsonGenerator startObject(StringWriter buffer) throws IOException {
+        JsonGenerator generator = jsonFactory.createGenerator(buffer);
+        generator.writeStartObject();
+        return generator;
+    }
+
+    private static void skipToEndOfObject(JsonParser parser) throws IOException {
+        while (nextField(parser)) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+
+    /**
+     * Moves to the next field of the current object, returning false at its end.
+     */
+    private static boolean nextField(JsonParser parser) throws IOException {
+        return next(parser, JsonToken.FIELD_NAME, JsonToken.END_OBJECT);
+    }
+
+    /**
+     * Moves to the next token, returning true if it is the expected one and false if it is the end of the enclosing
+     * object or array. Anything else, e.g. a null in the entry array, is an error rather than silently taken as the end.
+     */
+    private static boolean next(JsonParser parser, JsonToken expected, JsonToken end) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == expected) {
+            return true;
+        }
+        if (token == end) {
+            return false;
+        }
+        throw new IOException("Expected " + expected + " or " + end + " but got " + token + " at " + parser.getTokenLocation());
+    }
+
+    /**
+     * Same as the HAPI parser does by default. The id it replaces is kept for the {@link BundleReferenceIndex}, as the
+     * references to it are only linked later on.
+     */
+    private static void overrideIdWithFullUrl(Bundle.BundleEntryComponent entry) {
+        if (entry.hasFullUrl()) {
+            Resource resource = entry.getResource();
+            if (resource.hasIdElement()) {
+                resource.setUserData(BundleReferenceIndex.ORIGINAL_ID, resource.getIdElement());
+            }
+            resource.setIdElement(new IdType(entry.getFullUrl()));
+        }
+    }
+}
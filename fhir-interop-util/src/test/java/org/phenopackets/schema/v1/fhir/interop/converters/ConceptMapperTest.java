@@ -3,10 +3,13 @@ package org.phenopackets.schema.v1.fhir.interop.converters;
 import com.google.common.collect.ImmutableMap;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v1.core.MetaData;
 import org.phenopackets.schema.v1.core.OntologyClass;
+import org.phenopackets.schema.v1.core.Resource;
 
 import java.util.Collections;
 import java.util.Map;
+import java.util.Optional;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -39,4 +42,53 @@ class ConceptMapperTest {
         assertThat(instance.toOntologyClass(codeableConcept), equalTo(expected));
     }
 
-}
\ No newline at end of file
+    @Test
+    void testSnomedRoundTrip() {
+        ConceptMapper instance = ConceptMapper.defaultMapper();
+        OntologyClass asthma = OntologyClass.newBuilder().setId("SNOMEDCT:195967001").setLabel("Asthma").build();
+
+        CodeableConcept codeableConcept = instance.toCodeableConcept(asthma);
+
+        assertTrue(ConverterUtil.codeableConcept("http://snomed.info/sct", "195967001", "Asthma").equalsDeep(codeableConcept));
+        assertThat(instance.toOntologyClass(codeableConcept), equalTo(asthma));
+    }
+
+    @Test
+    void testUnknownPrefixHasNoSystem() {
+        OntologyClass ontologyClass = OntologyClass.newBuilder().setId("WIBBLE:1").setLabel("Wibble").build();
+
+        CodeableConcept result = ConceptMapper.defaultMapper().toCodeableConcept(ontologyClass);
+
+        assertThat(result.getCodingFirstRep().hasSystem(), equalTo(false));
+        assertThat(result.getCodingFirstRep().getCode(), equalTo("WIBBLE:1"));
+    }
+
+    @Test
+    void testUnknownPrefixTakesDefaultSystem() {
+        OntologyClass wibble = OntologyClass.newBuilder().setId("WIBBLE:1").setLabel("Wibble").build();
+        OntologyClass hpo = OntologyClass.newBuilder().setId("HP:0012828").setLabel("Severe").build();
+
+        CodeableConcept result = ConceptMapper.defaultMapper().toCodeableConcept(wibble, "http://example.org");
+
+        assertThat(result.getCodingFirstRep().getSystem(), equalTo("http://example.org"));
+        assertThat(result.getCodingFirstRep().getCode(), equalTo("WIBBLE:1"));
+        // a known prefix keeps its own system
+        assertThat(ConceptMapper.defaultMapper().toCodeableConcept(hpo, "http://example.org").getCodingFirstRep().getSystem(),
+                equalTo("http://purl.obolibrary.org/obo/hp.owl"));
+    }
+
+    @Test
+    void setUpFromMetaData() {
+        MetaData metaData = MetaData.newBuilder()
+                .addResources(Resource.newBuilder().setId("a").setNamespacePrefix("a").setUrl("a.url").build())
+                .build();
+        ConceptMapper instance = ConceptMapper.fromMetaData(metaData);
+
+        OntologyClass ontologyClass = OntologyClass.newBuilder().setId("a:1").setLabel("a wibble").build();
+        CodeableConcept result = instance.toCodeableConcept(ontologyClass);
+
+        assertTrue(ConverterUtil.codeableConcept("a.url", "a:1", "a wibble").equalsDeep(result));
+        assertThat(instance.toOntologyClass(result), equalTo(ontologyClass));
+        assertThat(instance.toIri(OntologyClass.newBuilder().setId("HP:0001156").build()), equalTo(Optional.of("http://purl.obolibrary.org/obo/HP_0001156")));
+    }
+}
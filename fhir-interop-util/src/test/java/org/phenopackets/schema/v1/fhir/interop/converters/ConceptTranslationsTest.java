@@ -0,0 +1,171 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.core.OntologyClass;
+import org.phenopackets.schema.v1.core.Resource;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class ConceptTranslationsTest {
+
+    private static final String SNOMED = "http://snomed.info/sct";
+    private static final String HPO = "http://purl.obolibrary.org/obo/hp.owl";
+
+    // the elements of the second group come before its systems
+    private static final String CONCEPT_MAP = "{\n" +
+            "  \"resourceType\": \"ConceptMap\",\n" +
+            "  \"id\": \"snomed-to-hpo\",\n" +
+            "  \"status\": \"active\",\n" +
+            "  \"group\": [{\n" +
+            "    \"source\": \"http://snomed.info/sct\",\n" +
+            "    \"target\": \"http://purl.obolibrary.org/obo/hp.owl\",\n" +
+            "    \"element\": [{\n" +
+            "      \"code\": \"195967001\",\n" +
+            "      \"display\": \"Asthma\",\n" +
+            "      \"target\": [{\"code\": \"HP:0002099\", \"display\": \"Asthma\", \"equivalence\": \"equivalent\"}]\n" +
+            "    }, {\n" +
+            "      \"code\": \"29738008\",\n" +
+            "      \"target\": [\n" +
+            "        {\"code\": \"HP:0001156\", \"equivalence\": \"narrower\"},\n" +
+            "        {\"code\": \"HP:0001167\", \"display\": \"Abnormality of finger\", \"equivalence\": \"wider\"}\n" +
+            "      ]\n" +
+            "    }, {\n" +
+            "      \"code\": \"404684003\",\n" +
+            "      \"target\": [{\"equivalence\": \"unmatched\"}]\n" +
+            "    }]\n" +
+            "  }, {\n" +
+            "    \"element\": [{\"code\": \"J45\", \"target\": [{\"code\": \"HP:0002099\", \"display\": \"Asthma\"}]}],\n" +
+            "    \"source\": \"http://hl7.org/fhir/sid/icd-10-cm\",\n" +
+            "    \"target\": \"http://purl.obolibrary.org/obo/hp.owl\"\n" +
+            "  }]\n" +
+            "}";
+
+    private static ConceptTranslations translations() throws IOException {
+        return ConceptTranslations.builder().read(new StringReader(CONCEPT_MAP)).build();
+    }
+
+    @Test
+    void readsConceptMapJson() throws IOException {
+        ConceptTranslations translations = translations();
+
+        assertThat(translations.size(), equalTo(3));
+        ConceptTranslations.Target asthma = translations.translate(SNOMED, "195967001");
+        assertThat(asthma.getSystem(), equalTo(HPO));
+        assertThat(asthma.getCode(), equalTo("HP:0002099"));
+        assertThat(asthma.getDisplay(), equalTo("Asthma"));
+        // the same target is shared
+        assertThat(translations.translate("http://hl7.org/fhir/sid/icd-10-cm", "J45"), sameInstance(asthma));
+        // the narrower target is skipped
+        assertThat(translations.translate(SNOMED, "29738008").getCode(), equalTo("HP:0001167"));
+        assertThat(translations.translate(SNOMED, "404684003"), nullValue());
+        // the code is only translated in its own system
+        assertThat(translations.translate(HPO, "195967001"), nullValue());
+    }
+
+    @Test
+    void addsHapiConceptMaps() {
+        ConceptMap conceptMap = new ConceptMap();
+        ConceptMap.ConceptMapGroupComponent group = conceptMap.addGroup().setSource(SNOMED).setTarget(HPO);
+        group.addElement().setCode("195967001").addTarget()
+                .setCode("HP:0002099").setDisplay("Asthma").setEquivalence(Enumerations.ConceptMapEquivalence.EQUAL);
+        group.addElement().setCode("29738008").addTarget()
+                .setCode("HP:0001156").setEquivalence(Enumerations.ConceptMapEquivalence.DISJOINT);
+
+        ConceptTranslations translations = ConceptTranslations.builder().add(conceptMap).build();
+
+        assertThat(translations.size(), equalTo(1));
+        assertThat(translations.translate(new Coding(SNOMED, "195967001", null)).getCode(), equalTo("HP:0002099"));
+        assertThat(ConceptTranslations.builder().build(), sameInstance(ConceptTranslations.empty()));
+    }
+
+    @Test
+    void firstTranslationWinsAndTableGrows() {
+        ConceptTranslations.Builder builder = ConceptTranslations.builder();
+        for (int i = 0; i < 10_000; i++) {
+            builder.add(SNOMED, String.valueOf(i), HPO, "HP:" + (i % 100), "");
+        }
+        builder.add(SNOMED, "0", HPO, "HP:9999999", "");
+
+        ConceptTranslations translations = builder.build();
+
+        assertThat(translations.size(), equalTo(10_000));
+        assertThat(translations.translate(SNOMED, "0").getCode(), equalTo("HP:0"));
+        assertThat(translations.translate(SNOMED, "9999").getCode(), equalTo("HP:99"));
+        assertThat(translations.translate(SNOMED, "10000"), nullValue());
+    }
+
+    @Test
+    void notAConceptMap() {
+        assertThrows(IOException.class, () -> ConceptTranslations.builder().read(new StringReader("{\"resourceType\": \"Bundle\"}")));
+    }
+
+    @Test
+    void conceptMapperTranslatesBothWays() throws IOException {
+        ConceptMapper conceptMapper = ConceptMapper.defaultMapper().withTranslations(translations());
+
+        CodeableConcept snomedAsthma = ConverterUtil.codeableConcept(SNOMED, "195967001", "Asthma (disorder)");
+        assertThat(conceptMapper.toOntologyClass(snomedAsthma), equalTo(ConverterUtil.ontologyClass("HP:0002099", "Asthma")));
+        CodeableConcept untranslated = ConverterUtil.codeableConcept(SNOMED, "22298006", "Myocardial infarction");
+        assertThat(conceptMapper.toOntologyClass(untranslated), equalTo(ConverterUtil.ontologyClass("SNOMEDCT:22298006", "Myocardial infarction")));
+
+        // Phenopacket to FHIR, with a map the other way round
+        ConceptMapper reverseMapper = ConceptMapper.defaultMapper().withTranslations(ConceptTranslations.builder()
+                .add(HPO, "HP:0002099", SNOMED, "195967001", "Asthma")
+                .build());
+        CodeableConcept codeableConcept = reverseMapper.toCodeableConcept(ConverterUtil.ontologyClass("HP:0002099", "Asthma"));
+        assertThat(codeableConcept.getCoding().size(), equalTo(2));
+        assertThat(codeableConcept.getCoding().get(1).getSystem(), equalTo(SNOMED));
+        assertThat(codeableConcept.getCoding().get(1).getCode(), equalTo("195967001"));
+
+        Phenopacket phenopacket = Phenopacket.newBuilder()
+                .setSubject(org.phenopackets.schema.v1.core.Individual.newBuilder().setId("1"))
+                .addPhenotypicFeatures(org.phenopackets.schema.v1.core.PhenotypicFeature.newBuilder().setType(ConverterUtil.ontologyClass("HP:0002099", "Asthma")))
+                .build();
+        Bundle bundle = PhenoPacketConverter.toFhirBundle(phenopacket, reverseMapper);
+        Condition condition = (Condition) bundle.getEntry().get(1).getResource();
+        assertThat(condition.getCode().getCoding().get(1).getCode(), equalTo("195967001"));
+    }
+
+    @Test
+    void extractorTranslatesConditions() throws IOException {
+        PhenopacketExtractor extractor = PhenopacketExtractor.builder()
+                .conceptMapper(ConceptMapper.defaultMapper().withTranslations(translations()))
+                .build();
+        Patient patient = new Patient();
+        patient.setId("Patient/1");
+        Condition condition = new Condition();
+        condition.setSubject(new Reference(patient));
+        condition.setCode(ConverterUtil.codeableConcept(SNOMED, "195967001", "Asthma (disorder)"));
+
+        Phenopacket phenopacket = extractor.extractPhenopacket(patient, Collections.singletonList(condition));
+
+        OntologyClass type = phenopacket.getPhenotypicFeatures(0).getType();
+        assertThat(type, equalTo(ConverterUtil.ontologyClass("HP:0002099", "Asthma")));
+        List<String> prefixes = phenopacket.getMetaData().getResourcesList().stream()
+                .map(Resource::getNamespacePrefix)
+                .collect(Collectors.toList());
+        assertThat(prefixes.contains("HP"), is(true));
+
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(patient);
+        bundle.addEntry().setResource(condition);
+        List<String> cohortPrefixes = new FhirConverter(extractor).toCohort(bundle).getMetaData().getResourcesList().stream()
+                .map(Resource::getNamespacePrefix)
+                .collect(Collectors.toList());
+        assertThat(cohortPrefixes.contains("HP"), is(true));
+    }
+}
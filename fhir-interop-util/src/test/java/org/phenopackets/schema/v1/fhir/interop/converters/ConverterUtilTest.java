@@ -28,4 +28,14 @@ class ConverterUtilTest {
         PhenotypicFeature result = ConverterUtil.makePhenotypicFeature(condition);
         assertThat(result, equalTo(PhenotypicFeature.getDefaultInstance()));
     }
-}
\ No newline at end of file
+
+    @Test
+    void curiePrefix() {
+        assertThat(ConverterUtil.curiePrefix("HP:0001156"), equalTo("HP"));
+        assertThat(ConverterUtil.curiePrefix("HP_0001156"), equalTo("HP"));
+        assertThat(ConverterUtil.curiePrefix("NCBITaxon:9606"), equalTo("NCBITaxon"));
+        assertThat(ConverterUtil.curiePrefix("195967001"), equalTo("195967001"));
+        assertThat(ConverterUtil.curiePrefix(":0001156"), equalTo(""));
+        assertThat(ConverterUtil.curiePrefix(""), equalTo(""));
+    }
+}
@@ -0,0 +1,77 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class CurieIndexTest {
+
+    private final CurieIndex instance = CurieIndex.defaultIndex();
+
+    @Test
+    void namespaceForCurie() {
+        CurieIndex.Namespace hpo = instance.namespaceForCurie("HP:0001156");
+        assertThat(hpo.getPrefix(), equalTo("HP"));
+        assertThat(hpo.getSystem(), equalTo("http://purl.obolibrary.org/obo/hp.owl"));
+        assertThat(instance.namespaceForCurie("NCBITaxon:9606").getPrefix(), equalTo("NCBITaxon"));
+    }
+
+    @Test
+    void unknownOrMissingPrefix() {
+        assertThat(instance.namespaceForCurie("WIBBLE:0001156"), nullValue());
+        assertThat(instance.namespaceForCurie("HP_0001156"), nullValue());
+        assertThat(instance.namespaceForCurie(":0001156"), nullValue());
+        assertThat(instance.namespaceForCurie(""), nullValue());
+    }
+
+    @Test
+    void namespaceForSystem() {
+        assertThat(instance.namespaceForSystem("http://snomed.info/sct").getPrefix(), equalTo("SNOMEDCT"));
+        assertThat(instance.namespaceForSystem("http://example.org"), nullValue());
+        assertThat(instance.namespaceForSystem(null), nullValue());
+    }
+
+    @Test
+    void expand() {
+        assertThat(instance.expand("HP:0001156"), equalTo(Optional.of("http://purl.obolibrary.org/obo/HP_0001156")));
+        assertThat(instance.expand("SNOMEDCT:195967001"), equalTo(Optional.of("http://snomed.info/id/195967001")));
+        assertThat(instance.expand("WIBBLE:1"), equalTo(Optional.empty()));
+    }
+
+    @Test
+    void contract() {
+        assertThat(instance.contract("http://purl.obolibrary.org/obo/HP_0001156"), equalTo(Optional.of("HP:0001156")));
+        assertThat(instance.contract("http://purl.obolibrary.org/obo/MONDO_0007739"), equalTo(Optional.of("MONDO:0007739")));
+        assertThat(instance.contract("http://purl.obolibrary.org/obo/WIBBLE_1"), equalTo(Optional.empty()));
+        assertThat(instance.contract("http://purl.obolibrary.org/obo/"), equalTo(Optional.empty()));
+    }
+
+    @Test
+    void contractUsesLongestMatchingIriBase() {
+        CurieIndex index = CurieIndex.withDefaults(ImmutableList.of(
+                new CurieIndex.Namespace("EX", "http://example.org/", "http://example.org", false),
+                new CurieIndex.Namespace("EXT", "http://example.org/terms/", "http://example.org/terms", false)));
+
+        assertThat(index.contract("http://example.org/terms/1"), equalTo(Optional.of("EXT:1")));
+        assertThat(index.contract("http://example.org/other/1"), equalTo(Optional.of("EX:other/1")));
+    }
+
+    @Test
+    void namespaceCodes() {
+        CurieIndex.Namespace hpo = instance.namespaceForPrefix("HP");
+        assertThat(hpo.toCode("HP:0001156"), equalTo("HP:0001156"));
+        assertThat(hpo.toCurie("HP:0001156"), equalTo("HP:0001156"));
+
+        CurieIndex.Namespace snomed = instance.namespaceForPrefix("SNOMEDCT");
+        assertThat(snomed.toCode("SNOMEDCT:195967001"), equalTo("195967001"));
+        assertThat(snomed.toCurie("195967001"), equalTo("SNOMEDCT:195967001"));
+    }
+}
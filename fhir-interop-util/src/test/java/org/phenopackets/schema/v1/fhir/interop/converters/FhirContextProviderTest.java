@@ -0,0 +1,62 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.context.PerformanceOptionsEnum;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.BundleResources;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class FhirContextProviderTest {
+
+    @Test
+    void sharedR4Context() {
+        FhirContextProvider provider = FhirContextProvider.r4();
+
+        assertThat(FhirContextProvider.r4(), sameInstance(provider));
+        assertThat(provider.getFhirContext().getVersion().getVersion(), equalTo(FhirVersionEnum.R4));
+        assertThat(provider.getFhirContext().getPerformanceOptions().contains(PerformanceOptionsEnum.DEFERRED_MODEL_SCANNING), is(true));
+    }
+
+    @Test
+    void jsonParserPerThread() throws Exception {
+        FhirContextProvider provider = FhirContextProvider.r4();
+        IParser parser = provider.jsonParser();
+        IParser otherThreadParser = CompletableFuture.supplyAsync(provider::jsonParser).get();
+
+        assertThat(provider.jsonParser(), sameInstance(parser));
+        assertThat(otherThreadParser, not(sameInstance(parser)));
+    }
+
+    @Test
+    void parsesConvertedResourceTypes() {
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(new Patient().setActive(true));
+        IParser parser = FhirContextProvider.r4().jsonParser();
+
+        Bundle parsed = parser.parseResource(Bundle.class, parser.encodeResourceToString(bundle));
+
+        assertThat(((Patient) parsed.getEntryFirstRep().getResource()).getActive(), is(true));
+    }
+
+    @Test
+    void scansTheResourceTypesConverted() {
+        Set<ResourceType> scanned = FhirContextProvider.CONVERTED_RESOURCE_TYPES.stream()
+                .map(resourceType -> ResourceType.fromCode(FhirContextProvider.r4().getFhirContext().getResourceDefinition(resourceType).getName()))
+                .collect(Collectors.toSet());
+
+        assertThat(scanned.containsAll(BundleResources.resourceTypes()), is(true));
+    }
+}
@@ -1,20 +1,30 @@
 package org.phenopackets.schema.v1.fhir.interop.converters;
 
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
 import com.google.protobuf.Timestamp;
 import com.google.protobuf.util.JsonFormat;
 import org.hl7.fhir.r4.model.*;
 import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v1.Cohort;
+import org.phenopackets.schema.v1.Family;
 import org.phenopackets.schema.v1.Phenopacket;
 import org.phenopackets.schema.v1.core.*;
 import org.phenopackets.schema.v1.core.Resource;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.ObservationRules;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.CoreMatchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 /**
  * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
@@ -136,4 +146,235 @@ class FhirConverterTest {
         assertThat(converted.getMetaData().getCreatedBy(), equalTo(expected.getMetaData().getCreatedBy()));
         assertThat(converted.getMetaData().getResourcesList(), equalTo(expected.getMetaData().getResourcesList()));
     }
-}
\ No newline at end of file
+
+    private static Patient patient(String id) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        return patient;
+    }
+
+    private static Condition condition(Patient subject, String system, String id, String label) {
+        Condition condition = new Condition();
+        condition.setCode(ConverterUtil.codeableConcept(system, id, label));
+        condition.setSubject(new Reference(subject));
+        return condition;
+    }
+
+    @Test
+    void emptyBundleToCohort() {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+
+        Cohort cohort = new FhirConverter().toCohort(bundle);
+
+        assertThat(cohort.getMembersCount(), equalTo(0));
+    }
+
+    @Test
+    void testMultiPatientBundleToCohort() {
+        Bundle bundle = new Bundle();
+        bundle.setId("COHORT:1");
+        bundle.setType(Bundle.BundleType.COLLECTION);
+
+        int numPatients = 50;
+        for (int i = 0; i < numPatients; i++) {
+            Patient patient = patient("PATIENT#" + i);
+            bundle.addEntry().setResource(patient);
+            // interleave the conditions of different patients
+            bundle.addEntry().setResource(condition(patient, "a.url", "a:" + i, "a wibble"));
+        }
+        for (Bundle.BundleEntryComponent entry : new ArrayList<>(bundle.getEntry())) {
+            if (entry.getResource() instanceof Patient && ((Patient) entry.getResource()).getId().endsWith("0")) {
+                bundle.addEntry().setResource(condition((Patient) entry.getResource(), "b.url", "b:1", "b frood"));
+            }
+        }
+
+        Cohort cohort = new FhirConverter().toCohort(bundle);
+
+        assertThat(cohort.getId(), equalTo("COHORT:1"));
+        assertThat(cohort.getMembersCount(), equalTo(numPatients));
+        for (int i = 0; i < numPatients; i++) {
+            Phenopacket member = cohort.getMembers(i);
+            assertThat(member.getSubject().getId(), equalTo("PATIENT#" + i));
+            assertThat(member.getPhenotypicFeatures(0).getType().getId(), equalTo("a:" + i));
+            int expectedCount = (i % 10 == 0) ? 2 : 1;
+            assertThat(member.getPhenotypicFeaturesCount(), equalTo(expectedCount));
+            // each member only has the resources used by its own conditions
+            assertThat(member.getMetaData().getResourcesCount(), equalTo(expectedCount));
+        }
+        assertThat(cohort.getMetaData().getResourcesCount(), equalTo(2));
+    }
+
+    @Test
+    void testTwoPatientBundleKeepsConditionsWithTheirSubject() {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+
+        Patient first = patient("PATIENT#1");
+        Patient second = patient("PATIENT#2");
+        bundle.addEntry().setResource(first);
+        bundle.addEntry().setResource(second);
+        bundle.addEntry().setResource(condition(second, "b.url", "b:1", "b frood"));
+
+        Phenopacket converted = new FhirConverter().toPhenopacket(bundle);
+
+        assertThat(converted.getSubject().getId(), equalTo("PATIENT#1"));
+        assertThat(converted.getPhenotypicFeaturesCount(), equalTo(0));
+        assertThat(converted.getMetaData().getResourcesCount(), equalTo(0));
+    }
+
+    @Test
+    void conditionsReferringToSubjectByString() {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+
+        // as built in code rather than parsed, so the references are not linked to their resources
+        Condition byTypeAndId = new Condition();
+        byTypeAndId.setCode(ConverterUtil.codeableConcept("hp.url", "HP:0001156", "Brachydactyly"));
+        byTypeAndId.setSubject(new Reference("Patient/1"));
+        bundle.addEntry().setResource(byTypeAndId);
+        bundle.addEntry().setFullUrl("urn:uuid:9c1f6c52-3c1b-4b7e-a4b1-6f3d5f2a8e10").setResource(new Patient().setId("1"));
+        Condition byFullUrl = new Condition();
+        byFullUrl.setCode(ConverterUtil.codeableConcept("hp.url", "HP:0001250", "Seizure"));
+        byFullUrl.setSubject(new Reference("urn:uuid:9c1f6c52-3c1b-4b7e-a4b1-6f3d5f2a8e10"));
+        bundle.addEntry().setResource(byFullUrl);
+
+        Phenopacket converted = new FhirConverter().toPhenopacket(bundle);
+
+        assertThat(converted.getPhenotypicFeaturesCount(), equalTo(2));
+        assertThat(converted.getPhenotypicFeatures(0).getType().getId(), equalTo("HP:0001156"));
+    }
+
+    private static Observation plateletCount(Patient subject, double value) {
+        Observation observation = new Observation();
+        observation.setCode(ConverterUtil.codeableConcept(ObservationRules.LOINC_SYSTEM, "777-3", "Platelets"));
+        observation.setValue(new Quantity().setValue(value).setCode("10*3/uL"));
+        observation.setSubject(new Reference(subject));
+        return observation;
+    }
+
+    @Test
+    void phenotypesFromObservations() throws IOException {
+        ObservationRules observationRules = ObservationRules.parse(new StringReader(
+                "777-3\t10*3/uL\t\t150\tHP:0001873\tThrombocytopenia\n" +
+                "777-3\t10*3/uL\t\t50\tHP:0031421\tSevere thrombocytopenia\n" +
+                "777-3\t10*3/uL\t450\t\tHP:0001894\tThrombocytosis\n"));
+        FhirConverter fhirConverter = new FhirConverter(PhenopacketExtractor.builder().observationRules(observationRules).build());
+
+        Bundle bundle = new Bundle();
+        Patient first = patient("PATIENT#1");
+        Patient second = patient("PATIENT#2");
+        bundle.addEntry().setResource(first);
+        bundle.addEntry().setResource(second);
+        bundle.addEntry().setResource(condition(first, "http://purl.obolibrary.org/obo/hp.owl", "HP:0001873", "Thrombocytopenia"));
+        bundle.addEntry().setResource(plateletCount(first, 40));
+        bundle.addEntry().setResource(plateletCount(first, 30));
+        bundle.addEntry().setResource(plateletCount(second, 500));
+
+        Phenopacket converted = fhirConverter.toPhenopacket(bundle);
+
+        // the Condition's term isn't repeated and those of the Observations are only added once
+        assertThat(converted.getPhenotypicFeaturesCount(), equalTo(2));
+        assertThat(converted.getPhenotypicFeatures(1).getType(), equalTo(ConverterUtil.ontologyClass("HP:0031421", "Severe thrombocytopenia")));
+        assertThat(converted.getMetaData().getResourcesCount(), equalTo(1));
+
+        Cohort cohort = fhirConverter.toCohort(bundle);
+        assertThat(cohort.getMembers(1).getPhenotypicFeatures(0).getType().getId(), equalTo("HP:0001894"));
+        assertThat(cohort.getMetaData().getResourcesCount(), equalTo(1));
+    }
+
+    @Test
+    void bundleToFamily() {
+        Bundle bundle = new Bundle();
+        bundle.setId("FAMILY:1");
+        Patient proband = patient("PATIENT#1");
+        Patient mother = patient("PATIENT#2");
+        mother.setGender(Enumerations.AdministrativeGender.FEMALE);
+        bundle.addEntry().setResource(mother);
+        bundle.addEntry().setResource(proband);
+        bundle.addEntry().setResource(condition(proband, "a.url", "a:1", "a frood"));
+        bundle.addEntry().setResource(condition(mother, "b.url", "b:1", "b frood"));
+        RelatedPerson relatedPerson = new RelatedPerson();
+        relatedPerson.setPatient(new Reference(proband));
+        relatedPerson.addRelationship(ConverterUtil.codeableConcept("http://terminology.hl7.org/CodeSystem/v3-RoleCode", "MTH", "mother"));
+        mother.addLink().setOther(new Reference(relatedPerson)).setType(Patient.LinkType.SEEALSO);
+        bundle.addEntry().setResource(relatedPerson);
+
+        Family family = new FhirConverter().toFamily(bundle);
+
+        assertThat(family.getId(), equalTo("FAMILY:1"));
+        assertThat(family.getProband().getSubject().getId(), equalTo("PATIENT#1"));
+        assertThat(family.getRelativesCount(), equalTo(1));
+        assertThat(family.getRelatives(0).getSubject().getId(), equalTo("PATIENT#2"));
+        assertThat(family.getPedigree().getPersonsCount(), equalTo(2));
+        Pedigree.Person probandPerson = family.getPedigree().getPersons(1);
+        assertThat(probandPerson.getFamilyId(), equalTo("FAMILY:1"));
+        assertThat(probandPerson.getIndividualId(), equalTo("PATIENT#1"));
+        assertThat(probandPerson.getMaternalId(), equalTo("PATIENT#2"));
+        assertThat(probandPerson.getAffectedStatus(), equalTo(Pedigree.Person.AffectedStatus.AFFECTED));
+        assertThat(family.getMetaData().getResourcesCount(), equalTo(2));
+
+        Family motherFamily = new FhirConverter().toFamily(bundle, "PATIENT#2");
+        assertThat(motherFamily.getProband().getSubject().getId(), equalTo("PATIENT#2"));
+        assertThat(motherFamily.getRelatives(0).getSubject().getId(), equalTo("PATIENT#1"));
+    }
+
+    @Test
+    void familyWithoutPatientsOrProband() {
+        Bundle bundle = new Bundle();
+
+        assertThat(new FhirConverter().toFamily(bundle), equalTo(Family.getDefaultInstance()));
+        bundle.addEntry().setResource(patient("PATIENT#1"));
+        assertThrows(IllegalArgumentException.class, () -> new FhirConverter().toFamily(bundle, "PATIENT#2"));
+    }
+
+    @Test
+    void conversionObserverSeesStagesAndCounts() {
+        Bundle bundle = new Bundle();
+        Patient first = patient("PATIENT#1");
+        Patient second = patient("PATIENT#2");
+        Condition noCode = new Condition();
+        noCode.setSubject(new Reference(first));
+        bundle.addEntry().setResource(first);
+        bundle.addEntry().setResource(second);
+        bundle.addEntry().setResource(condition(first, "a.url", "a:1", "a frood"));
+        bundle.addEntry().setResource(noCode);
+        bundle.addEntry().setResource(condition(second, "b.url", "b:1", "b frood"));
+
+        RecordingObserver observer = new RecordingObserver();
+        new FhirConverter(PhenopacketExtractor.builder().conversionObserver(observer).build()).toCohort(bundle);
+
+        assertThat(observer.stages.count(ConversionObserver.Stage.GROUP), equalTo(1));
+        assertThat(observer.stages.count(ConversionObserver.Stage.EXTRACT), equalTo(2));
+        // one per member and one for the Cohort
+        assertThat(observer.stages.count(ConversionObserver.Stage.METADATA), equalTo(3));
+        assertThat(observer.patients.get(), equalTo(2));
+        assertThat(observer.conditions.get(), equalTo(3));
+        assertThat(observer.skippedConditions.get(), equalTo(1));
+    }
+
+    private static class RecordingObserver implements ConversionObserver {
+
+        private final Multiset<Stage> stages = ConcurrentHashMultiset.create();
+        private final AtomicInteger patients = new AtomicInteger();
+        private final AtomicInteger conditions = new AtomicInteger();
+        private final AtomicInteger skippedConditions = new AtomicInteger();
+
+        @Override
+        public long startTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void stageCompleted(Stage stage, long startTime) {
+            stages.add(stage);
+        }
+
+        @Override
+        public void patientConverted(int conditions, int skippedConditions) {
+            patients.incrementAndGet();
+            this.conditions.addAndGet(conditions);
+            this.skippedConditions.addAndGet(skippedConditions);
+        }
+    }
+}
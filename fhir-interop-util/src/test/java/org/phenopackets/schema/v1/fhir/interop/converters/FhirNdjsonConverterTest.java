@@ -0,0 +1,98 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v1.Phenopacket;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class FhirNdjsonConverterTest {
+
+    private static final IParser jsonParser = FhirContextProvider.r4().getFhirContext().newJsonParser();
+
+    private static String patientLine(String id) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+        return jsonParser.encodeResourceToString(patient);
+    }
+
+    private static String conditionLine(String subjectId, String hpoId, String label) {
+        Condition condition = new Condition();
+        condition.setCode(ConverterUtil.codeableConcept("http://purl.obolibrary.org/obo/hp.owl", hpoId, label));
+        condition.setSubject(new Reference("Patient/" + subjectId));
+        return jsonParser.encodeResourceToString(condition);
+    }
+
+    private static List<Phenopacket> convert(String ndjson) throws IOException {
+        List<Phenopacket> phenopackets = new ArrayList<>();
+        long count = new FhirNdjsonConverter(jsonParser).convert(new StringReader(ndjson), phenopackets::add);
+        assertThat(count, equalTo((long) phenopackets.size()));
+        return phenopackets;
+    }
+
+    @Test
+    void emptyInput() throws IOException {
+        assertThat(convert("").isEmpty(), equalTo(true));
+    }
+
+    @Test
+    void patientsGroupedWithTheirConditions() throws IOException {
+        String ndjson = String.join("\n",
+                patientLine("1"),
+                conditionLine("1", "HP:0001156", "Brachydactyly"),
+                conditionLine("1", "HP:0001250", "Seizure"),
+                "",
+                // conditions may come before their patient
+                conditionLine("2", "HP:0001873", "Thrombocytopenia"),
+                patientLine("2"),
+                patientLine("3"));
+
+        List<Phenopacket> phenopackets = convert(ndjson);
+
+        assertThat(phenopackets.size(), equalTo(3));
+        assertThat(phenopackets.get(0).getPhenotypicFeaturesCount(), equalTo(2));
+        assertThat(phenopackets.get(0).getPhenotypicFeatures(1).getType().getId(), equalTo("HP:0001250"));
+        assertThat(phenopackets.get(1).getPhenotypicFeaturesCount(), equalTo(1));
+        assertThat(phenopackets.get(1).getPhenotypicFeatures(0).getType().getId(), equalTo("HP:0001873"));
+        assertThat(phenopackets.get(2).getPhenotypicFeaturesCount(), equalTo(0));
+    }
+
+    @Test
+    void conditionsWithoutPatientAreSkipped() throws IOException {
+        String ndjson = String.join("\n",
+                conditionLine("1", "HP:0001156", "Brachydactyly"),
+                patientLine("2"),
+                "{not json}");
+
+        List<Phenopacket> phenopackets = convert(ndjson);
+
+        assertThat(phenopackets.size(), equalTo(1));
+        assertThat(phenopackets.get(0).getPhenotypicFeaturesCount(), equalTo(0));
+    }
+
+    @Test
+    void rejectsInputNotGroupedByPatient() {
+        String ndjson = String.join("\n",
+                patientLine("1"),
+                patientLine("2"),
+                conditionLine("1", "HP:0001156", "Brachydactyly"),
+                conditionLine("2", "HP:0001250", "Seizure"));
+
+        DataFormatException e = assertThrows(DataFormatException.class, () -> convert(ndjson));
+        assertThat(e.getMessage(), containsString("Subject 1 on line 3"));
+    }
+}
@@ -0,0 +1,202 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.core.PhenotypicFeature;
+import org.phenopackets.schema.v1.core.Resource;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class IncrementalPhenopacketTest {
+
+    private final FhirConverter fhirConverter = new FhirConverter();
+
+    private static Condition condition(String id, String system, String code, String label) {
+        Condition condition = new Condition();
+        condition.setId(id);
+        condition.setCode(ConverterUtil.codeableConcept(system, code, label));
+        condition.setSubject(new Reference("Patient/1"));
+        return condition;
+    }
+
+    private static Bundle patientBundle(Condition... conditions) {
+        Patient patient = new Patient();
+        patient.setId("1");
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        bundle.addEntry().setFullUrl("Patient/1").setResource(patient);
+        for (Condition condition : conditions) {
+            // as resolved by the parser
+            condition.getSubject().setResource(patient);
+            bundle.addEntry().setResource(condition);
+        }
+        return bundle;
+    }
+
+    private static void addChange(Bundle bundle, Bundle.HTTPVerb method, Condition condition) {
+        bundle.addEntry().setResource(condition).getRequest().setMethod(method).setUrl("Condition/" + condition.getIdElement().getIdPart());
+    }
+
+    private static void addDeletion(Bundle bundle, String conditionId) {
+        bundle.addEntry().getRequest().setMethod(Bundle.HTTPVerb.DELETE).setUrl("Condition/" + conditionId);
+    }
+
+    private static List<String> featureIds(Phenopacket phenopacket) {
+        return phenopacket.getPhenotypicFeaturesList().stream()
+                .map(feature -> feature.getType().getId())
+                .collect(Collectors.toList());
+    }
+
+    private static List<String> resourcePrefixes(Phenopacket phenopacket) {
+        return phenopacket.getMetaData().getResourcesList().stream()
+                .map(Resource::getNamespacePrefix)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void incrementalPhenopacketMatchesFullConversion() {
+        Bundle bundle = patientBundle(condition("c1", "hp.url", "HP:0001156", "Brachydactyly"), condition("c2", "mondo.url", "MONDO:0007525", "Brachydactyly type A1"));
+
+        IncrementalPhenopacket incrementalPhenopacket = fhirConverter.toIncrementalPhenopacket(bundle);
+        Phenopacket expected = fhirConverter.toPhenopacket(bundle);
+
+        assertThat(incrementalPhenopacket.getPhenopacket().getPhenotypicFeaturesList(), equalTo(expected.getPhenotypicFeaturesList()));
+        assertThat(incrementalPhenopacket.getPhenopacket().getMetaData().getResourcesList(), equalTo(expected.getMetaData().getResourcesList()));
+        assertThat(incrementalPhenopacket.getConditionIds(), equalTo(Arrays.asList("c1", "c2")));
+    }
+
+    @Test
+    void applyCreatedUpdatedAndDeletedConditions() {
+        IncrementalPhenopacket incrementalPhenopacket = fhirConverter.toIncrementalPhenopacket(patientBundle(
+                condition("c1", "hp.url", "HP:0001156", "Brachydactyly"),
+                condition("c2", "mondo.url", "MONDO:0007525", "Brachydactyly type A1"),
+                condition("c3", "hp.url", "HP:0001250", "Seizure")));
+
+        Bundle changes = new Bundle();
+        changes.setType(Bundle.BundleType.TRANSACTION);
+        addChange(changes, Bundle.HTTPVerb.PUT, condition("c1", "hp.url", "HP:0010442", "Polydactyly"));
+        addDeletion(changes, "c2");
+        addChange(changes, Bundle.HTTPVerb.POST, condition("c4", "hp.url", "HP:0000252", "Microcephaly"));
+        Phenopacket updated = fhirConverter.applyChanges(incrementalPhenopacket, changes);
+
+        // an updated Condition keeps its place
+        assertThat(featureIds(updated), equalTo(Arrays.asList("HP:0010442", "HP:0001250", "HP:0000252")));
+        assertThat(incrementalPhenopacket.getConditionIds(), equalTo(Arrays.asList("c1", "c3", "c4")));
+        // the MONDO Resource went with the last Condition using it
+        assertThat(resourcePrefixes(updated), equalTo(Collections.singletonList("HP")));
+        assertThat(updated.getMetaData().getUpdatedCount(), equalTo(1));
+        assertThat(updated.getMetaData().getCreated(), equalTo(incrementalPhenopacket.getPhenopacket().getMetaData().getCreated()));
+    }
+
+    @Test
+    void historyIsAppliedOldestFirst() {
+        IncrementalPhenopacket incrementalPhenopacket = fhirConverter.toIncrementalPhenopacket(patientBundle(condition("c1", "hp.url", "HP:0001156", "Brachydactyly")));
+
+        Bundle history = new Bundle();
+        history.setType(Bundle.BundleType.HISTORY);
+        addChange(history, Bundle.HTTPVerb.PUT, condition("c1", "hp.url", "HP:0000252", "Microcephaly"));
+        addChange(history, Bundle.HTTPVerb.PUT, condition("c1", "hp.url", "HP:0010442", "Polydactyly"));
+        Phenopacket updated = fhirConverter.applyChanges(incrementalPhenopacket, history);
+
+        assertThat(featureIds(updated), equalTo(Collections.singletonList("HP:0000252")));
+    }
+
+    @Test
+    void unchangedConditionsAndOtherSubjectsAreIgnored() {
+        Condition condition = condition("c1", "hp.url", "HP:0001156", "Brachydactyly");
+        IncrementalPhenopacket incrementalPhenopacket = fhirConverter.toIncrementalPhenopacket(patientBundle(condition));
+        Phenopacket original = incrementalPhenopacket.getPhenopacket();
+
+        Condition otherSubject = condition("c2", "hp.url", "HP:0001250", "Seizure");
+        otherSubject.setSubject(new Reference("Patient/2"));
+        Bundle changes = new Bundle();
+        changes.setType(Bundle.BundleType.COLLECTION);
+        changes.addEntry().setResource(condition("c1", "hp.url", "HP:0001156", "Brachydactyly"));
+        changes.addEntry().setResource(otherSubject);
+        addDeletion(changes, "unknown");
+
+        assertThat(fhirConverter.applyChanges(incrementalPhenopacket, changes), sameInstance(original));
+    }
+
+    @Test
+    void translatedTermResourcesGoWithTheirConditions() {
+        ConceptTranslations translations = ConceptTranslations.builder()
+                .add("http://snomed.info/sct", "195967001", "http://purl.obolibrary.org/obo/hp.owl", "HP:0002099", "Asthma")
+                .build();
+        FhirConverter translatingConverter = new FhirConverter(PhenopacketExtractor.builder()
+                .conceptMapper(ConceptMapper.defaultMapper().withTranslations(translations))
+                .build());
+        Bundle bundle = patientBundle(condition("c1", "http://snomed.info/sct", "195967001", "Asthma (disorder)"), condition("c2", "mondo.url", "MONDO:0007525", "Brachydactyly type A1"));
+        IncrementalPhenopacket incrementalPhenopacket = translatingConverter.toIncrementalPhenopacket(bundle);
+
+        // rebuilt from the Resources of each Condition
+        Bundle changes = new Bundle();
+        changes.setType(Bundle.BundleType.TRANSACTION);
+        addChange(changes, Bundle.HTTPVerb.PUT, condition("c2", "mondo.url", "MONDO:0007526", "Brachydactyly type A2"));
+        Phenopacket updated = translatingConverter.applyChanges(incrementalPhenopacket, changes);
+
+        assertThat(featureIds(updated), equalTo(Arrays.asList("HP:0002099", "MONDO:0007526")));
+        assertThat(resourcePrefixes(updated).contains("HP"), is(true));
+
+        changes = new Bundle();
+        changes.setType(Bundle.BundleType.TRANSACTION);
+        addDeletion(changes, "c1");
+        updated = translatingConverter.applyChanges(incrementalPhenopacket, changes);
+
+        assertThat(resourcePrefixes(updated), equalTo(Collections.singletonList("MONDO")));
+
+        changes = new Bundle();
+        changes.setType(Bundle.BundleType.TRANSACTION);
+        addChange(changes, Bundle.HTTPVerb.POST, condition("c3", "http://snomed.info/sct", "195967001", "Asthma (disorder)"));
+        updated = translatingConverter.applyChanges(incrementalPhenopacket, changes);
+
+        assertThat(featureIds(updated), equalTo(Arrays.asList("MONDO:0007526", "HP:0002099")));
+        assertThat(resourcePrefixes(updated).contains("HP"), is(true));
+    }
+
+    @Test
+    void ofStoredPhenopacket() {
+        Bundle bundle = patientBundle(condition("c1", "hp.url", "HP:0001156", "Brachydactyly"), condition("c2", "mondo.url", "MONDO:0007525", "Brachydactyly type A1"));
+        IncrementalPhenopacket converted = fhirConverter.toIncrementalPhenopacket(bundle);
+
+        IncrementalPhenopacket stored = IncrementalPhenopacket.of(converted.getPhenopacket(), converted.getConditionIds());
+        Bundle changes = new Bundle();
+        changes.setType(Bundle.BundleType.TRANSACTION);
+        addDeletion(changes, "c2");
+        Phenopacket updated = fhirConverter.applyChanges(stored, changes);
+
+        assertThat(featureIds(updated), equalTo(Collections.singletonList("HP:0001156")));
+        assertThat(resourcePrefixes(updated), equalTo(Collections.singletonList("HP")));
+        assertThrows(IllegalArgumentException.class, () -> IncrementalPhenopacket.of(converted.getPhenopacket(), Collections.singletonList("c1")));
+    }
+
+    @Test
+    void conditionWithoutCodeHasEmptyFeature() {
+        IncrementalPhenopacket incrementalPhenopacket = fhirConverter.toIncrementalPhenopacket(patientBundle());
+
+        Condition withoutCode = new Condition();
+        withoutCode.setId("c1");
+        withoutCode.setSubject(new Reference("Patient/1"));
+        Bundle changes = new Bundle();
+        changes.setType(Bundle.BundleType.COLLECTION);
+        changes.addEntry().setResource(withoutCode);
+        Phenopacket updated = fhirConverter.applyChanges(incrementalPhenopacket, changes);
+
+        assertThat(updated.getPhenotypicFeaturesList(), equalTo(Collections.singletonList(PhenotypicFeature.getDefaultInstance())));
+        assertThat(updated.getMetaData().getResourcesCount(), equalTo(0));
+    }
+}
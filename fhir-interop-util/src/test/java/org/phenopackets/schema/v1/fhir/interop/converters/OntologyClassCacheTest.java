@@ -0,0 +1,62 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v1.core.OntologyClass;
+import org.phenopackets.schema.v1.core.PhenotypicFeature;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class OntologyClassCacheTest {
+
+    private static final String HPO_SYSTEM = "http://purl.obolibrary.org/obo/hp.owl";
+
+    @Test
+    void boundedCacheReturnsSameInstance() {
+        OntologyClassCache instance = OntologyClassCache.bounded(100);
+        OntologyClass first = instance.ontologyClass(new Coding(HPO_SYSTEM, "HP:0001156", "Brachydactyly"));
+        OntologyClass second = instance.ontologyClass(new Coding(HPO_SYSTEM, "HP:0001156", "Brachydactyly"));
+
+        assertThat(second, sameInstance(first));
+        assertThat(first, equalTo(ConverterUtil.ontologyClass("HP:0001156", "Brachydactyly")));
+        assertThat(instance.ontologyClassStats().hitCount(), equalTo(1L));
+        assertThat(instance.ontologyClassStats().missCount(), equalTo(1L));
+    }
+
+    @Test
+    void keyIncludesSystemAndDisplay() {
+        OntologyClassCache instance = OntologyClassCache.bounded(100);
+        OntologyClass hpo = instance.ontologyClass(HPO_SYSTEM, "HP:0001156", "Brachydactyly");
+
+        assertThat(instance.ontologyClass("http://example.org", "HP:0001156", "Brachydactyly"), not(sameInstance(hpo)));
+        assertThat(instance.ontologyClass(HPO_SYSTEM, "HP:0001156", "Short digits"), not(sameInstance(hpo)));
+        assertThat(instance.ontologyClassStats().hitCount(), equalTo(0L));
+    }
+
+    @Test
+    void disabledCacheCreatesNewInstances() {
+        OntologyClassCache instance = OntologyClassCache.disabled();
+        OntologyClass first = instance.ontologyClass(HPO_SYSTEM, "HP:0001156", "Brachydactyly");
+
+        assertThat(instance.ontologyClass(HPO_SYSTEM, "HP:0001156", "Brachydactyly"), not(sameInstance(first)));
+        assertThat(instance.isEnabled(), is(false));
+        assertThat(instance.size(), equalTo(0L));
+    }
+
+    @Test
+    void phenotypicFeaturesShareOntologyClasses() {
+        OntologyClassCache instance = OntologyClassCache.bounded(100);
+        Condition condition = new Condition().setCode(ConverterUtil.codeableConcept(HPO_SYSTEM, "HP:0001156", "Brachydactyly"));
+
+        PhenotypicFeature first = ConverterUtil.makePhenotypicFeature(condition, instance);
+        PhenotypicFeature second = ConverterUtil.makePhenotypicFeature(condition.copy(), instance);
+
+        assertThat(second.getType(), sameInstance(first.getType()));
+        assertThat(first, equalTo(ConverterUtil.makePhenotypicFeature(condition)));
+    }
+}
@@ -0,0 +1,148 @@
+package org.phenopackets.schema.v1.fhir.interop.converters;
+
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.core.OntologyClass;
+import org.phenopackets.schema.v1.fhir.interop.converters.fhir.PhenopacketExtractor;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class OntologyIndexTest {
+
+    private static final String OBO = "format-version: 1.2\n" +
+            "ontology: hp\n" +
+            "\n" +
+            "[Term]\n" +
+            "id: HP:0000118\n" +
+            "name: Phenotypic abnormality\n" +
+            "\n" +
+            "[Term]\n" +
+            "id: HP:0001156\n" +
+            "name: Brachydactyly\n" +
+            "alt_id: HP:0001157\n" +
+            "def: \"Digits that appear disproportionately short compared to the hand/foot.\" [HPO:probinson]\n" +
+            "is_a: HP:0000118 ! Phenotypic abnormality\n" +
+            "\n" +
+            "[Term]\n" +
+            "id: HP:0009882\n" +
+            "name: obsolete Short distal phalanx of finger\n" +
+            "is_obsolete: true\n" +
+            "replaced_by: HP:0009883\n" +
+            "\n" +
+            "[Term]\n" +
+            "id: HP:0009883\n" +
+            "name: obsolete Short distal phalanges\n" +
+            "is_obsolete: true\n" +
+            "replaced_by: HP:0001156\n" +
+            "\n" +
+            "[Term]\n" +
+            "id: HP:0000001\n" +
+            "name: obsolete All\n" +
+            "is_obsolete: true\n" +
+            "\n" +
+            "[Term]\n" +
+            "id: HP:0012828\n" +
+            "name: Sévère\n" +
+            "\n" +
+            "[Typedef]\n" +
+            "id: HP:0099999\n" +
+            "name: not a term\n";
+
+    private static Path indexFile;
+    private static OntologyIndex index;
+
+    @BeforeAll
+    static void writeIndex() throws IOException {
+        indexFile = Files.createTempFile("hp", ".idx");
+        OntologyIndexWriter.write(new StringReader(OBO), indexFile);
+        index = OntologyIndex.open(indexFile);
+    }
+
+    @AfterAll
+    static void deleteIndex() throws IOException {
+        Files.deleteIfExists(indexFile);
+    }
+
+    @Test
+    void labelsAndObsoleteIds() {
+        // 6 terms and an alt_id
+        assertThat(index.size(), equalTo(7));
+        assertThat(index.label("HP:0001156"), equalTo("Brachydactyly"));
+        assertThat(index.isObsolete("HP:0001156"), is(false));
+        assertThat(index.replacement("HP:0001156"), nullValue());
+        assertThat(index.label("HP:0012828"), equalTo("Sévère"));
+
+        // via an obsolete term
+        assertThat(index.isObsolete("HP:0009882"), is(true));
+        assertThat(index.replacement("HP:0009882"), equalTo("HP:0001156"));
+        assertThat(index.label("HP:0009882"), equalTo("Brachydactyly"));
+        assertThat(index.replacement("HP:0001157"), equalTo("HP:0001156"));
+        assertThat(index.isObsolete("HP:0000001"), is(true));
+        assertThat(index.replacement("HP:0000001"), nullValue());
+    }
+
+    @Test
+    void unknownIds() {
+        assertThat(index.contains("HP:0099999"), is(false));
+        assertThat(index.label("HP:0099999"), nullValue());
+        assertThat(index.covers("HP:0099999"), is(true));
+        assertThat(index.covers("MONDO:0007915"), is(false));
+        assertThat(OntologyIndex.empty().contains("HP:0001156"), is(false));
+    }
+
+    @Test
+    void canonicalTerms() {
+        OntologyClass current = ConverterUtil.ontologyClass("HP:0001156", "Brachydactyly");
+        assertThat(index.canonical(current), sameInstance(current));
+        OntologyClass nonAscii = ConverterUtil.ontologyClass("HP:0012828", "Sévère");
+        assertThat(index.canonical(nonAscii), sameInstance(nonAscii));
+        OntologyClass unknown = ConverterUtil.ontologyClass("HP:0099999", "Unknown");
+        assertThat(index.canonical(unknown), sameInstance(unknown));
+
+        assertThat(index.canonical(ConverterUtil.ontologyClass("HP:0001156", "")), equalTo(current));
+        assertThat(index.canonical(ConverterUtil.ontologyClass("HP:0001156", "Short fingers")), equalTo(current));
+        assertThat(index.canonical(ConverterUtil.ontologyClass("HP:0001157", "Short digits")), equalTo(current));
+        assertThat(index.canonical(ConverterUtil.ontologyClass("HP:0009882", "")), equalTo(current));
+    }
+
+    @Test
+    void extractorReplacesObsoleteTerms() {
+        PhenopacketExtractor extractor = PhenopacketExtractor.builder().ontologyIndex(index).build();
+        Patient patient = new Patient();
+        patient.setId("Patient/1");
+        Condition condition = new Condition();
+        condition.setSubject(new Reference(patient));
+        condition.setCode(ConverterUtil.codeableConcept("http://purl.obolibrary.org/obo/hp.owl", "HP:0009882", "Short distal phalanx of finger"));
+
+        Phenopacket phenopacket = extractor.extractPhenopacket(patient, Collections.singletonList(condition));
+
+        assertThat(phenopacket.getPhenotypicFeatures(0).getType(), equalTo(ConverterUtil.ontologyClass("HP:0001156", "Brachydactyly")));
+    }
+
+    @Test
+    void notAnIndex() throws IOException {
+        Path notAnIndex = Files.createTempFile("hp", ".obo");
+        try {
+            Files.write(notAnIndex, OBO.getBytes());
+            assertThrows(IOException.class, () -> OntologyIndex.open(notAnIndex));
+        } finally {
+            Files.delete(notAnIndex);
+        }
+    }
+}
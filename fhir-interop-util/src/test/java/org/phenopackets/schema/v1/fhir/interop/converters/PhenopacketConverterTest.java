@@ -72,6 +72,21 @@ public class PhenopacketConverterTest {
         assertThat(result.isEmpty(), is(true));
     }
 
+    @Test
+    public void bundleHasAnEntryPerResource() {
+        Phenopacket phenoPacket = Phenopacket.newBuilder()
+                .setSubject(Individual.newBuilder().setId(PROBAND_ID))
+                .addPhenotypicFeatures(abnormalPhenotype)
+                .addBiosamples(Biosample.newBuilder().setId("SAMPLE:1").setIndividualId(PROBAND_ID))
+                .build();
+        Bundle result = PhenoPacketConverter.toFhirBundle(phenoPacket);
+
+        assertThat(result.getEntry().size(), equalTo(3));
+        assertThat(result.getEntry().get(0).getResource().getResourceType(), equalTo(ResourceType.Patient));
+        assertThat(result.getEntry().get(1).getResource().getResourceType(), equalTo(ResourceType.Condition));
+        assertThat(result.getEntry().get(2).getResource().getResourceType(), equalTo(ResourceType.Specimen));
+    }
+
 
 
     @Test
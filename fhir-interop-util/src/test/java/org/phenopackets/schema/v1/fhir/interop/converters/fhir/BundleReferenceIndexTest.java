@@ -0,0 +1,75 @@
+package org.phenopackets.schema.v1.fhir.interop.converters.fhir;
+
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class BundleReferenceIndexTest {
+
+    @Test
+    void resolvesByFullUrlAndTypeAndId() {
+        Patient byUrn = new Patient();
+        byUrn.setId("1");
+        Patient byServerUrl = new Patient();
+        Specimen unversioned = new Specimen();
+        unversioned.setId("3");
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setFullUrl("urn:uuid:5b6a6c6e-0c55-4c3f-9d0e-8d9f0a1b2c3d").setResource(byUrn);
+        bundle.addEntry().setFullUrl("http://server/fhir/Patient/2").setResource(byServerUrl);
+        bundle.addEntry().setResource(unversioned);
+
+        BundleReferenceIndex bundleReferenceIndex = BundleReferenceIndex.of(bundle);
+
+        assertThat(bundleReferenceIndex.resolve("urn:uuid:5b6a6c6e-0c55-4c3f-9d0e-8d9f0a1b2c3d"), sameInstance(byUrn));
+        assertThat(bundleReferenceIndex.resolve("Patient/1"), sameInstance(byUrn));
+        assertThat(bundleReferenceIndex.resolve("http://server/fhir/Patient/2"), sameInstance(byServerUrl));
+        assertThat(bundleReferenceIndex.resolve("Patient/2"), sameInstance(byServerUrl));
+        assertThat(bundleReferenceIndex.resolve("Specimen/3"), sameInstance(unversioned));
+        assertThat(bundleReferenceIndex.resolve("Patient/3"), nullValue());
+        assertThat(bundleReferenceIndex.resolve(new Reference()), nullValue());
+    }
+
+    @Test
+    void resolvesVersionedReferences() {
+        Patient versioned = new Patient();
+        versioned.setId("Patient/1/_history/2");
+        Patient unversioned = new Patient();
+        unversioned.setId("2");
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(versioned);
+        bundle.addEntry().setFullUrl("http://server/fhir/Patient/2").setResource(unversioned);
+
+        BundleReferenceIndex bundleReferenceIndex = BundleReferenceIndex.of(bundle);
+
+        assertThat(bundleReferenceIndex.resolve("Patient/1"), sameInstance(versioned));
+        assertThat(bundleReferenceIndex.resolve("Patient/1/_history/2"), sameInstance(versioned));
+        assertThat(bundleReferenceIndex.resolve("Patient/1/_history/1"), nullValue());
+        assertThat(bundleReferenceIndex.resolve("Patient/2/_history/5"), sameInstance(unversioned));
+        assertThat(bundleReferenceIndex.resolve("http://server/fhir/Patient/2/_history/5"), sameInstance(unversioned));
+    }
+
+    @Test
+    void linksOnlyUnlinkedReferences() {
+        Patient inBundle = new Patient();
+        inBundle.setId("1");
+        Patient elsewhere = new Patient();
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(inBundle);
+        BundleReferenceIndex bundleReferenceIndex = BundleReferenceIndex.of(bundle);
+
+        Reference unlinked = new Reference("Patient/1");
+        bundleReferenceIndex.link(unlinked);
+        Reference linked = new Reference("Patient/1");
+        linked.setResource(elsewhere);
+        bundleReferenceIndex.link(linked);
+
+        assertThat(unlinked.getResource(), sameInstance(inBundle));
+        assertThat(linked.getResource(), sameInstance(elsewhere));
+    }
+}
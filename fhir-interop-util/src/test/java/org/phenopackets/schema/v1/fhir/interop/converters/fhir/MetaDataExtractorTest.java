@@ -1,9 +1,14 @@
 package org.phenopackets.schema.v1.fhir.interop.converters.fhir;
 
+import com.google.common.collect.ImmutableList;
+import org.hl7.fhir.r4.model.Condition;
 import org.junit.jupiter.api.Test;
 import org.phenopackets.schema.v1.core.MetaData;
+import org.phenopackets.schema.v1.core.Resource;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -17,4 +22,60 @@ class MetaDataExtractorTest {
         MetaData metaData = MetaDataExtractor.builder().createdBy("Nemo").buildMetaData();
         assertThat(metaData.getCreatedBy(), equalTo("Nemo"));
     }
-}
\ No newline at end of file
+
+    private static Condition condition(String system, String code) {
+        return new Condition().setCode(ConverterUtil.codeableConcept(system, code, ""));
+    }
+
+    @Test
+    void resourcesAreDistinctAndInOrderOfFirstUse() {
+        MetaData metaData = MetaDataExtractor.builder()
+                .fromConditions(ImmutableList.of(
+                        condition("http://purl.obolibrary.org/obo/hp.owl", "HP:0001156"),
+                        condition("http://purl.obolibrary.org/obo/mondo.owl", "MONDO_0007043"),
+                        condition("http://purl.obolibrary.org/obo/hp.owl", "HP:0001363")
+                                .setSeverity(ConverterUtil.codeableConcept("http://purl.obolibrary.org/obo/hp.owl", "HP:0012828", "Severe"))))
+                .buildMetaData();
+
+        assertThat(metaData.getResourcesCount(), equalTo(2));
+        assertThat(metaData.getResources(0), equalTo(Resource.newBuilder()
+                .setId("hp")
+                .setNamespacePrefix("HP")
+                .setUrl("http://purl.obolibrary.org/obo/hp.owl")
+                .build()));
+        assertThat(metaData.getResources(1).getNamespacePrefix(), equalTo("MONDO"));
+    }
+
+    @Test
+    void sharedRegistryReturnsCanonicalResources() {
+        ResourceRegistry resourceRegistry = new ResourceRegistry();
+        MetaData first = MetaDataExtractor.builder()
+                .fromConditions(ImmutableList.of(condition("http://purl.obolibrary.org/obo/hp.owl", "HP:0001156")))
+                .resourceRegistry(resourceRegistry)
+                .buildMetaData();
+        MetaData second = MetaDataExtractor.builder()
+                .fromConditions(ImmutableList.of(condition("http://purl.obolibrary.org/obo/hp.owl", "HP:0001363")))
+                .resourceRegistry(resourceRegistry)
+                .buildMetaData();
+
+        assertThat(second.getResources(0), sameInstance(first.getResources(0)));
+        assertThat(resourceRegistry.size(), equalTo(1));
+    }
+
+    @Test
+    void localCodesShareTheResourceOfTheirSystem() {
+        ResourceRegistry resourceRegistry = new ResourceRegistry();
+        MetaData metaData = MetaDataExtractor.builder()
+                .fromConditions(ImmutableList.of(
+                        condition("http://snomed.info/sct", "195967001"),
+                        condition("http://snomed.info/sct", "24700007"),
+                        condition("http://hl7.org/fhir/sid/icd-10-cm", "G35")))
+                .resourceRegistry(resourceRegistry)
+                .buildMetaData();
+
+        assertThat(metaData.getResourcesCount(), equalTo(2));
+        assertThat(metaData.getResources(0).getNamespacePrefix(), equalTo("SNOMEDCT"));
+        assertThat(metaData.getResources(0).getUrl(), equalTo("http://snomed.info/sct"));
+        assertThat(resourceRegistry.size(), equalTo(2));
+    }
+}
@@ -0,0 +1,153 @@
+package org.phenopackets.schema.v1.fhir.interop.converters.fhir;
+
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v1.core.OntologyClass;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class ObservationRulesTest {
+
+    private static final String RULES = "# loinc\tunit\tlow\thigh\tterm\tlabel\n" +
+            "777-3\t10*3/uL\t\t150\tHP:0001873\tThrombocytopenia\n" +
+            "777-3\t10*3/uL\t450\t\tHP:0001894\tThrombocytosis\n" +
+            "777-3\t10*3/uL\t\t50\tHP:0031421\tSevere thrombocytopenia\n" +
+            "\n" +
+            "8302-2\t\t200\t\tHP:0000098\tTall stature\n";
+
+    private static ObservationRules rules() throws IOException {
+        return ObservationRules.parse(new StringReader(RULES));
+    }
+
+    static Observation observation(String loinc, double value, String unit) {
+        Observation observation = new Observation();
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.setCode(ConverterUtil.codeableConcept(ObservationRules.LOINC_SYSTEM, loinc, ""));
+        observation.setValue(new Quantity().setValue(value).setCode(unit).setSystem("http://unitsofmeasure.org"));
+        return observation;
+    }
+
+    private static List<String> termIds(ObservationRules rules, Observation observation) {
+        List<String> termIds = new ArrayList<>();
+        rules.evaluate(observation, term -> termIds.add(term.getId()));
+        return termIds;
+    }
+
+    @Test
+    void matchesRangesWithInclusiveLowAndExclusiveHigh() throws IOException {
+        ObservationRules rules = rules();
+
+        assertThat(termIds(rules, observation("777-3", 149.9, "10*3/uL")), equalTo(Collections.singletonList("HP:0001873")));
+        assertThat(termIds(rules, observation("777-3", 150, "10*3/uL")), equalTo(Collections.emptyList()));
+        assertThat(termIds(rules, observation("777-3", 450, "10*3/uL")), equalTo(Collections.singletonList("HP:0001894")));
+        // overlapping ranges
+        assertThat(termIds(rules, observation("777-3", 20, "10*3/uL")), equalTo(Arrays.asList("HP:0001873", "HP:0031421")));
+    }
+
+    private static Observation observation(String loinc, Quantity.QuantityComparator comparator, double value) {
+        Observation observation = observation(loinc, value, "10*3/uL");
+        ((Quantity) observation.getValue()).setComparator(comparator);
+        return observation;
+    }
+
+    @Test
+    void lessThanMatchesRangesHoldingEveryValueBelow() throws IOException {
+        ObservationRules rules = rules();
+
+        assertThat(termIds(rules, observation("777-3", Quantity.QuantityComparator.LESS_THAN, 50)), equalTo(Arrays.asList("HP:0001873", "HP:0031421")));
+        assertThat(termIds(rules, observation("777-3", Quantity.QuantityComparator.LESS_THAN, 100)), equalTo(Collections.singletonList("HP:0001873")));
+        // could be normal
+        assertThat(termIds(rules, observation("777-3", Quantity.QuantityComparator.LESS_THAN, 200)), equalTo(Collections.emptyList()));
+    }
+
+    @Test
+    void lessOrEqualExcludesTheHighBound() throws IOException {
+        ObservationRules rules = rules();
+
+        assertThat(termIds(rules, observation("777-3", Quantity.QuantityComparator.LESS_OR_EQUAL, 149)), equalTo(Collections.singletonList("HP:0001873")));
+        assertThat(termIds(rules, observation("777-3", Quantity.QuantityComparator.LESS_OR_EQUAL, 150)), equalTo(Collections.emptyList()));
+    }
+
+    @Test
+    void greaterThanMatchesRangesHoldingEveryValueAbove() throws IOException {
+        ObservationRules rules = rules();
+
+        assertThat(termIds(rules, observation("777-3", Quantity.QuantityComparator.GREATER_THAN, 500)), equalTo(Collections.singletonList("HP:0001894")));
+        assertThat(termIds(rules, observation("777-3", Quantity.QuantityComparator.GREATER_THAN, 450)), equalTo(Collections.singletonList("HP:0001894")));
+        // could be normal, or even low
+        assertThat(termIds(rules, observation("777-3", Quantity.QuantityComparator.GREATER_THAN, 400)), equalTo(Collections.emptyList()));
+        assertThat(termIds(rules, observation("777-3", Quantity.QuantityComparator.GREATER_THAN, 20)), equalTo(Collections.emptyList()));
+    }
+
+    @Test
+    void greaterOrEqualIncludesTheLowBound() throws IOException {
+        ObservationRules rules = rules();
+
+        assertThat(termIds(rules, observation("777-3", Quantity.QuantityComparator.GREATER_OR_EQUAL, 450)), equalTo(Collections.singletonList("HP:0001894")));
+        assertThat(termIds(rules, observation("777-3", Quantity.QuantityComparator.GREATER_OR_EQUAL, 449)), equalTo(Collections.emptyList()));
+    }
+
+    @Test
+    void matchesUnitAndCodeSystem() throws IOException {
+        ObservationRules rules = rules();
+
+        assertThat(termIds(rules, observation("777-3", 20, "/uL")), equalTo(Collections.emptyList()));
+        // any unit
+        assertThat(termIds(rules, observation("8302-2", 201, "cm")), equalTo(Collections.singletonList("HP:0000098")));
+        Observation byUnitText = observation("777-3", 20, null);
+        ((Quantity) byUnitText.getValue()).setUnit("10*3/uL");
+        assertThat(termIds(rules, byUnitText).size(), equalTo(2));
+        Observation otherSystem = observation("777-3", 20, "10*3/uL");
+        otherSystem.getCode().getCodingFirstRep().setSystem("http://snomed.info/sct");
+        assertThat(termIds(rules, otherSystem), equalTo(Collections.emptyList()));
+    }
+
+    @Test
+    void evaluatesComponentsAndSkipsErrors() throws IOException {
+        ObservationRules rules = rules();
+
+        Observation panel = new Observation();
+        panel.setCode(ConverterUtil.codeableConcept(ObservationRules.LOINC_SYSTEM, "58410-2", "CBC panel"));
+        Observation platelets = observation("777-3", 500, "10*3/uL");
+        panel.addComponent().setCode(platelets.getCode()).setValue(platelets.getValue());
+        assertThat(termIds(rules, panel), equalTo(Collections.singletonList("HP:0001894")));
+
+        Observation enteredInError = observation("777-3", 20, "10*3/uL");
+        enteredInError.setStatus(Observation.ObservationStatus.ENTEREDINERROR);
+        assertThat(termIds(rules, enteredInError), equalTo(Collections.emptyList()));
+        Observation noValue = observation("777-3", 20, "10*3/uL");
+        noValue.setValue(new StringType("low"));
+        assertThat(termIds(rules, noValue), equalTo(Collections.emptyList()));
+    }
+
+    @Test
+    void invalidRules() {
+        IllegalArgumentException missingField = assertThrows(IllegalArgumentException.class, () -> ObservationRules.parse(new StringReader("777-3\t10*3/uL\t\t150\tHP:0001873\n")));
+        assertThat(missingField.getMessage(), containsString("line 1"));
+        assertThrows(IllegalArgumentException.class, () -> ObservationRules.parse(new StringReader("777-3\t\t150\t100\tHP:0001873\tThrombocytopenia\n")));
+        assertThrows(IllegalArgumentException.class, () -> ObservationRules.parse(new StringReader("777-3\t\tlow\t\tHP:0001873\tThrombocytopenia\n")));
+    }
+
+    @Test
+    void emptyRulesIgnoreObservations() {
+        List<OntologyClass> terms = new ArrayList<>();
+        ObservationRules.empty().evaluate(observation("777-3", 20, "10*3/uL"), terms::add);
+
+        assertThat(ObservationRules.empty().isEmpty(), equalTo(true));
+        assertThat(terms.isEmpty(), equalTo(true));
+    }
+}
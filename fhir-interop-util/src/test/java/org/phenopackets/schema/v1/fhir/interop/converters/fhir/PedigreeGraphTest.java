@@ -0,0 +1,141 @@
+package org.phenopackets.schema.v1.fhir.interop.converters.fhir;
+
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v1.core.Pedigree;
+import org.phenopackets.schema.v1.core.Sex;
+
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class PedigreeGraphTest {
+
+    private static final String ROLE_CODE = "http://terminology.hl7.org/CodeSystem/v3-RoleCode";
+
+    private static Patient patient(Bundle bundle, String id, Enumerations.AdministrativeGender gender) {
+        Patient patient = new Patient();
+        patient.setId("Patient/" + id);
+        patient.setGender(gender);
+        bundle.addEntry().setFullUrl("http://example.org/fhir/Patient/" + id).setResource(patient);
+        return patient;
+    }
+
+    private static FamilyMemberHistory familyMemberHistory(Bundle bundle, String id, String patientReference, String relationship) {
+        FamilyMemberHistory familyMemberHistory = new FamilyMemberHistory();
+        familyMemberHistory.setId("FamilyMemberHistory/" + id);
+        familyMemberHistory.setPatient(new Reference(patientReference));
+        familyMemberHistory.setRelationship(new CodeableConcept(new Coding(ROLE_CODE, relationship, null)));
+        bundle.addEntry().setResource(familyMemberHistory);
+        return familyMemberHistory;
+    }
+
+    private static Map<String, Pedigree.Person> persons(PedigreeGraph pedigreeGraph) {
+        return pedigreeGraph.toPedigree("family").getPersonsList().stream()
+                .collect(Collectors.toMap(Pedigree.Person::getIndividualId, Function.identity()));
+    }
+
+    @Test
+    void trioOfPatientsLinkedToRelatedPersons() {
+        Bundle bundle = new Bundle();
+        Patient proband = patient(bundle, "proband", Enumerations.AdministrativeGender.FEMALE);
+        Patient mother = patient(bundle, "mother", Enumerations.AdministrativeGender.FEMALE);
+        Patient father = patient(bundle, "father", Enumerations.AdministrativeGender.UNKNOWN);
+        for (Patient parent : new Patient[]{mother, father}) {
+            String id = parent.getIdElement().getIdPart();
+            RelatedPerson relatedPerson = new RelatedPerson();
+            relatedPerson.setId("RelatedPerson/" + id);
+            // by reference strings, so BundleResources has to link them
+            relatedPerson.setPatient(new Reference("Patient/proband"));
+            relatedPerson.addRelationship(new CodeableConcept(new Coding(ROLE_CODE, parent == mother ? "NMTH" : "NFTH", null)));
+            parent.addLink().setOther(new Reference("RelatedPerson/" + id)).setType(Patient.LinkType.SEEALSO);
+            bundle.addEntry().setResource(relatedPerson);
+        }
+        Condition condition = new Condition();
+        condition.setSubject(new Reference("Patient/mother"));
+        bundle.addEntry().setResource(condition);
+
+        PedigreeGraph pedigreeGraph = PedigreeGraph.of(BundleResources.of(bundle));
+
+        assertThat(pedigreeGraph.size(), equalTo(3));
+        // the most relatives beats the most conditions
+        assertThat(pedigreeGraph.guessProband(), sameInstance(proband));
+        assertThat(pedigreeGraph.getPatient("father"), sameInstance(father));
+        Map<String, Pedigree.Person> persons = persons(pedigreeGraph);
+        Pedigree.Person probandPerson = persons.get("Patient/proband");
+        assertThat(probandPerson.getFamilyId(), equalTo("family"));
+        assertThat(probandPerson.getMaternalId(), equalTo("Patient/mother"));
+        assertThat(probandPerson.getPaternalId(), equalTo("Patient/father"));
+        assertThat(probandPerson.getAffectedStatus(), equalTo(Pedigree.Person.AffectedStatus.UNAFFECTED));
+        assertThat(persons.get("Patient/mother").getAffectedStatus(), equalTo(Pedigree.Person.AffectedStatus.AFFECTED));
+        assertThat(persons.get("Patient/mother").getMaternalId(), equalTo("0"));
+        // from the relationship
+        assertThat(persons.get("Patient/father").getSex(), equalTo(Sex.MALE));
+    }
+
+    @Test
+    void relativesFromFamilyMemberHistories() {
+        Bundle bundle = new Bundle();
+        Patient proband = patient(bundle, "proband", Enumerations.AdministrativeGender.MALE);
+        Patient sister = patient(bundle, "sister", Enumerations.AdministrativeGender.FEMALE);
+        familyMemberHistory(bundle, "grandmother", "Patient/proband", "MGRMTH");
+        familyMemberHistory(bundle, "brother", "Patient/sister", "BRO");
+        familyMemberHistory(bundle, "sister", "Patient/proband", "SIS")
+                .addExtension(PedigreeGraph.PATIENT_RECORD, new Reference("Patient/sister"));
+        familyMemberHistory(bundle, "mother", "Patient/sister", "MTH")
+                .addCondition().setCode(new CodeableConcept(new Coding("http://purl.obolibrary.org/obo/hp.owl", "HP:0001156", null)));
+        familyMemberHistory(bundle, "parent", "Patient/proband", "PRN")
+                .setSex(new CodeableConcept(new Coding("http://hl7.org/fhir/administrative-gender", "male", null)));
+        familyMemberHistory(bundle, "cousin", "Patient/proband", "COUSN");
+
+        PedigreeGraph pedigreeGraph = PedigreeGraph.of(BundleResources.of(bundle));
+
+        // the FamilyMemberHistory of the sister is her Patient
+        assertThat(pedigreeGraph.size(), equalTo(7));
+        assertThat(pedigreeGraph.guessProband(), sameInstance(proband));
+        Map<String, Pedigree.Person> persons = persons(pedigreeGraph);
+        // the mother and father of the sister are shared by her siblings
+        for (String child : new String[]{"Patient/proband", "Patient/sister", "FamilyMemberHistory/brother"}) {
+            assertThat(persons.get(child).getMaternalId(), equalTo("FamilyMemberHistory/mother"));
+            assertThat(persons.get(child).getPaternalId(), equalTo("FamilyMemberHistory/parent"));
+        }
+        Pedigree.Person mother = persons.get("FamilyMemberHistory/mother");
+        assertThat(mother.getMaternalId(), equalTo("FamilyMemberHistory/grandmother"));
+        assertThat(mother.getSex(), equalTo(Sex.FEMALE));
+        assertThat(mother.getAffectedStatus(), equalTo(Pedigree.Person.AffectedStatus.AFFECTED));
+        Pedigree.Person cousin = persons.get("FamilyMemberHistory/cousin");
+        assertThat(cousin.getPaternalId(), equalTo("0"));
+        assertThat(cousin.getAffectedStatus(), equalTo(Pedigree.Person.AffectedStatus.MISSING));
+    }
+
+    @Test
+    void largePedigree() {
+        // a line of 20000 generations, each child recorded before its mother, and a brother for each of them
+        int generations = 20_000;
+        Bundle bundle = new Bundle();
+        for (int i = 0; i < generations; i++) {
+            patient(bundle, "p" + i, Enumerations.AdministrativeGender.FEMALE);
+            familyMemberHistory(bundle, "b" + i, "Patient/p" + i, "BRO");
+        }
+        for (int i = 0; i < generations - 1; i++) {
+            familyMemberHistory(bundle, "m" + i, "Patient/p" + i, "MTH")
+                    .addExtension(PedigreeGraph.PATIENT_RECORD, new Reference("Patient/p" + (i + 1)));
+        }
+
+        PedigreeGraph pedigreeGraph = PedigreeGraph.of(BundleResources.of(bundle));
+
+        assertThat(pedigreeGraph.size(), equalTo(generations * 2));
+        Map<String, Pedigree.Person> persons = persons(pedigreeGraph);
+        assertThat(persons.get("Patient/p0").getMaternalId(), equalTo("Patient/p1"));
+        assertThat(persons.get("FamilyMemberHistory/b0").getMaternalId(), equalTo("Patient/p1"));
+        assertThat(persons.get("FamilyMemberHistory/b" + (generations - 2)).getMaternalId(), equalTo("Patient/p" + (generations - 1)));
+        assertThat(persons.get("Patient/p" + (generations - 1)).getMaternalId(), equalTo("0"));
+    }
+}
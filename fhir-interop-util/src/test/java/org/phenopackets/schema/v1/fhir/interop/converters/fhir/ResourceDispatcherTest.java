@@ -0,0 +1,73 @@
+package org.phenopackets.schema.v1.fhir.interop.converters.fhir;
+
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class ResourceDispatcherTest {
+
+    private static Condition condition(Patient subject) {
+        Condition condition = new Condition();
+        condition.getSubject().setResource(subject);
+        return condition;
+    }
+
+    @Test
+    void dispatchesByTypeInBundleOrder() {
+        ResourceDispatcher<List<String>> dispatcher = ResourceDispatcher.<List<String>>builder()
+                .on(Patient.class, (seen, patient) -> seen.add("patient " + patient.getIdElement().getIdPart()))
+                .on(Condition.class, (seen, condition) -> seen.add("condition"))
+                .on(Patient.class, (seen, patient) -> seen.add("patient again"))
+                .build();
+
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(new Patient().setId("1"));
+        bundle.addEntry().setResource(new Encounter());
+        bundle.addEntry().getRequest().setMethod(Bundle.HTTPVerb.DELETE).setUrl("Condition/1");
+        bundle.addEntry().setResource(new Condition());
+
+        List<String> seen = dispatcher.dispatch(bundle, new ArrayList<>());
+
+        assertThat(seen, equalTo(Arrays.asList("patient 1", "patient again", "condition")));
+        assertThat(dispatcher.getResourceTypes(), equalTo(EnumSet.of(ResourceType.Patient, ResourceType.Condition)));
+    }
+
+    @Test
+    void bundleResourcesGroupsConditionsBySubject() {
+        Patient first = new Patient();
+        Patient second = new Patient();
+        Condition firstCondition = condition(first);
+        Condition secondCondition = condition(second);
+        Condition unresolved = new Condition();
+        unresolved.setSubject(new Reference("Patient/other"));
+        Observation observation = new Observation();
+
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(firstCondition);
+        bundle.addEntry().setResource(first);
+        bundle.addEntry().setResource(observation);
+        bundle.addEntry().setResource(unresolved);
+        bundle.addEntry().setResource(second);
+        bundle.addEntry().setResource(secondCondition);
+
+        BundleResources bundleResources = BundleResources.of(bundle);
+
+        assertThat(bundleResources.getPatients(), equalTo(Arrays.asList(first, second)));
+        assertThat(bundleResources.getPatientConditions(), equalTo(Arrays.asList(firstCondition, secondCondition)));
+        assertThat(bundleResources.getConditions(second), equalTo(Collections.singletonList(secondCondition)));
+        assertThat(bundleResources.getObservations().get(0), sameInstance(observation));
+        assertThat(bundleResources.getSpecimens().isEmpty(), equalTo(true));
+    }
+}
@@ -0,0 +1,136 @@
+package org.phenopackets.schema.v1.fhir.interop.converters.fhir;
+
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.phenopackets.schema.v1.Phenopacket;
+import org.phenopackets.schema.v1.fhir.interop.converters.ConverterUtil;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirContextProvider;
+import org.phenopackets.schema.v1.fhir.interop.converters.FhirConverter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Jules Jacobsen <j.jacobsen@qmul.ac.uk>
+ */
+class StreamingBundleReaderTest {
+
+    private static final IParser jsonParser = FhirContextProvider.r4().getFhirContext().newJsonParser();
+
+    private static String bundleJson() {
+        Bundle bundle = new Bundle();
+        bundle.setId("BUNDLE:1");
+        bundle.setType(Bundle.BundleType.COLLECTION);
+
+        Patient patient = new Patient();
+        patient.setId("PATIENT1");
+        patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+        bundle.addEntry().setFullUrl("urn:uuid:4d2f0a14-0d62-4a4c-9d8e-2f1c27b1a3e1").setResource(patient);
+
+        Observation observation = new Observation();
+        observation.setCode(ConverterUtil.codeableConcept("http://loinc.org", "777-3", "Platelets"));
+        observation.setSubject(new Reference("Patient/PATIENT1"));
+        bundle.addEntry().setResource(observation);
+
+        Condition byTypeAndId = new Condition();
+        byTypeAndId.setCode(ConverterUtil.codeableConcept("http://purl.obolibrary.org/obo/hp.owl", "HP:0001873", "Thrombocytopenia"));
+        byTypeAndId.setSubject(new Reference("Patient/PATIENT1"));
+        bundle.addEntry().setResource(byTypeAndId);
+
+        Encounter encounter = new Encounter();
+        encounter.setSubject(new Reference("Patient/PATIENT1"));
+        bundle.addEntry().setResource(encounter);
+
+        Condition byFullUrl = new Condition();
+        byFullUrl.setCode(ConverterUtil.codeableConcept("http://purl.obolibrary.org/obo/hp.owl", "HP:0001250", "Seizure"));
+        byFullUrl.setSubject(new Reference("urn:uuid:4d2f0a14-0d62-4a4c-9d8e-2f1c27b1a3e1"));
+        bundle.addEntry().setResource(byFullUrl);
+
+        return jsonParser.encodeResourceToString(bundle);
+    }
+
+    @Test
+    void skipsUnusedResourceTypes() throws IOException {
+        Bundle bundle = new StreamingBundleReader(jsonParser).read(new StringReader(bundleJson()));
+
+        assertThat(bundle.getIdElement().getIdPart(), equalTo("BUNDLE:1"));
+        assertThat(bundle.getType(), equalTo(Bundle.BundleType.COLLECTION));
+        // the Encounter is skipped
+        assertThat(bundle.getEntry().size(), equalTo(4));
+        assertThat(bundle.getEntry().get(0).getFullUrl(), equalTo("urn:uuid:4d2f0a14-0d62-4a4c-9d8e-2f1c27b1a3e1"));
+        assertThat(bundle.getEntry().get(1).getResource().getResourceType(), equalTo(ResourceType.Observation));
+        assertThat(bundle.getEntry().get(2).getResource().getResourceType(), equalTo(ResourceType.Condition));
+        assertThat(bundle.getEntry().get(3).getResource().getResourceType(), equalTo(ResourceType.Condition));
+    }
+
+    @Test
+    void subjectReferencesAreResolvedByBundleResources() throws IOException {
+        Bundle bundle = new StreamingBundleReader(jsonParser).read(new StringReader(bundleJson()));
+        BundleResources bundleResources = BundleResources.of(bundle);
+
+        Patient patient = (Patient) bundle.getEntry().get(0).getResource();
+        assertThat(bundleResources.getConditions(patient).size(), equalTo(2));
+        assertThat(bundleResources.getObservations(patient).size(), equalTo(1));
+    }
+
+    @Test
+    void convertsTheSameAsTheHapiParser() throws IOException {
+        String json = bundleJson();
+        Phenopacket streamed = new FhirConverter().toPhenopacket(new StreamingBundleReader(jsonParser).read(new StringReader(json)));
+        Phenopacket parsed = new FhirConverter().toPhenopacket((Bundle) jsonParser.parseResource(json));
+
+        assertThat(streamed.getSubject(), equalTo(parsed.getSubject()));
+        assertThat(streamed.getPhenotypicFeaturesList(), equalTo(parsed.getPhenotypicFeaturesList()));
+        assertThat(streamed.getMetaData().getResourcesList(), equalTo(parsed.getMetaData().getResourcesList()));
+    }
+
+    @Test
+    void resourceTypeNeedNotBeFirst() throws IOException {
+        String json = "{\"entry\":[" +
+                "{\"resource\":{\"id\":\"o1\",\"status\":\"final\",\"resourceType\":\"Observation\",\"code\":{\"text\":\"x\"}}}," +
+                "{\"resource\":{\"id\":\"p1\",\"resourceType\":\"Patient\",\"gender\":\"male\"}}" +
+                "],\"resourceType\":\"Bundle\",\"type\":\"collection\"}";
+
+        List<Bundle.BundleEntryComponent> entries = new ArrayList<>();
+        new StreamingBundleReader(jsonParser, EnumSet.of(ResourceType.Patient)).read(new StringReader(json), entries::add);
+
+        assertThat(entries.size(), equalTo(1));
+        Patient patient = (Patient) entries.get(0).getResource();
+        assertThat(patient.getIdElement().getIdPart(), equalTo("p1"));
+        assertThat(patient.getGender(), equalTo(Enumerations.AdministrativeGender.MALE));
+    }
+
+    @Test
+    void rejectsEntriesWhichAreNotObjects() {
+        String json = "{\"resourceType\":\"Bundle\",\"entry\":[" +
+                "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"p1\"}}," +
+                "null," +
+                "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"p2\"}}" +
+                "]}";
+        StreamingBundleReader reader = new StreamingBundleReader(jsonParser, EnumSet.of(ResourceType.Patient));
+
+        IOException e = assertThrows(IOException.class, () -> reader.read(new StringReader(json), entry -> {
+        }));
+        assertThat(e.getMessage(), containsString("VALUE_NULL"));
+        assertThat(e.getMessage(), containsString("column: 85"));
+    }
+
+    @Test
+    void rejectsResourcesWhichAreNotObjects() {
+        String json = "{\"resourceType\":\"Bundle\",\"entry\":[{\"resource\":\"Patient/p1\"}]}";
+        StreamingBundleReader reader = new StreamingBundleReader(jsonParser, EnumSet.of(ResourceType.Patient));
+
+        IOException e = assertThrows(IOException.class, () -> reader.read(new StringReader(json), entry -> {
+        }));
+        assertThat(e.getMessage(), containsString("VALUE_STRING"));
+    }
+}